@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+import java.lang.reflect.Proxy;
+import java.util.Objects;
+
+/**
+ * Minimal bundle implementations for benchmarks. Only the methods used by the
+ * log bridge are implemented.
+ */
+
+public final class BenchmarkBundles
+{
+  private BenchmarkBundles()
+  {
+
+  }
+
+  /**
+   * Create a bundle with the given ID and symbolic name.
+   *
+   * @param id   The bundle ID
+   * @param name The symbolic name
+   *
+   * @return A bundle
+   */
+
+  public static Bundle bundle(
+    final long id,
+    final String name)
+  {
+    Objects.requireNonNull(name, "Name");
+
+    final Long boxed_id = Long.valueOf(id);
+    final String text = name + " [" + id + "]";
+    final Object proxy = Proxy.newProxyInstance(
+      BenchmarkBundles.class.getClassLoader(),
+      new Class<?>[]{Bundle.class},
+      (self, method, args) -> {
+        switch (method.getName()) {
+          case "getBundleId":
+            return boxed_id;
+          case "getSymbolicName":
+            return name;
+          case "getState":
+            return Integer.valueOf(Bundle.ACTIVE);
+          case "getVersion":
+            return Version.emptyVersion;
+          case "hashCode":
+            return Integer.valueOf(boxed_id.hashCode());
+          case "equals":
+            return Boolean.valueOf(self == args[0]);
+          case "toString":
+            return text;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+
+    return (Bundle) proxy;
+  }
+}
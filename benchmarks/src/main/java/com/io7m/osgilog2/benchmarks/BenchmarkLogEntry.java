@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.benchmarks;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * An immutable log entry used as benchmark input.
+ */
+
+public final class BenchmarkLogEntry implements LogEntry
+{
+  private final Bundle bundle;
+  private final int level;
+  private final String message;
+  private final Throwable exception;
+  private final long time;
+
+  /**
+   * Construct an entry.
+   *
+   * @param in_bundle    The producing bundle
+   * @param in_level     The OSGi log level
+   * @param in_message   The message
+   * @param in_exception The exception, if any
+   */
+
+  public BenchmarkLogEntry(
+    final Bundle in_bundle,
+    final int in_level,
+    final String in_message,
+    final Throwable in_exception)
+  {
+    this.bundle = in_bundle;
+    this.level = in_level;
+    this.message = in_message;
+    this.exception = in_exception;
+    this.time = System.currentTimeMillis();
+  }
+
+  @Override
+  public Bundle getBundle()
+  {
+    return this.bundle;
+  }
+
+  @Override
+  public ServiceReference getServiceReference()
+  {
+    return null;
+  }
+
+  @Override
+  public int getLevel()
+  {
+    return this.level;
+  }
+
+  @Override
+  public String getMessage()
+  {
+    return this.message;
+  }
+
+  @Override
+  public Throwable getException()
+  {
+    return this.exception;
+  }
+
+  @Override
+  public long getTime()
+  {
+    return this.time;
+  }
+}
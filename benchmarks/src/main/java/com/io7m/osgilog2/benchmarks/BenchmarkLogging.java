@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.OutputStreamAppender;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+
+/**
+ * <p>Functions to configure logback for benchmarks.</p>
+ *
+ * <p>Events are formatted with the same pattern as the shipped configuration
+ * of the {@code main} module, and the resulting bytes are discarded, so that
+ * benchmarks measure the cost of the bridge and of event formatting but not
+ * of the terminal or disk.</p>
+ */
+
+public final class BenchmarkLogging
+{
+  private BenchmarkLogging()
+  {
+
+  }
+
+  private static final class DiscardingOutputStream extends OutputStream
+  {
+    DiscardingOutputStream()
+    {
+
+    }
+
+    @Override
+    public void write(final int b)
+    {
+      // Nothing
+    }
+
+    @Override
+    public void write(
+      final byte[] b,
+      final int off,
+      final int len)
+    {
+      // Nothing
+    }
+  }
+
+  /**
+   * Replace the logback configuration with a single appender that formats
+   * events and discards the output. The root logger is set to {@code OFF}.
+   */
+
+  public static void configure()
+  {
+    final LoggerContext context =
+      (LoggerContext) LoggerFactory.getILoggerFactory();
+    context.reset();
+
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern("[%8r] %level %logger{128}: %msg%n");
+    encoder.start();
+
+    final OutputStreamAppender<ILoggingEvent> appender =
+      new OutputStreamAppender<>();
+    appender.setContext(context);
+    appender.setName("DISCARD");
+    appender.setEncoder(encoder);
+    appender.setOutputStream(new DiscardingOutputStream());
+    appender.start();
+
+    final ch.qos.logback.classic.Logger root =
+      context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.addAppender(appender);
+    root.setLevel(Level.OFF);
+  }
+
+  /**
+   * Set the level of the named logger such that the given OSGi log level is
+   * either enabled or disabled.
+   *
+   * @param name    The logger name
+   * @param level   The OSGi log level
+   * @param enabled {@code true} iff the level should be enabled
+   */
+
+  public static void setLevel(
+    final String name,
+    final int level,
+    final boolean enabled)
+  {
+    final LoggerContext context =
+      (LoggerContext) LoggerFactory.getILoggerFactory();
+    final ch.qos.logback.classic.Logger logger = context.getLogger(name);
+
+    if (!enabled) {
+      logger.setLevel(Level.OFF);
+      return;
+    }
+
+    switch (level) {
+      case LogService.LOG_DEBUG: {
+        logger.setLevel(Level.DEBUG);
+        break;
+      }
+      case LogService.LOG_INFO: {
+        logger.setLevel(Level.INFO);
+        break;
+      }
+      case LogService.LOG_WARNING: {
+        logger.setLevel(Level.WARN);
+        break;
+      }
+      default: {
+        logger.setLevel(Level.ERROR);
+        break;
+      }
+    }
+  }
+
+  /**
+   * @param name A level name: one of {@code DEBUG}, {@code INFO},
+   *             {@code WARN}, {@code ERROR}
+   *
+   * @return The corresponding OSGi log level
+   */
+
+  public static int osgiLevel(
+    final String name)
+  {
+    switch (name) {
+      case "DEBUG":
+        return LogService.LOG_DEBUG;
+      case "INFO":
+        return LogService.LOG_INFO;
+      case "WARN":
+        return LogService.LOG_WARNING;
+      case "ERROR":
+        return LogService.LOG_ERROR;
+      default:
+        throw new IllegalArgumentException("Unrecognized level: " + name);
+    }
+  }
+}
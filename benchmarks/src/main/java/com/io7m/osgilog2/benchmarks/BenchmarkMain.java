@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A command line program that runs every benchmark once for each of a set
+ * of producer thread counts, reporting throughput, average latency, and the
+ * allocation rate measured by the GC profiler.</p>
+ *
+ * <p>Usage: {@code java -jar benchmarks.jar [include-regex] [threads ...]}.
+ * If no thread counts are given, the benchmarks are run with 1, 2, 4, ...
+ * threads up to the number of available processors.</p>
+ */
+
+public final class BenchmarkMain
+{
+  private BenchmarkMain()
+  {
+
+  }
+
+  /**
+   * The main program.
+   *
+   * @param args Command line arguments
+   *
+   * @throws Exception On errors
+   */
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    final String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+
+    final List<Integer> threads = new ArrayList<>(8);
+    for (int index = 1; index < args.length; ++index) {
+      threads.add(Integer.valueOf(args[index]));
+    }
+    if (threads.isEmpty()) {
+      final int cpus = Runtime.getRuntime().availableProcessors();
+      for (int count = 1; count < cpus; count <<= 1) {
+        threads.add(Integer.valueOf(count));
+      }
+      threads.add(Integer.valueOf(cpus));
+    }
+
+    for (final Integer count : threads) {
+      final ChainedOptionsBuilder builder = new OptionsBuilder()
+        .include(include)
+        .threads(count.intValue())
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result("benchmarks-" + count + "-threads.json");
+
+      final Options options = builder.build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the latency of an error entry from a quiet bundle whilst
+ * another bundle floods the asynchronous listener, comparing the shared
+ * ring buffer ({@link AsyncLogListener}) with per-bundle queues
+ * ({@link FairLogListener}).
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Group)
+public class FairLogListenerBenchmark
+{
+  /**
+   * The simulated cost of delivering one entry, in {@link
+   * Blackhole#consumeCPU(long)} tokens.
+   */
+
+  private static final long DELIVERY_COST = 100L;
+
+  @Param({"ring", "fair"})
+  public String delivery;
+
+  private CountingListener target;
+  private LogListener listener;
+  private AsyncLogListener async;
+  private FairLogListener fair;
+  private LogEntry noisy_entry;
+  private LogEntry error_entry;
+
+  /**
+   * A batch listener that burns a fixed amount of CPU per entry and counts
+   * error entries.
+   */
+
+  private static final class CountingListener implements LogBatchListener
+  {
+    private volatile long errors;
+
+    CountingListener()
+    {
+
+    }
+
+    @Override
+    public void loggedBatch(
+      final LogEntry[] entries,
+      final int count)
+    {
+      for (int index = 0; index < count; ++index) {
+        this.logged(entries[index]);
+      }
+    }
+
+    @Override
+    public void logged(
+      final LogEntry entry)
+    {
+      Blackhole.consumeCPU(DELIVERY_COST);
+      if (entry.getLevel() == LogService.LOG_ERROR) {
+        ++this.errors;
+      }
+    }
+  }
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public FairLogListenerBenchmark()
+  {
+
+  }
+
+  /**
+   * Create the listener and the entries.
+   */
+
+  @Setup
+  public void setup()
+  {
+    this.target = new CountingListener();
+    this.noisy_entry = new BenchmarkLogEntry(
+      BenchmarkBundles.bundle(100L, "com.io7m.osgilog2.benchmark.noisy"),
+      LogService.LOG_INFO,
+      "Noisy message",
+      null);
+    this.error_entry = new BenchmarkLogEntry(
+      BenchmarkBundles.bundle(101L, "com.io7m.osgilog2.benchmark.quiet"),
+      LogService.LOG_ERROR,
+      "Error message",
+      null);
+
+    if ("fair".equals(this.delivery)) {
+      this.fair = new FairLogListener(
+        this.target,
+        1024,
+        Collections.emptyMap(),
+        1,
+        Collections.emptyMap(),
+        OverflowPolicy.BLOCK,
+        1,
+        0L,
+        true,
+        LogMetricsRecorder.NONE);
+      this.fair.start();
+      this.listener = this.fair;
+    } else {
+      this.async = new AsyncLogListener(
+        this.target,
+        8192,
+        OverflowPolicy.BLOCK,
+        1,
+        0L,
+        true,
+        LogMetricsRecorder.NONE);
+      this.async.start();
+      this.listener = this.async;
+    }
+  }
+
+  /**
+   * Stop the listener.
+   *
+   * @throws InterruptedException On interruption
+   */
+
+  @TearDown
+  public void tearDown()
+    throws InterruptedException
+  {
+    if (this.fair != null) {
+      this.fair.close(10L, TimeUnit.SECONDS);
+    }
+    if (this.async != null) {
+      this.async.close(10L, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Flood the listener with entries from one bundle.
+   */
+
+  @Benchmark
+  @Group("starvation")
+  @GroupThreads(2)
+  public void noisy()
+  {
+    this.listener.logged(this.noisy_entry);
+  }
+
+  /**
+   * Log an error entry from another bundle and wait until it is delivered.
+   */
+
+  @Benchmark
+  @Group("starvation")
+  @GroupThreads(1)
+  public void error()
+  {
+    final long target_errors = this.target.errors + 1L;
+    this.listener.logged(this.error_entry);
+    while (this.target.errors < target_errors) {
+      Thread.yield();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogging;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link FormattingLogger}: the cost of logging one debug
+ * entry with two arguments through the built-in log service and the SLF4J
+ * reader, either by building the message and calling a filtering
+ * {@link LogService}, or by passing a template to a formatting logger.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormattingLoggerBenchmark
+{
+  private static final String BUNDLE_NAME = "com.io7m.osgilog2.benchmark";
+
+  @Param({"false", "true"})
+  public boolean enabled;
+
+  private LogService service;
+  private FormattingLogger logger;
+  private Integer count;
+  private String name;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public FormattingLoggerBenchmark()
+  {
+
+  }
+
+  /**
+   * Configure logging and create the services.
+   */
+
+  @Setup
+  public void setup()
+  {
+    BenchmarkLogging.configure();
+    BenchmarkLogging.setLevel(BUNDLE_NAME, LogService.LOG_DEBUG, this.enabled);
+
+    final Bundle bundle = BenchmarkBundles.bundle(100L, BUNDLE_NAME);
+    final BundleLoggers loggers =
+      new BundleLoggers(SLF4JLogReader.defaultLogger());
+    final LogDispatcher dispatcher = new LogDispatcher(0, false);
+    dispatcher.addListener(
+      new SLF4JLogReader(
+        loggers,
+        LogMetricsRecorder.NONE,
+        LogSuppressor.disabled(),
+        false,
+        false,
+        ExceptionFingerprints.disabled(),
+        LoadShedder.disabled()));
+
+    final LogLevelService levels = new Levels(
+      SLF4JLogLevels.levelOf(loggers.forBundle(bundle)));
+
+    this.service = new FilteringLogService(
+      bundle,
+      levels,
+      new DispatchLogService(dispatcher, bundle),
+      LogMetricsRecorder.NONE);
+    this.logger = new BundleFormattingLogger(
+      bundle, levels, LogMetricsRecorder.NONE, dispatcher, null);
+
+    this.count = Integer.valueOf(23);
+    this.name = "benchmark";
+  }
+
+  /**
+   * Build a message and log it.
+   */
+
+  @Benchmark
+  public void logService()
+  {
+    this.service.log(
+      LogService.LOG_DEBUG,
+      "Processed " + this.count + " entries for " + this.name);
+  }
+
+  /**
+   * Log a template and its arguments.
+   */
+
+  @Benchmark
+  public void formattingLogger()
+  {
+    this.logger.debug("Processed {} entries for {}", this.count, this.name);
+  }
+
+  private static final class Levels implements LogLevelService
+  {
+    private final int level;
+
+    Levels(
+      final int in_level)
+    {
+      this.level = in_level;
+    }
+
+    @Override
+    public int level(
+      final long bundle_id)
+    {
+      return this.level;
+    }
+
+    @Override
+    public boolean isEnabled(
+      final long bundle_id,
+      final int in_level)
+    {
+      return in_level <= this.level;
+    }
+
+    @Override
+    public void refresh()
+    {
+      // Nothing
+    }
+  }
+}
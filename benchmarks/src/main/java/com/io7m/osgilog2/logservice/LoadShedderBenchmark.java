@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the cost to producer threads of logging {@code DEBUG}
+ * entries faster than a slow delivery path can write them, with and without
+ * load shedding.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadShedderBenchmark
+{
+  /**
+   * The simulated cost of writing one entry, in {@link
+   * Blackhole#consumeCPU(long)} tokens.
+   */
+
+  private static final long WRITE_COST = 1000L;
+
+  @Param({"false", "true"})
+  public boolean shed;
+
+  private AsyncLogListener async;
+  private LogListener listener;
+  private Bundle bundle;
+
+  /**
+   * A batch listener that burns a fixed amount of CPU per entry, reporting
+   * the time taken to the shedder as the SLF4J reader would.
+   */
+
+  private static final class SlowListener implements LogBatchListener
+  {
+    private final LoadShedder shedder;
+
+    SlowListener(
+      final LoadShedder in_shedder)
+    {
+      this.shedder = in_shedder;
+    }
+
+    @Override
+    public void loggedBatch(
+      final LogEntry[] entries,
+      final int count)
+    {
+      for (int index = 0; index < count; ++index) {
+        this.logged(entries[index]);
+      }
+    }
+
+    @Override
+    public void logged(
+      final LogEntry entry)
+    {
+      final long start = System.nanoTime();
+      Blackhole.consumeCPU(WRITE_COST);
+      this.shedder.onWritten(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public LoadShedderBenchmark()
+  {
+
+  }
+
+  /**
+   * Create the listeners.
+   */
+
+  @Setup
+  public void setup()
+  {
+    final LoadShedder shedder;
+    if (this.shed) {
+      shedder = new LoadShedder(true, 100L, 50, 10, 500L, 128);
+    } else {
+      shedder = LoadShedder.disabled();
+    }
+
+    this.bundle = BenchmarkBundles.bundle(100L, "com.io7m.osgilog2.benchmark");
+    this.async = new AsyncLogListener(
+      new SlowListener(shedder),
+      1024,
+      OverflowPolicy.BLOCK,
+      1,
+      0L,
+      true,
+      LogMetricsRecorder.NONE);
+    this.async.start();
+
+    final AsyncLogListener queue = this.async;
+    shedder.watchQueue(
+      () -> (double) queue.depth() / (double) queue.capacity());
+    this.listener = new SheddingLogListener(
+      this.async, shedder, LogMetricsRecorder.NONE);
+  }
+
+  /**
+   * Stop the listener.
+   *
+   * @throws InterruptedException On interruption
+   */
+
+  @TearDown
+  public void tearDown()
+    throws InterruptedException
+  {
+    this.async.close(10L, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Log one {@code DEBUG} entry.
+   */
+
+  @Benchmark
+  @Threads(2)
+  public void debug()
+  {
+    this.listener.logged(new BenchmarkLogEntry(
+      this.bundle, LogService.LOG_DEBUG, "Benchmark message", null));
+  }
+}
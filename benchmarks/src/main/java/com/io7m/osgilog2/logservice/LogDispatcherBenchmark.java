@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the built-in log service: the cost of logging one entry
+ * and delivering it to the given number of listeners. Compare with
+ * {@code org.apache.felix.log.FelixLogBenchmark}.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogDispatcherBenchmark
+{
+  @Param({"0", "1", "4"})
+  public int listeners;
+
+  private LogService service;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public LogDispatcherBenchmark()
+  {
+
+  }
+
+  /**
+   * Create the service and attach the listeners.
+   */
+
+  @Setup
+  public void setup()
+  {
+    final LogDispatcher dispatcher = new LogDispatcher(100, false);
+    for (int index = 0; index < this.listeners; ++index) {
+      dispatcher.addListener(new Sink());
+    }
+
+    this.service = new DispatchLogService(
+      dispatcher, BenchmarkBundles.bundle(100L, "com.io7m.osgilog2.benchmark"));
+  }
+
+  /**
+   * Log one entry.
+   */
+
+  @Benchmark
+  public void log()
+  {
+    this.service.log(LogService.LOG_INFO, "Benchmark message");
+  }
+
+  private static final class Sink implements LogListener
+  {
+    private volatile LogEntry last;
+
+    Sink()
+    {
+
+    }
+
+    @Override
+    public void logged(
+      final LogEntry entry)
+    {
+      this.last = entry;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogEntry;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogging;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link SLF4JLogReader#logged(LogEntry)}: the cost of bridging
+ * one OSGi log entry to SLF4J.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SLF4JLogReaderBenchmark
+{
+  private static final String BUNDLE_NAME = "com.io7m.osgilog2.benchmark";
+
+  @Param({"DEBUG", "INFO", "WARN", "ERROR"})
+  public String level;
+
+  @Param({"false", "true"})
+  public boolean exception;
+
+  @Param({"true", "false"})
+  public boolean enabled;
+
+  @Param({"false", "true"})
+  public boolean structured;
+
+  private SLF4JLogReader reader;
+  private LogEntry entry;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public SLF4JLogReaderBenchmark()
+  {
+
+  }
+
+  /**
+   * Configure logging and create the reader and the entry.
+   */
+
+  @Setup
+  public void setup()
+  {
+    final int osgi_level = BenchmarkLogging.osgiLevel(this.level);
+
+    BenchmarkLogging.configure();
+    BenchmarkLogging.setLevel(BUNDLE_NAME, osgi_level, this.enabled);
+
+    final Bundle bundle = BenchmarkBundles.bundle(100L, BUNDLE_NAME);
+    this.reader =
+      new SLF4JLogReader(
+        new BundleLoggers(SLF4JLogReader.defaultLogger()),
+        LogMetricsRecorder.NONE,
+        LogSuppressor.disabled(),
+        this.structured,
+        true,
+        ExceptionFingerprints.disabled(),
+        LoadShedder.disabled());
+
+    final Throwable ex =
+      this.exception ? new Exception("Benchmark exception") : null;
+    this.entry =
+      new BenchmarkLogEntry(bundle, osgi_level, "Benchmark message", ex);
+  }
+
+  /**
+   * Bridge one entry.
+   */
+
+  @Benchmark
+  public void logged()
+  {
+    this.reader.logged(this.entry);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import com.io7m.osgilog2.benchmarks.BenchmarkLogging;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the {@code doLog} methods of {@link FelixLogger}: the cost of
+ * delivering one framework log message to SLF4J.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FelixLoggerBenchmark
+{
+  @Param({"DEBUG", "INFO", "WARN", "ERROR"})
+  public String level;
+
+  @Param({"false", "true"})
+  public boolean exception;
+
+  @Param({"true", "false"})
+  public boolean enabled;
+
+  private FelixLogger logger;
+  private Bundle bundle;
+  private int osgi_level;
+  private Throwable ex;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public FelixLoggerBenchmark()
+  {
+
+  }
+
+  /**
+   * Configure logging and create the logger.
+   */
+
+  @Setup
+  public void setup()
+  {
+    this.osgi_level = BenchmarkLogging.osgiLevel(this.level);
+
+    BenchmarkLogging.configure();
+    BenchmarkLogging.setLevel(
+      FelixLogger.class.getName(), this.osgi_level, this.enabled);
+
+    this.logger = new FelixLogger();
+    this.bundle =
+      BenchmarkBundles.bundle(100L, "com.io7m.osgilog2.benchmark");
+    this.ex =
+      this.exception ? new Exception("Benchmark exception") : null;
+  }
+
+  /**
+   * Log one message attributed to a bundle.
+   */
+
+  @Benchmark
+  public void doLogBundle()
+  {
+    this.logger.doLog(
+      this.bundle, null, this.osgi_level, "Benchmark message", this.ex);
+  }
+
+  /**
+   * Log one message attributed to the framework.
+   */
+
+  @Benchmark
+  public void doLogFramework()
+  {
+    this.logger.doLog(this.osgi_level, "Benchmark message", this.ex);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link FileChannelAppender}: the cost of encoding and
+ * writing one event, compared with the logback {@link FileAppender} and the
+ * same pattern. Both appenders write to {@code /dev/null} by default.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileChannelAppenderBenchmark
+{
+  @Param({"logback", "channel"})
+  public String appender;
+
+  @Param({"true", "false"})
+  public boolean immediate_flush;
+
+  @Param({"/dev/null"})
+  public String file;
+
+  private Appender<ILoggingEvent> target;
+  private Logger logger;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public FileChannelAppenderBenchmark()
+  {
+
+  }
+
+  /**
+   * Configure logback with the selected appender.
+   */
+
+  @Setup
+  public void setup()
+  {
+    final LoggerContext context =
+      (LoggerContext) LoggerFactory.getILoggerFactory();
+    context.reset();
+
+    switch (this.appender) {
+      case "logback": {
+        final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("[%8r] %level %logger: %msg%n");
+        encoder.setImmediateFlush(this.immediate_flush);
+        encoder.start();
+
+        final FileAppender<ILoggingEvent> file_appender = new FileAppender<>();
+        file_appender.setContext(context);
+        file_appender.setFile(this.file);
+        file_appender.setEncoder(encoder);
+        this.target = file_appender;
+        break;
+      }
+      case "channel": {
+        final FileChannelAppender channel_appender = new FileChannelAppender();
+        channel_appender.setContext(context);
+        channel_appender.setFile(this.file);
+        channel_appender.setImmediateFlush(this.immediate_flush);
+        this.target = channel_appender;
+        break;
+      }
+      default: {
+        throw new IllegalArgumentException(this.appender);
+      }
+    }
+
+    this.target.setName("TARGET");
+    this.target.start();
+
+    final ch.qos.logback.classic.Logger root =
+      context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.addAppender(this.target);
+    root.setLevel(Level.INFO);
+
+    this.logger = LoggerFactory.getLogger("com.io7m.osgilog2.benchmark");
+  }
+
+  /**
+   * Stop the appender.
+   */
+
+  @TearDown
+  public void tearDown()
+  {
+    this.target.stop();
+  }
+
+  /**
+   * Log one event.
+   */
+
+  @Benchmark
+  public void append()
+  {
+    this.logger.info("Benchmark message");
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import org.apache.felix.framework.CachingSecurityProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServicePermission;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.AccessControlContext;
+import java.security.Permission;
+import java.security.Policy;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PropertyPermission;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks for a permission check made on behalf of the log service
+ * bundle, with security disabled, with the Felix security provider, and
+ * with the Felix security provider behind a {@link CachingSecurityProvider}.</p>
+ *
+ * <p>The benchmark installs the security extension and the log service
+ * bundle from the launcher's library directory, so the project must have
+ * been built before it is run.</p>
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecurityBenchmark
+{
+  private static final Path LIB = Paths.get("/tmp/osgilog2/lib");
+
+  @Param({"off", "provider", "cached"})
+  public String security;
+
+  @Param({"service", "property"})
+  public String permission_type;
+
+  private Path cache;
+  private Framework framework;
+  private Permission permission;
+  private AccessControlContext access;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public SecurityBenchmark()
+  {
+
+  }
+
+  /**
+   * Start a framework and obtain the protection domain of the log service
+   * bundle.
+   *
+   * @throws Exception On errors
+   */
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    Policy.setPolicy(new PermissivePolicy());
+
+    this.cache = Files.createTempDirectory("osgilog2-benchmark");
+
+    final Map<String, String> config = new HashMap<>();
+    config.put(Constants.FRAMEWORK_STORAGE, this.cache.toString());
+    config.put(
+      Constants.FRAMEWORK_STORAGE_CLEAN,
+      Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+    config.put(
+      Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA,
+      "org.slf4j; version=1.7.21");
+    if (!"off".equals(this.security)) {
+      config.put(Constants.FRAMEWORK_SECURITY, "osgi");
+    }
+
+    final FrameworkFactory factory =
+      ServiceLoader.load(FrameworkFactory.class).iterator().next();
+    this.framework = factory.newFramework(config);
+    this.framework.start();
+
+    final BundleContext context = this.framework.getBundleContext();
+    if (!"off".equals(this.security)) {
+      context.installBundle(
+        LIB.resolve("org.apache.felix.framework.security.jar").toUri().toString());
+    }
+    if ("cached".equals(this.security)) {
+      CachingSecurityProvider.install(this.framework);
+    }
+
+    final Bundle bundle = context.installBundle(
+      LIB.resolve("logservice.jar").toUri().toString());
+    final ProtectionDomain domain =
+      bundle.loadClass("com.io7m.osgilog2.logservice.Activator")
+        .getProtectionDomain();
+    this.access =
+      new AccessControlContext(new ProtectionDomain[]{domain});
+
+    switch (this.permission_type) {
+      case "service":
+        this.permission = new ServicePermission(
+          "org.osgi.service.log.LogService", ServicePermission.REGISTER);
+        break;
+      case "property":
+        this.permission = new PropertyPermission(
+          "com.io7m.osgilog2.logservice.metrics", "read");
+        break;
+      default:
+        throw new IllegalArgumentException(this.permission_type);
+    }
+  }
+
+  /**
+   * Stop the framework.
+   *
+   * @throws Exception On errors
+   */
+
+  @TearDown
+  public void tearDown()
+    throws Exception
+  {
+    this.framework.stop();
+    this.framework.waitForStop(
+      TimeUnit.MILLISECONDS.convert(2L, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Check the permission as the security manager would on a call made by
+   * the log service bundle.
+   */
+
+  @Benchmark
+  public void check()
+  {
+    final SecurityManager manager = System.getSecurityManager();
+    if (manager != null) {
+      manager.checkPermission(this.permission, this.access);
+    }
+  }
+}
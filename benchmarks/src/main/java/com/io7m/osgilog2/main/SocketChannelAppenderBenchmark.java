@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link SocketChannelAppender}: the cost of appending one
+ * event while a collector drains the connection as fast as it can, and
+ * while no collector is listening, in which case the backlog fills and
+ * further events are discarded.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SocketChannelAppenderBenchmark
+{
+  @Param({"connected", "disconnected"})
+  public String collector;
+
+  private ServerSocketChannel server;
+  private Thread drain;
+  private SocketChannelAppender target;
+  private Logger logger;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public SocketChannelAppenderBenchmark()
+  {
+
+  }
+
+  /**
+   * Start a collector that discards everything it receives, if required,
+   * and configure logback with the appender.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  @Setup
+  public void setup()
+    throws IOException
+  {
+    this.server = ServerSocketChannel.open();
+    this.server.bind(new InetSocketAddress("localhost", 0));
+    final int port = this.server.socket().getLocalPort();
+
+    if ("connected".equals(this.collector)) {
+      this.drain = new Thread(() -> {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (SocketChannel client = this.server.accept()) {
+          while (client.read(buffer) >= 0) {
+            buffer.clear();
+          }
+        } catch (final IOException e) {
+          // The benchmark has finished
+        }
+      });
+      this.drain.setDaemon(true);
+      this.drain.start();
+    } else {
+      this.server.close();
+    }
+
+    final LoggerContext context =
+      (LoggerContext) LoggerFactory.getILoggerFactory();
+    context.reset();
+
+    this.target = new SocketChannelAppender();
+    this.target.setContext(context);
+    this.target.setName("TARGET");
+    this.target.setPort(port);
+    this.target.start();
+
+    final ch.qos.logback.classic.Logger root =
+      context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.addAppender(this.target);
+    root.setLevel(Level.INFO);
+
+    this.logger = LoggerFactory.getLogger("com.io7m.osgilog2.benchmark");
+  }
+
+  /**
+   * Stop the appender and the collector.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  @TearDown
+  public void tearDown()
+    throws IOException
+  {
+    this.target.stop();
+    this.server.close();
+  }
+
+  /**
+   * Log one event.
+   */
+
+  @Benchmark
+  public void append()
+  {
+    this.logger.info("Benchmark message");
+  }
+}
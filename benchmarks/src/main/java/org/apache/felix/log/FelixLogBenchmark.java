@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.apache.felix.log;
+
+import com.io7m.osgilog2.benchmarks.BenchmarkBundles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks for the Felix log service, for comparison with
+ * {@code com.io7m.osgilog2.logservice.LogDispatcherBenchmark}.</p>
+ *
+ * <p>The benchmark is declared in the Felix package because the Felix
+ * implementation classes are not public. Felix delivers entries to listeners
+ * on its own thread, so the producer cost measured here includes the
+ * hand-off to that thread but not the delivery itself.</p>
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FelixLogBenchmark
+{
+  @Param({"0", "1", "4"})
+  public int listeners;
+
+  private Log log;
+  private LogService service;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public FelixLogBenchmark()
+  {
+
+  }
+
+  /**
+   * Create the service and attach the listeners.
+   */
+
+  @Setup
+  public void setup()
+  {
+    this.log = new Log(100, false);
+    for (int index = 0; index < this.listeners; ++index) {
+      this.log.addListener(new Sink());
+    }
+
+    this.service = new LogServiceImpl(
+      this.log, BenchmarkBundles.bundle(100L, "com.io7m.osgilog2.benchmark"));
+  }
+
+  /**
+   * Stop the listener thread.
+   */
+
+  @TearDown
+  public void tearDown()
+  {
+    this.log.close();
+  }
+
+  /**
+   * Log one entry.
+   */
+
+  @Benchmark
+  public void log()
+  {
+    this.service.log(LogService.LOG_INFO, "Benchmark message");
+  }
+
+  private static final class Sink implements LogListener
+  {
+    private volatile LogEntry last;
+
+    Sink()
+    {
+
+    }
+
+    @Override
+    public void logged(
+      final LogEntry entry)
+    {
+      this.last = entry;
+    }
+  }
+}
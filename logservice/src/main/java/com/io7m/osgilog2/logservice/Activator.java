@@ -16,21 +16,23 @@
 
 package com.io7m.osgilog2.logservice;
 
-import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceEvent;
-import org.osgi.framework.ServiceListener;
-import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogReaderService;
-import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.service.log.LogService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A bundle activator that adds an SLF4J-based log reader for every available
@@ -45,82 +47,342 @@ public final class Activator implements BundleActivator
     LOG = LoggerFactory.getLogger(Activator.class);
   }
 
-  private final SLF4JLogReader logger;
-  private final List<LogReaderService> readers;
-  private final ServiceListener listener;
-  private ServiceTracker<LogReaderService, LogReaderService> tracker;
+  /**
+   * The name under which metrics are registered with the platform MBean
+   * server.
+   */
+
+  public static final String METRICS_OBJECT_NAME =
+    "com.io7m.osgilog2:type=LogMetrics";
+
+  private final BundleLoggers loggers;
+  private SLF4JLogReader logger;
+  private LogSuppressor suppressor;
+  private LogMetrics metrics;
+  private ServiceRegistration<LogMetricsService> metrics_registration;
+  private ObjectName metrics_name;
+  private LogReaderRegistry registry;
+  private LogDispatcher dispatcher;
+  private ServiceRegistration<LogService> dispatcher_log;
+  private ServiceRegistration<LogReaderService> dispatcher_reader;
+  private LogJournal journal;
+  private AsyncLogListener journal_queue;
+  private LogReaderRegistry journal_registry;
+  private LogArchive archive;
+  private AsyncLogListener archive_queue;
+  private LogReaderRegistry archive_registry;
+  private AsyncLogListener async;
+  private FairLogListener fair;
+  private SLF4JLogLevels levels;
+  private ServiceRegistration<LogLevelService> levels_registration;
+  private FilteringLogServiceFactory filtering;
+  private ServiceRegistration<FormattingLogger> formatting_registration;
 
   public Activator()
   {
-    this.logger = new SLF4JLogReader();
-    this.readers = new LinkedList<>();
+    this.loggers = new BundleLoggers(SLF4JLogReader.defaultLogger());
+  }
+
+  @Override
+  public void start(
+    final BundleContext context)
+    throws Exception
+  {
+    final LogServiceConfiguration config =
+      LogServiceConfiguration.fromContext(context);
 
     /*
-     * Create a service listener that adds an SLF4J-based log reader every
-     * time a log service appears, and removes it when the log service
-     * disappears.
+     * Collect metrics if requested. Every stage records into the same
+     * recorder, which does nothing if metrics are disabled.
      */
 
-    this.listener = event -> {
-      final ServiceReference<?> ref = event.getServiceReference();
-      if (ref == null) {
-        return;
+    final LogMetricsRecorder recorder;
+    if (config.metrics()) {
+      this.metrics = new LogMetrics();
+      context.addBundleListener(this.metrics);
+      this.metrics_registration =
+        context.registerService(LogMetricsService.class, this.metrics, null);
+      if (config.metricsJMX()) {
+        this.metrics_name = registerMBean(this.metrics);
       }
+      recorder = this.metrics;
+    } else {
+      recorder = LogMetricsRecorder.NONE;
+    }
 
-      final Bundle bundle = ref.getBundle();
-      if (bundle == null) {
-        return;
-      }
+    /*
+     * Repeated entries and entries over the per-bundle rate limit are
+     * discarded by the SLF4J reader if suppression is enabled.
+     */
 
-      final BundleContext context = bundle.getBundleContext();
-      if (context == null) {
-        return;
-      }
+    if (config.suppress()) {
+      this.suppressor = new LogSuppressor(
+        true,
+        config.suppressWindow(),
+        config.suppressCapacity(),
+        config.suppressRate(),
+        config.suppressBurst());
+    } else {
+      this.suppressor = LogSuppressor.disabled();
+    }
 
-      final LogReaderService reader = (LogReaderService) context.getService(ref);
-      if (reader != null) {
-        if (event.getType() == ServiceEvent.REGISTERED) {
-          LOG.debug("adding a log listener to {}", reader);
-          this.readers.add(reader);
-          reader.addLogListener(this.logger);
-        } else if (event.getType() == ServiceEvent.UNREGISTERING) {
-          LOG.debug("removing a log listener from {}", reader);
-          reader.removeLogListener(Activator.this.logger);
-          this.readers.remove(reader);
-        }
-      }
-    };
+    /*
+     * Exceptions are fingerprinted if requested, so that each distinct stack
+     * trace is rendered once.
+     */
+
+    final ExceptionFingerprints fingerprints;
+    if (config.fingerprint()) {
+      fingerprints =
+        new ExceptionFingerprints(true, config.fingerprintCapacity());
+    } else {
+      fingerprints = ExceptionFingerprints.disabled();
+    }
+
+    /*
+     * Low-severity entries are sampled under pressure if requested. The
+     * reader reports its write times to the shedder, and the shedder is
+     * consulted before entries reach the (possibly queued) delivery path.
+     */
+
+    final LoadShedder shedder;
+    if (config.shed()) {
+      shedder = new LoadShedder(
+        true,
+        config.shedPeriod(),
+        config.shedQueueHigh(),
+        config.shedQueueLow(),
+        config.shedLatency(),
+        config.shedMax());
+    } else {
+      shedder = LoadShedder.disabled();
+    }
+
+    this.logger = new SLF4JLogReader(
+      this.loggers,
+      recorder,
+      this.suppressor,
+      config.structured(),
+      config.structuredReuse(),
+      fingerprints,
+      shedder);
+    this.suppressor.start(this.logger);
+
+    /*
+     * If asynchronous delivery is enabled, log readers are given a listener
+     * that hands entries to a consumer thread instead of the SLF4J reader
+     * itself. Fair delivery queues entries per bundle so that one bundle
+     * cannot delay the entries of the others.
+     */
+
+    final LogListener delivery;
+    if (config.async() && config.asyncFair()) {
+      this.async = null;
+      this.fair = new FairLogListener(
+        this.logger,
+        config.asyncFairCapacity(),
+        config.asyncFairCapacities(),
+        config.asyncFairWeight(),
+        config.asyncFairWeights(),
+        config.asyncOverflow(),
+        config.asyncBatchSize(),
+        config.asyncBatchDelay(),
+        config.asyncBatchFlushOnError(),
+        recorder);
+      context.addBundleListener(this.fair);
+      this.fair.start();
+      final FairLogListener queue = this.fair;
+      shedder.watchQueue(
+        () -> (double) queue.depth() / (double) Math.max(1, queue.capacity()));
+      delivery = this.fair;
+    } else if (config.async()) {
+      this.async = new AsyncLogListener(
+        this.logger,
+        config.asyncCapacity(),
+        config.asyncOverflow(),
+        config.asyncBatchSize(),
+        config.asyncBatchDelay(),
+        config.asyncBatchFlushOnError(),
+        recorder);
+      this.async.start();
+      final AsyncLogListener queue = this.async;
+      shedder.watchQueue(
+        () -> (double) queue.depth() / (double) queue.capacity());
+      delivery = this.async;
+    } else {
+      this.async = null;
+      delivery = this.logger;
+    }
+
+    context.addBundleListener(this.loggers);
+
+    /*
+     * Publish the per-bundle level table and, if requested, a log service
+     * that consults it before any entry is created.
+     */
+
+    this.levels = new SLF4JLogLevels(context, this.loggers);
+    context.addBundleListener(this.levels);
+    this.levels.start(config.levelsRefresh());
+    this.levels_registration =
+      context.registerService(LogLevelService.class, this.levels, null);
+
+    if (config.levelsFilter()) {
+      this.filtering = new FilteringLogServiceFactory(
+        context, this.levels, config.levelsFilterRanking(), recorder);
+      this.filtering.open();
+    }
+
+    /*
+     * If the built-in log service is enabled, register it before the log
+     * readers are tracked so that the registry attaches to it immediately.
+     */
+
+    if (config.builtin()) {
+      this.startDispatcher(context, config);
+    }
+
+    /*
+     * Offer every bundle a logger that checks the level before formatting
+     * anything. Entries go straight to the built-in dispatcher if there is
+     * one, and otherwise to whichever log service the bundle would see.
+     */
+
+    this.formatting_registration = context.registerService(
+      FormattingLogger.class,
+      new FormattingLoggerFactory(this.levels, recorder, this.dispatcher),
+      null);
+
+    final LogListener admitted;
+    if (shedder.isEnabled()) {
+      admitted = new SheddingLogListener(delivery, shedder, recorder);
+    } else {
+      admitted = delivery;
+    }
+
+    final LogListener reader_listener;
+    if (this.metrics != null) {
+      reader_listener = new MeteredLogListener(admitted, recorder);
+    } else {
+      reader_listener = admitted;
+    }
+
+    /*
+     * Attach the listener to every log reader service, now and in the
+     * future.
+     */
+
+    this.registry = new LogReaderRegistry(context, reader_listener);
+    this.registry.open();
+
+    /*
+     * If a journal directory is configured, every entry is also written to
+     * the journal, regardless of SLF4J levels. The journal is attached to
+     * the log readers separately, so it sees entries before any filtering
+     * or suppression on the SLF4J side. It is written on its own consumer
+     * thread, so producers never wait for it.
+     */
+
+    final String journal_directory = config.journalDirectory();
+    if (journal_directory != null) {
+      this.startJournal(context, config, journal_directory);
+    }
+
+    /*
+     * Likewise, if an archive directory is configured, every entry is
+     * written to the compressed archive on its own consumer thread.
+     */
+
+    final String archive_directory = config.archiveDirectory();
+    if (archive_directory != null) {
+      this.startArchive(context, config, archive_directory);
+    }
   }
 
-  @Override
-  public void start(
-    final BundleContext context)
-    throws Exception
+  private void startDispatcher(
+    final BundleContext context,
+    final LogServiceConfiguration config)
   {
-    this.tracker =
-      new ServiceTracker<>(context, LogReaderService.class.getName(), null);
-    this.tracker.open();
-
-    final Object[] current_readers = this.tracker.getServices();
-    if (current_readers != null) {
-      for (int index = 0; index < current_readers.length; index++) {
-        final LogReaderService reader =
-          (LogReaderService) current_readers[index];
-
-        LOG.debug("adding a log listener to {}", reader);
-        this.readers.add(reader);
-        reader.addLogListener(this.logger);
-      }
+    this.dispatcher = new LogDispatcher(
+      Math.max(0, config.builtinHistory()), config.builtinHistoryDebug());
+
+    context.addBundleListener(this.dispatcher);
+    context.addFrameworkListener(this.dispatcher);
+    context.addServiceListener(this.dispatcher);
+
+    this.dispatcher_reader = context.registerService(
+      LogReaderService.class,
+      new DispatchLogReaderServiceFactory(this.dispatcher),
+      null);
+    this.dispatcher_log = context.registerService(
+      LogService.class,
+      new DispatchLogServiceFactory(this.dispatcher),
+      null);
+  }
+
+  private void startJournal(
+    final BundleContext context,
+    final LogServiceConfiguration config,
+    final String directory)
+  {
+    final LogJournal j = new LogJournal(
+      Paths.get(directory),
+      Math.max(LogJournal.SEGMENT_SIZE_MINIMUM, config.journalSegmentSize()),
+      Math.max(1, config.journalSegments()));
+
+    try {
+      j.open();
+    } catch (final IOException | SecurityException e) {
+      LOG.error("could not open journal {}: ", directory, e);
+      return;
     }
 
-    final String filter =
-      "(objectclass=" + LogReaderService.class.getName() + ")";
+    this.journal = j;
+    this.journal_queue = new AsyncLogListener(
+      j,
+      config.asyncCapacity(),
+      OverflowPolicy.BLOCK,
+      config.asyncBatchSize(),
+      config.asyncBatchDelay(),
+      false,
+      LogMetricsRecorder.NONE);
+    this.journal_queue.start();
+    this.journal_registry = new LogReaderRegistry(context, this.journal_queue);
+    this.journal_registry.open();
+  }
+
+  private void startArchive(
+    final BundleContext context,
+    final LogServiceConfiguration config,
+    final String directory)
+  {
+    final LogArchive a = new LogArchive(
+      Paths.get(directory),
+      Math.max(LogArchive.BLOCK_SIZE_MINIMUM, config.archiveBlockSize()),
+      Math.max(0L, config.archiveBlockAge()),
+      Math.max(LogArchive.SEGMENT_SIZE_MINIMUM, config.archiveSegmentSize()),
+      Math.max(1, config.archiveSegments()),
+      Math.min(9, Math.max(0, config.archiveLevel())));
 
     try {
-      context.addServiceListener(this.listener, filter);
-    } catch (final InvalidSyntaxException e) {
-      Activator.LOG.error("error adding service listener: ", e);
+      a.open();
+    } catch (final IOException | SecurityException e) {
+      LOG.error("could not open archive {}: ", directory, e);
+      return;
     }
+
+    this.archive = a;
+    this.archive_queue = new AsyncLogListener(
+      a,
+      config.asyncCapacity(),
+      OverflowPolicy.BLOCK,
+      config.asyncBatchSize(),
+      config.asyncBatchDelay(),
+      false,
+      LogMetricsRecorder.NONE);
+    this.archive_queue.start();
+    this.archive_registry = new LogReaderRegistry(context, this.archive_queue);
+    this.archive_registry.open();
   }
 
   @Override
@@ -128,15 +390,124 @@ public final class Activator implements BundleActivator
     final BundleContext context)
     throws Exception
   {
-    final Iterator<LogReaderService> iter = this.readers.iterator();
-    while (iter.hasNext()) {
-      final LogReaderService reader = iter.next();
+    if (this.formatting_registration != null) {
+      this.formatting_registration.unregister();
+      this.formatting_registration = null;
+    }
+
+    if (this.filtering != null) {
+      this.filtering.close();
+      this.filtering = null;
+    }
+
+    if (this.levels_registration != null) {
+      this.levels_registration.unregister();
+      this.levels_registration = null;
+    }
+
+    if (this.registry != null) {
+      this.registry.close();
+      this.registry = null;
+    }
+
+    if (this.journal_registry != null) {
+      this.journal_registry.close();
+      this.journal_registry = null;
+      this.journal_queue.close(10L, TimeUnit.SECONDS);
+      this.journal_queue = null;
+      this.journal.close();
+      this.journal = null;
+    }
 
-      LOG.debug("removing a log listener from {}", reader);
-      reader.removeLogListener(this.logger);
-      iter.remove();
+    if (this.archive_registry != null) {
+      this.archive_registry.close();
+      this.archive_registry = null;
+      this.archive_queue.close(10L, TimeUnit.SECONDS);
+      this.archive_queue = null;
+      this.archive.close();
+      this.archive = null;
     }
 
-    this.tracker.close();
+    if (this.dispatcher != null) {
+      this.dispatcher_log.unregister();
+      this.dispatcher_log = null;
+      this.dispatcher_reader.unregister();
+      this.dispatcher_reader = null;
+      context.removeServiceListener(this.dispatcher);
+      context.removeFrameworkListener(this.dispatcher);
+      context.removeBundleListener(this.dispatcher);
+      this.dispatcher.close();
+      this.dispatcher = null;
+    }
+
+    /*
+     * No log reader can deliver new entries now, so drain whatever is still
+     * waiting in the ring buffer or the per-bundle queues.
+     */
+
+    if (this.async != null) {
+      this.async.close(10L, TimeUnit.SECONDS);
+      this.async = null;
+    }
+
+    if (this.fair != null) {
+      context.removeBundleListener(this.fair);
+      this.fair.close(10L, TimeUnit.SECONDS);
+      this.fair = null;
+    }
+
+    /*
+     * Report anything that was suppressed but not yet summarized.
+     */
+
+    if (this.suppressor != null) {
+      this.suppressor.close(this.logger);
+      this.suppressor = null;
+    }
+
+    if (this.levels != null) {
+      context.removeBundleListener(this.levels);
+      this.levels.close();
+      this.levels = null;
+    }
+
+    if (this.metrics != null) {
+      if (this.metrics_name != null) {
+        unregisterMBean(this.metrics_name);
+        this.metrics_name = null;
+      }
+      this.metrics_registration.unregister();
+      this.metrics_registration = null;
+      context.removeBundleListener(this.metrics);
+      this.metrics = null;
+    }
+
+    context.removeBundleListener(this.loggers);
+  }
+
+  private static ObjectName registerMBean(
+    final LogMetrics metrics)
+  {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      server.registerMBean(
+        new StandardMBean(metrics, LogMetricsMBean.class), name);
+      LOG.debug("registered MBean {}", name);
+      return name;
+    } catch (final JMException | SecurityException e) {
+      LOG.error("could not register metrics MBean: ", e);
+      return null;
+    }
+  }
+
+  private static void unregisterMBean(
+    final ObjectName name)
+  {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (final JMException | SecurityException e) {
+      LOG.error("could not unregister metrics MBean: ", e);
+    }
   }
 }
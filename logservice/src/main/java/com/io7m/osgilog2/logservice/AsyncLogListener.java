@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A log listener that hands entries off to a dedicated consumer thread
+ * through a bounded ring buffer. The consumer thread delivers entries to a
+ * delegate listener in the order in which they were inserted, optionally
+ * grouping them into batches.</p>
+ *
+ * <p>Threads calling {@link #logged(LogEntry)} never touch the delegate
+ * unless the listener has been closed, in which case entries are delivered
+ * synchronously so that nothing is lost during shutdown. Producers are
+ * counted while they are inside {@link #logged(LogEntry)}, and
+ * {@link #close(long, TimeUnit)} waits for the count to reach zero before
+ * its final drain, so an entry inserted by a producer that observed the
+ * listener as open is always delivered.</p>
+ */
+
+final class AsyncLogListener implements LogListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(AsyncLogListener.class);
+  }
+
+  private static final long PARK_MIN_NANOS =
+    TimeUnit.MICROSECONDS.toNanos(1L);
+  private static final long PARK_MAX_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(1L);
+  private static final long CONSUMER_PARK_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(100L);
+
+  private final LogBatchListener delegate;
+  private final LogMetricsRecorder metrics;
+  private final LogEntryBatcher batcher;
+  private final LogEntryRingBuffer buffer;
+  private final OverflowPolicy overflow;
+  private final AtomicLong dropped;
+  private final AtomicInteger producers;
+  private final Thread consumer;
+  private volatile boolean consumer_parked;
+  private volatile boolean closed;
+  private long dropped_reported;
+
+  /**
+   * Construct a listener. The consumer thread is not started until
+   * {@link #start()} is called.
+   *
+   * @param in_delegate    The listener that will receive entries
+   * @param capacity       The capacity of the ring buffer
+   * @param in_overflow    The behaviour of producers when the buffer is full
+   * @param batch_size     The maximum number of entries delivered per batch
+   * @param batch_delay_ms The maximum time in milliseconds that an entry may
+   *                       wait for its batch to fill
+   * @param flush_on_error {@code true} if a batch should be delivered as soon
+   *                       as it contains an error entry
+   * @param in_metrics     The metrics recorder
+   */
+
+  AsyncLogListener(
+    final LogBatchListener in_delegate,
+    final int capacity,
+    final OverflowPolicy in_overflow,
+    final int batch_size,
+    final long batch_delay_ms,
+    final boolean flush_on_error,
+    final LogMetricsRecorder in_metrics)
+  {
+    this.delegate = Objects.requireNonNull(in_delegate, "Delegate");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.overflow = Objects.requireNonNull(in_overflow, "Overflow");
+    this.batcher = new LogEntryBatcher(
+      in_delegate, batch_size, batch_delay_ms, flush_on_error);
+    this.buffer = new LogEntryRingBuffer(capacity);
+    this.dropped = new AtomicLong(0L);
+    this.producers = new AtomicInteger(0);
+    this.consumer = new Thread(this::run);
+    this.consumer.setName("com.io7m.osgilog2.logservice.async");
+    this.consumer.setDaemon(true);
+  }
+
+  /**
+   * Start the consumer thread.
+   */
+
+  void start()
+  {
+    LOG.debug(
+      "starting asynchronous delivery (capacity {}, overflow {}, batch {})",
+      Integer.valueOf(this.buffer.capacity()),
+      this.overflow,
+      Integer.valueOf(this.batcher.size()));
+    this.consumer.start();
+  }
+
+  /**
+   * Stop accepting new entries, deliver every entry that is already in the
+   * buffer, and wait for the consumer thread to finish.
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The time unit
+   *
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  void close(
+    final long timeout,
+    final TimeUnit unit)
+    throws InterruptedException
+  {
+    this.closed = true;
+    LockSupport.unpark(this.consumer);
+    this.consumer.join(unit.toMillis(timeout));
+
+    if (this.consumer.isAlive()) {
+      LOG.warn(
+        "consumer did not finish within {} {}; {} entries remain",
+        Long.valueOf(timeout),
+        unit,
+        Integer.valueOf(this.buffer.size()));
+      return;
+    }
+
+    /*
+     * A producer that observed the listener as open may still be inserting
+     * an entry, after the consumer performed its final drain. Producers that
+     * enter from now on observe the listener as closed and deliver
+     * synchronously, so wait for the ones already inside to leave. The
+     * consumer is dead, so it is then safe to poll from this thread.
+     */
+
+    while (this.producers.get() != 0) {
+      Thread.yield();
+    }
+    this.drain();
+  }
+
+  /**
+   * @return The number of entries currently waiting for delivery
+   */
+
+  int depth()
+  {
+    return this.buffer.size();
+  }
+
+  /**
+   * @return The capacity of the ring buffer
+   */
+
+  int capacity()
+  {
+    return this.buffer.capacity();
+  }
+
+  @Override
+  public void logged(
+    final LogEntry entry)
+  {
+    /*
+     * The count is raised before the closed flag is read, and the flag is
+     * set before the count is read in close(), so either this producer sees
+     * the flag or close() sees this producer.
+     */
+
+    this.producers.incrementAndGet();
+    try {
+      if (this.closed) {
+        this.delegate.logged(entry);
+        return;
+      }
+
+      if (!this.buffer.offer(entry)) {
+        if (!this.offerSlow(entry)) {
+          return;
+        }
+      }
+
+      if (this.consumer_parked) {
+        LockSupport.unpark(this.consumer);
+      }
+    } finally {
+      this.producers.decrementAndGet();
+    }
+  }
+
+  private boolean offerSlow(
+    final LogEntry entry)
+  {
+    switch (this.overflow) {
+      case DROP: {
+        this.dropped.incrementAndGet();
+        this.metrics.onSuppressed(entry.getBundle(), entry.getLevel());
+        return false;
+      }
+
+      case SPIN: {
+        while (!this.buffer.offer(entry)) {
+          if (this.closed) {
+            this.delegate.logged(entry);
+            return false;
+          }
+          Thread.yield();
+        }
+        return true;
+      }
+
+      case BLOCK: {
+        long park = PARK_MIN_NANOS;
+        while (!this.buffer.offer(entry)) {
+          if (this.closed) {
+            this.delegate.logged(entry);
+            return false;
+          }
+          LockSupport.unpark(this.consumer);
+          LockSupport.parkNanos(this, park);
+          park = Math.min(park << 1, PARK_MAX_NANOS);
+        }
+        return true;
+      }
+    }
+
+    throw new IllegalStateException("Unreachable code");
+  }
+
+  private void run()
+  {
+    LOG.debug("consumer started");
+
+    while (true) {
+      final LogEntry entry = this.buffer.poll();
+      if (entry != null) {
+        this.deliver(entry);
+        continue;
+      }
+
+      /*
+       * The buffer is empty. Deliver the current batch if it is due, and
+       * otherwise sleep until it will be.
+       */
+
+      final long now = System.nanoTime();
+      this.flushIfDue(now);
+      this.reportDropped();
+
+      if (this.closed) {
+        this.drain();
+        break;
+      }
+
+      final long wait =
+        Math.min(CONSUMER_PARK_NANOS, this.batcher.nanosUntilDue(now));
+
+      this.consumer_parked = true;
+      try {
+        if (this.buffer.size() == 0 && !this.closed) {
+          LockSupport.parkNanos(this, wait);
+        }
+      } finally {
+        this.consumer_parked = false;
+      }
+    }
+
+    LOG.debug("consumer finished");
+  }
+
+  private void drain()
+  {
+    while (true) {
+      final LogEntry entry = this.buffer.poll();
+      if (entry == null) {
+        break;
+      }
+      this.deliver(entry);
+    }
+    this.flush();
+    this.reportDropped();
+  }
+
+  private void deliver(
+    final LogEntry entry)
+  {
+    try {
+      this.batcher.add(entry, System.nanoTime());
+    } catch (final Throwable e) {
+      LOG.error("delegate raised an exception: ", e);
+    }
+  }
+
+  private void flushIfDue(
+    final long now)
+  {
+    try {
+      this.batcher.flushIfDue(now);
+    } catch (final Throwable e) {
+      LOG.error("delegate raised an exception: ", e);
+    }
+  }
+
+  private void flush()
+  {
+    try {
+      this.batcher.flush();
+    } catch (final Throwable e) {
+      LOG.error("delegate raised an exception: ", e);
+    }
+  }
+
+  private void reportDropped()
+  {
+    final long now = this.dropped.get();
+    if (now != this.dropped_reported) {
+      LOG.warn(
+        "ring buffer full: dropped {} log entries",
+        Long.valueOf(now - this.dropped_reported));
+      this.dropped_reported = now;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>The {@link SLF4JLogReader#DEFER_FLUSH} marker attached to the entries
+ * of one batch.</p>
+ *
+ * <p>An appender or encoder that sees the marker may skip its per-event
+ * flush, provided that it adds a reference to the marker that is also a
+ * {@link Flushable}. When the batch has been written, the reader flushes
+ * every such reference once, and removes it. The flush is therefore
+ * explicit, and happens even if the last entry of the batch went to a
+ * different logger or was dropped by a filter.</p>
+ *
+ * <p>The SLF4J reader reuses one instance per thread, so an instance is only
+ * valid for the duration of the logging call that carries it. Appenders that
+ * process events later must not defer flushing on its account.</p>
+ */
+
+final class BatchFlushMarker implements Marker
+{
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(BatchFlushMarker.class);
+  }
+
+  private final List<Marker> references;
+
+  /**
+   * Construct a marker with no references.
+   */
+
+  BatchFlushMarker()
+  {
+    this.references = new ArrayList<>(4);
+  }
+
+  /**
+   * Flush and remove every reference that has been added since the last
+   * call. A reference that fails to flush does not prevent the others from
+   * being flushed.
+   */
+
+  void flushAll()
+  {
+    final int count = this.references.size();
+    for (int index = 0; index < count; ++index) {
+      final Marker reference = this.references.get(index);
+      try {
+        ((Flushable) reference).flush();
+      } catch (final IOException | RuntimeException e) {
+        LOG.error("could not flush {}: ", reference, e);
+      }
+    }
+    this.references.clear();
+  }
+
+  @Override
+  public String getName()
+  {
+    return SLF4JLogReader.DEFER_FLUSH;
+  }
+
+  /**
+   * Add a reference. References that are not {@link Flushable} are ignored,
+   * as are references that have already been added.
+   *
+   * @param reference The reference
+   */
+
+  @Override
+  public void add(
+    final Marker reference)
+  {
+    Objects.requireNonNull(reference, "Reference");
+    if (reference instanceof Flushable) {
+      for (int index = 0; index < this.references.size(); ++index) {
+        if (this.references.get(index) == reference) {
+          return;
+        }
+      }
+      this.references.add(reference);
+    }
+  }
+
+  @Override
+  public boolean remove(
+    final Marker reference)
+  {
+    return this.references.remove(reference);
+  }
+
+  @Override
+  @Deprecated
+  public boolean hasChildren()
+  {
+    return this.hasReferences();
+  }
+
+  @Override
+  public boolean hasReferences()
+  {
+    return !this.references.isEmpty();
+  }
+
+  @Override
+  public Iterator<Marker> iterator()
+  {
+    return Collections.unmodifiableList(this.references).iterator();
+  }
+
+  @Override
+  public boolean contains(
+    final Marker other)
+  {
+    Objects.requireNonNull(other, "Other");
+    return this == other || this.references.contains(other);
+  }
+
+  @Override
+  public boolean contains(
+    final String name)
+  {
+    Objects.requireNonNull(name, "Name");
+    if (SLF4JLogReader.DEFER_FLUSH.equals(name)) {
+      return true;
+    }
+    for (int index = 0; index < this.references.size(); ++index) {
+      if (this.references.get(index).contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.Objects;
+
+/**
+ * <p>A {@link FormattingLogger} specific to one client bundle.</p>
+ *
+ * <p>Entries at disabled levels are discarded before their arguments are
+ * examined. If the built-in log service is enabled, entries are handed to
+ * its dispatcher with the template and arguments intact. Otherwise, they
+ * are formatted and logged to the highest-ranked log service, obtained on
+ * behalf of the client bundle so that the entry is attributed to it.</p>
+ */
+
+final class BundleFormattingLogger implements FormattingLogger
+{
+  private final Bundle bundle;
+  private final long bundle_id;
+  private final LogLevelService levels;
+  private final LogMetricsRecorder metrics;
+  private final LogDispatcher dispatcher;
+  private final ServiceTracker<LogService, LogService> services;
+
+  /**
+   * Construct a logger. Exactly one of the dispatcher and the log service
+   * tracker must be provided.
+   *
+   * @param in_bundle     The client bundle
+   * @param in_levels     The level table
+   * @param in_metrics    The metrics recorder
+   * @param in_dispatcher The built-in dispatcher, may be {@code null}
+   * @param in_services   An open tracker of log services, obtained through
+   *                      the bundle context of the client bundle, may be
+   *                      {@code null}
+   */
+
+  BundleFormattingLogger(
+    final Bundle in_bundle,
+    final LogLevelService in_levels,
+    final LogMetricsRecorder in_metrics,
+    final LogDispatcher in_dispatcher,
+    final ServiceTracker<LogService, LogService> in_services)
+  {
+    this.bundle = Objects.requireNonNull(in_bundle, "Bundle");
+    this.bundle_id = in_bundle.getBundleId();
+    this.levels = Objects.requireNonNull(in_levels, "Levels");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.dispatcher = in_dispatcher;
+    this.services = in_services;
+
+    if ((in_dispatcher == null) == (in_services == null)) {
+      throw new IllegalArgumentException(
+        "Exactly one of a dispatcher or a log service tracker is required");
+    }
+  }
+
+  /**
+   * Stop tracking log services, if they are being tracked.
+   */
+
+  void close()
+  {
+    if (this.services != null) {
+      this.services.close();
+    }
+  }
+
+  private boolean isEnabled(
+    final int level)
+  {
+    if (this.levels.isEnabled(this.bundle_id, level)) {
+      return true;
+    }
+    this.metrics.onSuppressed(this.bundle, level);
+    return false;
+  }
+
+  private void logAt(
+    final int level,
+    final String format,
+    final Object[] arguments)
+  {
+    if (this.dispatcher != null) {
+      this.dispatcher.logFormatted(this.bundle, level, format, arguments);
+      return;
+    }
+
+    final LogService service = this.services.getService();
+    if (service == null) {
+      return;
+    }
+
+    service.log(
+      level,
+      MessageTemplates.format(format, arguments),
+      MessageTemplates.exception(arguments));
+  }
+
+  @Override
+  public boolean isDebugEnabled()
+  {
+    return this.levels.isEnabled(this.bundle_id, LogService.LOG_DEBUG);
+  }
+
+  @Override
+  public void debug(
+    final String message)
+  {
+    if (this.isEnabled(LogService.LOG_DEBUG)) {
+      this.logAt(LogService.LOG_DEBUG, message, null);
+    }
+  }
+
+  @Override
+  public void debug(
+    final String format,
+    final Object argument)
+  {
+    if (this.isEnabled(LogService.LOG_DEBUG)) {
+      this.logAt(LogService.LOG_DEBUG, format, new Object[]{argument});
+    }
+  }
+
+  @Override
+  public void debug(
+    final String format,
+    final Object argument0,
+    final Object argument1)
+  {
+    if (this.isEnabled(LogService.LOG_DEBUG)) {
+      this.logAt(
+        LogService.LOG_DEBUG, format, new Object[]{argument0, argument1});
+    }
+  }
+
+  @Override
+  public void debug(
+    final String format,
+    final Object... arguments)
+  {
+    if (this.isEnabled(LogService.LOG_DEBUG)) {
+      this.logAt(LogService.LOG_DEBUG, format, arguments);
+    }
+  }
+
+  @Override
+  public boolean isInfoEnabled()
+  {
+    return this.levels.isEnabled(this.bundle_id, LogService.LOG_INFO);
+  }
+
+  @Override
+  public void info(
+    final String message)
+  {
+    if (this.isEnabled(LogService.LOG_INFO)) {
+      this.logAt(LogService.LOG_INFO, message, null);
+    }
+  }
+
+  @Override
+  public void info(
+    final String format,
+    final Object argument)
+  {
+    if (this.isEnabled(LogService.LOG_INFO)) {
+      this.logAt(LogService.LOG_INFO, format, new Object[]{argument});
+    }
+  }
+
+  @Override
+  public void info(
+    final String format,
+    final Object argument0,
+    final Object argument1)
+  {
+    if (this.isEnabled(LogService.LOG_INFO)) {
+      this.logAt(
+        LogService.LOG_INFO, format, new Object[]{argument0, argument1});
+    }
+  }
+
+  @Override
+  public void info(
+    final String format,
+    final Object... arguments)
+  {
+    if (this.isEnabled(LogService.LOG_INFO)) {
+      this.logAt(LogService.LOG_INFO, format, arguments);
+    }
+  }
+
+  @Override
+  public boolean isWarnEnabled()
+  {
+    return this.levels.isEnabled(this.bundle_id, LogService.LOG_WARNING);
+  }
+
+  @Override
+  public void warn(
+    final String message)
+  {
+    if (this.isEnabled(LogService.LOG_WARNING)) {
+      this.logAt(LogService.LOG_WARNING, message, null);
+    }
+  }
+
+  @Override
+  public void warn(
+    final String format,
+    final Object argument)
+  {
+    if (this.isEnabled(LogService.LOG_WARNING)) {
+      this.logAt(LogService.LOG_WARNING, format, new Object[]{argument});
+    }
+  }
+
+  @Override
+  public void warn(
+    final String format,
+    final Object argument0,
+    final Object argument1)
+  {
+    if (this.isEnabled(LogService.LOG_WARNING)) {
+      this.logAt(
+        LogService.LOG_WARNING, format, new Object[]{argument0, argument1});
+    }
+  }
+
+  @Override
+  public void warn(
+    final String format,
+    final Object... arguments)
+  {
+    if (this.isEnabled(LogService.LOG_WARNING)) {
+      this.logAt(LogService.LOG_WARNING, format, arguments);
+    }
+  }
+
+  @Override
+  public boolean isErrorEnabled()
+  {
+    return this.levels.isEnabled(this.bundle_id, LogService.LOG_ERROR);
+  }
+
+  @Override
+  public void error(
+    final String message)
+  {
+    if (this.isEnabled(LogService.LOG_ERROR)) {
+      this.logAt(LogService.LOG_ERROR, message, null);
+    }
+  }
+
+  @Override
+  public void error(
+    final String format,
+    final Object argument)
+  {
+    if (this.isEnabled(LogService.LOG_ERROR)) {
+      this.logAt(LogService.LOG_ERROR, format, new Object[]{argument});
+    }
+  }
+
+  @Override
+  public void error(
+    final String format,
+    final Object argument0,
+    final Object argument1)
+  {
+    if (this.isEnabled(LogService.LOG_ERROR)) {
+      this.logAt(
+        LogService.LOG_ERROR, format, new Object[]{argument0, argument1});
+    }
+  }
+
+  @Override
+  public void error(
+    final String format,
+    final Object... arguments)
+  {
+    if (this.isEnabled(LogService.LOG_ERROR)) {
+      this.logAt(LogService.LOG_ERROR, format, arguments);
+    }
+  }
+}
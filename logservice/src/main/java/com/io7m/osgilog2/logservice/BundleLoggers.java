@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * <p>A cache of SLF4J loggers, one per bundle, keyed by bundle ID.</p>
+ *
+ * <p>Each logger is named after the symbolic name of its bundle, so that
+ * the host's logging configuration can assign levels, appenders and filters
+ * per bundle. The structured fields of each bundle are computed along with
+ * its logger. Loggers are evicted when their bundle is updated or
+ * uninstalled, and are never cached for a bundle that is already
+ * uninstalled.</p>
+ *
+ * <p>Lookups read an immutable open-addressed table keyed by the primitive
+ * bundle ID, so the lookup made for every log entry neither locks nor
+ * allocates. The table is copied whenever a logger is added or evicted,
+ * which happens about once per bundle.</p>
+ */
+
+final class BundleLoggers implements BundleListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(BundleLoggers.class);
+  }
+
+  private static final class Cached
+  {
+    private final Logger logger;
+    private final LogEntryFields.BundleFields fields;
+
+    Cached(
+      final Bundle bundle)
+    {
+      this.logger = LoggerFactory.getLogger(loggerName(bundle));
+      this.fields = LogEntryFields.BundleFields.of(bundle);
+    }
+  }
+
+  private static final class Table
+  {
+    private static final Table EMPTY = new Table(8);
+
+    private final long[] keys;
+    private final Cached[] values;
+    private int size;
+
+    Table(
+      final int capacity)
+    {
+      this.keys = new long[capacity];
+      this.values = new Cached[capacity];
+      this.size = 0;
+    }
+
+    private static int indexOf(
+      final long id,
+      final int mask)
+    {
+      final int h = Long.hashCode(id) * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    Cached get(
+      final long id)
+    {
+      final int mask = this.keys.length - 1;
+      int index = indexOf(id, mask);
+      while (true) {
+        final Cached value = this.values[index];
+        if (value == null || this.keys[index] == id) {
+          return value;
+        }
+        index = (index + 1) & mask;
+      }
+    }
+
+    private void insert(
+      final long id,
+      final Cached value)
+    {
+      final int mask = this.keys.length - 1;
+      int index = indexOf(id, mask);
+      while (this.values[index] != null) {
+        index = (index + 1) & mask;
+      }
+      this.keys[index] = id;
+      this.values[index] = value;
+      ++this.size;
+    }
+
+    /**
+     * @return A copy of this table without the given ID, and with the given
+     * value for it if the value is not {@code null}
+     */
+
+    Table with(
+      final long id,
+      final Cached value)
+    {
+      int capacity = 8;
+      while (capacity < (this.size + 1) * 2) {
+        capacity *= 2;
+      }
+
+      final Table result = new Table(capacity);
+      for (int index = 0; index < this.keys.length; ++index) {
+        final Cached existing = this.values[index];
+        if (existing != null && this.keys[index] != id) {
+          result.insert(this.keys[index], existing);
+        }
+      }
+      if (value != null) {
+        result.insert(id, value);
+      }
+      return result;
+    }
+  }
+
+  private final Object lock;
+  private volatile Table loggers;
+  private final Logger fallback;
+
+  /**
+   * Construct a cache.
+   *
+   * @param in_fallback The logger used for entries that have no bundle
+   */
+
+  BundleLoggers(
+    final Logger in_fallback)
+  {
+    this.fallback = Objects.requireNonNull(in_fallback, "Fallback");
+    this.lock = new Object();
+    this.loggers = Table.EMPTY;
+  }
+
+  /**
+   * @param bundle The bundle
+   *
+   * @return The SLF4J logger name that will be used for the given bundle
+   */
+
+  static String loggerName(
+    final Bundle bundle)
+  {
+    final String name = bundle.getSymbolicName();
+    if (name != null) {
+      return name;
+    }
+    return "bundle." + bundle.getBundleId();
+  }
+
+  /**
+   * Find or create the logger for the given bundle.
+   *
+   * @param bundle The bundle, may be {@code null}
+   *
+   * @return A logger
+   */
+
+  Logger forBundle(
+    final Bundle bundle)
+  {
+    if (bundle == null) {
+      return this.fallback;
+    }
+    return this.cached(bundle).logger;
+  }
+
+  /**
+   * Find or compute the structured fields for the given bundle.
+   *
+   * @param bundle The bundle, may be {@code null}
+   *
+   * @return The fields
+   */
+
+  LogEntryFields.BundleFields fieldsForBundle(
+    final Bundle bundle)
+  {
+    if (bundle == null) {
+      return LogEntryFields.BundleFields.NONE;
+    }
+    return this.cached(bundle).fields;
+  }
+
+  private Cached cached(
+    final Bundle bundle)
+  {
+    final long id = bundle.getBundleId();
+    final Cached existing = this.loggers.get(id);
+    if (existing != null) {
+      return existing;
+    }
+
+    synchronized (this.lock) {
+      final Cached current = this.loggers.get(id);
+      if (current != null) {
+        return current;
+      }
+
+      /*
+       * A bundle is uninstalled before the event that would evict its
+       * logger is published, so a logger cached for an uninstalled bundle
+       * would never be evicted.
+       */
+
+      final Cached created = new Cached(bundle);
+      if (bundle.getState() != Bundle.UNINSTALLED) {
+        this.loggers = this.loggers.with(id, created);
+      }
+      return created;
+    }
+  }
+
+  /**
+   * @return The number of cached loggers
+   */
+
+  int size()
+  {
+    return this.loggers.size;
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    switch (event.getType()) {
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNINSTALLED: {
+        final Bundle bundle = event.getBundle();
+        final long id = bundle.getBundleId();
+        synchronized (this.lock) {
+          if (this.loggers.get(id) != null) {
+            this.loggers = this.loggers.with(id, null);
+            LOG.trace("evicted logger for {}", bundle);
+          }
+        }
+        break;
+      }
+      default: {
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * An immutable log entry created by the built-in log service.
+ */
+
+final class DispatchLogEntry implements LogEntry
+{
+  private final Bundle bundle;
+  private final ServiceReference<?> reference;
+  private final int level;
+  private final String message;
+  private final Throwable exception;
+  private final long time;
+
+  /**
+   * Construct an entry.
+   *
+   * @param in_bundle    The bundle that created the entry, may be
+   *                     {@code null}
+   * @param in_reference The service reference associated with the entry,
+   *                     may be {@code null}
+   * @param in_level     The level
+   * @param in_message   The message
+   * @param in_exception The exception, may be {@code null}
+   * @param in_time      The time in milliseconds
+   */
+
+  DispatchLogEntry(
+    final Bundle in_bundle,
+    final ServiceReference<?> in_reference,
+    final int in_level,
+    final String in_message,
+    final Throwable in_exception,
+    final long in_time)
+  {
+    this.bundle = in_bundle;
+    this.reference = in_reference;
+    this.level = in_level;
+    this.message = in_message;
+    this.exception = in_exception;
+    this.time = in_time;
+  }
+
+  @Override
+  public Bundle getBundle()
+  {
+    return this.bundle;
+  }
+
+  @Override
+  public ServiceReference getServiceReference()
+  {
+    return this.reference;
+  }
+
+  @Override
+  public int getLevel()
+  {
+    return this.level;
+  }
+
+  @Override
+  public String getMessage()
+  {
+    return this.message;
+  }
+
+  @Override
+  public Throwable getException()
+  {
+    return this.exception;
+  }
+
+  @Override
+  public long getTime()
+  {
+    return this.time;
+  }
+}
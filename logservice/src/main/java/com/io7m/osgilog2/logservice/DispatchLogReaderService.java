@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogReaderService;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The built-in log reader service, specific to one client bundle. Listeners
+ * added through the service are removed when the client releases it.
+ */
+
+final class DispatchLogReaderService implements LogReaderService
+{
+  private final LogDispatcher dispatcher;
+  private final List<LogListener> added;
+
+  /**
+   * Construct a log reader service.
+   *
+   * @param in_dispatcher The dispatcher
+   */
+
+  DispatchLogReaderService(
+    final LogDispatcher in_dispatcher)
+  {
+    this.dispatcher = Objects.requireNonNull(in_dispatcher, "Dispatcher");
+    this.added = new ArrayList<>(4);
+  }
+
+  @Override
+  public synchronized void addLogListener(
+    final LogListener listener)
+  {
+    Objects.requireNonNull(listener, "Listener");
+
+    for (final LogListener existing : this.added) {
+      if (existing == listener) {
+        return;
+      }
+    }
+
+    this.added.add(listener);
+    this.dispatcher.addListener(listener);
+  }
+
+  @Override
+  public synchronized void removeLogListener(
+    final LogListener listener)
+  {
+    for (int index = 0; index < this.added.size(); ++index) {
+      if (this.added.get(index) == listener) {
+        this.added.remove(index);
+        this.dispatcher.removeListener(listener);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Enumeration getLog()
+  {
+    return this.dispatcher.history();
+  }
+
+  /**
+   * Remove every listener added through this service.
+   */
+
+  synchronized void close()
+  {
+    for (final LogListener listener : this.added) {
+      this.dispatcher.removeListener(listener);
+    }
+    this.added.clear();
+  }
+}
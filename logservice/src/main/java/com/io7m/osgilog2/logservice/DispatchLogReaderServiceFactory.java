@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogReaderService;
+
+import java.util.Objects;
+
+/**
+ * A service factory that gives each client bundle its own built-in log
+ * reader service, so that the listeners of a bundle can be removed when the
+ * bundle releases the service.
+ */
+
+final class DispatchLogReaderServiceFactory
+  implements ServiceFactory<LogReaderService>
+{
+  private final LogDispatcher dispatcher;
+
+  /**
+   * Construct a factory.
+   *
+   * @param in_dispatcher The dispatcher
+   */
+
+  DispatchLogReaderServiceFactory(
+    final LogDispatcher in_dispatcher)
+  {
+    this.dispatcher = Objects.requireNonNull(in_dispatcher, "Dispatcher");
+  }
+
+  @Override
+  public LogReaderService getService(
+    final Bundle bundle,
+    final ServiceRegistration<LogReaderService> registration)
+  {
+    return new DispatchLogReaderService(this.dispatcher);
+  }
+
+  @Override
+  public void ungetService(
+    final Bundle bundle,
+    final ServiceRegistration<LogReaderService> registration,
+    final LogReaderService service)
+  {
+    ((DispatchLogReaderService) service).close();
+  }
+}
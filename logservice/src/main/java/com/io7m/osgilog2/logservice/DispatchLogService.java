@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+import java.util.Objects;
+
+/**
+ * The built-in log service, specific to one client bundle.
+ */
+
+final class DispatchLogService implements LogService
+{
+  private final LogDispatcher dispatcher;
+  private final Bundle bundle;
+
+  /**
+   * Construct a log service.
+   *
+   * @param in_dispatcher The dispatcher
+   * @param in_bundle     The client bundle
+   */
+
+  DispatchLogService(
+    final LogDispatcher in_dispatcher,
+    final Bundle in_bundle)
+  {
+    this.dispatcher = Objects.requireNonNull(in_dispatcher, "Dispatcher");
+    this.bundle = Objects.requireNonNull(in_bundle, "Bundle");
+  }
+
+  @Override
+  public void log(
+    final int level,
+    final String message)
+  {
+    this.dispatcher.log(this.bundle, null, level, message, null);
+  }
+
+  @Override
+  public void log(
+    final int level,
+    final String message,
+    final Throwable exception)
+  {
+    this.dispatcher.log(this.bundle, null, level, message, exception);
+  }
+
+  @Override
+  public void log(
+    final ServiceReference sr,
+    final int level,
+    final String message)
+  {
+    this.dispatcher.log(this.bundle, sr, level, message, null);
+  }
+
+  @Override
+  public void log(
+    final ServiceReference sr,
+    final int level,
+    final String message,
+    final Throwable exception)
+  {
+    this.dispatcher.log(this.bundle, sr, level, message, exception);
+  }
+}
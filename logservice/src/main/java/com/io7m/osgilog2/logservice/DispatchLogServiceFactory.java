@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogService;
+
+import java.util.Objects;
+
+/**
+ * A service factory that gives each client bundle its own built-in log
+ * service, so that entries are attributed to the bundle that logged them.
+ */
+
+final class DispatchLogServiceFactory implements ServiceFactory<LogService>
+{
+  private final LogDispatcher dispatcher;
+
+  /**
+   * Construct a factory.
+   *
+   * @param in_dispatcher The dispatcher
+   */
+
+  DispatchLogServiceFactory(
+    final LogDispatcher in_dispatcher)
+  {
+    this.dispatcher = Objects.requireNonNull(in_dispatcher, "Dispatcher");
+  }
+
+  @Override
+  public LogService getService(
+    final Bundle bundle,
+    final ServiceRegistration<LogService> registration)
+  {
+    return new DispatchLogService(this.dispatcher, bundle);
+  }
+
+  @Override
+  public void ungetService(
+    final Bundle bundle,
+    final ServiceRegistration<LogService> registration,
+    final LogService service)
+  {
+    // Nothing
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A bounded record of the exceptions that have been logged, identified by
+ * fingerprint.</p>
+ *
+ * <p>The fingerprint of an exception is a 64-bit FNV-1a hash of the class
+ * name, the shape of the message, and every stack frame of the exception
+ * and each of its causes. The shape of a message is the message with every
+ * run of digits replaced by a single {@code #}, so that exceptions that
+ * differ only in identifiers, ports, or counts share a fingerprint. The
+ * most recently seen fingerprints are retained, up to a fixed capacity, in
+ * least-recently-used order.</p>
+ */
+
+final class ExceptionFingerprints
+{
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int MAX_CAUSES = 16;
+
+  /**
+   * One occurrence of a fingerprinted exception.
+   */
+
+  static final class Occurrence
+  {
+    private final String id;
+    private final long count;
+
+    Occurrence(
+      final String in_id,
+      final long in_count)
+    {
+      this.id = in_id;
+      this.count = in_count;
+    }
+
+    /**
+     * @return The short ID of the fingerprint
+     */
+
+    String id()
+    {
+      return this.id;
+    }
+
+    /**
+     * @return The number of times the fingerprint has been seen, including
+     * this occurrence
+     */
+
+    long count()
+    {
+      return this.count;
+    }
+
+    /**
+     * @return {@code true} if this is the first occurrence
+     */
+
+    boolean isFirst()
+    {
+      return this.count == 1L;
+    }
+  }
+
+  private static final class Known
+  {
+    private final String id;
+    private long count;
+
+    Known(
+      final String in_id)
+    {
+      this.id = in_id;
+    }
+  }
+
+  private final boolean enabled;
+  private final LinkedHashMap<Long, Known> known;
+
+  /**
+   * Construct a record.
+   *
+   * @param in_enabled  {@code true} if exceptions should be fingerprinted
+   * @param in_capacity The maximum number of fingerprints retained
+   */
+
+  ExceptionFingerprints(
+    final boolean in_enabled,
+    final int in_capacity)
+  {
+    if (in_capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+
+    this.enabled = in_enabled;
+    this.known = new LinkedHashMap<Long, Known>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<Long, Known> eldest)
+      {
+        return this.size() > in_capacity;
+      }
+    };
+  }
+
+  /**
+   * @return A record that fingerprints nothing
+   */
+
+  static ExceptionFingerprints disabled()
+  {
+    return new ExceptionFingerprints(false, 1);
+  }
+
+  /**
+   * @return {@code true} if exceptions are fingerprinted
+   */
+
+  boolean isEnabled()
+  {
+    return this.enabled;
+  }
+
+  /**
+   * Record an occurrence of the given exception.
+   *
+   * @param exception The exception
+   *
+   * @return The occurrence, or {@code null} if fingerprinting is disabled
+   */
+
+  Occurrence record(
+    final Throwable exception)
+  {
+    if (!this.enabled) {
+      return null;
+    }
+
+    final long fingerprint = fingerprint(exception);
+    final Long key = Long.valueOf(fingerprint);
+    synchronized (this.known) {
+      Known k = this.known.get(key);
+      if (k == null) {
+        k = new Known(String.format(
+          "%08x", Integer.valueOf((int) (fingerprint ^ (fingerprint >>> 32)))));
+        this.known.put(key, k);
+      }
+      ++k.count;
+      return new Occurrence(k.id, k.count);
+    }
+  }
+
+  /**
+   * @return The number of fingerprints currently retained
+   */
+
+  int size()
+  {
+    synchronized (this.known) {
+      return this.known.size();
+    }
+  }
+
+  /**
+   * Compute the fingerprint of an exception.
+   *
+   * @param exception The exception
+   *
+   * @return The fingerprint
+   */
+
+  static long fingerprint(
+    final Throwable exception)
+  {
+    long hash = FNV_OFFSET;
+    Throwable current = exception;
+    for (int depth = 0; current != null && depth < MAX_CAUSES; ++depth) {
+      hash = hashString(hash, current.getClass().getName());
+      hash = hashShape(hash, current.getMessage());
+      for (final StackTraceElement frame : current.getStackTrace()) {
+        hash = hashString(hash, frame.getClassName());
+        hash = hashString(hash, frame.getMethodName());
+        hash = hashInt(hash, frame.getLineNumber());
+      }
+
+      final Throwable cause = current.getCause();
+      current = cause == current ? null : cause;
+    }
+    return hash;
+  }
+
+  private static long hashChar(
+    final long hash,
+    final char c)
+  {
+    return (hash ^ c) * FNV_PRIME;
+  }
+
+  private static long hashInt(
+    final long hash,
+    final int value)
+  {
+    long h = hash;
+    h = (h ^ (value & 0xff)) * FNV_PRIME;
+    h = (h ^ ((value >>> 8) & 0xff)) * FNV_PRIME;
+    h = (h ^ ((value >>> 16) & 0xff)) * FNV_PRIME;
+    h = (h ^ ((value >>> 24) & 0xff)) * FNV_PRIME;
+    return h;
+  }
+
+  private static long hashString(
+    final long hash,
+    final String text)
+  {
+    long h = hash;
+    if (text != null) {
+      for (int index = 0; index < text.length(); ++index) {
+        h = hashChar(h, text.charAt(index));
+      }
+    }
+    return hashChar(h, '\0');
+  }
+
+  private static long hashShape(
+    final long hash,
+    final String message)
+  {
+    long h = hash;
+    if (message != null) {
+      boolean digits = false;
+      for (int index = 0; index < message.length(); ++index) {
+        final char c = message.charAt(index);
+        if (c >= '0' && c <= '9') {
+          if (!digits) {
+            h = hashChar(h, '#');
+            digits = true;
+          }
+        } else {
+          h = hashChar(h, c);
+          digits = false;
+        }
+      }
+    }
+    return hashChar(h, '\0');
+  }
+}
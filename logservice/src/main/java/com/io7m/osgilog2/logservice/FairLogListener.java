@@ -0,0 +1,562 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A log listener that queues entries per bundle and delivers them on a
+ * dedicated consumer thread in weighted round-robin order, so that a single
+ * chatty bundle cannot delay the entries of every other bundle.</p>
+ *
+ * <p>Each bundle has a lane consisting of two bounded queues: one for
+ * {@code ERROR} and {@code WARNING} entries, and one for everything else.
+ * Each round of delivery first takes up to <i>weight</i> urgent entries from
+ * every lane, and then up to <i>weight</i> other entries from every lane. An
+ * urgent entry therefore waits for at most one round, regardless of how many
+ * entries other bundles have queued, and no lane is ever starved. Entries of
+ * one bundle are delivered in order within each queue, but urgent entries
+ * may overtake earlier entries of lower severity.</p>
+ *
+ * <p>When a queue is full, the overflow policy applies to the producing
+ * bundle only: {@link OverflowPolicy#DROP} discards the entry, and the other
+ * policies block the producer until its own lane has room.</p>
+ */
+
+final class FairLogListener implements LogListener, BundleListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(FairLogListener.class);
+  }
+
+  private static final long NO_BUNDLE = -1L;
+  private static final long PRODUCER_WAIT_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(1L);
+  private static final long CONSUMER_WAIT_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(100L);
+
+  private static final class Lane
+  {
+    private final int weight;
+    private final int capacity;
+    private final ArrayDeque<LogEntry> urgent;
+    private final ArrayDeque<LogEntry> normal;
+    private boolean active;
+
+    Lane(
+      final int in_weight,
+      final int in_capacity)
+    {
+      this.weight = in_weight;
+      this.capacity = in_capacity;
+      this.urgent = new ArrayDeque<>(Math.min(in_capacity, 16));
+      this.normal = new ArrayDeque<>(Math.min(in_capacity, 16));
+    }
+
+    boolean isEmpty()
+    {
+      return this.urgent.isEmpty() && this.normal.isEmpty();
+    }
+  }
+
+  private final LogBatchListener delegate;
+  private final LogMetricsRecorder metrics;
+  private final LogEntryBatcher batcher;
+  private final OverflowPolicy overflow;
+  private final int default_weight;
+  private final int default_capacity;
+  private final Map<String, Integer> weights;
+  private final Map<String, Integer> capacities;
+  private final ReentrantLock lock;
+  private final Condition entries_available;
+  private final Condition space_available;
+  private final HashMap<Long, Lane> lanes;
+  private final ArrayList<Lane> active;
+  private final ArrayList<LogEntry> round;
+  private final Thread consumer;
+  private int pending;
+  private int capacity;
+  private int producers_waiting;
+  private long dropped;
+  private long dropped_reported;
+  private volatile boolean closed;
+
+  /**
+   * Construct a listener. The consumer thread is not started until
+   * {@link #start()} is called.
+   *
+   * @param in_delegate     The listener that will receive entries
+   * @param in_capacity     The capacity of each queue of a bundle that has
+   *                        no explicit capacity
+   * @param in_capacities   Queue capacities by bundle symbolic name
+   * @param in_weight       The weight of a bundle that has no explicit weight
+   * @param in_weights      Weights by bundle symbolic name
+   * @param in_overflow     The behaviour of producers when their queue is full
+   * @param batch_size      The maximum number of entries delivered per batch
+   * @param batch_delay_ms  The maximum time in milliseconds that an entry may
+   *                        wait for its batch to fill
+   * @param flush_on_error  {@code true} if a batch should be delivered as soon
+   *                        as it contains an error entry
+   * @param in_metrics      The metrics recorder
+   */
+
+  FairLogListener(
+    final LogBatchListener in_delegate,
+    final int in_capacity,
+    final Map<String, Integer> in_capacities,
+    final int in_weight,
+    final Map<String, Integer> in_weights,
+    final OverflowPolicy in_overflow,
+    final int batch_size,
+    final long batch_delay_ms,
+    final boolean flush_on_error,
+    final LogMetricsRecorder in_metrics)
+  {
+    this.delegate = Objects.requireNonNull(in_delegate, "Delegate");
+    this.capacities = Objects.requireNonNull(in_capacities, "Capacities");
+    this.weights = Objects.requireNonNull(in_weights, "Weights");
+    this.overflow = Objects.requireNonNull(in_overflow, "Overflow");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.default_capacity = Math.max(1, in_capacity);
+    this.default_weight = Math.max(1, in_weight);
+    this.batcher = new LogEntryBatcher(
+      in_delegate, batch_size, batch_delay_ms, flush_on_error);
+    this.lock = new ReentrantLock();
+    this.entries_available = this.lock.newCondition();
+    this.space_available = this.lock.newCondition();
+    this.lanes = new HashMap<>(64);
+    this.active = new ArrayList<>(64);
+    this.round = new ArrayList<>(256);
+    this.consumer = new Thread(this::run);
+    this.consumer.setName("com.io7m.osgilog2.logservice.fair");
+    this.consumer.setDaemon(true);
+  }
+
+  private static boolean isUrgent(
+    final int level)
+  {
+    return level == LogService.LOG_ERROR || level == LogService.LOG_WARNING;
+  }
+
+  private static int lookup(
+    final Map<String, Integer> values,
+    final Bundle bundle,
+    final int default_value)
+  {
+    if (bundle == null) {
+      return default_value;
+    }
+    final String name = bundle.getSymbolicName();
+    if (name == null) {
+      return default_value;
+    }
+    final Integer value = values.get(name);
+    return value == null ? default_value : Math.max(1, value.intValue());
+  }
+
+  /**
+   * Start the consumer thread.
+   */
+
+  void start()
+  {
+    LOG.debug(
+      "starting fair delivery (capacity {}, weight {}, overflow {}, batch {})",
+      Integer.valueOf(this.default_capacity),
+      Integer.valueOf(this.default_weight),
+      this.overflow,
+      Integer.valueOf(this.batcher.size()));
+    this.consumer.start();
+  }
+
+  /**
+   * Stop accepting new entries, deliver every entry that is already queued,
+   * and wait for the consumer thread to finish.
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The time unit
+   *
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  void close(
+    final long timeout,
+    final TimeUnit unit)
+    throws InterruptedException
+  {
+    this.closed = true;
+    this.lock.lock();
+    try {
+      this.entries_available.signal();
+      this.space_available.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+
+    this.consumer.join(unit.toMillis(timeout));
+    if (this.consumer.isAlive()) {
+      LOG.warn(
+        "consumer did not finish within {} {}; {} entries remain",
+        Long.valueOf(timeout),
+        unit,
+        Integer.valueOf(this.depth()));
+      return;
+    }
+
+    /*
+     * A producer that observed the listener as open may have queued an
+     * entry after the consumer performed its final drain. The consumer is
+     * dead, so it is safe to deliver from this thread.
+     */
+
+    this.drain();
+  }
+
+  /**
+   * @return The number of entries currently waiting for delivery
+   */
+
+  int depth()
+  {
+    this.lock.lock();
+    try {
+      return this.pending;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return The total capacity of the queues of every known bundle
+   */
+
+  int capacity()
+  {
+    this.lock.lock();
+    try {
+      return this.capacity;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  @Override
+  public void logged(
+    final LogEntry entry)
+  {
+    if (this.closed) {
+      this.delegate.logged(entry);
+      return;
+    }
+
+    /*
+     * An entry that could not be queued because the listener closed whilst
+     * the producer was waiting for room is delivered synchronously.
+     */
+
+    if (!this.offer(entry) && this.closed) {
+      this.delegate.logged(entry);
+    }
+  }
+
+  /**
+   * Queue an entry in the lane of its bundle.
+   *
+   * @return {@code false} if the entry was not queued
+   */
+
+  private boolean offer(
+    final LogEntry entry)
+  {
+    final Bundle bundle = entry.getBundle();
+    final long id = bundle == null ? NO_BUNDLE : bundle.getBundleId();
+    final int level = entry.getLevel();
+
+    this.lock.lock();
+    try {
+      final Lane lane = this.laneFor(id, bundle);
+      final ArrayDeque<LogEntry> queue =
+        isUrgent(level) ? lane.urgent : lane.normal;
+
+      while (queue.size() >= lane.capacity) {
+        if (this.overflow == OverflowPolicy.DROP) {
+          ++this.dropped;
+          this.metrics.onSuppressed(bundle, level);
+          return false;
+        }
+        if (this.closed) {
+          return false;
+        }
+        this.entries_available.signal();
+        ++this.producers_waiting;
+        try {
+          this.space_available.awaitNanos(PRODUCER_WAIT_NANOS);
+        } finally {
+          --this.producers_waiting;
+        }
+      }
+
+      /*
+       * The consumer may have drained the lanes and exited after the
+       * listener closed, in which case a queued entry would never be
+       * delivered.
+       */
+
+      if (this.closed) {
+        return false;
+      }
+
+      queue.addLast(entry);
+      ++this.pending;
+      if (!lane.active) {
+        lane.active = true;
+        this.active.add(lane);
+      }
+      if (this.pending == 1) {
+        this.entries_available.signal();
+      }
+      return true;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private Lane laneFor(
+    final long id,
+    final Bundle bundle)
+  {
+    final Long key = Long.valueOf(id);
+    final Lane existing = this.lanes.get(key);
+    if (existing != null) {
+      return existing;
+    }
+
+    final Lane lane = new Lane(
+      lookup(this.weights, bundle, this.default_weight),
+      lookup(this.capacities, bundle, this.default_capacity));
+    this.lanes.put(key, lane);
+    this.capacity += lane.capacity * 2;
+    return lane;
+  }
+
+  /**
+   * Take one round of entries from the active lanes: urgent entries from
+   * every lane first, then other entries from every lane. Lanes that become
+   * empty leave the active list.
+   */
+
+  private void takeRound()
+  {
+    final int count = this.active.size();
+    for (int index = 0; index < count; ++index) {
+      final Lane lane = this.active.get(index);
+      take(lane.urgent, lane.weight, this.round);
+    }
+    for (int index = 0; index < count; ++index) {
+      final Lane lane = this.active.get(index);
+      take(lane.normal, lane.weight, this.round);
+    }
+
+    int keep = 0;
+    for (int index = 0; index < count; ++index) {
+      final Lane lane = this.active.get(index);
+      if (lane.isEmpty()) {
+        lane.active = false;
+      } else {
+        this.active.set(keep, lane);
+        ++keep;
+      }
+    }
+    for (int index = count - 1; index >= keep; --index) {
+      this.active.remove(index);
+    }
+
+    this.pending -= this.round.size();
+    if (!this.round.isEmpty() && this.producers_waiting > 0) {
+      this.space_available.signalAll();
+    }
+  }
+
+  private static void take(
+    final ArrayDeque<LogEntry> queue,
+    final int weight,
+    final ArrayList<LogEntry> output)
+  {
+    for (int taken = 0; taken < weight; ++taken) {
+      final LogEntry entry = queue.pollFirst();
+      if (entry == null) {
+        return;
+      }
+      output.add(entry);
+    }
+  }
+
+  private void run()
+  {
+    LOG.debug("consumer started");
+
+    while (true) {
+      final boolean finished;
+      final long dropped_now;
+
+      this.lock.lock();
+      try {
+        if (this.pending == 0 && !this.closed) {
+          final long now = System.nanoTime();
+          final long wait =
+            Math.min(CONSUMER_WAIT_NANOS, this.batcher.nanosUntilDue(now));
+          if (wait > 0L) {
+            this.entries_available.awaitNanos(wait);
+          }
+        }
+        this.takeRound();
+        finished = this.closed && this.pending == 0;
+        dropped_now = this.dropped;
+      } catch (final InterruptedException e) {
+        LOG.debug("consumer interrupted");
+        break;
+      } finally {
+        this.lock.unlock();
+      }
+
+      this.deliverRound();
+      if (this.round.isEmpty() || finished) {
+        this.flushIfDue(System.nanoTime());
+        this.reportDropped(dropped_now);
+      }
+      this.round.clear();
+
+      if (finished) {
+        this.flush();
+        break;
+      }
+    }
+
+    LOG.debug("consumer finished");
+  }
+
+  private void drain()
+  {
+    while (true) {
+      final long dropped_now;
+      this.lock.lock();
+      try {
+        this.takeRound();
+        dropped_now = this.dropped;
+      } finally {
+        this.lock.unlock();
+      }
+
+      if (this.round.isEmpty()) {
+        this.flush();
+        this.reportDropped(dropped_now);
+        return;
+      }
+      this.deliverRound();
+      this.round.clear();
+    }
+  }
+
+  private void deliverRound()
+  {
+    final long now = System.nanoTime();
+    final int count = this.round.size();
+    for (int index = 0; index < count; ++index) {
+      try {
+        this.batcher.add(this.round.get(index), now);
+      } catch (final Throwable e) {
+        LOG.error("delegate raised an exception: ", e);
+      }
+    }
+  }
+
+  private void flushIfDue(
+    final long now)
+  {
+    try {
+      this.batcher.flushIfDue(now);
+    } catch (final Throwable e) {
+      LOG.error("delegate raised an exception: ", e);
+    }
+  }
+
+  private void flush()
+  {
+    try {
+      this.batcher.flush();
+    } catch (final Throwable e) {
+      LOG.error("delegate raised an exception: ", e);
+    }
+  }
+
+  private void reportDropped(
+    final long now)
+  {
+    if (now != this.dropped_reported) {
+      LOG.warn(
+        "bundle queues full: dropped {} log entries",
+        Long.valueOf(now - this.dropped_reported));
+      this.dropped_reported = now;
+    }
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    if (event.getType() != BundleEvent.UNINSTALLED) {
+      return;
+    }
+
+    /*
+     * A lane that still holds entries stays on the active list until it is
+     * drained; it is simply no longer found for new entries.
+     */
+
+    this.lock.lock();
+    try {
+      final Lane lane =
+        this.lanes.remove(Long.valueOf(event.getBundle().getBundleId()));
+      if (lane != null) {
+        this.capacity -= lane.capacity * 2;
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+}
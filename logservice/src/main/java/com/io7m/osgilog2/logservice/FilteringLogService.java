@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+import java.util.Objects;
+
+/**
+ * A log service, specific to one client bundle, that discards entries at
+ * disabled levels before they reach the underlying log service.
+ */
+
+final class FilteringLogService implements LogService
+{
+  private final long bundle_id;
+  private final Bundle bundle;
+  private final LogLevelService levels;
+  private final LogService delegate;
+  private final LogMetricsRecorder metrics;
+
+  /**
+   * Construct a log service.
+   *
+   * @param in_bundle   The client bundle
+   * @param in_levels   The level table
+   * @param in_delegate The underlying log service, obtained on behalf of the
+   *                    client bundle
+   * @param in_metrics  The metrics recorder
+   */
+
+  FilteringLogService(
+    final Bundle in_bundle,
+    final LogLevelService in_levels,
+    final LogService in_delegate,
+    final LogMetricsRecorder in_metrics)
+  {
+    this.bundle = Objects.requireNonNull(in_bundle, "Bundle");
+    this.bundle_id = in_bundle.getBundleId();
+    this.levels = Objects.requireNonNull(in_levels, "Levels");
+    this.delegate = Objects.requireNonNull(in_delegate, "Delegate");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+  }
+
+  /**
+   * Entries that carry a service reference are attributed to the bundle that
+   * registered the service, so the level of that bundle applies.
+   */
+
+  private Bundle bundleFor(
+    final ServiceReference<?> sr)
+  {
+    if (sr != null) {
+      final Bundle owner = sr.getBundle();
+      if (owner != null) {
+        return owner;
+      }
+    }
+    return this.bundle;
+  }
+
+  private boolean isEnabled(
+    final Bundle target,
+    final int level)
+  {
+    if (this.levels.isEnabled(target.getBundleId(), level)) {
+      return true;
+    }
+    this.metrics.onSuppressed(target, level);
+    return false;
+  }
+
+  @Override
+  public void log(
+    final int level,
+    final String message)
+  {
+    if (this.levels.isEnabled(this.bundle_id, level)) {
+      this.delegate.log(level, message);
+    } else {
+      this.metrics.onSuppressed(this.bundle, level);
+    }
+  }
+
+  @Override
+  public void log(
+    final int level,
+    final String message,
+    final Throwable exception)
+  {
+    if (this.levels.isEnabled(this.bundle_id, level)) {
+      this.delegate.log(level, message, exception);
+    } else {
+      this.metrics.onSuppressed(this.bundle, level);
+    }
+  }
+
+  @Override
+  public void log(
+    final ServiceReference sr,
+    final int level,
+    final String message)
+  {
+    if (this.isEnabled(this.bundleFor(sr), level)) {
+      this.delegate.log(sr, level, message);
+    }
+  }
+
+  @Override
+  public void log(
+    final ServiceReference sr,
+    final int level,
+    final String message,
+    final Throwable exception)
+  {
+    if (this.isEnabled(this.bundleFor(sr), level)) {
+      this.delegate.log(sr, level, message, exception);
+    }
+  }
+}
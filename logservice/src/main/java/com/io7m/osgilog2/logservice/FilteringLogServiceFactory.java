@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Hashtable;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A service factory that wraps the existing log service with one that
+ * filters entries at the producer.</p>
+ *
+ * <p>The underlying log service attributes entries to the bundle that
+ * obtained it, so the factory obtains the underlying service through the
+ * bundle context of each client rather than its own. The filtering service
+ * is registered with a high ranking whenever an underlying log service is
+ * available, and is unregistered when that service disappears.</p>
+ */
+
+final class FilteringLogServiceFactory implements ServiceFactory<LogService>,
+  ServiceTrackerCustomizer<LogService, ServiceReference<LogService>>
+{
+  /**
+   * The service property that marks filtering log services, so that they are
+   * never wrapped themselves.
+   */
+
+  static final String MARKER = LogServiceConfiguration.PREFIX + "filtering";
+
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(FilteringLogServiceFactory.class);
+  }
+
+  private final BundleContext context;
+  private final LogLevelService levels;
+  private final LogMetricsRecorder metrics;
+  private final int ranking;
+  private final ConcurrentHashMap<Long, ServiceReference<LogService>> obtained;
+  private ServiceTracker<LogService, ServiceReference<LogService>> tracker;
+  private ServiceReference<LogService> target;
+  private ServiceRegistration<LogService> registration;
+
+  /**
+   * Construct a factory.
+   *
+   * @param in_context The bundle context of the log service bundle
+   * @param in_levels  The level table
+   * @param in_ranking The ranking of the filtering service
+   * @param in_metrics The metrics recorder
+   */
+
+  FilteringLogServiceFactory(
+    final BundleContext in_context,
+    final LogLevelService in_levels,
+    final int in_ranking,
+    final LogMetricsRecorder in_metrics)
+  {
+    this.context = Objects.requireNonNull(in_context, "Context");
+    this.levels = Objects.requireNonNull(in_levels, "Levels");
+    this.ranking = in_ranking;
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.obtained = new ConcurrentHashMap<>(16);
+  }
+
+  /**
+   * Start tracking underlying log services.
+   *
+   * @throws InvalidSyntaxException On internal filter errors
+   */
+
+  void open()
+    throws InvalidSyntaxException
+  {
+    final Filter filter = this.context.createFilter(
+      "(&(objectClass=" + LogService.class.getName() + ")"
+        + "(!(" + MARKER + "=*)))");
+    this.tracker = new ServiceTracker<>(this.context, filter, this);
+    this.tracker.open();
+  }
+
+  /**
+   * Stop tracking underlying log services and unregister the filtering
+   * service.
+   */
+
+  void close()
+  {
+    if (this.tracker != null) {
+      this.tracker.close();
+      this.tracker = null;
+    }
+    synchronized (this) {
+      this.unregister();
+    }
+  }
+
+  private void register(
+    final ServiceReference<LogService> reference)
+  {
+    final Hashtable<String, Object> properties = new Hashtable<>(4);
+    properties.put(MARKER, Boolean.TRUE);
+    properties.put(Constants.SERVICE_RANKING, Integer.valueOf(this.ranking));
+
+    this.target = reference;
+    this.registration = this.context.registerService(
+      LogService.class, this, properties);
+    LOG.debug("registered filtering log service over {}", reference);
+  }
+
+  private void unregister()
+  {
+    if (this.registration != null) {
+      LOG.debug("unregistering filtering log service over {}", this.target);
+      try {
+        this.registration.unregister();
+      } catch (final IllegalStateException e) {
+        // Already unregistered by the framework
+      }
+      this.registration = null;
+      this.target = null;
+    }
+  }
+
+  @Override
+  public synchronized ServiceReference<LogService> addingService(
+    final ServiceReference<LogService> reference)
+  {
+    if (this.registration == null) {
+      this.register(reference);
+    }
+    return reference;
+  }
+
+  @Override
+  public void modifiedService(
+    final ServiceReference<LogService> reference,
+    final ServiceReference<LogService> service)
+  {
+    // Nothing
+  }
+
+  @Override
+  public synchronized void removedService(
+    final ServiceReference<LogService> reference,
+    final ServiceReference<LogService> service)
+  {
+    if (!Objects.equals(reference, this.target)) {
+      return;
+    }
+
+    this.unregister();
+
+    final ServiceReference<LogService> replacement =
+      this.tracker.getServiceReference();
+    if (replacement != null && !Objects.equals(replacement, reference)) {
+      this.register(replacement);
+    }
+  }
+
+  @Override
+  public LogService getService(
+    final Bundle bundle,
+    final ServiceRegistration<LogService> reg)
+  {
+    final ServiceReference<LogService> current;
+    synchronized (this) {
+      current = this.target;
+    }
+    if (current == null) {
+      return null;
+    }
+
+    final BundleContext client = bundle.getBundleContext();
+    if (client == null) {
+      return null;
+    }
+
+    final LogService delegate = client.getService(current);
+    if (delegate == null) {
+      return null;
+    }
+
+    this.obtained.put(Long.valueOf(bundle.getBundleId()), current);
+    return new FilteringLogService(bundle, this.levels, delegate, this.metrics);
+  }
+
+  @Override
+  public void ungetService(
+    final Bundle bundle,
+    final ServiceRegistration<LogService> reg,
+    final LogService service)
+  {
+    final ServiceReference<LogService> reference =
+      this.obtained.remove(Long.valueOf(bundle.getBundleId()));
+    if (reference == null) {
+      return;
+    }
+
+    final BundleContext client = bundle.getBundleContext();
+    if (client != null) {
+      try {
+        client.ungetService(reference);
+      } catch (final IllegalStateException e) {
+        // The client context is no longer valid
+      }
+    }
+  }
+}
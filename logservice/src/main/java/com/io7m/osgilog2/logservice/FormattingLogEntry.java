@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * <p>A log entry created by a {@link FormattingLogger}, holding the message
+ * template and its arguments rather than the formatted message.</p>
+ *
+ * <p>The SLF4J reader passes the template and arguments to SLF4J
+ * unchanged. The message is formatted only if some other listener asks for
+ * it, at most once per entry.</p>
+ */
+
+final class FormattingLogEntry implements LogEntry
+{
+  private final Bundle bundle;
+  private final int level;
+  private final String format;
+  private final Object[] arguments;
+  private final long time;
+  private volatile String message;
+
+  /**
+   * Construct an entry.
+   *
+   * @param in_bundle    The bundle that created the entry
+   * @param in_level     The level
+   * @param in_format    The message template
+   * @param in_arguments The arguments, may be {@code null}
+   * @param in_time      The time in milliseconds
+   */
+
+  FormattingLogEntry(
+    final Bundle in_bundle,
+    final int in_level,
+    final String in_format,
+    final Object[] in_arguments,
+    final long in_time)
+  {
+    this.bundle = in_bundle;
+    this.level = in_level;
+    this.format = in_format;
+    this.arguments = in_arguments;
+    this.time = in_time;
+  }
+
+  /**
+   * @return The message template
+   */
+
+  String format()
+  {
+    return this.format;
+  }
+
+  /**
+   * @return The arguments, including any trailing exception, exactly as
+   * they were logged; may be {@code null}
+   */
+
+  Object[] arguments()
+  {
+    return this.arguments;
+  }
+
+  @Override
+  public Bundle getBundle()
+  {
+    return this.bundle;
+  }
+
+  @Override
+  public ServiceReference getServiceReference()
+  {
+    return null;
+  }
+
+  @Override
+  public int getLevel()
+  {
+    return this.level;
+  }
+
+  @Override
+  public String getMessage()
+  {
+    String result = this.message;
+    if (result == null) {
+      result = MessageTemplates.format(this.format, this.arguments);
+      this.message = result;
+    }
+    return result;
+  }
+
+  @Override
+  public Throwable getException()
+  {
+    return MessageTemplates.exception(this.arguments);
+  }
+
+  @Override
+  public long getTime()
+  {
+    return this.time;
+  }
+}
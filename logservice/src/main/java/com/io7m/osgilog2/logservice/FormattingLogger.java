@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+/**
+ * <p>A logger that accepts SLF4J-style message templates, registered as a
+ * service for every bundle in the manner of the OSGi Log 1.4
+ * {@code Logger}.</p>
+ *
+ * <p>Each template may contain {@code {}} placeholders that are replaced by
+ * the string forms of the arguments. If the last argument is a
+ * {@link Throwable}, it is logged as the exception of the entry and does
+ * not fill a placeholder. The level is checked against the
+ * {@link LogLevelService} before anything else is done, so an entry at a
+ * disabled level costs one table lookup and no formatting. Callers that
+ * pass more than two arguments should still check the level first to
+ * avoid allocating the argument array.</p>
+ *
+ * <p>Arguments may be held until the entry is written, which can happen on
+ * another thread if asynchronous delivery is enabled, so they should not
+ * be modified after they are logged.</p>
+ */
+
+public interface FormattingLogger
+{
+  /**
+   * @return {@code true} iff entries at the debug level are logged
+   */
+
+  boolean isDebugEnabled();
+
+  /**
+   * Log a message at the debug level.
+   *
+   * @param message The message
+   */
+
+  void debug(String message);
+
+  /**
+   * Log a message at the debug level.
+   *
+   * @param format   The message template
+   * @param argument The argument
+   */
+
+  void debug(
+    String format,
+    Object argument);
+
+  /**
+   * Log a message at the debug level.
+   *
+   * @param format    The message template
+   * @param argument0 The first argument
+   * @param argument1 The second argument
+   */
+
+  void debug(
+    String format,
+    Object argument0,
+    Object argument1);
+
+  /**
+   * Log a message at the debug level.
+   *
+   * @param format    The message template
+   * @param arguments The arguments
+   */
+
+  void debug(
+    String format,
+    Object... arguments);
+
+  /**
+   * @return {@code true} iff entries at the info level are logged
+   */
+
+  boolean isInfoEnabled();
+
+  /**
+   * Log a message at the info level.
+   *
+   * @param message The message
+   */
+
+  void info(String message);
+
+  /**
+   * Log a message at the info level.
+   *
+   * @param format   The message template
+   * @param argument The argument
+   */
+
+  void info(
+    String format,
+    Object argument);
+
+  /**
+   * Log a message at the info level.
+   *
+   * @param format    The message template
+   * @param argument0 The first argument
+   * @param argument1 The second argument
+   */
+
+  void info(
+    String format,
+    Object argument0,
+    Object argument1);
+
+  /**
+   * Log a message at the info level.
+   *
+   * @param format    The message template
+   * @param arguments The arguments
+   */
+
+  void info(
+    String format,
+    Object... arguments);
+
+  /**
+   * @return {@code true} iff entries at the warning level are logged
+   */
+
+  boolean isWarnEnabled();
+
+  /**
+   * Log a message at the warning level.
+   *
+   * @param message The message
+   */
+
+  void warn(String message);
+
+  /**
+   * Log a message at the warning level.
+   *
+   * @param format   The message template
+   * @param argument The argument
+   */
+
+  void warn(
+    String format,
+    Object argument);
+
+  /**
+   * Log a message at the warning level.
+   *
+   * @param format    The message template
+   * @param argument0 The first argument
+   * @param argument1 The second argument
+   */
+
+  void warn(
+    String format,
+    Object argument0,
+    Object argument1);
+
+  /**
+   * Log a message at the warning level.
+   *
+   * @param format    The message template
+   * @param arguments The arguments
+   */
+
+  void warn(
+    String format,
+    Object... arguments);
+
+  /**
+   * @return {@code true} iff entries at the error level are logged
+   */
+
+  boolean isErrorEnabled();
+
+  /**
+   * Log a message at the error level.
+   *
+   * @param message The message
+   */
+
+  void error(String message);
+
+  /**
+   * Log a message at the error level.
+   *
+   * @param format   The message template
+   * @param argument The argument
+   */
+
+  void error(
+    String format,
+    Object argument);
+
+  /**
+   * Log a message at the error level.
+   *
+   * @param format    The message template
+   * @param argument0 The first argument
+   * @param argument1 The second argument
+   */
+
+  void error(
+    String format,
+    Object argument0,
+    Object argument1);
+
+  /**
+   * Log a message at the error level.
+   *
+   * @param format    The message template
+   * @param arguments The arguments
+   */
+
+  void error(
+    String format,
+    Object... arguments);
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+
+import java.util.Objects;
+
+/**
+ * A service factory that gives each client bundle its own
+ * {@link FormattingLogger}.
+ */
+
+final class FormattingLoggerFactory implements ServiceFactory<FormattingLogger>
+{
+  private final LogLevelService levels;
+  private final LogMetricsRecorder metrics;
+  private final LogDispatcher dispatcher;
+
+  /**
+   * Construct a factory.
+   *
+   * @param in_levels     The level table
+   * @param in_metrics    The metrics recorder
+   * @param in_dispatcher The built-in dispatcher, or {@code null} if
+   *                      entries should be logged to whichever log service
+   *                      is available
+   */
+
+  FormattingLoggerFactory(
+    final LogLevelService in_levels,
+    final LogMetricsRecorder in_metrics,
+    final LogDispatcher in_dispatcher)
+  {
+    this.levels = Objects.requireNonNull(in_levels, "Levels");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.dispatcher = in_dispatcher;
+  }
+
+  @Override
+  public FormattingLogger getService(
+    final Bundle bundle,
+    final ServiceRegistration<FormattingLogger> registration)
+  {
+    if (this.dispatcher != null) {
+      return new BundleFormattingLogger(
+        bundle, this.levels, this.metrics, this.dispatcher, null);
+    }
+
+    final BundleContext client = bundle.getBundleContext();
+    if (client == null) {
+      return null;
+    }
+
+    final ServiceTracker<LogService, LogService> services =
+      new ServiceTracker<>(client, LogService.class, null);
+    services.open();
+    return new BundleFormattingLogger(
+      bundle, this.levels, this.metrics, null, services);
+  }
+
+  @Override
+  public void ungetService(
+    final Bundle bundle,
+    final ServiceRegistration<FormattingLogger> registration,
+    final FormattingLogger service)
+  {
+    ((BundleFormattingLogger) service).close();
+  }
+}
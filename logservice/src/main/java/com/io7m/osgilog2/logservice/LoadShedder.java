@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * <p>An adaptive sampler that discards a fraction of {@code DEBUG} and
+ * {@code INFO} entries whilst the delivery path is under pressure.</p>
+ *
+ * <p>Pressure is evaluated once per period from two signals: the occupancy
+ * of the asynchronous queue, if there is one, and the mean time taken to
+ * write one entry to SLF4J during the period. Each period in which either
+ * signal is above its high threshold doubles the sampling interval of
+ * {@code DEBUG} entries and, once that interval has reached its maximum,
+ * the sampling interval of {@code INFO} entries. Each period in which both
+ * signals are below their low thresholds halves the intervals in the reverse
+ * order until every entry is delivered again. {@code WARNING} and
+ * {@code ERROR} entries are never discarded.</p>
+ *
+ * <p>Admission costs producer threads one volatile read and, whilst
+ * sampling, one thread-local random number. The clock is the time of the
+ * entries themselves, and the periodic evaluation is performed by whichever
+ * producer first observes that the period has elapsed, so no thread is
+ * required.</p>
+ */
+
+final class LoadShedder
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LoadShedder.class);
+  }
+
+  private static final DoubleSupplier NO_QUEUE = () -> 0.0;
+
+  private static final String SAMPLING_FORMAT =
+    "load shedding: delivering 1/{} DEBUG and 1/{} INFO entries "
+      + "({} entries shed, queue {}%, write {} us)";
+
+  private final boolean enabled;
+  private final long period_ms;
+  private final double occupancy_high;
+  private final double occupancy_low;
+  private final long latency_high_nanos;
+  private final long latency_low_nanos;
+  private final int interval_max;
+  private final AtomicLong next_update;
+  private final LongAdder write_nanos;
+  private final LongAdder writes;
+  private final LongAdder shed;
+  private volatile DoubleSupplier occupancy;
+  private volatile int debug_interval;
+  private volatile int info_interval;
+
+  /**
+   * Construct a shedder.
+   *
+   * @param in_enabled        {@code true} if entries may be discarded
+   * @param in_period_ms      The period in milliseconds at which pressure is
+   *                          evaluated
+   * @param in_queue_high     The queue occupancy, in percent, above which the
+   *                          path is under pressure
+   * @param in_queue_low      The queue occupancy, in percent, below which the
+   *                          path is no longer under pressure
+   * @param in_latency_micros The mean write time, in microseconds, above
+   *                          which the path is under pressure; the path is
+   *                          no longer under pressure below a quarter of it
+   * @param in_interval_max   The largest sampling interval, rounded up to a
+   *                          power of two
+   */
+
+  LoadShedder(
+    final boolean in_enabled,
+    final long in_period_ms,
+    final int in_queue_high,
+    final int in_queue_low,
+    final long in_latency_micros,
+    final int in_interval_max)
+  {
+    this.enabled = in_enabled;
+    this.period_ms = Math.max(1L, in_period_ms);
+    this.occupancy_high = clampPercent(in_queue_high) / 100.0;
+    this.occupancy_low =
+      Math.min(clampPercent(in_queue_low) / 100.0, this.occupancy_high);
+    this.latency_high_nanos =
+      TimeUnit.MICROSECONDS.toNanos(Math.max(1L, in_latency_micros));
+    this.latency_low_nanos = this.latency_high_nanos / 4L;
+    this.interval_max = roundUpPowerOfTwo(in_interval_max);
+    this.next_update = new AtomicLong(Long.MIN_VALUE);
+    this.write_nanos = new LongAdder();
+    this.writes = new LongAdder();
+    this.shed = new LongAdder();
+    this.occupancy = NO_QUEUE;
+    this.debug_interval = 1;
+    this.info_interval = 1;
+  }
+
+  /**
+   * @return A shedder that never discards anything
+   */
+
+  static LoadShedder disabled()
+  {
+    return new LoadShedder(false, 1L, 100, 100, 1L, 1);
+  }
+
+  private static int clampPercent(
+    final int value)
+  {
+    return Math.max(0, Math.min(100, value));
+  }
+
+  private static int roundUpPowerOfTwo(
+    final int value)
+  {
+    if (value <= 1) {
+      return 1;
+    }
+    final int high = Integer.highestOneBit(Math.min(value, 1 << 30));
+    return high == value ? high : high << 1;
+  }
+
+  /**
+   * @return {@code true} if entries may be discarded
+   */
+
+  boolean isEnabled()
+  {
+    return this.enabled;
+  }
+
+  /**
+   * Use the given function as the occupancy of the asynchronous queue, as a
+   * fraction in {@code [0, 1]}.
+   *
+   * @param in_occupancy The occupancy function
+   */
+
+  void watchQueue(
+    final DoubleSupplier in_occupancy)
+  {
+    this.occupancy = Objects.requireNonNull(in_occupancy, "Occupancy");
+  }
+
+  /**
+   * Record the time taken to write one entry to SLF4J.
+   *
+   * @param nanos The time in nanoseconds
+   */
+
+  void onWritten(
+    final long nanos)
+  {
+    this.write_nanos.add(nanos);
+    this.writes.increment();
+  }
+
+  /**
+   * Decide whether an entry should be delivered.
+   *
+   * @param level   The level of the entry
+   * @param time_ms The time of the entry in milliseconds
+   *
+   * @return {@code true} if the entry should be delivered
+   */
+
+  boolean admit(
+    final int level,
+    final long time_ms)
+  {
+    if (!this.enabled) {
+      return true;
+    }
+
+    final long next = this.next_update.get();
+    if (time_ms >= next
+      && this.next_update.compareAndSet(next, time_ms + this.period_ms)) {
+      this.update();
+    }
+
+    switch (level) {
+      case LogService.LOG_DEBUG:
+        return this.sample(this.debug_interval);
+      case LogService.LOG_INFO:
+        return this.sample(this.info_interval);
+      default:
+        return true;
+    }
+  }
+
+  private boolean sample(
+    final int interval)
+  {
+    if (interval == 1) {
+      return true;
+    }
+    if ((ThreadLocalRandom.current().nextInt() & (interval - 1)) == 0) {
+      return true;
+    }
+    this.shed.increment();
+    return false;
+  }
+
+  /**
+   * @return The current sampling interval for {@code DEBUG} entries
+   */
+
+  int debugInterval()
+  {
+    return this.debug_interval;
+  }
+
+  /**
+   * @return The current sampling interval for {@code INFO} entries
+   */
+
+  int infoInterval()
+  {
+    return this.info_interval;
+  }
+
+  private synchronized void update()
+  {
+    final long count = this.writes.sumThenReset();
+    final long total = this.write_nanos.sumThenReset();
+    final long latency = count == 0L ? 0L : total / count;
+    final double queue = this.occupancy.getAsDouble();
+
+    final int debug = this.debug_interval;
+    final int info = this.info_interval;
+
+    if (queue >= this.occupancy_high || latency >= this.latency_high_nanos) {
+      if (debug < this.interval_max) {
+        this.debug_interval = debug << 1;
+      } else if (info < this.interval_max) {
+        this.info_interval = info << 1;
+      }
+    } else if (queue < this.occupancy_low && latency < this.latency_low_nanos) {
+      if (info > 1) {
+        this.info_interval = info >>> 1;
+      } else if (debug > 1) {
+        this.debug_interval = debug >>> 1;
+      }
+    }
+
+    if (this.debug_interval == debug && this.info_interval == info) {
+      return;
+    }
+
+    final long shed_now = this.shed.sumThenReset();
+    final Long queue_percent = Long.valueOf(Math.round(queue * 100.0));
+    final Long latency_micros =
+      Long.valueOf(TimeUnit.NANOSECONDS.toMicros(latency));
+
+    if (this.debug_interval == 1 && this.info_interval == 1) {
+      LOG.info(
+        "load shedding stopped: delivering all entries "
+          + "({} entries shed, queue {}%, write {} us)",
+        Long.valueOf(shed_now),
+        queue_percent,
+        latency_micros);
+      return;
+    }
+
+    final Object[] arguments = {
+      Integer.valueOf(this.debug_interval),
+      Integer.valueOf(this.info_interval),
+      Long.valueOf(shed_now),
+      queue_percent,
+      latency_micros,
+    };
+
+    if (this.debug_interval > debug || this.info_interval > info) {
+      LOG.warn(SAMPLING_FORMAT, arguments);
+    } else {
+      LOG.info(SAMPLING_FORMAT, arguments);
+    }
+  }
+}
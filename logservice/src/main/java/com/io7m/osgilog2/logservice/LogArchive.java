@@ -0,0 +1,565 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+/**
+ * <p>A log listener that writes every entry to a compressed archive.</p>
+ *
+ * <p>Entries are written in the format described by {@link LogArchiveFormat}.
+ * Entries are accumulated in memory until the uncompressed block reaches the
+ * configured size, or until the block spans more than the configured age,
+ * and the block is then compressed and appended to the current segment
+ * together with a header that records the time range, levels and bundles of
+ * the entries it contains. The name of each bundle is written once per
+ * segment. When a segment grows beyond the configured size,
+ * its index is written, a new segment is started, and the oldest segments
+ * beyond the configured count are deleted.</p>
+ *
+ * <p>Unlike the {@link LogJournal}, the archive trades write latency for
+ * space: a block is only written to disk once it is complete, so entries in
+ * the current block are lost if the process dies. The archive is intended
+ * for long retention and searching with {@link LogArchiveQuery}.</p>
+ *
+ * <p>Compressing a block and rolling a segment are slow, so the archive is
+ * intended to be driven by a single thread, such as the consumer thread of
+ * an {@link AsyncLogListener}, so producers never wait for it. Its methods
+ * are synchronized only so that {@link #close()} cannot close the segment
+ * while an entry is being written.</p>
+ */
+
+final class LogArchive implements LogBatchListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogArchive.class);
+  }
+
+  /**
+   * Segments smaller than this are not accepted.
+   */
+
+  static final long SEGMENT_SIZE_MINIMUM = 64L * 1024L;
+
+  /**
+   * Blocks smaller than this are not accepted.
+   */
+
+  static final int BLOCK_SIZE_MINIMUM = 1024;
+
+  private static final int EXCEPTIONS_MAXIMUM = 8;
+  private static final int FRAMES_MAXIMUM = 1024;
+
+  private final Path directory;
+  private final int block_size;
+  private final long block_age;
+  private final long segment_size;
+  private final int segment_count;
+  private final ArrayDeque<Path> segments;
+  private final Deflater deflater;
+  private final ByteBuffer segment_header;
+  private final ByteBuffer index_header;
+  private final ByteBuffer index_count;
+  private final ByteBuffer trailer;
+  private final ByteBuffer[] gather;
+  private final BitSet block_bundles;
+  private final BitSet segment_bundles;
+  private ByteBuffer block;
+  private ByteBuffer block_header;
+  private ByteBuffer definitions;
+  private ByteBuffer index_bundles;
+  private ByteBuffer index;
+  private byte[] compressed;
+  private int index_bundle_count;
+  private int block_entries;
+  private long block_time_min;
+  private long block_time_max;
+  private int block_levels;
+  private int index_blocks;
+  private FileChannel channel;
+  private long segment_index;
+
+  /**
+   * Construct an archive.
+   *
+   * @param in_directory     The directory that holds segment files
+   * @param in_block_size    The uncompressed size in octets at which a block
+   *                         is written
+   * @param in_block_age     The span of entry times in milliseconds at which
+   *                         a block is written, or {@code 0} for no limit
+   * @param in_segment_size  The size in octets at which a new segment is
+   *                         started
+   * @param in_segment_count The maximum number of segments retained
+   * @param in_level         The Deflate compression level
+   */
+
+  LogArchive(
+    final Path in_directory,
+    final int in_block_size,
+    final long in_block_age,
+    final long in_segment_size,
+    final int in_segment_count,
+    final int in_level)
+  {
+    this.directory = Objects.requireNonNull(in_directory, "Directory");
+    if (in_block_size < BLOCK_SIZE_MINIMUM) {
+      throw new IllegalArgumentException(
+        "Block size must be at least " + BLOCK_SIZE_MINIMUM
+          + " (got " + in_block_size + ")");
+    }
+    if (in_block_age < 0L) {
+      throw new IllegalArgumentException(
+        "Block age must be non-negative (got " + in_block_age + ")");
+    }
+    if (in_segment_size < SEGMENT_SIZE_MINIMUM) {
+      throw new IllegalArgumentException(
+        "Segment size must be at least " + SEGMENT_SIZE_MINIMUM
+          + " (got " + in_segment_size + ")");
+    }
+    if (in_segment_count < 1) {
+      throw new IllegalArgumentException(
+        "Segment count must be positive (got " + in_segment_count + ")");
+    }
+    if (in_level < Deflater.NO_COMPRESSION
+      || in_level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException(
+        "Compression level must be in the range ["
+          + Deflater.NO_COMPRESSION + ", " + Deflater.BEST_COMPRESSION
+          + "] (got " + in_level + ")");
+    }
+
+    this.block_size = in_block_size;
+    this.block_age = in_block_age;
+    this.segment_size = in_segment_size;
+    this.segment_count = in_segment_count;
+    this.segments = new ArrayDeque<>(in_segment_count + 1);
+    this.deflater = new Deflater(in_level);
+    this.segment_header = ByteBuffer.allocate(LogArchiveFormat.HEADER_SIZE);
+    this.index_header = ByteBuffer.allocate(8);
+    this.index_count = ByteBuffer.allocate(4);
+    this.trailer = ByteBuffer.allocate(LogArchiveFormat.TRAILER_SIZE);
+    this.gather = new ByteBuffer[5];
+    this.block_bundles = new BitSet(256);
+    this.segment_bundles = new BitSet(256);
+    this.block = ByteBuffer.allocate(in_block_size + (in_block_size / 4));
+    this.block_header = ByteBuffer.allocate(256);
+    this.definitions = ByteBuffer.allocate(1024);
+    this.index_bundles = ByteBuffer.allocate(4096);
+    this.index = ByteBuffer.allocate(16 * 1024);
+    this.compressed = new byte[in_block_size / 2];
+  }
+
+  private static ByteBuffer reserve(
+    final ByteBuffer buffer,
+    final int size)
+  {
+    if (buffer.remaining() >= size) {
+      return buffer;
+    }
+
+    final int capacity =
+      Math.max(buffer.capacity() * 2, buffer.position() + size);
+    final ByteBuffer larger = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+  /**
+   * Open the archive, creating the directory if necessary. Existing segments
+   * are retained, and new entries are written to a new segment.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  synchronized void open()
+    throws IOException
+  {
+    Files.createDirectories(this.directory);
+
+    final List<Path> existing = new ArrayList<>(this.segment_count);
+    try (DirectoryStream<Path> stream =
+           Files.newDirectoryStream(this.directory)) {
+      for (final Path path : stream) {
+        final long index =
+          LogArchiveFormat.segmentIndex(path.getFileName().toString());
+        if (index >= 0L) {
+          existing.add(path);
+          this.segment_index = Math.max(this.segment_index, index);
+        }
+      }
+    }
+
+    Collections.sort(existing);
+    this.segments.addAll(existing);
+    this.roll();
+    LOG.debug("archive opened at {}", this.directory);
+  }
+
+  /**
+   * Write the current block and the index of the current segment. Entries
+   * delivered after this method returns are ignored.
+   */
+
+  synchronized void close()
+  {
+    if (this.channel != null) {
+      try {
+        this.writeBlock();
+        this.finish();
+      } catch (final IOException e) {
+        LOG.error("could not close archive segment: ", e);
+      }
+      this.channel = null;
+    }
+    this.deflater.end();
+  }
+
+  @Override
+  public synchronized void logged(
+    final LogEntry entry)
+  {
+    this.write(entry);
+  }
+
+  @Override
+  public synchronized void loggedBatch(
+    final LogEntry[] entries,
+    final int count)
+  {
+    for (int index = 0; index < count; ++index) {
+      this.write(entries[index]);
+    }
+  }
+
+  private void write(
+    final LogEntry entry)
+  {
+    if (this.channel == null) {
+      return;
+    }
+
+    try {
+      this.append(entry);
+
+      final boolean full = this.block.position() >= this.block_size;
+      final boolean old = this.block_age > 0L
+        && this.block_time_max - this.block_time_min >= this.block_age;
+
+      if (full || old) {
+        this.writeBlock();
+        if (this.channel.position() >= this.segment_size) {
+          this.roll();
+        }
+      }
+    } catch (final IOException e) {
+      LOG.error("archive failed, disabling: ", e);
+      if (this.channel != null) {
+        try {
+          this.channel.close();
+        } catch (final IOException ex) {
+          LOG.debug("could not close archive segment: ", ex);
+        }
+        this.channel = null;
+      }
+    }
+  }
+
+  private void append(
+    final LogEntry entry)
+  {
+    final Bundle bundle = entry.getBundle();
+    final long bundle_id = bundle == null ? -1L : bundle.getBundleId();
+    final long time = entry.getTime();
+    final int level = entry.getLevel();
+
+    if (this.block_entries == 0) {
+      this.block_time_min = time;
+      this.block_time_max = time;
+    } else {
+      this.block_time_min = Math.min(this.block_time_min, time);
+      this.block_time_max = Math.max(this.block_time_max, time);
+    }
+    this.block_levels |= LogArchiveFormat.levelBit(level);
+    this.noteBundle(bundle, bundle_id);
+    ++this.block_entries;
+
+    this.block = reserve(this.block, 8 + 8 + 4);
+    this.block.putLong(time);
+    this.block.putLong(bundle_id);
+    this.block.putInt(level);
+    this.putString(entry.getMessage());
+
+    this.block = reserve(this.block, 1);
+    final int count_position = this.block.position();
+    this.block.put((byte) 0);
+
+    int exceptions = 0;
+    Throwable ex = entry.getException();
+    while (ex != null && exceptions < EXCEPTIONS_MAXIMUM) {
+      this.putString(ex.getClass().getName());
+      this.putString(ex.getMessage());
+
+      final StackTraceElement[] trace = ex.getStackTrace();
+      final int frames = Math.min(trace.length, FRAMES_MAXIMUM);
+      this.block = reserve(this.block, 4);
+      this.block.putInt(frames);
+      for (int index = 0; index < frames; ++index) {
+        this.putString(trace[index].toString());
+      }
+
+      ++exceptions;
+      final Throwable cause = ex.getCause();
+      ex = cause == ex ? null : cause;
+    }
+
+    this.block.put(count_position, (byte) exceptions);
+  }
+
+  private void putString(
+    final String text)
+  {
+    if (text == null) {
+      this.block = reserve(this.block, 4);
+      this.block.putInt(-1);
+      return;
+    }
+
+    final int length = LogJournalFormat.utf8Length(text);
+    this.block = reserve(this.block, 4 + length);
+    this.block.putInt(length);
+    LogJournalFormat.putUTF8(this.block, text);
+  }
+
+  private void noteBundle(
+    final Bundle bundle,
+    final long bundle_id)
+  {
+    final int bit = LogArchiveFormat.bundleBit(bundle_id);
+    if (bit < 0) {
+      this.block_levels |= LogArchiveFormat.BUNDLES_UNINDEXED;
+      return;
+    }
+
+    this.block_bundles.set(bit);
+    if (this.segment_bundles.get(bit)) {
+      return;
+    }
+
+    /*
+     * The bundle has not been seen in this segment. Queue a definition to
+     * be written ahead of the current block, and record it for the index.
+     */
+
+    this.segment_bundles.set(bit);
+    final String name =
+      bundle == null ? "(none)" : BundleLoggers.loggerName(bundle);
+    final int length = LogJournalFormat.utf8Length(name);
+
+    this.definitions = reserve(this.definitions, 4 + 8 + 4 + length);
+    this.definitions.putInt(LogArchiveFormat.BUNDLE_MAGIC);
+    this.definitions.putLong(bundle_id);
+    this.definitions.putInt(length);
+    LogJournalFormat.putUTF8(this.definitions, name);
+
+    this.index_bundles = reserve(this.index_bundles, 8 + 4 + length);
+    this.index_bundles.putLong(bundle_id);
+    this.index_bundles.putInt(length);
+    LogJournalFormat.putUTF8(this.index_bundles, name);
+    ++this.index_bundle_count;
+  }
+
+  private int compress()
+  {
+    this.deflater.reset();
+    this.deflater.setInput(this.block.array(), 0, this.block.position());
+    this.deflater.finish();
+
+    int length = 0;
+    while (!this.deflater.finished()) {
+      if (length == this.compressed.length) {
+        final byte[] larger = new byte[this.compressed.length * 2];
+        System.arraycopy(this.compressed, 0, larger, 0, length);
+        this.compressed = larger;
+      }
+      length += this.deflater.deflate(
+        this.compressed, length, this.compressed.length - length);
+    }
+    return length;
+  }
+
+  private void writeBlock()
+    throws IOException
+  {
+    if (this.block_entries == 0) {
+      return;
+    }
+
+    final int length = this.compress();
+
+    final long[] bundles = this.block_bundles.toLongArray();
+
+    ByteBuffer header = this.block_header;
+    header.clear();
+    header = reserve(
+      header, LogArchiveFormat.BLOCK_HEADER_SIZE + (bundles.length * 8));
+    header.putInt(LogArchiveFormat.BLOCK_MAGIC);
+    header.putInt(length);
+    header.putInt(this.block.position());
+    header.putInt(this.block_entries);
+    header.putLong(this.block_time_min);
+    header.putLong(this.block_time_max);
+    header.put((byte) this.block_levels);
+    header.putInt(bundles.length);
+    for (final long word : bundles) {
+      header.putLong(word);
+    }
+    header.flip();
+    this.block_header = header;
+
+    this.definitions.flip();
+    final long offset =
+      this.channel.position() + (long) this.definitions.remaining();
+    this.gather[0] = this.definitions;
+    this.gather[1] = header;
+    this.gather[2] = ByteBuffer.wrap(this.compressed, 0, length);
+    this.writeFully(3);
+
+    /*
+     * Keep a copy of the header for the index at the end of the segment.
+     */
+
+    header.rewind();
+    this.index = reserve(this.index, 8 + header.remaining());
+    this.index.putLong(offset);
+    this.index.put(header);
+    ++this.index_blocks;
+
+    this.definitions.clear();
+    this.block.clear();
+    this.block_bundles.clear();
+    this.block_entries = 0;
+    this.block_levels = 0;
+  }
+
+  private void writeFully(
+    final int count)
+    throws IOException
+  {
+    long remaining = 0L;
+    for (int index = 0; index < count; ++index) {
+      remaining += (long) this.gather[index].remaining();
+    }
+    while (remaining > 0L) {
+      remaining -= this.channel.write(this.gather, 0, count);
+    }
+    for (int index = 0; index < count; ++index) {
+      this.gather[index] = null;
+    }
+  }
+
+  private void finish()
+    throws IOException
+  {
+    final long offset = this.channel.position();
+
+    this.index_header.clear();
+    this.index_header.putInt(LogArchiveFormat.INDEX_MAGIC);
+    this.index_header.putInt(this.index_bundle_count);
+    this.index_header.flip();
+    this.index_bundles.flip();
+    this.index_count.clear();
+    this.index_count.putInt(this.index_blocks);
+    this.index_count.flip();
+    this.index.flip();
+    this.trailer.clear();
+    this.trailer.putLong(offset);
+    this.trailer.putInt(LogArchiveFormat.TRAILER_MAGIC);
+    this.trailer.flip();
+
+    this.gather[0] = this.index_header;
+    this.gather[1] = this.index_bundles;
+    this.gather[2] = this.index_count;
+    this.gather[3] = this.index;
+    this.gather[4] = this.trailer;
+    this.writeFully(5);
+
+    this.channel.force(false);
+    this.channel.close();
+  }
+
+  private void roll()
+    throws IOException
+  {
+    if (this.channel != null) {
+      this.finish();
+      this.channel = null;
+    }
+
+    ++this.segment_index;
+    final Path path = this.directory.resolve(
+      LogArchiveFormat.segmentName(this.segment_index));
+
+    this.channel = FileChannel.open(
+      path,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.WRITE);
+
+    this.segment_header.clear();
+    this.segment_header.putInt(LogArchiveFormat.MAGIC);
+    this.segment_header.putInt(LogArchiveFormat.VERSION);
+    this.segment_header.putLong(this.segment_index);
+    this.segment_header.putLong(System.currentTimeMillis());
+    this.segment_header.flip();
+    this.gather[0] = this.segment_header;
+    this.writeFully(1);
+
+    this.index.clear();
+    this.index_blocks = 0;
+    this.index_bundles.clear();
+    this.index_bundle_count = 0;
+    this.segment_bundles.clear();
+
+    this.segments.addLast(path);
+    while (this.segments.size() > this.segment_count) {
+      final Path oldest = this.segments.removeFirst();
+      LOG.debug("deleting segment {}", oldest);
+      Files.deleteIfExists(oldest);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>Constants and helpers describing the compressed archive format.</p>
+ *
+ * <p>An archive is a directory of segment files. Each segment begins with a
+ * header of {@link #HEADER_SIZE} octets (the magic number, the format
+ * version, the segment index, and the creation time in milliseconds),
+ * followed by a sequence of records, followed by an index. Each record
+ * starts with an {@code int32} magic number. All integers are
+ * big-endian.</p>
+ *
+ * <ul>
+ *   <li>{@link #BUNDLE_MAGIC}: Defines the name of a bundle. An
+ *   {@code int64} bundle ID, followed by an {@code int32} length and that
+ *   many octets of UTF-8. A bundle is defined once per segment, before the
+ *   first block that contains entries from it.</li>
+ *   <li>{@link #BLOCK_MAGIC}: A block of entries. The {@code int32}
+ *   compressed length, the {@code int32} uncompressed length, the
+ *   {@code int32} number of entries, the {@code int64} earliest and latest
+ *   entry times, a one-octet level mask (see {@link #levelBit(int)}), an
+ *   {@code int32} count of {@code int64} words, and that many words of a
+ *   bundle bitmap (see {@link #bundleBit(long)}), followed by the
+ *   Deflate-compressed block data.</li>
+ * </ul>
+ *
+ * <p>The uncompressed data of a block is a sequence of entries. An entry is
+ * an {@code int64} time, an {@code int64} bundle ID, an {@code int32} level,
+ * a string for the message, and a one-octet count of exceptions. Each
+ * exception is a string for the class name, a string for the message, an
+ * {@code int32} frame count, and a string for each frame. A string is an
+ * {@code int32} length, or {@code -1} for a missing string, followed by that
+ * many octets of UTF-8. Nothing is interned; repeated strings are left to
+ * the compressor.</p>
+ *
+ * <p>When a segment is closed, an index is appended: {@link #INDEX_MAGIC},
+ * an {@code int32} count of bundles, each an {@code int64} bundle ID, an
+ * {@code int32} length and that many octets of UTF-8, then an {@code int32}
+ * count of blocks, each the {@code int64} offset of the block record
+ * followed by a copy of its header up to the compressed data. The segment
+ * then ends with a trailer of {@link #TRAILER_SIZE} octets: the
+ * {@code int64} offset of the index and {@link #TRAILER_MAGIC}. A segment
+ * without a valid trailer was not closed cleanly; its index can be
+ * recovered by walking the records from the start of the segment.</p>
+ */
+
+final class LogArchiveFormat
+{
+  /**
+   * The magic number that starts every segment.
+   */
+
+  static final int MAGIC = 0x4F4C4131;
+
+  /**
+   * The format version.
+   */
+
+  static final int VERSION = 1;
+
+  /**
+   * The size of the segment header.
+   */
+
+  static final int HEADER_SIZE = 24;
+
+  /**
+   * The magic number that starts every block header.
+   */
+
+  static final int BLOCK_MAGIC = 0x424C4B31;
+
+  /**
+   * The size of a block header without its bundle bitmap.
+   */
+
+  static final int BLOCK_HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 1 + 4;
+
+  /**
+   * The magic number that starts every bundle definition.
+   */
+
+  static final int BUNDLE_MAGIC = 0x424E4431;
+
+  /**
+   * The magic number that starts the index.
+   */
+
+  static final int INDEX_MAGIC = 0x49445831;
+
+  /**
+   * The magic number that ends the trailer.
+   */
+
+  static final int TRAILER_MAGIC = 0x454E4431;
+
+  /**
+   * The size of the trailer.
+   */
+
+  static final int TRAILER_SIZE = 8 + 4;
+
+  /**
+   * The level mask bit used for levels not defined by the OSGi log service.
+   */
+
+  static final int LEVEL_OTHER = 1;
+
+  /**
+   * The level mask bit that indicates that the block contains entries from
+   * bundles that are not represented in its bundle bitmap.
+   */
+
+  static final int BUNDLES_UNINDEXED = 0x80;
+
+  /**
+   * The prefix of segment file names.
+   */
+
+  static final String SEGMENT_PREFIX = "archive-";
+
+  /**
+   * The suffix of segment file names.
+   */
+
+  static final String SEGMENT_SUFFIX = ".lar";
+
+  private LogArchiveFormat()
+  {
+
+  }
+
+  /**
+   * @param level A log level
+   *
+   * @return The bit that represents the level in a block level mask
+   */
+
+  static int levelBit(
+    final int level)
+  {
+    switch (level) {
+      case LogService.LOG_ERROR:
+      case LogService.LOG_WARNING:
+      case LogService.LOG_INFO:
+      case LogService.LOG_DEBUG:
+        return 1 << level;
+      default:
+        return LEVEL_OTHER;
+    }
+  }
+
+  /**
+   * @param bundle_id A bundle ID, or {@code -1} for entries without a bundle
+   *
+   * @return The bit that represents the bundle in a block bundle bitmap, or
+   * {@code -1} if the bundle ID is too large to be represented
+   */
+
+  static int bundleBit(
+    final long bundle_id)
+  {
+    if (bundle_id < -1L || bundle_id >= (long) (Integer.MAX_VALUE - 1)) {
+      return -1;
+    }
+    return (int) (bundle_id + 1L);
+  }
+
+  /**
+   * @param index The segment index
+   *
+   * @return The file name of the segment with the given index
+   */
+
+  static String segmentName(
+    final long index)
+  {
+    return String.format(
+      "%s%016d%s", SEGMENT_PREFIX, Long.valueOf(index), SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @param name A file name
+   *
+   * @return The index of the segment with the given file name, or {@code -1}
+   * if the name is not that of a segment
+   */
+
+  static long segmentIndex(
+    final String name)
+  {
+    if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+      return -1L;
+    }
+
+    try {
+      return Long.parseLong(name.substring(
+        SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (final NumberFormatException e) {
+      return -1L;
+    }
+  }
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>A command line program that searches archive segments.</p>
+ *
+ * <p>Each segment index is read first, and only the blocks whose time range,
+ * levels and bundles can match the query are read and decompressed. Blocks
+ * are decompressed in parallel, and matching entries are printed in archive
+ * order. Each path argument is either a segment file or an archive
+ * directory, in which case every segment in the directory is searched in
+ * order. Like {@link LogJournalDecoder}, the program depends only on the Java
+ * platform:</p>
+ *
+ * <pre>
+ * $ java -cp logservice.jar com.io7m.osgilog2.logservice.LogArchiveQuery \
+ *     --bundle com.example.bundle --level WARN \
+ *     --from 2016-01-01T00:00:00Z --to 2016-01-02T00:00:00Z /path/to/archive
+ * </pre>
+ *
+ * <p>{@code --bundle} accepts a bundle ID or symbolic name and may be given
+ * more than once. {@code --level} selects the given level and every more
+ * severe level. {@code --from} (inclusive) and {@code --to} (exclusive)
+ * accept ISO-8601 instants or milliseconds since the epoch. {@code
+ * --threads} sets the number of decompression threads, which defaults to
+ * the number of processors.</p>
+ */
+
+public final class LogArchiveQuery
+{
+  private static final int LEVELS_ALL =
+    LogArchiveFormat.LEVEL_OTHER
+      | LogArchiveFormat.levelBit(LogService.LOG_ERROR)
+      | LogArchiveFormat.levelBit(LogService.LOG_WARNING)
+      | LogArchiveFormat.levelBit(LogService.LOG_INFO)
+      | LogArchiveFormat.levelBit(LogService.LOG_DEBUG);
+
+  private final Set<Long> bundle_ids;
+  private final Set<String> bundle_names;
+  private final List<FileChannel> channels;
+  private int levels;
+  private long time_from;
+  private long time_to;
+  private int threads;
+
+  private static final class Segment
+  {
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<Long, String> names;
+    private final BitSet wanted;
+
+    Segment(
+      final Path in_path,
+      final FileChannel in_channel)
+    {
+      this.path = in_path;
+      this.channel = in_channel;
+      this.names = new HashMap<>(64);
+      this.wanted = new BitSet(256);
+    }
+
+    void define(
+      final ByteBuffer buffer)
+    {
+      final long id = buffer.getLong();
+      this.names.put(Long.valueOf(id), getUTF8(buffer, buffer.getInt()));
+    }
+
+    String bundleName(
+      final long id)
+    {
+      return this.names.getOrDefault(Long.valueOf(id), "(none)");
+    }
+  }
+
+  private static final class Block
+  {
+    private final Segment segment;
+    private final long data_offset;
+    private final int compressed;
+    private final int raw;
+    private final long time_min;
+    private final long time_max;
+    private final int levels;
+    private final BitSet bundles;
+
+    Block(
+      final Segment in_segment,
+      final long in_offset,
+      final ByteBuffer header)
+      throws IOException
+    {
+      this.segment = in_segment;
+
+      final int start = header.position();
+      if (header.getInt() != LogArchiveFormat.BLOCK_MAGIC) {
+        throw new IOException(
+          in_segment.path + ": no block at offset " + in_offset);
+      }
+
+      this.compressed = header.getInt();
+      this.raw = header.getInt();
+      header.getInt();
+      this.time_min = header.getLong();
+      this.time_max = header.getLong();
+      this.levels = (int) header.get() & 0xff;
+
+      final int words = header.getInt();
+      if (words < 0 || this.compressed < 0 || this.raw < 0) {
+        throw new IOException(
+          in_segment.path + ": corrupt block header at offset " + in_offset);
+      }
+
+      final long[] bits = new long[words];
+      for (int index = 0; index < words; ++index) {
+        bits[index] = header.getLong();
+      }
+      this.bundles = BitSet.valueOf(bits);
+      this.data_offset = in_offset + (long) (header.position() - start);
+    }
+  }
+
+  private static final class Chunk
+  {
+    private final String text;
+    private final int matched;
+
+    Chunk(
+      final String in_text,
+      final int in_matched)
+    {
+      this.text = in_text;
+      this.matched = in_matched;
+    }
+  }
+
+  private LogArchiveQuery()
+  {
+    this.bundle_ids = new HashSet<>(8);
+    this.bundle_names = new HashSet<>(8);
+    this.channels = new ArrayList<>(16);
+    this.levels = LEVELS_ALL;
+    this.time_from = Long.MIN_VALUE;
+    this.time_to = Long.MAX_VALUE;
+    this.threads = Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * The main program.
+   *
+   * @param args Command line arguments
+   *
+   * @throws Exception On errors
+   */
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    final LogArchiveQuery query = new LogArchiveQuery();
+    final List<Path> paths = new ArrayList<>(args.length);
+
+    try {
+      for (int index = 0; index < args.length; ++index) {
+        final String arg = args[index];
+        switch (arg) {
+          case "--bundle": {
+            query.addBundle(argument(args, ++index));
+            break;
+          }
+          case "--level": {
+            query.levels = levelMask(argument(args, ++index));
+            break;
+          }
+          case "--from": {
+            query.time_from = time(argument(args, ++index));
+            break;
+          }
+          case "--to": {
+            query.time_to = time(argument(args, ++index));
+            break;
+          }
+          case "--threads": {
+            query.threads = Math.max(1, Integer.parseInt(argument(args, ++index)));
+            break;
+          }
+          default: {
+            paths.add(Paths.get(arg));
+            break;
+          }
+        }
+      }
+    } catch (final IllegalArgumentException | DateTimeParseException e) {
+      System.err.println(e.getMessage());
+      paths.clear();
+    }
+
+    if (paths.isEmpty()) {
+      System.err.println(
+        "usage: [--bundle (id | name)]... [--level (ERROR | WARN | INFO | DEBUG)] "
+          + "[--from time] [--to time] [--threads n] "
+          + "(segment-file | archive-directory) ...");
+      System.exit(1);
+      return;
+    }
+
+    try {
+      query.run(System.out, paths);
+    } finally {
+      for (final FileChannel channel : query.channels) {
+        channel.close();
+      }
+    }
+    System.out.flush();
+  }
+
+  private static String argument(
+    final String[] args,
+    final int index)
+  {
+    if (index >= args.length) {
+      throw new IllegalArgumentException(
+        args[index - 1] + " requires an argument");
+    }
+    return args[index];
+  }
+
+  private static int levelMask(
+    final String name)
+  {
+    final int level;
+    switch (name.toUpperCase()) {
+      case "ERROR":
+        level = LogService.LOG_ERROR;
+        break;
+      case "WARN":
+      case "WARNING":
+        level = LogService.LOG_WARNING;
+        break;
+      case "INFO":
+        level = LogService.LOG_INFO;
+        break;
+      case "DEBUG":
+        level = LogService.LOG_DEBUG;
+        break;
+      default:
+        throw new IllegalArgumentException("Unrecognized level: " + name);
+    }
+
+    int mask = 0;
+    for (int index = LogService.LOG_ERROR; index <= level; ++index) {
+      mask |= LogArchiveFormat.levelBit(index);
+    }
+    return mask;
+  }
+
+  private static long time(
+    final String text)
+  {
+    try {
+      return Long.parseLong(text);
+    } catch (final NumberFormatException e) {
+      return Instant.parse(text).toEpochMilli();
+    }
+  }
+
+  private static List<Path> segments(
+    final Path directory)
+    throws IOException
+  {
+    final List<Path> result = new ArrayList<>(16);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (final Path path : stream) {
+        if (LogArchiveFormat.segmentIndex(path.getFileName().toString()) >= 0L) {
+          result.add(path);
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private static ByteBuffer read(
+    final FileChannel channel,
+    final long offset,
+    final int size)
+    throws IOException
+  {
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + (long) buffer.position()) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String getUTF8(
+    final ByteBuffer buffer,
+    final int length)
+  {
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    final String text = new String(
+      buffer.array(),
+      buffer.arrayOffset() + buffer.position(),
+      length,
+      StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return text;
+  }
+
+  private static void skipString(
+    final ByteBuffer buffer)
+  {
+    final int length = buffer.getInt();
+    if (length > 0) {
+      buffer.position(buffer.position() + length);
+    }
+  }
+
+  private void addBundle(
+    final String text)
+  {
+    try {
+      this.bundle_ids.add(Long.valueOf(Long.parseLong(text)));
+    } catch (final NumberFormatException e) {
+      this.bundle_names.add(text);
+    }
+  }
+
+  private void run(
+    final PrintStream output,
+    final List<Path> paths)
+    throws IOException, InterruptedException
+  {
+    final long time_start = System.nanoTime();
+
+    final List<Block> selected = new ArrayList<>(1024);
+    int blocks = 0;
+    for (final Path path : paths) {
+      final List<Path> files =
+        Files.isDirectory(path) ? segments(path) : Collections.singletonList(path);
+      for (final Path file : files) {
+        final List<Block> index;
+        try {
+          index = this.index(file);
+        } catch (final IOException e) {
+          System.err.println("warning: " + e.getMessage());
+          continue;
+        }
+        blocks += index.size();
+        for (final Block block : index) {
+          if (this.matchesBlock(block)) {
+            selected.add(block);
+          }
+        }
+      }
+    }
+
+    /*
+     * Decompress the selected blocks in parallel, printing the results in
+     * archive order. At most a few blocks per thread are held in memory.
+     */
+
+    final ExecutorService executor =
+      Executors.newFixedThreadPool(this.threads, r -> {
+        final Thread thread = new Thread(r);
+        thread.setName("com.io7m.osgilog2.logservice.archive.query");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+    long octets = 0L;
+    long matched = 0L;
+    try {
+      final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>(this.threads * 4);
+      for (final Block block : selected) {
+        octets += (long) block.compressed;
+        pending.add(executor.submit(() -> this.search(block)));
+        if (pending.size() >= this.threads * 4) {
+          matched += print(output, pending.removeFirst());
+        }
+      }
+      while (!pending.isEmpty()) {
+        matched += print(output, pending.removeFirst());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final long time_ms = (System.nanoTime() - time_start) / 1_000_000L;
+    System.err.printf(
+      "%d entries matched; read %d of %d blocks (%d octets) in %d ms%n",
+      Long.valueOf(matched),
+      Integer.valueOf(selected.size()),
+      Integer.valueOf(blocks),
+      Long.valueOf(octets),
+      Long.valueOf(time_ms));
+  }
+
+  private static int print(
+    final PrintStream output,
+    final Future<Chunk> future)
+    throws IOException, InterruptedException
+  {
+    final Chunk chunk;
+    try {
+      chunk = future.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+    output.print(chunk.text);
+    return chunk.matched;
+  }
+
+  private boolean isFiltered()
+  {
+    return !this.bundle_ids.isEmpty() || !this.bundle_names.isEmpty();
+  }
+
+  private boolean matchesBlock(
+    final Block block)
+  {
+    if (block.time_max < this.time_from || block.time_min >= this.time_to) {
+      return false;
+    }
+    if ((block.levels & this.levels) == 0) {
+      return false;
+    }
+    if (!this.isFiltered()) {
+      return true;
+    }
+    if ((block.levels & LogArchiveFormat.BUNDLES_UNINDEXED) != 0) {
+      return true;
+    }
+    return block.bundles.intersects(block.segment.wanted);
+  }
+
+  private boolean matchesEntry(
+    final Block block,
+    final long time,
+    final long bundle_id,
+    final int level)
+  {
+    if (time < this.time_from || time >= this.time_to) {
+      return false;
+    }
+    if ((LogArchiveFormat.levelBit(level) & this.levels) == 0) {
+      return false;
+    }
+    if (!this.isFiltered()) {
+      return true;
+    }
+    final int bit = LogArchiveFormat.bundleBit(bundle_id);
+    if (bit >= 0) {
+      return block.segment.wanted.get(bit);
+    }
+    return this.bundle_ids.contains(Long.valueOf(bundle_id));
+  }
+
+  /**
+   * Read the index of a segment, and work out which of its bundles match
+   * the query. If the segment was not closed cleanly, the index is
+   * recovered from the records in the segment.
+   */
+
+  private List<Block> index(
+    final Path path)
+    throws IOException
+  {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.channels.add(channel);
+
+    final long size = channel.size();
+    final ByteBuffer header = read(channel, 0L, LogArchiveFormat.HEADER_SIZE);
+    if (header.remaining() < LogArchiveFormat.HEADER_SIZE
+      || header.getInt() != LogArchiveFormat.MAGIC) {
+      throw new IOException(path + ": not an archive segment");
+    }
+    final int version = header.getInt();
+    if (version != LogArchiveFormat.VERSION) {
+      throw new IOException(
+        path + ": unsupported archive version " + version);
+    }
+
+    Segment segment = new Segment(path, channel);
+    List<Block> result = readIndex(segment, size);
+    if (result == null) {
+      System.err.println(
+        "warning: " + path + ": no index, recovering from records");
+      segment = new Segment(path, channel);
+      result = recover(segment, size);
+    }
+
+    for (final Map.Entry<Long, String> e : segment.names.entrySet()) {
+      final Long id = e.getKey();
+      if (this.bundle_ids.contains(id)
+        || this.bundle_names.contains(e.getValue())) {
+        final int bit = LogArchiveFormat.bundleBit(id.longValue());
+        if (bit >= 0) {
+          segment.wanted.set(bit);
+        }
+      }
+    }
+    for (final Long id : this.bundle_ids) {
+      final int bit = LogArchiveFormat.bundleBit(id.longValue());
+      if (bit >= 0) {
+        segment.wanted.set(bit);
+      }
+    }
+    return result;
+  }
+
+  private static List<Block> readIndex(
+    final Segment segment,
+    final long size)
+    throws IOException
+  {
+    final long trailer_offset = size - (long) LogArchiveFormat.TRAILER_SIZE;
+    if (trailer_offset < (long) LogArchiveFormat.HEADER_SIZE) {
+      return null;
+    }
+
+    final ByteBuffer trailer =
+      read(segment.channel, trailer_offset, LogArchiveFormat.TRAILER_SIZE);
+    final long index_offset = trailer.getLong();
+    if (trailer.getInt() != LogArchiveFormat.TRAILER_MAGIC
+      || index_offset < (long) LogArchiveFormat.HEADER_SIZE
+      || index_offset >= trailer_offset) {
+      return null;
+    }
+
+    final ByteBuffer index = read(
+      segment.channel, index_offset, (int) (trailer_offset - index_offset));
+
+    try {
+      if (index.getInt() != LogArchiveFormat.INDEX_MAGIC) {
+        return null;
+      }
+
+      final int bundles = index.getInt();
+      for (int bundle = 0; bundle < bundles; ++bundle) {
+        segment.define(index);
+      }
+
+      final int blocks = index.getInt();
+      final List<Block> result = new ArrayList<>(blocks);
+      for (int block = 0; block < blocks; ++block) {
+        final long offset = index.getLong();
+        result.add(new Block(segment, offset, index));
+      }
+      return result;
+    } catch (final BufferUnderflowException | IOException e) {
+      segment.names.clear();
+      return null;
+    }
+  }
+
+  private static List<Block> recover(
+    final Segment segment,
+    final long size)
+    throws IOException
+  {
+    final List<Block> result = new ArrayList<>(256);
+
+    long offset = (long) LogArchiveFormat.HEADER_SIZE;
+    while (offset + 4L <= size) {
+      final int remaining = (int) Math.min(size - offset, Integer.MAX_VALUE);
+      ByteBuffer buffer =
+        read(segment.channel, offset, Math.min(64 * 1024, remaining));
+
+      try {
+        final int magic = buffer.getInt();
+        if (magic == LogArchiveFormat.BUNDLE_MAGIC) {
+          segment.define(buffer);
+          offset += (long) buffer.position();
+          continue;
+        }
+        if (magic != LogArchiveFormat.BLOCK_MAGIC) {
+          break;
+        }
+
+        buffer.rewind();
+        Block block;
+        try {
+          block = new Block(segment, offset, buffer);
+        } catch (final BufferUnderflowException e) {
+          buffer = read(segment.channel, offset, remaining);
+          block = new Block(segment, offset, buffer);
+        }
+
+        final long end = block.data_offset + (long) block.compressed;
+        if (end > size) {
+          break;
+        }
+        result.add(block);
+        offset = end;
+      } catch (final BufferUnderflowException | IOException e) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private Chunk search(
+    final Block block)
+    throws IOException
+  {
+    final ByteBuffer data =
+      read(block.segment.channel, block.data_offset, block.compressed);
+    final byte[] raw = new byte[block.raw];
+
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data.array(), 0, data.remaining());
+      int length = 0;
+      while (length < raw.length && !inflater.finished()) {
+        final int count = inflater.inflate(raw, length, raw.length - length);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException(
+            block.segment.path + ": truncated block at offset " + block.data_offset);
+        }
+        length += count;
+      }
+    } catch (final DataFormatException e) {
+      throw new IOException(
+        block.segment.path + ": corrupt block at offset " + block.data_offset, e);
+    } finally {
+      inflater.end();
+    }
+
+    final ByteBuffer buffer = ByteBuffer.wrap(raw);
+    final StringBuilder sb = new StringBuilder(4096);
+    int matched = 0;
+
+    try {
+      while (buffer.hasRemaining()) {
+        final long time = buffer.getLong();
+        final long bundle_id = buffer.getLong();
+        final int level = buffer.getInt();
+
+        if (this.matchesEntry(block, time, bundle_id, level)) {
+          appendEntry(sb, block, buffer, time, bundle_id, level);
+          ++matched;
+        } else {
+          skipEntry(buffer);
+        }
+      }
+    } catch (final RuntimeException e) {
+      throw new IOException(
+        block.segment.path + ": corrupt block at offset " + block.data_offset, e);
+    }
+
+    return new Chunk(sb.toString(), matched);
+  }
+
+  private static void skipEntry(
+    final ByteBuffer buffer)
+  {
+    skipString(buffer);
+    final int exceptions = (int) buffer.get() & 0xff;
+    for (int e = 0; e < exceptions; ++e) {
+      skipString(buffer);
+      skipString(buffer);
+      final int frames = buffer.getInt();
+      for (int index = 0; index < frames; ++index) {
+        skipString(buffer);
+      }
+    }
+  }
+
+  private static void appendEntry(
+    final StringBuilder sb,
+    final Block block,
+    final ByteBuffer buffer,
+    final long time,
+    final long bundle_id,
+    final int level)
+  {
+    sb.append(Instant.ofEpochMilli(time));
+    sb.append(' ');
+    sb.append(LogJournalDecoder.levelName(level));
+    sb.append(' ');
+    sb.append(block.segment.bundleName(bundle_id));
+    sb.append(" [");
+    sb.append(bundle_id);
+    sb.append("]: ");
+    sb.append(getUTF8(buffer, buffer.getInt()));
+    sb.append(System.lineSeparator());
+
+    final int exceptions = (int) buffer.get() & 0xff;
+    for (int e = 0; e < exceptions; ++e) {
+      final String type = getUTF8(buffer, buffer.getInt());
+      final String text = getUTF8(buffer, buffer.getInt());
+
+      if (e > 0) {
+        sb.append("Caused by: ");
+      }
+      sb.append(type);
+      if (text != null) {
+        sb.append(": ");
+        sb.append(text);
+      }
+      sb.append(System.lineSeparator());
+
+      final int frames = buffer.getInt();
+      for (int index = 0; index < frames; ++index) {
+        sb.append("\tat ");
+        sb.append(getUTF8(buffer, buffer.getInt()));
+        sb.append(System.lineSeparator());
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>The core of the built-in log service: records entries in a fixed-size
+ * history and delivers them to listeners.</p>
+ *
+ * <p>Entries are delivered synchronously on the thread that logged them.
+ * Listeners are held in an array that is replaced, never modified, when a
+ * listener is added or removed, so delivery reads one volatile field and
+ * takes no locks. The history is a ring of a fixed number of slots claimed
+ * with a single atomic increment, so memory use does not depend on the
+ * amount of logging. An entry is allocated only if there is a listener or a
+ * history to receive it, and the same instance is passed to every listener
+ * and kept in the history.</p>
+ *
+ * <p>Framework, bundle and service events are logged in the same way as by
+ * the Apache Felix log service.</p>
+ */
+
+final class LogDispatcher
+  implements BundleListener, FrameworkListener, ServiceListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogDispatcher.class);
+  }
+
+  private static final LogListener[] NO_LISTENERS = new LogListener[0];
+
+  private static final String[] FRAMEWORK_EVENT_MESSAGES = {
+    "FrameworkEvent STARTED",
+    "FrameworkEvent ERROR",
+    "FrameworkEvent PACKAGES REFRESHED",
+    "FrameworkEvent STARTLEVEL CHANGED",
+    "FrameworkEvent WARNING",
+    "FrameworkEvent INFO",
+  };
+
+  private static final String[] BUNDLE_EVENT_MESSAGES = {
+    "BundleEvent INSTALLED",
+    "BundleEvent STARTED",
+    "BundleEvent STOPPED",
+    "BundleEvent UPDATED",
+    "BundleEvent UNINSTALLED",
+    "BundleEvent RESOLVED",
+    "BundleEvent UNRESOLVED",
+    "BundleEvent STARTING",
+    "BundleEvent STOPPING",
+    "BundleEvent LAZY ACTIVATION",
+  };
+
+  private static final String[] SERVICE_EVENT_MESSAGES = {
+    "ServiceEvent REGISTERED",
+    "ServiceEvent MODIFIED",
+    "ServiceEvent UNREGISTERING",
+  };
+
+  private final Object listeners_lock;
+  private final AtomicReferenceArray<LogEntry> history;
+  private final AtomicLong history_next;
+  private final int history_mask;
+  private final boolean history_debug;
+  private volatile LogListener[] listeners;
+
+  /**
+   * Construct a dispatcher.
+   *
+   * @param history_capacity The number of entries retained in the history,
+   *                         rounded up to the next power of two; a value of
+   *                         {@code 0} disables the history
+   * @param in_history_debug {@code true} if entries at the debug level
+   *                         should be retained in the history
+   */
+
+  LogDispatcher(
+    final int history_capacity,
+    final boolean in_history_debug)
+  {
+    if (history_capacity < 0) {
+      throw new IllegalArgumentException(
+        "History capacity must be non-negative (got " + history_capacity + ")");
+    }
+
+    this.listeners_lock = new Object();
+    this.listeners = NO_LISTENERS;
+    this.history_debug = in_history_debug;
+    this.history_next = new AtomicLong(0L);
+
+    if (history_capacity > 0) {
+      final int capacity = LogEntryRingBuffer.roundUp(history_capacity);
+      this.history = new AtomicReferenceArray<>(capacity);
+      this.history_mask = capacity - 1;
+    } else {
+      this.history = null;
+      this.history_mask = 0;
+    }
+  }
+
+  private static String eventMessage(
+    final String[] messages,
+    final String prefix,
+    final int type)
+  {
+    final int index = Integer.numberOfTrailingZeros(type);
+    if (Integer.bitCount(type) == 1 && index < messages.length) {
+      return messages[index];
+    }
+    return prefix + " " + type;
+  }
+
+  /**
+   * Log an entry.
+   *
+   * @param bundle    The bundle that created the entry, may be {@code null}
+   * @param reference The service reference associated with the entry, may
+   *                  be {@code null}
+   * @param level     The level
+   * @param message   The message
+   * @param exception The exception, may be {@code null}
+   */
+
+  void log(
+    final Bundle bundle,
+    final ServiceReference<?> reference,
+    final int level,
+    final String message,
+    final Throwable exception)
+  {
+    final LogListener[] current = this.listeners;
+    final boolean record = this.isRecorded(level);
+
+    if (current.length == 0 && !record) {
+      return;
+    }
+
+    this.deliver(
+      current,
+      record,
+      new DispatchLogEntry(
+        bundle,
+        reference,
+        level,
+        message,
+        exception,
+        System.currentTimeMillis()));
+  }
+
+  /**
+   * Log an entry whose message is formatted from a template only when it
+   * is needed.
+   *
+   * @param bundle    The bundle that created the entry
+   * @param level     The level
+   * @param format    The message template
+   * @param arguments The arguments, may be {@code null}
+   */
+
+  void logFormatted(
+    final Bundle bundle,
+    final int level,
+    final String format,
+    final Object[] arguments)
+  {
+    final LogListener[] current = this.listeners;
+    final boolean record = this.isRecorded(level);
+
+    if (current.length == 0 && !record) {
+      return;
+    }
+
+    this.deliver(
+      current,
+      record,
+      new FormattingLogEntry(
+        bundle, level, format, arguments, System.currentTimeMillis()));
+  }
+
+  private boolean isRecorded(
+    final int level)
+  {
+    return this.history != null
+      && (level != LogService.LOG_DEBUG || this.history_debug);
+  }
+
+  private void deliver(
+    final LogListener[] current,
+    final boolean record,
+    final LogEntry entry)
+  {
+    if (record) {
+      final long index = this.history_next.getAndIncrement();
+      this.history.set((int) index & this.history_mask, entry);
+    }
+
+    for (final LogListener listener : current) {
+      try {
+        listener.logged(entry);
+      } catch (final Throwable e) {
+        LOG.error("log listener {} failed: ", listener, e);
+      }
+    }
+  }
+
+  /**
+   * Add a listener. A listener that is added more than once receives each
+   * entry more than once.
+   *
+   * @param listener The listener
+   */
+
+  void addListener(
+    final LogListener listener)
+  {
+    Objects.requireNonNull(listener, "Listener");
+
+    synchronized (this.listeners_lock) {
+      final LogListener[] current = this.listeners;
+      final LogListener[] updated = new LogListener[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = listener;
+      this.listeners = updated;
+    }
+  }
+
+  /**
+   * Remove one registration of a listener.
+   *
+   * @param listener The listener
+   */
+
+  void removeListener(
+    final LogListener listener)
+  {
+    synchronized (this.listeners_lock) {
+      final LogListener[] current = this.listeners;
+      for (int index = 0; index < current.length; ++index) {
+        if (current[index] == listener) {
+          if (current.length == 1) {
+            this.listeners = NO_LISTENERS;
+            return;
+          }
+
+          final LogListener[] updated = new LogListener[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, index);
+          System.arraycopy(
+            current, index + 1, updated, index, current.length - index - 1);
+          this.listeners = updated;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove every listener.
+   */
+
+  void close()
+  {
+    synchronized (this.listeners_lock) {
+      this.listeners = NO_LISTENERS;
+    }
+  }
+
+  /**
+   * @return A snapshot of the history, most recent entry first; entries
+   * logged concurrently with the snapshot may be missing from it
+   */
+
+  Enumeration<LogEntry> history()
+  {
+    if (this.history == null) {
+      return Collections.emptyEnumeration();
+    }
+
+    final int capacity = this.history.length();
+    final long next = this.history_next.get();
+    final long count = Math.min(next, (long) capacity);
+    final List<LogEntry> snapshot = new ArrayList<>((int) count);
+    for (long index = next - 1L; index >= next - count; --index) {
+      final LogEntry entry = this.history.get((int) index & this.history_mask);
+      if (entry != null) {
+        snapshot.add(entry);
+      }
+    }
+    return Collections.enumeration(snapshot);
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    this.log(
+      event.getBundle(),
+      null,
+      LogService.LOG_INFO,
+      eventMessage(BUNDLE_EVENT_MESSAGES, "BundleEvent", event.getType()),
+      null);
+  }
+
+  @Override
+  public void frameworkEvent(
+    final FrameworkEvent event)
+  {
+    final int type = event.getType();
+    final int level =
+      type == FrameworkEvent.ERROR ? LogService.LOG_ERROR : LogService.LOG_INFO;
+    this.log(
+      event.getBundle(),
+      null,
+      level,
+      eventMessage(FRAMEWORK_EVENT_MESSAGES, "FrameworkEvent", type),
+      event.getThrowable());
+  }
+
+  @Override
+  public void serviceChanged(
+    final ServiceEvent event)
+  {
+    final int type = event.getType();
+    final int level =
+      type == ServiceEvent.MODIFIED ? LogService.LOG_DEBUG : LogService.LOG_INFO;
+    final ServiceReference<?> reference = event.getServiceReference();
+    this.log(
+      reference.getBundle(),
+      reference,
+      level,
+      eventMessage(SERVICE_EVENT_MESSAGES, "ServiceEvent", type),
+      null);
+  }
+}
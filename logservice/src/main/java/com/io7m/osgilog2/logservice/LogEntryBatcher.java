@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A single-threaded accumulator that collects entries into a preallocated
+ * array and hands them to a batch listener when the batch is full, when the
+ * oldest entry in the batch has waited for the configured delay, or (if
+ * requested) immediately after an error entry.</p>
+ *
+ * <p>Instances are not thread-safe; they are intended to be driven by a
+ * single consumer thread.</p>
+ */
+
+final class LogEntryBatcher
+{
+  private final LogBatchListener target;
+  private final LogEntry[] batch;
+  private final long delay_nanos;
+  private final boolean flush_on_error;
+  private int count;
+  private long first_time;
+
+  /**
+   * Construct a batcher.
+   *
+   * @param in_target         The listener that receives batches
+   * @param in_size           The maximum number of entries in a batch
+   * @param in_delay_ms       The maximum time in milliseconds that an entry
+   *                          may wait in a batch
+   * @param in_flush_on_error {@code true} if a batch should be delivered as
+   *                          soon as it contains an error entry
+   */
+
+  LogEntryBatcher(
+    final LogBatchListener in_target,
+    final int in_size,
+    final long in_delay_ms,
+    final boolean in_flush_on_error)
+  {
+    this.target = Objects.requireNonNull(in_target, "Target");
+    this.batch = new LogEntry[Math.max(1, in_size)];
+    this.delay_nanos =
+      TimeUnit.MILLISECONDS.toNanos(Math.max(0L, in_delay_ms));
+    this.flush_on_error = in_flush_on_error;
+    this.count = 0;
+  }
+
+  /**
+   * @return The maximum number of entries in a batch
+   */
+
+  int size()
+  {
+    return this.batch.length;
+  }
+
+  /**
+   * Add an entry to the current batch, delivering the batch if necessary.
+   *
+   * @param entry The entry
+   * @param now   The current time in nanoseconds ({@link System#nanoTime()})
+   */
+
+  void add(
+    final LogEntry entry,
+    final long now)
+  {
+    if (this.count == 0) {
+      this.first_time = now;
+    }
+
+    this.batch[this.count] = entry;
+    ++this.count;
+
+    if (this.count == this.batch.length) {
+      this.flush();
+      return;
+    }
+
+    if (this.flush_on_error && entry.getLevel() == LogService.LOG_ERROR) {
+      this.flush();
+      return;
+    }
+
+    /*
+     * A zero delay means that the batch is delivered whenever the consumer
+     * finds no more entries waiting, via flushIfDue().
+     */
+
+    if (this.delay_nanos > 0L && now - this.first_time >= this.delay_nanos) {
+      this.flush();
+    }
+  }
+
+  /**
+   * Deliver the current batch if its oldest entry has waited long enough.
+   *
+   * @param now The current time in nanoseconds
+   */
+
+  void flushIfDue(
+    final long now)
+  {
+    if (this.count > 0 && now - this.first_time >= this.delay_nanos) {
+      this.flush();
+    }
+  }
+
+  /**
+   * @param now The current time in nanoseconds
+   *
+   * @return The time in nanoseconds until the current batch is due, or
+   * {@link Long#MAX_VALUE} if the batch is empty
+   */
+
+  long nanosUntilDue(
+    final long now)
+  {
+    if (this.count == 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0L, this.delay_nanos - (now - this.first_time));
+  }
+
+  /**
+   * Deliver the current batch unconditionally.
+   */
+
+  void flush()
+  {
+    if (this.count == 0) {
+      return;
+    }
+
+    try {
+      this.target.loggedBatch(this.batch, this.count);
+    } finally {
+      Arrays.fill(this.batch, 0, this.count, null);
+      this.count = 0;
+    }
+  }
+}
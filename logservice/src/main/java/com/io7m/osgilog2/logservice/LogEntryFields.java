@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.service.log.LogEntry;
+import org.slf4j.Marker;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>The fields of one log entry, presented as a read-only map so that
+ * encoders on the host can emit them without depending on any type of the
+ * log service bundle and without parsing the message.</p>
+ *
+ * <p>The fields are also the SLF4J marker of the event that carries them,
+ * named {@link SLF4JLogReader#STRUCTURED}, because SLF4J formats the message
+ * of every event that has arguments, whereas markers are passed through
+ * untouched. Encoders find the fields with
+ * {@code event.getMarker() instanceof Map}. If the entry is part of a
+ * batch, the marker refers to the {@link SLF4JLogReader#DEFER_FLUSH}
+ * marker of the batch.</p>
+ *
+ * <p>By default the SLF4J reader creates an instance per entry and never
+ * changes it after the logging call, so appenders that process events later
+ * may keep it. If the reader is configured to reuse one instance per thread,
+ * an instance is only valid for the duration of the logging call that
+ * carries it, and appenders that process events later must copy the map,
+ * for example with {@code new HashMap<>(fields)}; every value is immutable.
+ * The time is boxed only when it is requested.</p>
+ */
+
+final class LogEntryFields extends AbstractMap<String, Object>
+  implements Marker
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The ID of the bundle that produced the entry, as a {@link Long}.
+   */
+
+  static final String BUNDLE_ID = "bundle.id";
+
+  /**
+   * The symbolic name of the bundle, as a {@link String}.
+   */
+
+  static final String BUNDLE_NAME = "bundle.name";
+
+  /**
+   * The version of the bundle, as a {@link String}.
+   */
+
+  static final String BUNDLE_VERSION = "bundle.version";
+
+  /**
+   * The ID of the service associated with the entry, as a {@link Long}.
+   * Absent if the entry has no service reference.
+   */
+
+  static final String SERVICE_ID = "service.id";
+
+  /**
+   * The OSGi level of the entry, as an {@link Integer}.
+   */
+
+  static final String LEVEL = "level";
+
+  /**
+   * The time at which the entry was created, in milliseconds since the
+   * epoch, as a {@link Long}.
+   */
+
+  static final String TIME = "time";
+
+  /**
+   * The fields of one bundle. These are computed once per bundle and
+   * cached.
+   */
+
+  static final class BundleFields
+  {
+    /**
+     * The fields used for entries that have no bundle.
+     */
+
+    static final BundleFields NONE = new BundleFields(null, null, null);
+
+    private final Long id;
+    private final String name;
+    private final String version;
+
+    private BundleFields(
+      final Long in_id,
+      final String in_name,
+      final String in_version)
+    {
+      this.id = in_id;
+      this.name = in_name;
+      this.version = in_version;
+    }
+
+    /**
+     * @param bundle The bundle
+     *
+     * @return The fields of the given bundle
+     */
+
+    static BundleFields of(
+      final Bundle bundle)
+    {
+      final Version version = bundle.getVersion();
+      return new BundleFields(
+        Long.valueOf(bundle.getBundleId()),
+        BundleLoggers.loggerName(bundle),
+        version == null ? null : version.toString());
+    }
+  }
+
+  private final Set<Map.Entry<String, Object>> entries;
+  private final Marker defer_flush;
+  private boolean deferred;
+  private BundleFields bundle;
+  private Object service_id;
+  private Integer level;
+  private long time;
+
+  /**
+   * Construct an empty set of fields.
+   *
+   * @param in_defer_flush The marker referred to by deferred entries
+   */
+
+  LogEntryFields(
+    final Marker in_defer_flush)
+  {
+    this.defer_flush = Objects.requireNonNull(in_defer_flush, "Marker");
+    this.bundle = BundleFields.NONE;
+    this.entries = new Entries();
+  }
+
+  /**
+   * Replace the fields with those of the given entry.
+   *
+   * @param in_bundle   The cached fields of the entry's bundle
+   * @param entry       The entry
+   * @param in_deferred {@code true} if the entry is part of a batch
+   */
+
+  void set(
+    final BundleFields in_bundle,
+    final LogEntry entry,
+    final boolean in_deferred)
+  {
+    this.deferred = in_deferred;
+    this.bundle = in_bundle;
+    this.level = Integer.valueOf(entry.getLevel());
+    this.time = entry.getTime();
+
+    final ServiceReference<?> reference = entry.getServiceReference();
+    this.service_id =
+      reference == null ? null : reference.getProperty(Constants.SERVICE_ID);
+  }
+
+  /**
+   * Release the references held to the last entry.
+   */
+
+  void reset()
+  {
+    this.deferred = false;
+    this.bundle = BundleFields.NONE;
+    this.service_id = null;
+    this.level = null;
+  }
+
+  @Override
+  public Object get(
+    final Object key)
+  {
+    if (!(key instanceof String)) {
+      return null;
+    }
+
+    switch ((String) key) {
+      case BUNDLE_ID:
+        return this.bundle.id;
+      case BUNDLE_NAME:
+        return this.bundle.name;
+      case BUNDLE_VERSION:
+        return this.bundle.version;
+      case SERVICE_ID:
+        return this.service_id;
+      case LEVEL:
+        return this.level;
+      case TIME:
+        return this.level == null ? null : Long.valueOf(this.time);
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public boolean containsKey(
+    final Object key)
+  {
+    return this.get(key) != null;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet()
+  {
+    return this.entries;
+  }
+
+  @Override
+  public String getName()
+  {
+    return SLF4JLogReader.STRUCTURED;
+  }
+
+  @Override
+  public void add(
+    final Marker reference)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean remove(
+    final Marker reference)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  @Deprecated
+  public boolean hasChildren()
+  {
+    return this.hasReferences();
+  }
+
+  @Override
+  public boolean hasReferences()
+  {
+    return this.deferred;
+  }
+
+  @Override
+  public Iterator<Marker> iterator()
+  {
+    if (this.deferred) {
+      return Collections.singletonList(this.defer_flush).iterator();
+    }
+    return Collections.emptyIterator();
+  }
+
+  @Override
+  public boolean contains(
+    final Marker other)
+  {
+    Objects.requireNonNull(other, "Other");
+    return this == other || (this.deferred && this.defer_flush.contains(other));
+  }
+
+  @Override
+  public boolean contains(
+    final String name)
+  {
+    Objects.requireNonNull(name, "Name");
+    return SLF4JLogReader.STRUCTURED.equals(name)
+      || (this.deferred && this.defer_flush.contains(name));
+  }
+
+  private List<Map.Entry<String, Object>> snapshot()
+  {
+    final List<Map.Entry<String, Object>> result = new ArrayList<>(6);
+    this.add(result, BUNDLE_ID);
+    this.add(result, BUNDLE_NAME);
+    this.add(result, BUNDLE_VERSION);
+    this.add(result, SERVICE_ID);
+    this.add(result, LEVEL);
+    this.add(result, TIME);
+    return result;
+  }
+
+  private void add(
+    final List<Map.Entry<String, Object>> result,
+    final String key)
+  {
+    final Object value = this.get(key);
+    if (value != null) {
+      result.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+    }
+  }
+
+  private final class Entries extends AbstractSet<Map.Entry<String, Object>>
+  {
+    Entries()
+    {
+
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> iterator()
+    {
+      return Collections.unmodifiableList(
+        LogEntryFields.this.snapshot()).iterator();
+    }
+
+    @Override
+    public int size()
+    {
+      return LogEntryFields.this.snapshot().size();
+    }
+  }
+}
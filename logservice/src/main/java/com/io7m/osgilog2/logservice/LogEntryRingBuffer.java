@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A bounded, preallocated, lock-free multi-producer single-consumer ring
+ * buffer of log entries.</p>
+ *
+ * <p>Each slot carries a sequence number that tells producers and the
+ * consumer whether the slot is free for the current lap of the ring. Producers
+ * claim slots by a compare-and-set on the tail counter, and the single
+ * consumer advances the head counter without contention.</p>
+ */
+
+final class LogEntryRingBuffer
+{
+  private final LogEntry[] entries;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail;
+  private final AtomicLong head;
+  private final int mask;
+
+  /**
+   * Construct a ring buffer.
+   *
+   * @param in_capacity The requested capacity, rounded up to the next power
+   *                    of two
+   */
+
+  LogEntryRingBuffer(
+    final int in_capacity)
+  {
+    if (in_capacity <= 0) {
+      throw new IllegalArgumentException(
+        "Capacity must be positive (got " + in_capacity + ")");
+    }
+
+    final int capacity = roundUp(in_capacity);
+    this.entries = new LogEntry[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int index = 0; index < capacity; ++index) {
+      this.sequences.set(index, (long) index);
+    }
+    this.mask = capacity - 1;
+    this.tail = new AtomicLong(0L);
+    this.head = new AtomicLong(0L);
+  }
+
+  /**
+   * Round the given positive value up to the next power of two.
+   *
+   * @param x The value
+   *
+   * @return The smallest power of two greater than or equal to {@code x}
+   */
+
+  static int roundUp(
+    final int x)
+  {
+    final int high = Integer.highestOneBit(x);
+    if (high == x) {
+      return x;
+    }
+    if (high == 1 << 30) {
+      throw new IllegalArgumentException("Capacity too large: " + x);
+    }
+    return high << 1;
+  }
+
+  /**
+   * @return The number of slots in the buffer
+   */
+
+  int capacity()
+  {
+    return this.entries.length;
+  }
+
+  /**
+   * @return An estimate of the number of entries currently in the buffer
+   */
+
+  int size()
+  {
+    final long size = this.tail.get() - this.head.get();
+    return (int) Math.max(0L, Math.min(size, (long) this.entries.length));
+  }
+
+  /**
+   * Attempt to insert an entry. May be called from any thread.
+   *
+   * @param entry The entry
+   *
+   * @return {@code true} iff the entry was inserted
+   */
+
+  boolean offer(
+    final LogEntry entry)
+  {
+    while (true) {
+      final long position = this.tail.get();
+      final int index = (int) position & this.mask;
+      final long sequence = this.sequences.get(index);
+      final long difference = sequence - position;
+
+      if (difference == 0L) {
+        if (this.tail.compareAndSet(position, position + 1L)) {
+          this.entries[index] = entry;
+          this.sequences.lazySet(index, position + 1L);
+          return true;
+        }
+      } else if (difference < 0L) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Remove the oldest entry. Must only be called from the consumer thread.
+   *
+   * @return The entry, or {@code null} if the buffer is empty
+   */
+
+  LogEntry poll()
+  {
+    final long position = this.head.get();
+    final int index = (int) position & this.mask;
+    final long sequence = this.sequences.get(index);
+
+    if (sequence - (position + 1L) < 0L) {
+      return null;
+    }
+
+    final LogEntry entry = this.entries[index];
+    this.entries[index] = null;
+    this.head.lazySet(position + 1L);
+    this.sequences.lazySet(index, position + (long) this.entries.length);
+    return entry;
+  }
+}
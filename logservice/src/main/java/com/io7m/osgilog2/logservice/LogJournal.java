@@ -0,0 +1,616 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>A log listener that writes every entry to a binary journal.</p>
+ *
+ * <p>Entries are written in the format described by {@link LogJournalFormat}
+ * to memory-mapped segment files of a fixed size. When a segment is full, a
+ * new one is created, the previous one is written back, and the oldest
+ * segments beyond the configured count are deleted. Writing an entry is a
+ * sequence of stores into the mapped buffer; the operating system writes
+ * pages back in its own time, so no system call is made per entry. An entry
+ * that does not fit in an empty segment is dropped and counted.</p>
+ *
+ * <p>The journal is intended to be driven by a single thread, such as the
+ * consumer thread of an {@link AsyncLogListener}, so producers never wait
+ * for it. Its methods are synchronized only so that {@link #close()} cannot
+ * release the buffer while an entry is being written.</p>
+ *
+ * <p>Messages are written inline. Exception class names and stack frames,
+ * which repeat far more often, are interned per segment in an open-addressed
+ * table keyed on their hash codes, so an entry without an exception, or one
+ * whose exception classes and frames have all been seen before in the
+ * current segment, is written without allocating. Entries with exceptions
+ * still allocate, because reading a stack trace always copies it.</p>
+ */
+
+final class LogJournal implements LogBatchListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogJournal.class);
+  }
+
+  /**
+   * Segments smaller than this are not accepted.
+   */
+
+  static final long SEGMENT_SIZE_MINIMUM = 64L * 1024L;
+
+  /**
+   * The maximum number of strings interned per segment. Further strings are
+   * written inline.
+   */
+
+  private static final int INTERN_COUNT_MAXIMUM = 1 << 16;
+
+  private static final int EXCEPTIONS_MAXIMUM = 8;
+  private static final int FRAMES_MAXIMUM = 1024;
+  private static final int NO_SPACE = Integer.MIN_VALUE;
+
+  private final Path directory;
+  private final int segment_size;
+  private final int segment_count;
+  private final BitSet bundles;
+  private final ArrayDeque<Path> segments;
+  private final int[] exception_frames;
+  private Object[] interned_keys;
+  private int[] interned_hashes;
+  private int[] interned_ids;
+  private int interned_count;
+  private String[] scratch_strings;
+  private int[] scratch_refs;
+  private int[] scratch_lengths;
+  private int scratch_count;
+  private MappedByteBuffer buffer;
+  private long segment_index;
+  private int segment_entries;
+  private long dropped;
+
+  /**
+   * Construct a journal.
+   *
+   * @param in_directory     The directory that holds segment files
+   * @param in_segment_size  The size of each segment in octets
+   * @param in_segment_count The maximum number of segments retained
+   */
+
+  LogJournal(
+    final Path in_directory,
+    final long in_segment_size,
+    final int in_segment_count)
+  {
+    this.directory = Objects.requireNonNull(in_directory, "Directory");
+    if (in_segment_size < SEGMENT_SIZE_MINIMUM
+      || in_segment_size > (long) Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+        "Segment size must be in the range ["
+          + SEGMENT_SIZE_MINIMUM + ", " + Integer.MAX_VALUE
+          + "] (got " + in_segment_size + ")");
+    }
+    if (in_segment_count < 1) {
+      throw new IllegalArgumentException(
+        "Segment count must be positive (got " + in_segment_count + ")");
+    }
+
+    this.segment_size = (int) in_segment_size;
+    this.segment_count = in_segment_count;
+    this.bundles = new BitSet(256);
+    this.segments = new ArrayDeque<>(in_segment_count + 1);
+    this.exception_frames = new int[EXCEPTIONS_MAXIMUM];
+    this.interned_keys = new Object[1024];
+    this.interned_hashes = new int[1024];
+    this.interned_ids = new int[1024];
+    this.scratch_strings = new String[64];
+    this.scratch_refs = new int[64];
+    this.scratch_lengths = new int[64];
+  }
+
+  /**
+   * Open the journal, creating the directory if necessary. Existing segments
+   * are retained, and new entries are written to a new segment.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  synchronized void open()
+    throws IOException
+  {
+    Files.createDirectories(this.directory);
+
+    final List<Path> existing = new ArrayList<>(this.segment_count);
+    try (DirectoryStream<Path> stream =
+           Files.newDirectoryStream(this.directory)) {
+      for (final Path path : stream) {
+        final long index =
+          LogJournalFormat.segmentIndex(path.getFileName().toString());
+        if (index >= 0L) {
+          existing.add(path);
+          this.segment_index = Math.max(this.segment_index, index);
+        }
+      }
+    }
+
+    Collections.sort(existing);
+    this.segments.addAll(existing);
+    this.roll();
+    LOG.debug("journal opened at {}", this.directory);
+  }
+
+  /**
+   * Mark the end of the current segment and write it back to disk. Entries
+   * delivered after this method returns are ignored.
+   */
+
+  synchronized void close()
+  {
+    if (this.buffer != null) {
+      this.finish();
+    }
+    if (this.dropped > 0L) {
+      LOG.warn("{} entries were too large for the journal", this.dropped);
+    }
+  }
+
+  @Override
+  public synchronized void logged(
+    final LogEntry entry)
+  {
+    this.append(entry);
+  }
+
+  @Override
+  public synchronized void loggedBatch(
+    final LogEntry[] entries,
+    final int count)
+  {
+    for (int index = 0; index < count; ++index) {
+      this.append(entries[index]);
+    }
+  }
+
+  private void append(
+    final LogEntry entry)
+  {
+    if (this.buffer == null) {
+      return;
+    }
+
+    try {
+      if (this.write(entry)) {
+        ++this.segment_entries;
+        return;
+      }
+
+      /*
+       * The entry did not fit in the remaining space. Any definitions that
+       * were written for it are complete records and stay where they are.
+       * If the segment holds entries, start a new segment and try again.
+       * A segment without entries holds nothing but its header, so an entry
+       * that does not fit in one can never fit: it is dropped without
+       * rolling, so that oversized entries cannot push the retained history
+       * out of the journal.
+       */
+
+      if (this.segment_entries > 0) {
+        this.roll();
+        if (this.write(entry)) {
+          ++this.segment_entries;
+          return;
+        }
+      }
+
+      this.discard();
+      ++this.dropped;
+    } catch (final IOException e) {
+      LOG.error("journal failed, disabling: ", e);
+      this.buffer = null;
+    }
+  }
+
+  /**
+   * Discard the definitions written to a segment that holds no entries, so
+   * that a dropped entry leaves the segment empty. The discarded octets are
+   * zeroed, so that a reader never sees partial records after a crash.
+   */
+
+  private void discard()
+  {
+    final int end = this.buffer.position();
+    for (int index = LogJournalFormat.HEADER_SIZE; index < end; ++index) {
+      this.buffer.put(index, LogJournalFormat.RECORD_END);
+    }
+    this.buffer.position(LogJournalFormat.HEADER_SIZE);
+    Arrays.fill(this.interned_keys, null);
+    this.interned_count = 0;
+    this.bundles.clear();
+  }
+
+  /**
+   * Mark the end of the current segment and write it back. The mapping is
+   * released when the buffer is garbage collected.
+   */
+
+  private void finish()
+  {
+    if (this.buffer.hasRemaining()) {
+      this.buffer.put(LogJournalFormat.RECORD_END);
+    }
+    this.buffer.force();
+    this.buffer = null;
+  }
+
+  private void roll()
+    throws IOException
+  {
+    if (this.buffer != null) {
+      this.finish();
+    }
+
+    ++this.segment_index;
+    final Path path = this.directory.resolve(
+      LogJournalFormat.segmentName(this.segment_index));
+
+    try (FileChannel channel = FileChannel.open(
+      path,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE)) {
+      this.buffer = channel.map(
+        FileChannel.MapMode.READ_WRITE, 0L, (long) this.segment_size);
+    }
+
+    this.buffer.putInt(LogJournalFormat.MAGIC);
+    this.buffer.putInt(LogJournalFormat.VERSION);
+    this.buffer.putLong(this.segment_index);
+    this.buffer.putLong(System.currentTimeMillis());
+    Arrays.fill(this.interned_keys, null);
+    this.interned_count = 0;
+    this.segment_entries = 0;
+    this.bundles.clear();
+
+    /*
+     * A segment may still be mapped until its buffer is collected, and some
+     * platforms refuse to delete a mapped file. A segment that cannot be
+     * deleted is kept and deleted on a later roll.
+     */
+
+    this.segments.addLast(path);
+    while (this.segments.size() > this.segment_count) {
+      final Path oldest = this.segments.peekFirst();
+      try {
+        LOG.debug("deleting segment {}", oldest);
+        Files.deleteIfExists(oldest);
+        this.segments.removeFirst();
+      } catch (final IOException e) {
+        LOG.debug("could not delete segment {}: ", oldest, e);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Write an entry and any definitions it requires. If there is not enough
+   * space, {@code false} is returned. Definitions written before space ran
+   * out are left in place, as they are complete records.
+   */
+
+  private boolean write(
+    final LogEntry entry)
+  {
+    this.scratch_count = 0;
+    final boolean written = this.writeRecords(entry);
+    Arrays.fill(this.scratch_strings, 0, this.scratch_count, null);
+    return written;
+  }
+
+  private boolean isBundleDefined(
+    final Bundle bundle)
+  {
+    if (bundle == null) {
+      return true;
+    }
+    final long bundle_id = bundle.getBundleId();
+    return bundle_id >= 0L
+      && bundle_id < (long) Integer.MAX_VALUE
+      && this.bundles.get((int) bundle_id);
+  }
+
+  private boolean writeRecords(
+    final LogEntry entry)
+  {
+    final Bundle bundle = entry.getBundle();
+    final long bundle_id = bundle == null ? -1L : bundle.getBundleId();
+    if (!this.defineBundle(bundle, bundle_id)) {
+      return false;
+    }
+
+    /*
+     * Define every class name and frame that the entry refers to, and record
+     * the references in the scratch arrays. Messages are always inline.
+     */
+
+    this.inline(entry.getMessage());
+
+    int exceptions = 0;
+    Throwable ex = entry.getException();
+    while (ex != null && exceptions < EXCEPTIONS_MAXIMUM) {
+      if (!this.reference(ex.getClass().getName())) {
+        return false;
+      }
+      this.inline(ex.getMessage());
+
+      final StackTraceElement[] trace = ex.getStackTrace();
+      final int frames = Math.min(trace.length, FRAMES_MAXIMUM);
+      for (int index = 0; index < frames; ++index) {
+        if (!this.reference(trace[index])) {
+          return false;
+        }
+      }
+
+      this.exception_frames[exceptions] = frames;
+      ++exceptions;
+
+      final Throwable cause = ex.getCause();
+      ex = cause == ex ? null : cause;
+    }
+
+    /*
+     * Write the entry itself.
+     */
+
+    int size = 1 + 8 + 8 + 4 + 1 + (exceptions * 4);
+    for (int index = 0; index < this.scratch_count; ++index) {
+      size += 4;
+      if (this.scratch_refs[index] == LogJournalFormat.REF_INLINE) {
+        size += 4 + this.scratch_lengths[index];
+      }
+    }
+    if (!this.hasSpace(size)) {
+      return false;
+    }
+
+    this.buffer.put(LogJournalFormat.RECORD_ENTRY);
+    this.buffer.putLong(entry.getTime());
+    this.buffer.putLong(bundle_id);
+    this.buffer.putInt(entry.getLevel());
+    this.putReference(0);
+    this.buffer.put((byte) exceptions);
+
+    int scratch = 1;
+    for (int e = 0; e < exceptions; ++e) {
+      this.putReference(scratch++);
+      this.putReference(scratch++);
+      final int frames = this.exception_frames[e];
+      this.buffer.putInt(frames);
+      for (int index = 0; index < frames; ++index) {
+        this.putReference(scratch++);
+      }
+    }
+    return true;
+  }
+
+  private boolean hasSpace(
+    final int size)
+  {
+    /*
+     * One octet is always kept back for the end marker.
+     */
+
+    return this.buffer.remaining() - 1 >= size;
+  }
+
+  private boolean defineBundle(
+    final Bundle bundle,
+    final long bundle_id)
+  {
+    if (this.isBundleDefined(bundle)) {
+      return true;
+    }
+
+    final boolean indexable =
+      bundle_id >= 0L && bundle_id < (long) Integer.MAX_VALUE;
+
+    final String name = BundleLoggers.loggerName(bundle);
+    final int length = LogJournalFormat.utf8Length(name);
+    if (!this.hasSpace(1 + 8 + 4 + length)) {
+      return false;
+    }
+
+    this.buffer.put(LogJournalFormat.RECORD_BUNDLE);
+    this.buffer.putLong(bundle_id);
+    this.buffer.putInt(length);
+    LogJournalFormat.putUTF8(this.buffer, name);
+    if (indexable) {
+      this.bundles.set((int) bundle_id);
+    }
+    return true;
+  }
+
+  /**
+   * Record a reference to a string that is written inline, or to a missing
+   * string.
+   */
+
+  private void inline(
+    final String text)
+  {
+    if (text == null) {
+      this.scratch(null, LogJournalFormat.REF_NULL);
+    } else {
+      this.scratch(text, LogJournalFormat.REF_INLINE);
+    }
+  }
+
+  /**
+   * Record a reference to an interned class name or stack frame, defining it
+   * first if necessary.
+   *
+   * @return {@code false} if there was no space for the definition
+   */
+
+  private boolean reference(
+    final Object key)
+  {
+    final int ref = this.define(key);
+    if (ref == NO_SPACE) {
+      return false;
+    }
+    if (ref == LogJournalFormat.REF_INLINE) {
+      this.scratch(key.toString(), ref);
+    } else {
+      this.scratch(null, ref);
+    }
+    return true;
+  }
+
+  private void scratch(
+    final String text,
+    final int ref)
+  {
+    if (this.scratch_count == this.scratch_refs.length) {
+      final int size = this.scratch_count * 2;
+      this.scratch_strings = Arrays.copyOf(this.scratch_strings, size);
+      this.scratch_refs = Arrays.copyOf(this.scratch_refs, size);
+      this.scratch_lengths = Arrays.copyOf(this.scratch_lengths, size);
+    }
+
+    final int index = this.scratch_count;
+    this.scratch_strings[index] = text;
+    this.scratch_refs[index] = ref;
+    if (ref == LogJournalFormat.REF_INLINE) {
+      this.scratch_lengths[index] = LogJournalFormat.utf8Length(text);
+    }
+    ++this.scratch_count;
+  }
+
+  /**
+   * Find the ID of an interned key, defining it if it has not been seen in
+   * the current segment. Keys are compared with {@link Object#equals}, so
+   * neither a class name nor a stack frame is rendered to be looked up.
+   */
+
+  private int define(
+    final Object key)
+  {
+    final int hash = key.hashCode();
+    final int mask = this.interned_keys.length - 1;
+    int slot = LogJournal.spread(hash) & mask;
+    while (true) {
+      final Object existing = this.interned_keys[slot];
+      if (existing == null) {
+        break;
+      }
+      if (this.interned_hashes[slot] == hash && existing.equals(key)) {
+        return this.interned_ids[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (this.interned_count >= INTERN_COUNT_MAXIMUM) {
+      return LogJournalFormat.REF_INLINE;
+    }
+
+    final String text = key.toString();
+    final int length = LogJournalFormat.utf8Length(text);
+    if (!this.hasSpace(1 + 4 + 4 + length)) {
+      return NO_SPACE;
+    }
+
+    final int id = this.interned_count;
+    this.buffer.put(LogJournalFormat.RECORD_STRING);
+    this.buffer.putInt(id);
+    this.buffer.putInt(length);
+    LogJournalFormat.putUTF8(this.buffer, text);
+
+    this.interned_keys[slot] = key;
+    this.interned_hashes[slot] = hash;
+    this.interned_ids[slot] = id;
+    ++this.interned_count;
+    if (this.interned_count * 2 > this.interned_keys.length) {
+      this.grow();
+    }
+    return id;
+  }
+
+  private void grow()
+  {
+    final Object[] old_keys = this.interned_keys;
+    final int[] old_hashes = this.interned_hashes;
+    final int[] old_ids = this.interned_ids;
+
+    final int size = old_keys.length * 2;
+    this.interned_keys = new Object[size];
+    this.interned_hashes = new int[size];
+    this.interned_ids = new int[size];
+
+    final int mask = size - 1;
+    for (int index = 0; index < old_keys.length; ++index) {
+      final Object key = old_keys[index];
+      if (key != null) {
+        int slot = LogJournal.spread(old_hashes[index]) & mask;
+        while (this.interned_keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        this.interned_keys[slot] = key;
+        this.interned_hashes[slot] = old_hashes[index];
+        this.interned_ids[slot] = old_ids[index];
+      }
+    }
+  }
+
+  private static int spread(
+    final int hash)
+  {
+    return hash ^ (hash >>> 16);
+  }
+
+  private void putReference(
+    final int index)
+  {
+    final int ref = this.scratch_refs[index];
+    this.buffer.putInt(ref);
+    if (ref == LogJournalFormat.REF_INLINE) {
+      this.buffer.putInt(this.scratch_lengths[index]);
+      LogJournalFormat.putUTF8(this.buffer, this.scratch_strings[index]);
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A command line program that decodes journal segments to text.</p>
+ *
+ * <p>Each argument is either a segment file or a journal directory, in which
+ * case every segment in the directory is decoded in order. The program
+ * depends only on the Java platform (the log level constants it uses are
+ * inlined by the compiler), so it can be run directly from the log service
+ * bundle:</p>
+ *
+ * <pre>
+ * $ java -cp logservice.jar com.io7m.osgilog2.logservice.LogJournalDecoder /path/to/journal
+ * </pre>
+ */
+
+public final class LogJournalDecoder
+{
+  private final PrintStream output;
+  private final List<String> strings;
+  private final Map<Long, String> bundles;
+
+  private LogJournalDecoder(
+    final PrintStream in_output)
+  {
+    this.output = in_output;
+    this.strings = new ArrayList<>(1024);
+    this.bundles = new HashMap<>(64);
+  }
+
+  /**
+   * The main program.
+   *
+   * @param args Command line arguments
+   *
+   * @throws IOException On I/O errors
+   */
+
+  public static void main(
+    final String[] args)
+    throws IOException
+  {
+    if (args.length == 0) {
+      System.err.println(
+        "usage: (segment-file | journal-directory) ...");
+      System.exit(1);
+      return;
+    }
+
+    final LogJournalDecoder decoder = new LogJournalDecoder(System.out);
+    for (final String arg : args) {
+      final Path path = Paths.get(arg);
+      if (Files.isDirectory(path)) {
+        for (final Path segment : segments(path)) {
+          decoder.decode(segment);
+        }
+      } else {
+        decoder.decode(path);
+      }
+    }
+    System.out.flush();
+  }
+
+  private static List<Path> segments(
+    final Path directory)
+    throws IOException
+  {
+    final List<Path> result = new ArrayList<>(16);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (final Path path : stream) {
+        if (LogJournalFormat.segmentIndex(path.getFileName().toString()) >= 0L) {
+          result.add(path);
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * @param level A log level
+   *
+   * @return A fixed-width name for the level
+   */
+
+  static String levelName(
+    final int level)
+  {
+    switch (level) {
+      case LogService.LOG_ERROR:
+        return "ERROR";
+      case LogService.LOG_WARNING:
+        return "WARN ";
+      case LogService.LOG_INFO:
+        return "INFO ";
+      case LogService.LOG_DEBUG:
+        return "DEBUG";
+      default:
+        return "L" + level;
+    }
+  }
+
+  private static String getUTF8(
+    final ByteBuffer buffer,
+    final int length)
+  {
+    final byte[] data = new byte[length];
+    buffer.get(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  private String getReference(
+    final ByteBuffer buffer)
+  {
+    final int ref = buffer.getInt();
+    if (ref == LogJournalFormat.REF_NULL) {
+      return null;
+    }
+    if (ref == LogJournalFormat.REF_INLINE) {
+      return getUTF8(buffer, buffer.getInt());
+    }
+    if (ref < 0 || ref >= this.strings.size()) {
+      throw new IllegalStateException("Undefined string reference: " + ref);
+    }
+    return this.strings.get(ref);
+  }
+
+  private void decode(
+    final Path path)
+    throws IOException
+  {
+    final MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+    }
+
+    if (buffer.remaining() < LogJournalFormat.HEADER_SIZE
+      || buffer.getInt() != LogJournalFormat.MAGIC) {
+      throw new IOException(path + ": not a journal segment");
+    }
+
+    final int version = buffer.getInt();
+    if (version != LogJournalFormat.VERSION) {
+      throw new IOException(
+        path + ": unsupported journal version " + version);
+    }
+    buffer.getLong();
+    buffer.getLong();
+
+    this.strings.clear();
+    this.bundles.clear();
+
+    try {
+      while (buffer.hasRemaining()) {
+        final byte type = buffer.get();
+        switch (type) {
+          case LogJournalFormat.RECORD_END: {
+            return;
+          }
+          case LogJournalFormat.RECORD_STRING: {
+            final int id = buffer.getInt();
+            final String text = getUTF8(buffer, buffer.getInt());
+            if (id != this.strings.size()) {
+              throw new IllegalStateException("Unexpected string ID: " + id);
+            }
+            this.strings.add(text);
+            break;
+          }
+          case LogJournalFormat.RECORD_BUNDLE: {
+            final long id = buffer.getLong();
+            this.bundles.put(Long.valueOf(id), getUTF8(buffer, buffer.getInt()));
+            break;
+          }
+          case LogJournalFormat.RECORD_ENTRY: {
+            this.decodeEntry(buffer);
+            break;
+          }
+          default: {
+            throw new IllegalStateException("Unknown record type: " + type);
+          }
+        }
+      }
+    } catch (final RuntimeException e) {
+      throw new IOException(
+        path + ": corrupt segment at offset " + buffer.position(), e);
+    }
+  }
+
+  private void decodeEntry(
+    final ByteBuffer buffer)
+  {
+    final long time = buffer.getLong();
+    final long bundle_id = buffer.getLong();
+    final int level = buffer.getInt();
+    final String message = this.getReference(buffer);
+
+    final String bundle = this.bundles.getOrDefault(
+      Long.valueOf(bundle_id), "(none)");
+
+    final StringBuilder sb = new StringBuilder(128);
+    sb.append(Instant.ofEpochMilli(time));
+    sb.append(' ');
+    sb.append(levelName(level));
+    sb.append(' ');
+    sb.append(bundle);
+    sb.append(" [");
+    sb.append(bundle_id);
+    sb.append("]: ");
+    sb.append(message);
+    this.output.println(sb);
+
+    final int exceptions = (int) buffer.get() & 0xff;
+    for (int e = 0; e < exceptions; ++e) {
+      final String type = this.getReference(buffer);
+      final String text = this.getReference(buffer);
+
+      sb.setLength(0);
+      if (e > 0) {
+        sb.append("Caused by: ");
+      }
+      sb.append(type);
+      if (text != null) {
+        sb.append(": ");
+        sb.append(text);
+      }
+      this.output.println(sb);
+
+      final int frames = buffer.getInt();
+      for (int index = 0; index < frames; ++index) {
+        this.output.print("\tat ");
+        this.output.println(this.getReference(buffer));
+      }
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Constants and helpers describing the binary journal format.</p>
+ *
+ * <p>A journal is a directory of segment files. Each segment begins with a
+ * header of {@link #HEADER_SIZE} octets (the magic number, the format
+ * version, the segment index, and the creation time in milliseconds),
+ * followed by a sequence of records. Each record starts with a one-octet
+ * type. All integers are big-endian.</p>
+ *
+ * <ul>
+ *   <li>{@link #RECORD_END}: There are no more records in the segment.
+ *   Segments are pre-sized and zero-filled, so a segment that was not closed
+ *   cleanly also ends at the first unwritten octet.</li>
+ *   <li>{@link #RECORD_STRING}: Defines a string. An {@code int32} ID,
+ *   followed by an {@code int32} length and that many octets of UTF-8.</li>
+ *   <li>{@link #RECORD_BUNDLE}: Defines the name of a bundle. An
+ *   {@code int64} bundle ID, followed by an {@code int32} length and that
+ *   many octets of UTF-8.</li>
+ *   <li>{@link #RECORD_ENTRY}: A log entry. An {@code int64} time, an
+ *   {@code int64} bundle ID, an {@code int32} level, a string reference for
+ *   the message, and a one-octet count of exceptions. Each exception is a
+ *   string reference for the class name, a string reference for the
+ *   message, an {@code int32} frame count, and a string reference for each
+ *   frame. Exceptions are written outermost first, each followed by its
+ *   cause.</li>
+ * </ul>
+ *
+ * <p>A string reference is an {@code int32}. Non-negative values are the IDs
+ * of strings defined earlier in the same segment, {@link #REF_NULL} denotes
+ * a missing string, and {@link #REF_INLINE} is followed by an {@code int32}
+ * length and that many octets of UTF-8. String IDs are local to a segment,
+ * so any segment can be decoded on its own.</p>
+ */
+
+final class LogJournalFormat
+{
+  /**
+   * The magic number that starts every segment.
+   */
+
+  static final int MAGIC = 0x4F4C4A31;
+
+  /**
+   * The format version.
+   */
+
+  static final int VERSION = 1;
+
+  /**
+   * The size of the segment header.
+   */
+
+  static final int HEADER_SIZE = 24;
+
+  /**
+   * The end of the records in a segment.
+   */
+
+  static final byte RECORD_END = 0;
+
+  /**
+   * A string definition.
+   */
+
+  static final byte RECORD_STRING = 1;
+
+  /**
+   * A bundle name definition.
+   */
+
+  static final byte RECORD_BUNDLE = 2;
+
+  /**
+   * A log entry.
+   */
+
+  static final byte RECORD_ENTRY = 3;
+
+  /**
+   * A reference to a missing string.
+   */
+
+  static final int REF_NULL = -1;
+
+  /**
+   * A reference to a string that follows inline.
+   */
+
+  static final int REF_INLINE = -2;
+
+  /**
+   * The prefix of segment file names.
+   */
+
+  static final String SEGMENT_PREFIX = "journal-";
+
+  /**
+   * The suffix of segment file names.
+   */
+
+  static final String SEGMENT_SUFFIX = ".seg";
+
+  private LogJournalFormat()
+  {
+
+  }
+
+  /**
+   * @param index The segment index
+   *
+   * @return The file name of the segment with the given index
+   */
+
+  static String segmentName(
+    final long index)
+  {
+    return String.format(
+      "%s%016d%s", SEGMENT_PREFIX, Long.valueOf(index), SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @param name A file name
+   *
+   * @return The index of the segment with the given file name, or {@code -1}
+   * if the name is not that of a segment
+   */
+
+  static long segmentIndex(
+    final String name)
+  {
+    if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+      return -1L;
+    }
+
+    try {
+      return Long.parseLong(name.substring(
+        SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (final NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  /**
+   * @param text A string
+   *
+   * @return The number of octets required to encode the string as UTF-8
+   */
+
+  static int utf8Length(
+    final String text)
+  {
+    final int length = text.length();
+    int octets = 0;
+    for (int index = 0; index < length; ++index) {
+      final char c = text.charAt(index);
+      if (c < 0x80) {
+        octets += 1;
+      } else if (c < 0x800) {
+        octets += 2;
+      } else if (Character.isHighSurrogate(c)
+        && index + 1 < length
+        && Character.isLowSurrogate(text.charAt(index + 1))) {
+        octets += 4;
+        ++index;
+      } else if (Character.isSurrogate(c)) {
+        octets += 1;
+      } else {
+        octets += 3;
+      }
+    }
+    return octets;
+  }
+
+  /**
+   * Encode the given string as UTF-8 without allocating. Unpaired surrogates
+   * are encoded as {@code ?}.
+   *
+   * @param buffer The output buffer
+   * @param text   The string
+   */
+
+  static void putUTF8(
+    final ByteBuffer buffer,
+    final String text)
+  {
+    final int length = text.length();
+    for (int index = 0; index < length; ++index) {
+      final char c = text.charAt(index);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c)
+          && index + 1 < length
+          && Character.isLowSurrogate(text.charAt(index + 1))) {
+          final int cp = Character.toCodePoint(c, text.charAt(index + 1));
+          buffer.put((byte) (0xF0 | (cp >> 18)));
+          buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+          buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (cp & 0x3F)));
+          ++index;
+        } else {
+          buffer.put((byte) '?');
+        }
+      } else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+}
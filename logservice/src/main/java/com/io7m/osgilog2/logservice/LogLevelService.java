@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+/**
+ * <p>A service that exposes the effective SLF4J level of each bundle, in
+ * terms of OSGi log levels.</p>
+ *
+ * <p>Levels are held in a table indexed by bundle ID and are refreshed
+ * periodically so that reconfiguration of the host's logging system is
+ * reflected without restarting the bundle.</p>
+ */
+
+public interface LogLevelService
+{
+  /**
+   * The level value indicating that nothing is logged for a bundle.
+   */
+
+  int LEVEL_OFF = 0;
+
+  /**
+   * Retrieve the most verbose OSGi log level that is enabled for the given
+   * bundle. The result is one of {@link #LEVEL_OFF},
+   * {@link org.osgi.service.log.LogService#LOG_ERROR},
+   * {@link org.osgi.service.log.LogService#LOG_WARNING},
+   * {@link org.osgi.service.log.LogService#LOG_INFO}, or
+   * {@link org.osgi.service.log.LogService#LOG_DEBUG}.
+   *
+   * @param bundle_id The bundle ID
+   *
+   * @return The effective level
+   */
+
+  int level(long bundle_id);
+
+  /**
+   * Determine whether entries at the given OSGi log level would be logged
+   * for the given bundle. Levels that are not defined by the OSGi log
+   * service are treated as warnings.
+   *
+   * @param bundle_id The bundle ID
+   * @param level     The OSGi log level
+   *
+   * @return {@code true} iff the level is enabled
+   */
+
+  boolean isEnabled(
+    long bundle_id,
+    int level);
+
+  /**
+   * Re-read the effective levels of all bundles from SLF4J.
+   */
+
+  void refresh();
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.log.LogService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The default metrics implementation.</p>
+ *
+ * <p>All counters are {@link LongAdder} instances, which stripe updates
+ * across cells under contention, so recording does not serialize producer
+ * threads. Counters are grouped per bundle and discarded when the bundle is
+ * uninstalled.</p>
+ */
+
+final class LogMetrics
+  implements LogMetricsService, LogMetricsMBean, LogMetricsRecorder,
+  BundleListener
+{
+  /**
+   * The number of latency buckets. Bucket {@code 0} holds latencies below
+   * one millisecond, bucket {@code i} holds latencies in
+   * {@code [2^(i-1), 2^i)}, and the final bucket holds everything else.
+   */
+
+  private static final int BUCKETS = 24;
+
+  /**
+   * Index {@code 0} is used for levels not defined by the OSGi log service.
+   */
+
+  private static final int LEVELS = 5;
+
+  private static final long NO_BUNDLE = -1L;
+
+  private static final class BundleCounters
+  {
+    private final String name;
+    private final LongAdder[] seen;
+    private final LongAdder[] forwarded;
+    private final LongAdder[] suppressed;
+
+    BundleCounters(
+      final String in_name)
+    {
+      this.name = in_name;
+      this.seen = adders(LEVELS);
+      this.forwarded = adders(LEVELS);
+      this.suppressed = adders(LEVELS);
+    }
+
+    private static long sum(
+      final LongAdder[] adders)
+    {
+      long total = 0L;
+      for (final LongAdder adder : adders) {
+        total += adder.sum();
+      }
+      return total;
+    }
+
+    private static void reset(
+      final LongAdder[] adders)
+    {
+      for (final LongAdder adder : adders) {
+        adder.reset();
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<Long, BundleCounters> bundles;
+  private final LongAdder[] latency;
+
+  /**
+   * Construct an empty set of metrics.
+   */
+
+  LogMetrics()
+  {
+    this.bundles = new ConcurrentHashMap<>(64);
+    this.latency = adders(BUCKETS);
+  }
+
+  private static LongAdder[] adders(
+    final int count)
+  {
+    final LongAdder[] adders = new LongAdder[count];
+    for (int index = 0; index < count; ++index) {
+      adders[index] = new LongAdder();
+    }
+    return adders;
+  }
+
+  private static int levelIndex(
+    final int level)
+  {
+    switch (level) {
+      case LogService.LOG_ERROR:
+      case LogService.LOG_WARNING:
+      case LogService.LOG_INFO:
+      case LogService.LOG_DEBUG:
+        return level;
+      default:
+        return 0;
+    }
+  }
+
+  private static String levelName(
+    final int index)
+  {
+    switch (index) {
+      case LogService.LOG_ERROR:
+        return "error";
+      case LogService.LOG_WARNING:
+        return "warn";
+      case LogService.LOG_INFO:
+        return "info";
+      case LogService.LOG_DEBUG:
+        return "debug";
+      default:
+        return "other";
+    }
+  }
+
+  private static int bucketOf(
+    final long latency_ms)
+  {
+    if (latency_ms <= 0L) {
+      return 0;
+    }
+    final int bits = 64 - Long.numberOfLeadingZeros(latency_ms);
+    return Math.min(bits, BUCKETS - 1);
+  }
+
+  private BundleCounters countersFor(
+    final Bundle bundle)
+  {
+    final long id = bundle == null ? NO_BUNDLE : bundle.getBundleId();
+    final Long key = Long.valueOf(id);
+    final BundleCounters existing = this.bundles.get(key);
+    if (existing != null) {
+      return existing;
+    }
+
+    return this.bundles.computeIfAbsent(key, k -> {
+      if (bundle == null) {
+        return new BundleCounters("(none)");
+      }
+      return new BundleCounters(BundleLoggers.loggerName(bundle));
+    });
+  }
+
+  private BundleCounters countersFor(
+    final long bundle_id)
+  {
+    return this.bundles.get(Long.valueOf(bundle_id));
+  }
+
+  @Override
+  public void onSeen(
+    final Bundle bundle,
+    final int level)
+  {
+    this.countersFor(bundle).seen[levelIndex(level)].increment();
+  }
+
+  @Override
+  public void onForwarded(
+    final Bundle bundle,
+    final int level,
+    final long time)
+  {
+    this.countersFor(bundle).forwarded[levelIndex(level)].increment();
+    this.latency[bucketOf(System.currentTimeMillis() - time)].increment();
+  }
+
+  @Override
+  public void onSuppressed(
+    final Bundle bundle,
+    final int level)
+  {
+    this.countersFor(bundle).suppressed[levelIndex(level)].increment();
+  }
+
+  @Override
+  public long[] bundles()
+  {
+    final List<Long> keys = new ArrayList<>(this.bundles.keySet());
+    Collections.sort(keys);
+    final long[] result = new long[keys.size()];
+    for (int index = 0; index < result.length; ++index) {
+      result[index] = keys.get(index).longValue();
+    }
+    return result;
+  }
+
+  @Override
+  public long seen(
+    final long bundle_id,
+    final int level)
+  {
+    final BundleCounters c = this.countersFor(bundle_id);
+    return c == null ? 0L : c.seen[levelIndex(level)].sum();
+  }
+
+  @Override
+  public long forwarded(
+    final long bundle_id,
+    final int level)
+  {
+    final BundleCounters c = this.countersFor(bundle_id);
+    return c == null ? 0L : c.forwarded[levelIndex(level)].sum();
+  }
+
+  @Override
+  public long suppressed(
+    final long bundle_id,
+    final int level)
+  {
+    final BundleCounters c = this.countersFor(bundle_id);
+    return c == null ? 0L : c.suppressed[levelIndex(level)].sum();
+  }
+
+  @Override
+  public long[] latencyHistogram()
+  {
+    final long[] result = new long[BUCKETS];
+    for (int index = 0; index < BUCKETS; ++index) {
+      result[index] = this.latency[index].sum();
+    }
+    return result;
+  }
+
+  @Override
+  public long[] latencyBucketLimits()
+  {
+    final long[] result = new long[BUCKETS];
+    for (int index = 0; index < BUCKETS - 1; ++index) {
+      result[index] = 1L << index;
+    }
+    result[BUCKETS - 1] = Long.MAX_VALUE;
+    return result;
+  }
+
+  @Override
+  public long getSeen()
+  {
+    long total = 0L;
+    for (final BundleCounters c : this.bundles.values()) {
+      total += BundleCounters.sum(c.seen);
+    }
+    return total;
+  }
+
+  @Override
+  public long getForwarded()
+  {
+    long total = 0L;
+    for (final BundleCounters c : this.bundles.values()) {
+      total += BundleCounters.sum(c.forwarded);
+    }
+    return total;
+  }
+
+  @Override
+  public long getSuppressed()
+  {
+    long total = 0L;
+    for (final BundleCounters c : this.bundles.values()) {
+      total += BundleCounters.sum(c.suppressed);
+    }
+    return total;
+  }
+
+  @Override
+  public long[] getLatencyHistogram()
+  {
+    return this.latencyHistogram();
+  }
+
+  @Override
+  public long[] getLatencyBucketLimits()
+  {
+    return this.latencyBucketLimits();
+  }
+
+  @Override
+  public String[] getBundleSummaries()
+  {
+    final long[] ids = this.bundles();
+    final List<String> lines = new ArrayList<>(ids.length);
+    for (final long id : ids) {
+      final BundleCounters c = this.countersFor(id);
+      if (c == null) {
+        continue;
+      }
+
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append(c.name);
+      sb.append(" [");
+      sb.append(id);
+      sb.append("]:");
+      for (int level = 1; level < LEVELS; ++level) {
+        appendLevel(sb, c, level);
+      }
+      appendLevel(sb, c, 0);
+      lines.add(sb.toString());
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  private static void appendLevel(
+    final StringBuilder sb,
+    final BundleCounters c,
+    final int level)
+  {
+    sb.append(' ');
+    sb.append(levelName(level));
+    sb.append('=');
+    sb.append(c.seen[level].sum());
+    sb.append('/');
+    sb.append(c.forwarded[level].sum());
+    sb.append('/');
+    sb.append(c.suppressed[level].sum());
+  }
+
+  @Override
+  public void reset()
+  {
+    for (final Map.Entry<Long, BundleCounters> e : this.bundles.entrySet()) {
+      final BundleCounters c = e.getValue();
+      BundleCounters.reset(c.seen);
+      BundleCounters.reset(c.forwarded);
+      BundleCounters.reset(c.suppressed);
+    }
+    for (final LongAdder adder : this.latency) {
+      adder.reset();
+    }
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    if (event.getType() == BundleEvent.UNINSTALLED) {
+      this.bundles.remove(Long.valueOf(event.getBundle().getBundleId()));
+    }
+  }
+}
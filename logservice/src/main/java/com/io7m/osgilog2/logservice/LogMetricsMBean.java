@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+/**
+ * The JMX management interface for log bridge metrics.
+ *
+ * @see LogMetricsService
+ */
+
+public interface LogMetricsMBean
+{
+  /**
+   * @return The total number of entries seen
+   */
+
+  long getSeen();
+
+  /**
+   * @return The total number of entries forwarded to SLF4J
+   */
+
+  long getForwarded();
+
+  /**
+   * @return The total number of entries suppressed
+   */
+
+  long getSuppressed();
+
+  /**
+   * @return The number of entries in each latency bucket
+   */
+
+  long[] getLatencyHistogram();
+
+  /**
+   * @return The exclusive upper bound, in milliseconds, of each latency
+   * bucket
+   */
+
+  long[] getLatencyBucketLimits();
+
+  /**
+   * @return One line per bundle, giving the counts of the bundle at each
+   * level in the form {@code level=seen/forwarded/suppressed}
+   */
+
+  String[] getBundleSummaries();
+
+  /**
+   * Reset all counters to zero.
+   */
+
+  void reset();
+}
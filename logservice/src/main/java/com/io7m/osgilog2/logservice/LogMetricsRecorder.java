@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The interface used by pipeline stages to record metrics.
+ */
+
+interface LogMetricsRecorder
+{
+  /**
+   * A recorder that records nothing.
+   */
+
+  LogMetricsRecorder NONE = new LogMetricsRecorder()
+  {
+    @Override
+    public void onSeen(
+      final Bundle bundle,
+      final int level)
+    {
+      // Nothing
+    }
+
+    @Override
+    public void onForwarded(
+      final Bundle bundle,
+      final int level,
+      final long time)
+    {
+      // Nothing
+    }
+
+    @Override
+    public void onSuppressed(
+      final Bundle bundle,
+      final int level)
+    {
+      // Nothing
+    }
+  };
+
+  /**
+   * An entry was delivered to the bridge.
+   *
+   * @param bundle The producing bundle, may be {@code null}
+   * @param level  The OSGi log level
+   */
+
+  void onSeen(
+    Bundle bundle,
+    int level);
+
+  /**
+   * An entry was forwarded to SLF4J.
+   *
+   * @param bundle The producing bundle, may be {@code null}
+   * @param level  The OSGi log level
+   * @param time   The creation time of the entry in milliseconds
+   */
+
+  void onForwarded(
+    Bundle bundle,
+    int level,
+    long time);
+
+  /**
+   * An entry was discarded.
+   *
+   * @param bundle The producing bundle, may be {@code null}
+   * @param level  The OSGi log level
+   */
+
+  void onSuppressed(
+    Bundle bundle,
+    int level);
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+/**
+ * <p>A service that exposes counters and a latency histogram for entries
+ * passing through the log bridge.</p>
+ *
+ * <p>An entry is <i>seen</i> when a log reader delivers it to the bridge,
+ * <i>forwarded</i> when it is handed to SLF4J, and <i>suppressed</i> when it
+ * is discarded by any stage, including the filtering log service (in which
+ * case it is never seen). Counters are kept per bundle and per OSGi log
+ * level.</p>
+ */
+
+public interface LogMetricsService
+{
+  /**
+   * @return The IDs of all bundles for which counters exist
+   */
+
+  long[] bundles();
+
+  /**
+   * @param bundle_id The bundle ID
+   * @param level     The OSGi log level
+   *
+   * @return The number of entries seen for the given bundle and level
+   */
+
+  long seen(
+    long bundle_id,
+    int level);
+
+  /**
+   * @param bundle_id The bundle ID
+   * @param level     The OSGi log level
+   *
+   * @return The number of entries forwarded for the given bundle and level
+   */
+
+  long forwarded(
+    long bundle_id,
+    int level);
+
+  /**
+   * @param bundle_id The bundle ID
+   * @param level     The OSGi log level
+   *
+   * @return The number of entries suppressed for the given bundle and level
+   */
+
+  long suppressed(
+    long bundle_id,
+    int level);
+
+  /**
+   * Retrieve the histogram of latencies from the time an entry was created
+   * ({@link org.osgi.service.log.LogEntry#getTime()}) to the time it was
+   * forwarded to SLF4J. Bucket {@code i} counts latencies less than
+   * {@code latencyBucketLimits()[i]} milliseconds and not counted by any
+   * earlier bucket.
+   *
+   * @return The number of entries in each bucket
+   */
+
+  long[] latencyHistogram();
+
+  /**
+   * @return The exclusive upper bound, in milliseconds, of each latency
+   * bucket
+   */
+
+  long[] latencyBucketLimits();
+
+  /**
+   * Reset all counters to zero.
+   */
+
+  void reset();
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogReaderService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>A registry that attaches a log listener to every available log reader
+ * service.</p>
+ *
+ * <p>The registry is driven by a {@link ServiceTracker}, which guarantees
+ * that each service reference is added and removed exactly once regardless
+ * of the thread on which service events arrive. Each reader is obtained with
+ * one {@code getService} call when it is added and released with one
+ * {@code ungetService} call when it is removed, so service reference counts
+ * stay balanced across any amount of registration churn.</p>
+ */
+
+final class LogReaderRegistry
+  implements ServiceTrackerCustomizer<LogReaderService, LogReaderService>
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogReaderRegistry.class);
+  }
+
+  private final BundleContext context;
+  private final LogListener listener;
+  private final CopyOnWriteArrayList<LogReaderService> readers;
+  private final ServiceTracker<LogReaderService, LogReaderService> tracker;
+
+  /**
+   * Construct a registry.
+   *
+   * @param in_context  The bundle context
+   * @param in_listener The listener attached to each reader
+   */
+
+  LogReaderRegistry(
+    final BundleContext in_context,
+    final LogListener in_listener)
+  {
+    this.context = Objects.requireNonNull(in_context, "Context");
+    this.listener = Objects.requireNonNull(in_listener, "Listener");
+    this.readers = new CopyOnWriteArrayList<>();
+    this.tracker = new ServiceTracker<>(
+      this.context, LogReaderService.class, this);
+  }
+
+  /**
+   * Start tracking log reader services. Readers that are already registered
+   * are attached before this method returns.
+   */
+
+  void open()
+  {
+    this.tracker.open();
+  }
+
+  /**
+   * Stop tracking log reader services, detaching the listener from every
+   * reader and releasing every service reference.
+   */
+
+  void close()
+  {
+    this.tracker.close();
+  }
+
+  /**
+   * @return A read-only snapshot of the readers currently attached
+   */
+
+  List<LogReaderService> readers()
+  {
+    return Collections.unmodifiableList(new ArrayList<>(this.readers));
+  }
+
+  @Override
+  public LogReaderService addingService(
+    final ServiceReference<LogReaderService> reference)
+  {
+    final LogReaderService reader = this.context.getService(reference);
+    if (reader == null) {
+      return null;
+    }
+
+    LOG.debug("adding a log listener to {}", reader);
+    this.readers.add(reader);
+    reader.addLogListener(this.listener);
+    return reader;
+  }
+
+  @Override
+  public void modifiedService(
+    final ServiceReference<LogReaderService> reference,
+    final LogReaderService reader)
+  {
+    // Nothing
+  }
+
+  @Override
+  public void removedService(
+    final ServiceReference<LogReaderService> reference,
+    final LogReaderService reader)
+  {
+    LOG.debug("removing a log listener from {}", reader);
+    try {
+      reader.removeLogListener(this.listener);
+    } finally {
+      this.readers.remove(reader);
+      this.context.ungetService(reference);
+    }
+  }
+}
@@ -0,0 +1,1001 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>The configuration of the log service bundle.</p>
+ *
+ * <p>All values are read from framework properties (which fall back to
+ * system properties) at the time the bundle is started. Unparseable values
+ * are logged and replaced with their defaults.</p>
+ */
+
+final class LogServiceConfiguration
+{
+  /**
+   * The prefix used for all configuration properties.
+   */
+
+  static final String PREFIX = "com.io7m.osgilog2.logservice.";
+
+  /**
+   * {@code true} if log entries should be handed off to a dedicated thread
+   * before being delivered to SLF4J.
+   */
+
+  static final String ASYNC = PREFIX + "async";
+
+  /**
+   * The capacity of the asynchronous ring buffer. Rounded up to the next
+   * power of two.
+   */
+
+  static final String ASYNC_CAPACITY = PREFIX + "async.capacity";
+
+  /**
+   * The behaviour of producers when the asynchronous ring buffer is full.
+   *
+   * @see OverflowPolicy
+   */
+
+  static final String ASYNC_OVERFLOW = PREFIX + "async.overflow";
+
+  /**
+   * The maximum number of entries the asynchronous consumer delivers to SLF4J
+   * as one batch. A value of {@code 1} disables batching.
+   */
+
+  static final String ASYNC_BATCH_SIZE = PREFIX + "async.batch.size";
+
+  /**
+   * The maximum time in milliseconds that an entry may wait for its batch to
+   * fill. A value of {@code 0} delivers a batch whenever the ring buffer is
+   * empty.
+   */
+
+  static final String ASYNC_BATCH_DELAY = PREFIX + "async.batch.delay";
+
+  /**
+   * {@code true} if a batch should be delivered immediately after an error
+   * entry is added to it.
+   */
+
+  static final String ASYNC_BATCH_FLUSH_ON_ERROR =
+    PREFIX + "async.batch.flush_on_error";
+
+  /**
+   * {@code true} if asynchronous delivery should queue entries per bundle
+   * and deliver them in weighted round-robin order.
+   *
+   * @see FairLogListener
+   */
+
+  static final String ASYNC_FAIR = PREFIX + "async.fair";
+
+  /**
+   * The capacity of each per-bundle queue, for bundles not listed in
+   * {@link #ASYNC_FAIR_CAPACITIES}.
+   */
+
+  static final String ASYNC_FAIR_CAPACITY = PREFIX + "async.fair.capacity";
+
+  /**
+   * Per-bundle queue capacities, as a comma-separated list of
+   * {@code symbolic-name=capacity} pairs.
+   */
+
+  static final String ASYNC_FAIR_CAPACITIES =
+    PREFIX + "async.fair.capacities";
+
+  /**
+   * The number of entries of each severity class taken from a bundle per
+   * round, for bundles not listed in {@link #ASYNC_FAIR_WEIGHTS}.
+   */
+
+  static final String ASYNC_FAIR_WEIGHT = PREFIX + "async.fair.weight";
+
+  /**
+   * Per-bundle weights, as a comma-separated list of
+   * {@code symbolic-name=weight} pairs.
+   */
+
+  static final String ASYNC_FAIR_WEIGHTS = PREFIX + "async.fair.weights";
+
+  /**
+   * The period in milliseconds at which the per-bundle level table is
+   * refreshed from SLF4J. Values less than or equal to zero disable periodic
+   * refreshing.
+   */
+
+  static final String LEVELS_REFRESH = PREFIX + "levels.refresh";
+
+  /**
+   * {@code true} if a filtering log service should be registered over the
+   * existing log service, so that entries at disabled levels are discarded
+   * before they are created.
+   */
+
+  static final String LEVELS_FILTER = PREFIX + "levels.filter";
+
+  /**
+   * The service ranking of the filtering log service.
+   */
+
+  static final String LEVELS_FILTER_RANKING = PREFIX + "levels.filter.ranking";
+
+  /**
+   * {@code true} if metrics should be collected and published as a
+   * {@link LogMetricsService}.
+   */
+
+  static final String METRICS = PREFIX + "metrics";
+
+  /**
+   * {@code true} if collected metrics should also be registered with the
+   * platform MBean server.
+   */
+
+  static final String METRICS_JMX = PREFIX + "metrics.jmx";
+
+  /**
+   * {@code true} if repeated entries and, optionally, entries over a
+   * per-bundle rate limit should be discarded before reaching SLF4J.
+   */
+
+  static final String SUPPRESS = PREFIX + "suppress";
+
+  /**
+   * The window, in milliseconds, within which repeated entries are
+   * discarded. An entry is a repeat if the same entry was last seen less
+   * than this long ago. A value of {@code 0} disables duplicate
+   * suppression.
+   */
+
+  static final String SUPPRESS_WINDOW = PREFIX + "suppress.window";
+
+  /**
+   * The number of distinct entries tracked for duplicate suppression. Rounded
+   * up to a power of two.
+   */
+
+  static final String SUPPRESS_CAPACITY = PREFIX + "suppress.capacity";
+
+  /**
+   * The number of entries per second that each bundle may log. A value of
+   * {@code 0} disables rate limiting.
+   */
+
+  static final String SUPPRESS_RATE = PREFIX + "suppress.rate";
+
+  /**
+   * The number of entries that each bundle may log in a burst above the
+   * rate limit.
+   */
+
+  static final String SUPPRESS_BURST = PREFIX + "suppress.burst";
+
+  /**
+   * The directory to which every entry is written in binary form. The
+   * journal is disabled if this is not set. The bundle may only write inside
+   * the files directory named when it was built.
+   */
+
+  static final String JOURNAL_DIRECTORY = PREFIX + "journal.directory";
+
+  /**
+   * The size of each journal segment in octets.
+   */
+
+  static final String JOURNAL_SEGMENT_SIZE = PREFIX + "journal.segment.size";
+
+  /**
+   * The number of journal segments retained.
+   */
+
+  static final String JOURNAL_SEGMENTS = PREFIX + "journal.segments";
+
+  /**
+   * The directory to which compressed archive segments are written. The
+   * archive is disabled if this is not set. The bundle may only write inside
+   * the files directory named when it was built.
+   */
+
+  static final String ARCHIVE_DIRECTORY = PREFIX + "archive.directory";
+
+  /**
+   * The uncompressed size in octets at which an archive block is written.
+   */
+
+  static final String ARCHIVE_BLOCK_SIZE = PREFIX + "archive.block.size";
+
+  /**
+   * The span of entry times in milliseconds at which an archive block is
+   * written even if it is not full.
+   */
+
+  static final String ARCHIVE_BLOCK_AGE = PREFIX + "archive.block.age";
+
+  /**
+   * The size in octets at which a new archive segment is started.
+   */
+
+  static final String ARCHIVE_SEGMENT_SIZE = PREFIX + "archive.segment.size";
+
+  /**
+   * The number of archive segments retained.
+   */
+
+  static final String ARCHIVE_SEGMENTS = PREFIX + "archive.segments";
+
+  /**
+   * The Deflate compression level of the archive, from {@code 0} to
+   * {@code 9}.
+   */
+
+  static final String ARCHIVE_LEVEL = PREFIX + "archive.level";
+
+  /**
+   * {@code true} if the bundle should provide its own log service and log
+   * reader service, so that no other log service implementation is needed.
+   */
+
+  static final String BUILTIN = PREFIX + "builtin";
+
+  /**
+   * The number of entries retained by the built-in log reader service.
+   */
+
+  static final String BUILTIN_HISTORY = PREFIX + "builtin.history";
+
+  /**
+   * {@code true} if entries at the debug level should be retained by the
+   * built-in log reader service.
+   */
+
+  static final String BUILTIN_HISTORY_DEBUG = PREFIX + "builtin.history.debug";
+
+  /**
+   * {@code true} if the fields of each entry should be passed to SLF4J as a
+   * structured argument.
+   */
+
+  static final String STRUCTURED = PREFIX + "structured";
+
+  /**
+   * {@code true} if each thread should reuse one set of structured fields
+   * for every entry instead of allocating a set per entry. The fields of an
+   * event are then only valid during the logging call, so this must not be
+   * used with appenders that process events later, such as logback's
+   * {@code AsyncAppender}.
+   */
+
+  static final String STRUCTURED_REUSE = PREFIX + "structured.reuse";
+
+  /**
+   * {@code true} if exceptions should be fingerprinted, so that the stack
+   * trace of each distinct exception is logged once.
+   */
+
+  static final String FINGERPRINT = PREFIX + "fingerprint";
+
+  /**
+   * The number of exception fingerprints retained.
+   */
+
+  static final String FINGERPRINT_CAPACITY = PREFIX + "fingerprint.capacity";
+
+  /**
+   * {@code true} if {@code DEBUG} and {@code INFO} entries should be sampled
+   * whilst the delivery path is under pressure.
+   *
+   * @see LoadShedder
+   */
+
+  static final String SHED = PREFIX + "shed";
+
+  /**
+   * The period in milliseconds at which load shedding pressure is
+   * evaluated.
+   */
+
+  static final String SHED_PERIOD = PREFIX + "shed.period";
+
+  /**
+   * The asynchronous queue occupancy, in percent, above which the delivery
+   * path is under pressure.
+   */
+
+  static final String SHED_QUEUE_HIGH = PREFIX + "shed.queue.high";
+
+  /**
+   * The asynchronous queue occupancy, in percent, below which the delivery
+   * path is no longer under pressure.
+   */
+
+  static final String SHED_QUEUE_LOW = PREFIX + "shed.queue.low";
+
+  /**
+   * The mean time in microseconds to write one entry to SLF4J above which
+   * the delivery path is under pressure.
+   */
+
+  static final String SHED_LATENCY = PREFIX + "shed.latency";
+
+  /**
+   * The largest sampling interval: at most one in this many entries is
+   * delivered at a sampled level.
+   */
+
+  static final String SHED_MAX = PREFIX + "shed.max";
+
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogServiceConfiguration.class);
+  }
+
+  private final boolean async;
+  private final int async_capacity;
+  private final OverflowPolicy async_overflow;
+  private final int async_batch_size;
+  private final long async_batch_delay;
+  private final boolean async_batch_flush_on_error;
+  private final boolean async_fair;
+  private final int async_fair_capacity;
+  private final Map<String, Integer> async_fair_capacities;
+  private final int async_fair_weight;
+  private final Map<String, Integer> async_fair_weights;
+  private final long levels_refresh;
+  private final boolean levels_filter;
+  private final int levels_filter_ranking;
+  private final boolean metrics;
+  private final boolean metrics_jmx;
+  private final boolean suppress;
+  private final long suppress_window;
+  private final int suppress_capacity;
+  private final int suppress_rate;
+  private final int suppress_burst;
+  private final String journal_directory;
+  private final long journal_segment_size;
+  private final int journal_segments;
+  private final String archive_directory;
+  private final int archive_block_size;
+  private final long archive_block_age;
+  private final long archive_segment_size;
+  private final int archive_segments;
+  private final int archive_level;
+  private final boolean builtin;
+  private final int builtin_history;
+  private final boolean builtin_history_debug;
+  private final boolean structured;
+  private final boolean structured_reuse;
+  private final boolean fingerprint;
+  private final int fingerprint_capacity;
+  private final boolean shed;
+  private final long shed_period;
+  private final int shed_queue_high;
+  private final int shed_queue_low;
+  private final long shed_latency;
+  private final int shed_max;
+
+  private LogServiceConfiguration(
+    final BundleContext context)
+  {
+    this.async =
+      getBoolean(context, ASYNC, false);
+    this.async_capacity =
+      getInt(context, ASYNC_CAPACITY, 8192);
+    this.async_overflow =
+      getEnum(context, ASYNC_OVERFLOW, OverflowPolicy.class, OverflowPolicy.BLOCK);
+    this.async_batch_size =
+      getInt(context, ASYNC_BATCH_SIZE, 1);
+    this.async_batch_delay =
+      getLong(context, ASYNC_BATCH_DELAY, 0L);
+    this.async_batch_flush_on_error =
+      getBoolean(context, ASYNC_BATCH_FLUSH_ON_ERROR, true);
+    this.async_fair =
+      getBoolean(context, ASYNC_FAIR, false);
+    this.async_fair_capacity =
+      getInt(context, ASYNC_FAIR_CAPACITY, 1024);
+    this.async_fair_capacities =
+      getIntMap(context, ASYNC_FAIR_CAPACITIES);
+    this.async_fair_weight =
+      getInt(context, ASYNC_FAIR_WEIGHT, 1);
+    this.async_fair_weights =
+      getIntMap(context, ASYNC_FAIR_WEIGHTS);
+    this.levels_refresh =
+      getLong(context, LEVELS_REFRESH, 1000L);
+    this.levels_filter =
+      getBoolean(context, LEVELS_FILTER, true);
+    this.levels_filter_ranking =
+      getInt(context, LEVELS_FILTER_RANKING, 1000);
+    this.metrics =
+      getBoolean(context, METRICS, true);
+    this.metrics_jmx =
+      getBoolean(context, METRICS_JMX, true);
+    this.suppress =
+      getBoolean(context, SUPPRESS, false);
+    this.suppress_window =
+      getLong(context, SUPPRESS_WINDOW, 10000L);
+    this.suppress_capacity =
+      getInt(context, SUPPRESS_CAPACITY, 1024);
+    this.suppress_rate =
+      getInt(context, SUPPRESS_RATE, 0);
+    this.suppress_burst =
+      getInt(context, SUPPRESS_BURST, 1000);
+    this.journal_directory =
+      context.getProperty(JOURNAL_DIRECTORY);
+    this.journal_segment_size =
+      getLong(context, JOURNAL_SEGMENT_SIZE, 64L * 1024L * 1024L);
+    this.journal_segments =
+      getInt(context, JOURNAL_SEGMENTS, 8);
+    this.archive_directory =
+      context.getProperty(ARCHIVE_DIRECTORY);
+    this.archive_block_size =
+      getInt(context, ARCHIVE_BLOCK_SIZE, 256 * 1024);
+    this.archive_block_age =
+      getLong(context, ARCHIVE_BLOCK_AGE, 60000L);
+    this.archive_segment_size =
+      getLong(context, ARCHIVE_SEGMENT_SIZE, 64L * 1024L * 1024L);
+    this.archive_segments =
+      getInt(context, ARCHIVE_SEGMENTS, 64);
+    this.archive_level =
+      getInt(context, ARCHIVE_LEVEL, 1);
+    this.builtin =
+      getBoolean(context, BUILTIN, false);
+    this.builtin_history =
+      getInt(context, BUILTIN_HISTORY, 100);
+    this.builtin_history_debug =
+      getBoolean(context, BUILTIN_HISTORY_DEBUG, false);
+    this.structured =
+      getBoolean(context, STRUCTURED, false);
+    this.structured_reuse =
+      getBoolean(context, STRUCTURED_REUSE, false);
+    this.fingerprint =
+      getBoolean(context, FINGERPRINT, false);
+    this.fingerprint_capacity =
+      getInt(context, FINGERPRINT_CAPACITY, 1024);
+    this.shed =
+      getBoolean(context, SHED, false);
+    this.shed_period =
+      getLong(context, SHED_PERIOD, 250L);
+    this.shed_queue_high =
+      getInt(context, SHED_QUEUE_HIGH, 50);
+    this.shed_queue_low =
+      getInt(context, SHED_QUEUE_LOW, 10);
+    this.shed_latency =
+      getLong(context, SHED_LATENCY, 500L);
+    this.shed_max =
+      getInt(context, SHED_MAX, 128);
+  }
+
+  /**
+   * Read a configuration from the given bundle context.
+   *
+   * @param context The bundle context
+   *
+   * @return A configuration
+   */
+
+  static LogServiceConfiguration fromContext(
+    final BundleContext context)
+  {
+    return new LogServiceConfiguration(context);
+  }
+
+  private static boolean getBoolean(
+    final BundleContext context,
+    final String name,
+    final boolean default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+    return Boolean.parseBoolean(text.trim());
+  }
+
+  private static int getInt(
+    final BundleContext context,
+    final String name,
+    final int default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+
+    try {
+      return Integer.parseInt(text.trim());
+    } catch (final NumberFormatException e) {
+      LOG.warn("{}: unparseable integer {}, using {}", name, text, default_value);
+      return default_value;
+    }
+  }
+
+  private static Map<String, Integer> getIntMap(
+    final BundleContext context,
+    final String name)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return Collections.emptyMap();
+    }
+
+    final Map<String, Integer> values = new HashMap<>(8);
+    for (final String pair : text.split(",")) {
+      final String trimmed = pair.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+
+      final int equals = trimmed.indexOf('=');
+      if (equals <= 0) {
+        LOG.warn("{}: unparseable entry {}, ignoring it", name, trimmed);
+        continue;
+      }
+
+      final String key = trimmed.substring(0, equals).trim();
+      final String value = trimmed.substring(equals + 1).trim();
+      try {
+        values.put(key, Integer.valueOf(value));
+      } catch (final NumberFormatException e) {
+        LOG.warn(
+          "{}: unparseable integer {} for {}, ignoring it", name, value, key);
+      }
+    }
+    return Collections.unmodifiableMap(values);
+  }
+
+  private static long getLong(
+    final BundleContext context,
+    final String name,
+    final long default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+
+    try {
+      return Long.parseLong(text.trim());
+    } catch (final NumberFormatException e) {
+      LOG.warn("{}: unparseable integer {}, using {}", name, text, default_value);
+      return default_value;
+    }
+  }
+
+  private static <E extends Enum<E>> E getEnum(
+    final BundleContext context,
+    final String name,
+    final Class<E> type,
+    final E default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+
+    try {
+      return Enum.valueOf(type, text.trim().toUpperCase());
+    } catch (final IllegalArgumentException e) {
+      LOG.warn("{}: unrecognized value {}, using {}", name, text, default_value);
+      return default_value;
+    }
+  }
+
+  /**
+   * @return {@code true} if asynchronous delivery is enabled
+   */
+
+  boolean async()
+  {
+    return this.async;
+  }
+
+  /**
+   * @return The requested capacity of the asynchronous ring buffer
+   */
+
+  int asyncCapacity()
+  {
+    return this.async_capacity;
+  }
+
+  /**
+   * @return The behaviour of producers when the ring buffer is full
+   */
+
+  OverflowPolicy asyncOverflow()
+  {
+    return this.async_overflow;
+  }
+
+  /**
+   * @return The maximum number of entries per asynchronous batch
+   */
+
+  int asyncBatchSize()
+  {
+    return this.async_batch_size;
+  }
+
+  /**
+   * @return The maximum time in milliseconds an entry waits for its batch
+   */
+
+  long asyncBatchDelay()
+  {
+    return this.async_batch_delay;
+  }
+
+  /**
+   * @return {@code true} if error entries force their batch to be delivered
+   */
+
+  boolean asyncBatchFlushOnError()
+  {
+    return this.async_batch_flush_on_error;
+  }
+
+  /**
+   * @return {@code true} if asynchronous delivery should be fair across
+   * bundles
+   */
+
+  boolean asyncFair()
+  {
+    return this.async_fair;
+  }
+
+  /**
+   * @return The default capacity of each per-bundle queue
+   */
+
+  int asyncFairCapacity()
+  {
+    return this.async_fair_capacity;
+  }
+
+  /**
+   * @return Per-bundle queue capacities by symbolic name
+   */
+
+  Map<String, Integer> asyncFairCapacities()
+  {
+    return this.async_fair_capacities;
+  }
+
+  /**
+   * @return The default per-bundle weight
+   */
+
+  int asyncFairWeight()
+  {
+    return this.async_fair_weight;
+  }
+
+  /**
+   * @return Per-bundle weights by symbolic name
+   */
+
+  Map<String, Integer> asyncFairWeights()
+  {
+    return this.async_fair_weights;
+  }
+
+  /**
+   * @return The level table refresh period in milliseconds
+   */
+
+  long levelsRefresh()
+  {
+    return this.levels_refresh;
+  }
+
+  /**
+   * @return {@code true} if the filtering log service should be registered
+   */
+
+  boolean levelsFilter()
+  {
+    return this.levels_filter;
+  }
+
+  /**
+   * @return The service ranking of the filtering log service
+   */
+
+  int levelsFilterRanking()
+  {
+    return this.levels_filter_ranking;
+  }
+
+  /**
+   * @return {@code true} if metrics should be collected
+   */
+
+  boolean metrics()
+  {
+    return this.metrics;
+  }
+
+  /**
+   * @return {@code true} if metrics should be registered as an MBean
+   */
+
+  boolean metricsJMX()
+  {
+    return this.metrics_jmx;
+  }
+
+  /**
+   * @return {@code true} if repeated entries should be suppressed
+   */
+
+  boolean suppress()
+  {
+    return this.suppress;
+  }
+
+  /**
+   * @return The duplicate suppression window in milliseconds
+   */
+
+  long suppressWindow()
+  {
+    return this.suppress_window;
+  }
+
+  /**
+   * @return The number of distinct entries tracked for suppression
+   */
+
+  int suppressCapacity()
+  {
+    return this.suppress_capacity;
+  }
+
+  /**
+   * @return The per-bundle rate limit in entries per second
+   */
+
+  int suppressRate()
+  {
+    return this.suppress_rate;
+  }
+
+  /**
+   * @return The per-bundle burst size
+   */
+
+  int suppressBurst()
+  {
+    return this.suppress_burst;
+  }
+
+  /**
+   * @return The journal directory, or {@code null} if the journal is
+   * disabled
+   */
+
+  String journalDirectory()
+  {
+    return this.journal_directory;
+  }
+
+  /**
+   * @return The size of each journal segment in octets
+   */
+
+  long journalSegmentSize()
+  {
+    return this.journal_segment_size;
+  }
+
+  /**
+   * @return The number of journal segments retained
+   */
+
+  int journalSegments()
+  {
+    return this.journal_segments;
+  }
+
+  /**
+   * @return The archive directory, or {@code null} if the archive is
+   * disabled
+   */
+
+  String archiveDirectory()
+  {
+    return this.archive_directory;
+  }
+
+  /**
+   * @return The uncompressed size in octets at which a block is written
+   */
+
+  int archiveBlockSize()
+  {
+    return this.archive_block_size;
+  }
+
+  /**
+   * @return The span of entry times in milliseconds at which a block is
+   * written
+   */
+
+  long archiveBlockAge()
+  {
+    return this.archive_block_age;
+  }
+
+  /**
+   * @return The size in octets at which a new archive segment is started
+   */
+
+  long archiveSegmentSize()
+  {
+    return this.archive_segment_size;
+  }
+
+  /**
+   * @return The number of archive segments retained
+   */
+
+  int archiveSegments()
+  {
+    return this.archive_segments;
+  }
+
+  /**
+   * @return The Deflate compression level of the archive
+   */
+
+  int archiveLevel()
+  {
+    return this.archive_level;
+  }
+
+  /**
+   * @return {@code true} if the built-in log service should be provided
+   */
+
+  boolean builtin()
+  {
+    return this.builtin;
+  }
+
+  /**
+   * @return The number of entries retained by the built-in log service
+   */
+
+  int builtinHistory()
+  {
+    return this.builtin_history;
+  }
+
+  /**
+   * @return {@code true} if debug entries should be retained
+   */
+
+  boolean builtinHistoryDebug()
+  {
+    return this.builtin_history_debug;
+  }
+
+  /**
+   * @return {@code true} if entries should be logged with structured fields
+   */
+
+  boolean structured()
+  {
+    return this.structured;
+  }
+
+  /**
+   * @return {@code true} if structured fields should be reused per thread
+   */
+
+  boolean structuredReuse()
+  {
+    return this.structured_reuse;
+  }
+
+  /**
+   * @return {@code true} if exceptions should be fingerprinted
+   */
+
+  boolean fingerprint()
+  {
+    return this.fingerprint;
+  }
+
+  /**
+   * @return The number of exception fingerprints retained
+   */
+
+  int fingerprintCapacity()
+  {
+    return this.fingerprint_capacity;
+  }
+
+  /**
+   * @return {@code true} if low-severity entries should be shed under
+   * pressure
+   */
+
+  boolean shed()
+  {
+    return this.shed;
+  }
+
+  /**
+   * @return The period in milliseconds at which pressure is evaluated
+   */
+
+  long shedPeriod()
+  {
+    return this.shed_period;
+  }
+
+  /**
+   * @return The queue occupancy in percent above which shedding increases
+   */
+
+  int shedQueueHigh()
+  {
+    return this.shed_queue_high;
+  }
+
+  /**
+   * @return The queue occupancy in percent below which shedding decreases
+   */
+
+  int shedQueueLow()
+  {
+    return this.shed_queue_low;
+  }
+
+  /**
+   * @return The mean write time in microseconds above which shedding
+   * increases
+   */
+
+  long shedLatency()
+  {
+    return this.shed_latency;
+  }
+
+  /**
+   * @return The largest sampling interval
+   */
+
+  int shedMax()
+  {
+    return this.shed_max;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The interface used by the suppression stage to report entries that it
+ * discarded.
+ */
+
+interface LogSuppressionListener
+{
+  /**
+   * An entry was repeated within the suppression window and only its first
+   * occurrence was logged.
+   *
+   * @param bundle  The producing bundle, may be {@code null}
+   * @param level   The OSGi log level
+   * @param message The message of the entry
+   * @param count   The number of occurrences that were discarded
+   * @param span_ms The time in milliseconds between the first occurrence and
+   *                the report
+   */
+
+  void onRepeated(
+    Bundle bundle,
+    int level,
+    String message,
+    long count,
+    long span_ms);
+
+  /**
+   * Entries were discarded because the producing bundle exceeded its rate
+   * limit.
+   *
+   * @param bundle The producing bundle, may be {@code null}
+   * @param count  The number of entries that were discarded
+   */
+
+  void onRateLimited(
+    Bundle bundle,
+    long count);
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A stage that discards repeated entries and, optionally, entries from
+ * bundles that exceed a rate limit.</p>
+ *
+ * <p>Entries are keyed on the producing bundle, the level, the message and
+ * the type of the attached exception. The window slides: an occurrence is a
+ * repeat if the same key was last seen less than one window ago, so a key
+ * that recurs more often than the window stays suppressed. The first
+ * occurrence of a key is admitted, and repeats are counted and discarded.
+ * A summary of the discarded occurrences is reported when the key recurs
+ * after a quiet window, when its slot is taken by a different key, or when
+ * a periodic sweep finds that a window has passed since the last summary.</p>
+ *
+ * <p>An entry is checked against the rate limit only if it is not a repeat,
+ * and its key is recorded only if the rate limit admits it, so an entry
+ * that is never logged does not cause its repeats to be discarded.</p>
+ *
+ * <p>Keys are held in a fixed-size, direct-mapped table, so memory use is
+ * bounded regardless of the number of distinct messages; a key that maps to
+ * an occupied slot evicts the previous key. Per-bundle token buckets are held
+ * in a map keyed by bundle ID, and buckets that have refilled completely
+ * and have nothing to report are removed by the sweep. Each slot and bucket
+ * is guarded by its own lock, so producers of unrelated entries do not
+ * contend.</p>
+ */
+
+final class LogSuppressor
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LogSuppressor.class);
+  }
+
+  private static final long NO_BUNDLE = -1L;
+
+  private static final class KeySlot
+  {
+    private boolean used;
+    private int hash;
+    private long bundle_id;
+    private Bundle bundle;
+    private int level;
+    private String message;
+    private Class<?> exception_type;
+    private long last_seen;
+    private long summary_start;
+    private long discarded;
+
+    KeySlot()
+    {
+
+    }
+
+    boolean matches(
+      final int in_hash,
+      final long in_bundle_id,
+      final int in_level,
+      final String in_message,
+      final Class<?> in_exception_type)
+    {
+      return this.used
+        && this.hash == in_hash
+        && this.bundle_id == in_bundle_id
+        && this.level == in_level
+        && this.exception_type == in_exception_type
+        && Objects.equals(this.message, in_message);
+    }
+  }
+
+  private static final class RateSlot
+  {
+    private final Bundle bundle;
+    private boolean removed;
+    private double tokens;
+    private long updated;
+    private long discarded;
+
+    RateSlot(
+      final Bundle in_bundle,
+      final double in_tokens,
+      final long in_updated)
+    {
+      this.bundle = in_bundle;
+      this.tokens = in_tokens;
+      this.updated = in_updated;
+    }
+  }
+
+  private final boolean enabled;
+  private final long window_nanos;
+  private final KeySlot[] keys;
+  private final int keys_mask;
+  private final ConcurrentHashMap<Long, RateSlot> rates;
+  private final double tokens_per_nano;
+  private final double burst;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a suppression stage.
+   *
+   * @param in_enabled  {@code false} if every entry should be admitted
+   * @param window_ms   The time since the last occurrence of an entry within
+   *                    which it is discarded as a repeat, in milliseconds;
+   *                    values less than or equal to zero disable duplicate
+   *                    suppression
+   * @param in_capacity The number of keys tracked, rounded up to the next
+   *                    power of two
+   * @param rate        The number of entries per second that each bundle may
+   *                    log; values less than or equal to zero disable rate
+   *                    limiting
+   * @param in_burst    The number of entries that each bundle may log in a
+   *                    burst above the rate
+   */
+
+  LogSuppressor(
+    final boolean in_enabled,
+    final long window_ms,
+    final int in_capacity,
+    final int rate,
+    final int in_burst)
+  {
+    final int capacity = LogEntryRingBuffer.roundUp(Math.max(1, in_capacity));
+
+    this.enabled = in_enabled;
+    this.window_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, window_ms));
+    this.keys = new KeySlot[capacity];
+    for (int index = 0; index < capacity; ++index) {
+      this.keys[index] = new KeySlot();
+    }
+    this.keys_mask = capacity - 1;
+
+    this.rates = new ConcurrentHashMap<>(64);
+    this.tokens_per_nano = rate <= 0 ? 0.0 : (double) rate / 1.0e9;
+    this.burst = (double) Math.max(1, in_burst);
+  }
+
+  /**
+   * @return A suppression stage that admits every entry
+   */
+
+  static LogSuppressor disabled()
+  {
+    return new LogSuppressor(false, 0L, 1, 0, 1);
+  }
+
+  /**
+   * @return {@code true} if the stage may discard entries
+   */
+
+  boolean isEnabled()
+  {
+    return this.enabled && (this.window_nanos > 0L || this.tokens_per_nano > 0.0);
+  }
+
+  private static int hashOf(
+    final long bundle_id,
+    final int level,
+    final String message,
+    final Class<?> exception_type)
+  {
+    int h = Long.hashCode(bundle_id);
+    h = 31 * h + level;
+    h = 31 * h + Objects.hashCode(message);
+    h = 31 * h + Objects.hashCode(exception_type);
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Decide whether an entry should be logged. Summaries of previously
+   * discarded entries may be reported to the listener on the calling thread
+   * before this method returns.
+   *
+   * @param bundle    The producing bundle, may be {@code null}
+   * @param level     The OSGi log level
+   * @param message   The message, may be {@code null}
+   * @param exception The exception, may be {@code null}
+   * @param listener  The listener that receives summaries
+   *
+   * @return {@code true} if the entry should be logged
+   */
+
+  boolean admit(
+    final Bundle bundle,
+    final int level,
+    final String message,
+    final Throwable exception,
+    final LogSuppressionListener listener)
+  {
+    if (!this.enabled) {
+      return true;
+    }
+
+    final long now = System.nanoTime();
+    final long bundle_id = bundle == null ? NO_BUNDLE : bundle.getBundleId();
+    if (this.window_nanos <= 0L) {
+      return this.tokens_per_nano <= 0.0
+        || this.admitRate(bundle, bundle_id, now, listener);
+    }
+
+    final Class<?> type = exception == null ? null : exception.getClass();
+    final int hash = hashOf(bundle_id, level, message, type);
+    final KeySlot slot = this.keys[hash & this.keys_mask];
+
+    if (this.isRepeat(slot, hash, bundle_id, level, message, type, now)) {
+      return false;
+    }
+    if (this.tokens_per_nano > 0.0
+      && !this.admitRate(bundle, bundle_id, now, listener)) {
+      return false;
+    }
+    return this.record(
+      slot, hash, bundle, bundle_id, level, message, type, now, listener);
+  }
+
+  private boolean isRepeat(
+    final KeySlot slot,
+    final int hash,
+    final long bundle_id,
+    final int level,
+    final String message,
+    final Class<?> type,
+    final long now)
+  {
+    synchronized (slot) {
+      if (slot.matches(hash, bundle_id, level, message, type)
+        && now - slot.last_seen < this.window_nanos) {
+        slot.last_seen = now;
+        ++slot.discarded;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private boolean record(
+    final KeySlot slot,
+    final int hash,
+    final Bundle bundle,
+    final long bundle_id,
+    final int level,
+    final String message,
+    final Class<?> type,
+    final long now,
+    final LogSuppressionListener listener)
+  {
+    Bundle report_bundle = null;
+    int report_level = 0;
+    String report_message = null;
+    long report_count = 0L;
+    long report_span = 0L;
+
+    synchronized (slot) {
+
+      /*
+       * Another thread may have recorded the same key since it was checked.
+       */
+
+      if (slot.matches(hash, bundle_id, level, message, type)
+        && now - slot.last_seen < this.window_nanos) {
+        ++slot.discarded;
+        return false;
+      }
+
+      /*
+       * The slot either held this key with an elapsed window, or held some
+       * other key that is now evicted. In both cases, anything discarded
+       * under the previous occupant is reported.
+       */
+
+      if (slot.discarded > 0L) {
+        report_bundle = slot.bundle;
+        report_level = slot.level;
+        report_message = slot.message;
+        report_count = slot.discarded;
+        report_span = now - slot.summary_start;
+      }
+
+      slot.used = true;
+      slot.hash = hash;
+      slot.bundle_id = bundle_id;
+      slot.bundle = bundle;
+      slot.level = level;
+      slot.message = message;
+      slot.exception_type = type;
+      slot.last_seen = now;
+      slot.summary_start = now;
+      slot.discarded = 0L;
+    }
+
+    if (report_count > 0L) {
+      listener.onRepeated(
+        report_bundle,
+        report_level,
+        report_message,
+        report_count,
+        TimeUnit.NANOSECONDS.toMillis(report_span));
+    }
+    return true;
+  }
+
+  private boolean admitRate(
+    final Bundle bundle,
+    final long bundle_id,
+    final long now,
+    final LogSuppressionListener listener)
+  {
+    final Long key = Long.valueOf(bundle_id);
+
+    while (true) {
+      RateSlot slot = this.rates.get(key);
+      if (slot == null) {
+        final RateSlot created = new RateSlot(bundle, this.burst, now);
+        slot = this.rates.putIfAbsent(key, created);
+        if (slot == null) {
+          slot = created;
+        }
+      }
+
+      long report_count = 0L;
+
+      synchronized (slot) {
+
+        /*
+         * The sweep removed the bucket after it was looked up.
+         */
+
+        if (slot.removed) {
+          continue;
+        }
+
+        final double refill =
+          (double) (now - slot.updated) * this.tokens_per_nano;
+        slot.tokens = Math.min(this.burst, slot.tokens + refill);
+        slot.updated = Math.max(slot.updated, now);
+
+        if (slot.tokens < 1.0) {
+          ++slot.discarded;
+          return false;
+        }
+        slot.tokens -= 1.0;
+
+        if (slot.discarded > 0L) {
+          report_count = slot.discarded;
+          slot.discarded = 0L;
+        }
+      }
+
+      if (report_count > 0L) {
+        listener.onRateLimited(slot.bundle, report_count);
+      }
+      return true;
+    }
+  }
+
+  private boolean isRefilled(
+    final RateSlot slot,
+    final long now)
+  {
+    final double refill = (double) (now - slot.updated) * this.tokens_per_nano;
+    return slot.tokens + refill >= this.burst;
+  }
+
+  /**
+   * Report every key whose window has elapsed and that has discarded
+   * entries, and every bundle that has been rate limited since it was last
+   * reported. Buckets that have refilled completely are removed.
+   *
+   * @param listener The listener that receives summaries
+   */
+
+  void sweep(
+    final LogSuppressionListener listener)
+  {
+    this.sweep(listener, false);
+  }
+
+  private void sweep(
+    final LogSuppressionListener listener,
+    final boolean force)
+  {
+    final long now = System.nanoTime();
+
+    for (final KeySlot slot : this.keys) {
+      Bundle report_bundle = null;
+      int report_level = 0;
+      String report_message = null;
+      long report_count = 0L;
+      long report_span = 0L;
+
+      synchronized (slot) {
+        final boolean elapsed = now - slot.summary_start >= this.window_nanos;
+        if (slot.discarded > 0L && (force || elapsed)) {
+          report_bundle = slot.bundle;
+          report_level = slot.level;
+          report_message = slot.message;
+          report_count = slot.discarded;
+          report_span = now - slot.summary_start;
+          slot.summary_start = now;
+          slot.discarded = 0L;
+        }
+      }
+
+      if (report_count > 0L) {
+        listener.onRepeated(
+          report_bundle,
+          report_level,
+          report_message,
+          report_count,
+          TimeUnit.NANOSECONDS.toMillis(report_span));
+      }
+    }
+
+    final Iterator<Map.Entry<Long, RateSlot>> iter =
+      this.rates.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      final RateSlot slot = iter.next().getValue();
+      long report_count = 0L;
+
+      synchronized (slot) {
+        if (slot.discarded > 0L) {
+          report_count = slot.discarded;
+          slot.discarded = 0L;
+        } else if (this.isRefilled(slot, now)) {
+          slot.removed = true;
+          iter.remove();
+        }
+      }
+
+      if (report_count > 0L) {
+        listener.onRateLimited(slot.bundle, report_count);
+      }
+    }
+  }
+
+  /**
+   * Start sweeping the tables periodically, so that summaries are reported
+   * even if the entries that would otherwise trigger them never arrive.
+   *
+   * @param listener The listener that receives summaries
+   */
+
+  void start(
+    final LogSuppressionListener listener)
+  {
+    Objects.requireNonNull(listener, "Listener");
+
+    if (!this.isEnabled()) {
+      LOG.debug("suppression disabled");
+      return;
+    }
+
+    final long period_ms = Math.max(
+      1000L, TimeUnit.NANOSECONDS.toMillis(this.window_nanos));
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r);
+      t.setName("com.io7m.osgilog2.logservice.suppression");
+      t.setDaemon(true);
+      return t;
+    });
+    this.scheduler.scheduleAtFixedRate(() -> {
+      try {
+        this.sweep(listener);
+      } catch (final Throwable e) {
+        LOG.error("suppression sweep failed: ", e);
+      }
+    }, period_ms, period_ms, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop sweeping the tables, and report anything that has not yet been
+   * reported.
+   *
+   * @param listener The listener that receives summaries
+   */
+
+  void close(
+    final LogSuppressionListener listener)
+  {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler = null;
+      this.sweep(listener, true);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import java.util.Arrays;
+
+/**
+ * <p>Functions to format SLF4J-style message templates.</p>
+ *
+ * <p>Each {@code {}} in a template is replaced by the string form of the
+ * next argument; {@code \{}} is a literal {@code {}}, and {@code \\{}} is a
+ * backslash followed by a placeholder. Placeholders without an argument are
+ * left as they are. As in logback, a {@link Throwable} in the last position
+ * is the exception of the entry and is never used as an argument. The SLF4J
+ * helper classes are not used because hosts are not required to export
+ * them.</p>
+ */
+
+final class MessageTemplates
+{
+  private MessageTemplates()
+  {
+
+  }
+
+  /**
+   * @param arguments The arguments
+   *
+   * @return The exception among the arguments, if any
+   */
+
+  static Throwable exception(
+    final Object[] arguments)
+  {
+    if (arguments == null || arguments.length == 0) {
+      return null;
+    }
+    final Object last = arguments[arguments.length - 1];
+    return last instanceof Throwable ? (Throwable) last : null;
+  }
+
+  /**
+   * Format a template.
+   *
+   * @param template  The template
+   * @param arguments The arguments, may be {@code null}
+   *
+   * @return The formatted message
+   */
+
+  static String format(
+    final String template,
+    final Object[] arguments)
+  {
+    if (template == null || arguments == null) {
+      return template;
+    }
+
+    int count = arguments.length;
+    if (exception(arguments) != null) {
+      --count;
+    }
+
+    final StringBuilder text = new StringBuilder(template.length() + 32);
+    int start = 0;
+    int used = 0;
+    while (used < count) {
+      final int index = template.indexOf("{}", start);
+      if (index < 0) {
+        break;
+      }
+
+      if (isEscaped(template, index)) {
+        if (isEscaped(template, index - 1)) {
+          text.append(template, start, index - 1);
+          appendValue(text, arguments[used]);
+          ++used;
+        } else {
+          text.append(template, start, index - 1);
+          text.append('{');
+          start = index + 1;
+          continue;
+        }
+      } else {
+        text.append(template, start, index);
+        appendValue(text, arguments[used]);
+        ++used;
+      }
+      start = index + 2;
+    }
+
+    text.append(template, start, template.length());
+    return text.toString();
+  }
+
+  private static boolean isEscaped(
+    final String template,
+    final int index)
+  {
+    return index > 0 && template.charAt(index - 1) == '\\';
+  }
+
+  private static void appendValue(
+    final StringBuilder text,
+    final Object value)
+  {
+    if (value == null) {
+      text.append("null");
+      return;
+    }
+
+    if (value.getClass().isArray()) {
+      final String array = Arrays.deepToString(new Object[]{value});
+      text.append(array, 1, array.length() - 1);
+      return;
+    }
+
+    try {
+      text.append(value);
+    } catch (final Throwable e) {
+      text.append("[FAILED toString()]");
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+
+import java.util.Objects;
+
+/**
+ * A log listener that counts every entry it sees before passing it on.
+ */
+
+final class MeteredLogListener implements LogListener
+{
+  private final LogListener delegate;
+  private final LogMetricsRecorder metrics;
+
+  /**
+   * Construct a listener.
+   *
+   * @param in_delegate The listener that receives entries
+   * @param in_metrics  The metrics recorder
+   */
+
+  MeteredLogListener(
+    final LogListener in_delegate,
+    final LogMetricsRecorder in_metrics)
+  {
+    this.delegate = Objects.requireNonNull(in_delegate, "Delegate");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+  }
+
+  @Override
+  public void logged(
+    final LogEntry entry)
+  {
+    this.metrics.onSeen(entry.getBundle(), entry.getLevel());
+    this.delegate.logged(entry);
+  }
+}
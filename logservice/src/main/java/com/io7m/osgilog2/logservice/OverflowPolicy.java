@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+/**
+ * The behaviour of a producer that finds a bounded queue full.
+ */
+
+enum OverflowPolicy
+{
+  /**
+   * Park the producer until space becomes available.
+   */
+
+  BLOCK,
+
+  /**
+   * Discard the entry. The number of discarded entries is reported
+   * periodically by the consumer.
+   */
+
+  DROP,
+
+  /**
+   * Busy-wait until space becomes available. This minimizes hand-off latency
+   * at the cost of burning CPU time on the producer.
+   */
+
+  SPIN
+}
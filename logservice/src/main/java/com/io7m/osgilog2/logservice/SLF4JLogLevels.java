@@ -0,0 +1,268 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.logservice;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>A {@link LogLevelService} that derives levels from the per-bundle SLF4J
+ * loggers.</p>
+ *
+ * <p>The table is indexed directly by bundle ID and grows on demand. Slots
+ * are filled lazily on first use, cleared when a bundle is updated or
+ * uninstalled, and recomputed by a background thread at a fixed rate so
+ * that changes to the host's logging configuration are picked up.</p>
+ */
+
+final class SLF4JLogLevels implements LogLevelService, BundleListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(SLF4JLogLevels.class);
+  }
+
+  /**
+   * Bundles with IDs beyond this value are not cached, and their levels are
+   * computed on every query.
+   */
+
+  private static final int TABLE_LIMIT = 1 << 20;
+  private static final int UNKNOWN = -1;
+
+  private final BundleContext context;
+  private final BundleLoggers loggers;
+  private final Object table_lock;
+  private volatile AtomicIntegerArray table;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a level table.
+   *
+   * @param in_context The bundle context used to look up bundles by ID
+   * @param in_loggers The per-bundle loggers
+   */
+
+  SLF4JLogLevels(
+    final BundleContext in_context,
+    final BundleLoggers in_loggers)
+  {
+    this.context = Objects.requireNonNull(in_context, "Context");
+    this.loggers = Objects.requireNonNull(in_loggers, "Loggers");
+    this.table_lock = new Object();
+    this.table = newTable(64);
+  }
+
+  private static AtomicIntegerArray newTable(
+    final int size)
+  {
+    final AtomicIntegerArray t = new AtomicIntegerArray(size);
+    for (int index = 0; index < size; ++index) {
+      t.set(index, UNKNOWN);
+    }
+    return t;
+  }
+
+  /**
+   * Derive the OSGi level of the given logger.
+   *
+   * @param logger The logger
+   *
+   * @return The most verbose enabled OSGi level
+   */
+
+  static int levelOf(
+    final Logger logger)
+  {
+    if (logger.isDebugEnabled()) {
+      return LogService.LOG_DEBUG;
+    }
+    if (logger.isInfoEnabled()) {
+      return LogService.LOG_INFO;
+    }
+    if (logger.isWarnEnabled()) {
+      return LogService.LOG_WARNING;
+    }
+    if (logger.isErrorEnabled()) {
+      return LogService.LOG_ERROR;
+    }
+    return LEVEL_OFF;
+  }
+
+  /**
+   * Start refreshing the table at the given rate.
+   *
+   * @param period_ms The refresh period in milliseconds; values less than or
+   *                  equal to zero disable periodic refreshing
+   */
+
+  void start(
+    final long period_ms)
+  {
+    if (period_ms <= 0L) {
+      LOG.debug("periodic level refresh disabled");
+      return;
+    }
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r);
+      t.setName("com.io7m.osgilog2.logservice.levels");
+      t.setDaemon(true);
+      return t;
+    });
+    this.scheduler.scheduleAtFixedRate(
+      this::refresh, period_ms, period_ms, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop refreshing the table.
+   */
+
+  void close()
+  {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler = null;
+    }
+  }
+
+  @Override
+  public int level(
+    final long bundle_id)
+  {
+    if (bundle_id < 0L || bundle_id >= (long) TABLE_LIMIT) {
+      return this.compute(bundle_id);
+    }
+
+    final int index = (int) bundle_id;
+    final AtomicIntegerArray t = this.table;
+    if (index < t.length()) {
+      final int cached = t.get(index);
+      if (cached != UNKNOWN) {
+        return cached;
+      }
+    }
+
+    final int computed = this.compute(bundle_id);
+    this.tableFor(index).set(index, computed);
+    return computed;
+  }
+
+  @Override
+  public boolean isEnabled(
+    final long bundle_id,
+    final int level)
+  {
+    switch (level) {
+      case LogService.LOG_ERROR:
+      case LogService.LOG_WARNING:
+      case LogService.LOG_INFO:
+      case LogService.LOG_DEBUG: {
+        return level <= this.level(bundle_id);
+      }
+      default: {
+        return LogService.LOG_WARNING <= this.level(bundle_id);
+      }
+    }
+  }
+
+  @Override
+  public void refresh()
+  {
+    try {
+      final AtomicIntegerArray t = this.table;
+      final int size = t.length();
+      for (int index = 0; index < size; ++index) {
+        if (t.get(index) != UNKNOWN) {
+          t.set(index, this.compute((long) index));
+        }
+      }
+    } catch (final Throwable e) {
+      LOG.error("level refresh failed: ", e);
+    }
+  }
+
+  private AtomicIntegerArray tableFor(
+    final int index)
+  {
+    final AtomicIntegerArray current = this.table;
+    if (index < current.length()) {
+      return current;
+    }
+
+    synchronized (this.table_lock) {
+      final AtomicIntegerArray existing = this.table;
+      if (index < existing.length()) {
+        return existing;
+      }
+
+      int size = existing.length();
+      while (size <= index) {
+        size <<= 1;
+      }
+
+      final AtomicIntegerArray resized = newTable(size);
+      for (int i = 0; i < existing.length(); ++i) {
+        resized.set(i, existing.get(i));
+      }
+      this.table = resized;
+      return resized;
+    }
+  }
+
+  private int compute(
+    final long bundle_id)
+  {
+    final Bundle bundle = this.context.getBundle(bundle_id);
+    if (bundle == null) {
+      return levelOf(SLF4JLogReader.defaultLogger());
+    }
+    return levelOf(this.loggers.forBundle(bundle));
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    switch (event.getType()) {
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNINSTALLED: {
+        final long id = event.getBundle().getBundleId();
+        final AtomicIntegerArray t = this.table;
+        if (id >= 0L && id < (long) t.length()) {
+          t.set((int) id, UNKNOWN);
+        }
+        break;
+      }
+      default: {
+        break;
+      }
+    }
+  }
+}
@@ -16,102 +16,419 @@
 
 package com.io7m.osgilog2.logservice;
 
+import org.osgi.framework.Bundle;
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
- * An SLF4J-based log reader.
+ * <p>An SLF4J-based log reader.</p>
+ *
+ * <p>Each entry is logged to an SLF4J logger named after the symbolic name of
+ * the bundle that produced it. The level of the logger is checked before any
+ * other part of the entry is examined, so entries at disabled levels cost
+ * one cache lookup.</p>
+ *
+ * <p>Entries at enabled levels pass through a {@link LogSuppressor} before
+ * being logged. Entries that it discards are replaced by summaries, logged
+ * to the logger of the producing bundle, stating how many were discarded.</p>
+ *
+ * <p>When entries are delivered in batches, every logged entry of the batch
+ * carries the {@link #DEFER_FLUSH} marker. Encoders that understand the
+ * marker skip their per-entry flush and register themselves with the
+ * marker, and are flushed once when the batch has been written (see
+ * {@link BatchFlushMarker}).</p>
+ *
+ * <p>In structured mode, the fields of each entry are passed to SLF4J as
+ * the marker of the logging call, which is also a {@link java.util.Map}
+ * named {@link #STRUCTURED} (see {@link LogEntryFields}). The per-bundle
+ * fields are cached, and each entry gets its own set of fields, which never
+ * changes once the logging call has been made, so appenders may keep the
+ * event. If the fields are reused per thread instead, structured mode adds
+ * no allocation, but the fields of an event are only valid during the
+ * logging call that carries it.</p>
+ *
+ * <p>If exception fingerprinting is enabled, the stack trace of an exception
+ * is rendered only the first time its fingerprint is seen, with a short ID
+ * appended to the message. Later entries with the same fingerprint carry the
+ * ID and the number of occurrences instead of the exception (see
+ * {@link ExceptionFingerprints}).</p>
+ *
+ * <p>If load shedding is enabled, the time taken by each write is reported
+ * to the {@link LoadShedder}, which uses it to decide how many low-severity
+ * entries to discard before they reach the reader.</p>
+ *
+ * <p>Entries created by a {@link FormattingLogger} are passed to SLF4J as
+ * the original message template and arguments, so the message is formatted
+ * by SLF4J, if at all, rather than by the producer.</p>
  */
 
-public final class SLF4JLogReader implements LogListener
+public final class SLF4JLogReader
+  implements LogBatchListener, LogSuppressionListener
 {
+  /**
+   * The name of the marker attached to the entries of a batch. Output need
+   * not be flushed after such an entry if the marker is given a
+   * {@link java.io.Flushable} reference, because every reference is flushed
+   * when the batch has been written.
+   */
+
+  public static final String DEFER_FLUSH = "com.io7m.osgilog2.defer_flush";
+
+  /**
+   * The name of the marker that carries the fields of each entry in
+   * structured mode.
+   */
+
+  public static final String STRUCTURED = "com.io7m.osgilog2.structured";
+
   private static final Logger LOG;
 
   static {
     LOG = LoggerFactory.getLogger(SLF4JLogReader.class);
   }
 
-  SLF4JLogReader()
+  private final BundleLoggers loggers;
+  private final LogMetricsRecorder metrics;
+  private final LogSuppressor suppressor;
+  private final boolean structured;
+  private final boolean structured_reuse;
+  private final ThreadLocal<BatchFlushMarker> flush_markers;
+  private final ThreadLocal<LogEntryFields> structured_fields;
+  private final ExceptionFingerprints fingerprints;
+  private final LoadShedder shedder;
+
+  SLF4JLogReader(
+    final BundleLoggers in_loggers,
+    final LogMetricsRecorder in_metrics,
+    final LogSuppressor in_suppressor,
+    final boolean in_structured,
+    final boolean in_structured_reuse,
+    final ExceptionFingerprints in_fingerprints,
+    final LoadShedder in_shedder)
   {
+    this.loggers = Objects.requireNonNull(in_loggers, "Loggers");
+    this.metrics = Objects.requireNonNull(in_metrics, "Metrics");
+    this.suppressor = Objects.requireNonNull(in_suppressor, "Suppressor");
+    this.structured = in_structured;
+    this.structured_reuse = in_structured_reuse;
+    this.fingerprints =
+      Objects.requireNonNull(in_fingerprints, "Fingerprints");
+    this.shedder = Objects.requireNonNull(in_shedder, "Shedder");
+    this.flush_markers = ThreadLocal.withInitial(BatchFlushMarker::new);
+    this.structured_fields = ThreadLocal.withInitial(
+      () -> new LogEntryFields(this.flush_markers.get()));
+  }
+
+  /**
+   * @return The default logger used for entries that have no bundle
+   */
 
+  static Logger defaultLogger()
+  {
+    return LOG;
   }
 
   @Override
   public void logged(final LogEntry entry)
   {
+    final Bundle bundle = entry.getBundle();
+    final Logger log = this.loggers.forBundle(bundle);
     final int level = entry.getLevel();
+    if (SLF4JLogReader.isEnabled(log, level) && this.admit(bundle, entry)) {
+      this.metrics.onForwarded(bundle, level, entry.getTime());
+      this.write(log, level, entry, false);
+    } else {
+      this.metrics.onSuppressed(bundle, level);
+    }
+  }
+
+  private boolean admit(
+    final Bundle bundle,
+    final LogEntry entry)
+  {
+    /*
+     * The message is not requested unless the suppressor needs it, as it
+     * may have to be formatted.
+     */
+
+    if (!this.suppressor.isEnabled()) {
+      return true;
+    }
+
+    return this.suppressor.admit(
+      bundle,
+      entry.getLevel(),
+      entry.getMessage(),
+      entry.getException(),
+      this);
+  }
+
+  @Override
+  public void loggedBatch(
+    final LogEntry[] entries,
+    final int count)
+  {
+    /*
+     * Every entry is written with the deferral marker, and whatever
+     * registered with the marker is flushed once the batch is done. The
+     * flush does not depend on which logger the last entry went to, or on
+     * whether an appender's filters dropped it.
+     */
+
+    final BatchFlushMarker flush = this.flush_markers.get();
+    try {
+      for (int index = 0; index < count; ++index) {
+        final LogEntry entry = entries[index];
+        final Bundle bundle = entry.getBundle();
+        final Logger log = this.loggers.forBundle(bundle);
+        final int level = entry.getLevel();
+        if (SLF4JLogReader.isEnabled(log, level)
+          && this.admit(bundle, entry)) {
+          this.metrics.onForwarded(bundle, level, entry.getTime());
+          this.write(log, level, entry, true);
+        } else {
+          this.metrics.onSuppressed(bundle, level);
+        }
+      }
+    } finally {
+      flush.flushAll();
+    }
+  }
+
+  @Override
+  public void onRepeated(
+    final Bundle bundle,
+    final int level,
+    final String message,
+    final long count,
+    final long span_ms)
+  {
+    final Logger log = this.loggers.forBundle(bundle);
+    final String text = String.format(
+      "(repeated %d times in the last %d ms) %s", count, span_ms, message);
+
     switch (level) {
       case LogService.LOG_DEBUG: {
-        SLF4JLogReader.debug(entry);
+        log.debug(text);
         break;
       }
       case LogService.LOG_ERROR: {
-        SLF4JLogReader.error(entry);
+        log.error(text);
         break;
       }
       case LogService.LOG_INFO: {
-        SLF4JLogReader.info(entry);
+        log.info(text);
         break;
       }
-      case LogService.LOG_WARNING: {
-        SLF4JLogReader.warn(entry);
+      default: {
+        log.warn(text);
         break;
       }
+    }
+  }
+
+  @Override
+  public void onRateLimited(
+    final Bundle bundle,
+    final long count)
+  {
+    this.loggers.forBundle(bundle).warn(
+      "{} entries discarded by the rate limit", Long.valueOf(count));
+  }
+
+  private static boolean isEnabled(
+    final Logger log,
+    final int level)
+  {
+    switch (level) {
+      case LogService.LOG_DEBUG: {
+        return log.isDebugEnabled();
+      }
+      case LogService.LOG_ERROR: {
+        return log.isErrorEnabled();
+      }
+      case LogService.LOG_INFO: {
+        return log.isInfoEnabled();
+      }
+      case LogService.LOG_WARNING: {
+        return log.isWarnEnabled();
+      }
       default: {
-        SLF4JLogReader.warn(entry);
-        break;
+        return log.isWarnEnabled();
       }
     }
   }
 
-  private static void warn(final LogEntry entry)
+  private void write(
+    final Logger log,
+    final int level,
+    final LogEntry entry,
+    final boolean deferred)
   {
-    final String name = entry.getBundle().getSymbolicName();
-    final String message = entry.getMessage();
-    final Throwable ex = entry.getException();
-    if (ex != null) {
-      SLF4JLogReader.LOG.warn("[{}]: {}: ", name, message, ex);
-    } else {
-      SLF4JLogReader.LOG.warn("[{}]: {}", name, message);
+    if (!this.shedder.isEnabled()) {
+      this.writeEntry(log, level, entry, deferred);
+      return;
+    }
+
+    final long start = System.nanoTime();
+    try {
+      this.writeEntry(log, level, entry, deferred);
+    } finally {
+      this.shedder.onWritten(System.nanoTime() - start);
     }
   }
 
-  private static void info(final LogEntry entry)
+  private void writeEntry(
+    final Logger log,
+    final int level,
+    final LogEntry entry,
+    final boolean deferred)
   {
-    final String name = entry.getBundle().getSymbolicName();
-    final String message = entry.getMessage();
-    final Throwable ex = entry.getException();
-    if (ex != null) {
-      SLF4JLogReader.LOG.info("[{}]: {}: ", name, message, ex);
+    String message;
+    Object[] arguments;
+    if (entry instanceof FormattingLogEntry) {
+      final FormattingLogEntry formatting = (FormattingLogEntry) entry;
+      message = formatting.format();
+      arguments = formatting.arguments();
     } else {
-      SLF4JLogReader.LOG.info("[{}]: {}", name, message);
+      message = entry.getMessage();
+      arguments = null;
+    }
+
+    Throwable ex = entry.getException();
+
+    /*
+     * A fingerprinted exception is passed to SLF4J only the first time it is
+     * seen. Later occurrences are logged as a reference to the first.
+     */
+
+    if (ex != null && this.fingerprints.isEnabled()) {
+      final ExceptionFingerprints.Occurrence occurrence =
+        this.fingerprints.record(ex);
+      if (occurrence.isFirst()) {
+        message = message + " [exception " + occurrence.id() + "]";
+      } else {
+        message = message + " [exception " + occurrence.id()
+          + " seen " + occurrence.count() + " times]";
+        ex = null;
+        if (arguments != null) {
+          arguments = Arrays.copyOf(arguments, arguments.length - 1);
+        }
+      }
+    }
+
+    if (this.structured && this.structured_reuse) {
+      final LogEntryFields fields = this.structured_fields.get();
+      fields.set(
+        this.loggers.fieldsForBundle(entry.getBundle()), entry, deferred);
+      try {
+        SLF4JLogReader.writeTo(log, level, message, arguments, ex, fields);
+      } finally {
+        fields.reset();
+      }
+    } else if (this.structured) {
+      final LogEntryFields fields =
+        new LogEntryFields(this.flush_markers.get());
+      fields.set(
+        this.loggers.fieldsForBundle(entry.getBundle()), entry, deferred);
+      SLF4JLogReader.writeTo(log, level, message, arguments, ex, fields);
+    } else {
+      SLF4JLogReader.writeTo(
+        log,
+        level,
+        message,
+        arguments,
+        ex,
+        deferred ? this.flush_markers.get() : null);
     }
   }
 
-  private static void error(final LogEntry entry)
+  /**
+   * Write a message template and its arguments. The arguments are passed
+   * as they were logged, so a trailing exception is among them and is
+   * extracted by SLF4J.
+   */
+
+  private static void writeTo(
+    final Logger log,
+    final int level,
+    final String format,
+    final Object[] arguments,
+    final Throwable ex,
+    final Marker marker)
   {
-    final String name = entry.getBundle().getSymbolicName();
-    final String message = entry.getMessage();
-    final Throwable ex = entry.getException();
-    if (ex != null) {
-      SLF4JLogReader.LOG.error("[{}]: {}: ", name, message, ex);
-    } else {
-      SLF4JLogReader.LOG.error("[{}]: {}", name, message);
+    if (arguments == null || arguments.length == 0) {
+      SLF4JLogReader.writeTo(log, level, format, ex, marker);
+      return;
+    }
+
+    switch (level) {
+      case LogService.LOG_DEBUG: {
+        log.debug(marker, format, arguments);
+        break;
+      }
+      case LogService.LOG_ERROR: {
+        log.error(marker, format, arguments);
+        break;
+      }
+      case LogService.LOG_INFO: {
+        log.info(marker, format, arguments);
+        break;
+      }
+      default: {
+        log.warn(marker, format, arguments);
+        break;
+      }
     }
   }
 
-  private static void debug(final LogEntry entry)
+  private static void writeTo(
+    final Logger log,
+    final int level,
+    final String message,
+    final Throwable ex,
+    final Marker marker)
   {
-    final String name = entry.getBundle().getSymbolicName();
-    final String message = entry.getMessage();
-    final Throwable ex = entry.getException();
-    if (ex != null) {
-      SLF4JLogReader.LOG.debug("[{}]: {}: ", name, message, ex);
-    } else {
-      SLF4JLogReader.LOG.debug("[{}]: {}", name, message);
+    switch (level) {
+      case LogService.LOG_DEBUG: {
+        if (ex != null) {
+          log.debug(marker, message, ex);
+        } else {
+          log.debug(marker, message);
+        }
+        break;
+      }
+      case LogService.LOG_ERROR: {
+        if (ex != null) {
+          log.error(marker, message, ex);
+        } else {
+          log.error(marker, message);
+        }
+        break;
+      }
+      case LogService.LOG_INFO: {
+        if (ex != null) {
+          log.info(marker, message, ex);
+        } else {
+          log.info(marker, message);
+        }
+        break;
+      }
+      default: {
+        if (ex != null) {
+          log.warn(marker, message, ex);
+        } else {
+          log.warn(marker, message);
+        }
+        break;
+      }
     }
   }
 }
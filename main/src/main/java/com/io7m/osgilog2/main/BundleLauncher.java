@@ -0,0 +1,408 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * <p>Functions to install and start a directory of bundles in parallel.</p>
+ *
+ * <p>Bundles are installed concurrently, then resolved together in a single
+ * resolver operation. They are started in start level order. Within a start
+ * level, bundles are started in three phases, so that the log service and
+ * the bridge are listening before any other bundle can log during its
+ * startup:</p>
+ *
+ * <ol>
+ *   <li>The log service providers: bundles that declare the
+ *   {@code org.osgi.service.log} package or a log service among their
+ *   capabilities, whether or not the resolver chose their declaration.</li>
+ *   <li>The log readers: bundles that declare themselves with an
+ *   {@code Osgilog2-Log-Reader: true} manifest header, such as the
+ *   bridge.</li>
+ *   <li>Every other bundle.</li>
+ * </ol>
+ *
+ * <p>Within each of these phases, bundles are started in layers: a bundle is
+ * started only after every bundle in the same phase that it is wired to has
+ * been started, and the bundles of a layer are started concurrently.
+ * Fragments, including framework extensions, and bundles that could not be
+ * resolved are installed but never started.</p>
+ *
+ * <p>Bundles are started transiently, so that a framework restarted from a
+ * persistent cache does not start them serially by itself before they can
+ * be started here.</p>
+ */
+
+final class BundleLauncher
+{
+  private static final Logger LOG;
+  private static final String SERVICE_NAMESPACE = "osgi.service";
+  private static final String LOG_READER_HEADER = "Osgilog2-Log-Reader";
+  private static final String LOG_PACKAGE = "org.osgi.service.log";
+  private static final String LOG_SERVICE =
+    "org.osgi.service.log.LogService";
+  private static final String LOG_READER_SERVICE =
+    "org.osgi.service.log.LogReaderService";
+
+  static {
+    LOG = LoggerFactory.getLogger(BundleLauncher.class);
+  }
+
+  private BundleLauncher()
+  {
+
+  }
+
+  /**
+   * List the bundle jars in the given directory, in name order.
+   *
+   * @param directory The directory
+   * @param include   A predicate that selects files to include
+   *
+   * @return The bundle files
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static List<Path> scan(
+    final Path directory,
+    final Predicate<Path> include)
+    throws IOException
+  {
+    final List<Path> files = new ArrayList<>(64);
+    try (DirectoryStream<Path> stream =
+           Files.newDirectoryStream(directory, "*.jar")) {
+      for (final Path path : stream) {
+        if (include.test(path)) {
+          files.add(path);
+        }
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Install the given bundle files concurrently.
+   *
+   * @param context  The framework's bundle context
+   * @param files    The bundle files
+   * @param executor The executor on which to install bundles
+   *
+   * @return The installed bundles, in the order of the given files
+   *
+   * @throws BundleException      If any bundle cannot be installed
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  static List<Bundle> install(
+    final BundleContext context,
+    final List<Path> files,
+    final ExecutorService executor)
+    throws BundleException, InterruptedException
+  {
+    Objects.requireNonNull(context, "Context");
+
+    final List<Callable<Bundle>> tasks = new ArrayList<>(files.size());
+    for (final Path file : files) {
+      tasks.add(() -> {
+        final String location = file.toUri().toString();
+        LOG.debug("installing {}", location);
+        return context.installBundle(location);
+      });
+    }
+    return await(executor.invokeAll(tasks));
+  }
+
+  /**
+   * Resolve the given bundles together and start every bundle that is not a
+   * fragment. Bundles that cannot be resolved are logged and left installed.
+   *
+   * @param framework The framework
+   * @param bundles   The bundles
+   * @param executor  The executor on which to start bundles
+   *
+   * @throws BundleException      If any bundle cannot be started
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  static void start(
+    final Framework framework,
+    final List<Bundle> bundles,
+    final ExecutorService executor)
+    throws BundleException, InterruptedException
+  {
+    final FrameworkWiring wiring = framework.adapt(FrameworkWiring.class);
+    if (!wiring.resolveBundles(bundles)) {
+      for (final Bundle bundle : bundles) {
+        if (bundle.getState() == Bundle.INSTALLED) {
+          LOG.warn("bundle {} could not be resolved", bundle);
+        }
+      }
+    }
+
+    final TreeMap<Integer, List<Bundle>> levels = new TreeMap<>();
+    for (final Bundle bundle : bundles) {
+      if (isFragment(bundle) || bundle.getState() == Bundle.INSTALLED) {
+        continue;
+      }
+
+      final BundleStartLevel start_level = bundle.adapt(BundleStartLevel.class);
+      final Integer level = Integer.valueOf(start_level.getStartLevel());
+      levels.computeIfAbsent(level, k -> new ArrayList<>(16)).add(bundle);
+    }
+
+    for (final Map.Entry<Integer, List<Bundle>> e : levels.entrySet()) {
+      final List<Bundle> providers = new ArrayList<>(4);
+      final List<Bundle> readers = new ArrayList<>(4);
+      final List<Bundle> others = new ArrayList<>(e.getValue().size());
+      for (final Bundle bundle : e.getValue()) {
+        final BundleRevision revision = bundle.adapt(BundleRevision.class);
+        if (isLogReader(bundle)) {
+          readers.add(bundle);
+        } else if (revision == null) {
+          others.add(bundle);
+        } else if (isLogProvider(revision)) {
+          providers.add(bundle);
+        } else {
+          others.add(bundle);
+        }
+      }
+
+      LOG.debug("starting {} log providers at start level {}",
+                Integer.valueOf(providers.size()), e.getKey());
+      startLayers(providers, executor);
+      LOG.debug("starting {} log readers at start level {}",
+                Integer.valueOf(readers.size()), e.getKey());
+      startLayers(readers, executor);
+      LOG.debug("starting {} bundles at start level {}",
+                Integer.valueOf(others.size()), e.getKey());
+      startLayers(others, executor);
+    }
+  }
+
+  /**
+   * @return {@code true} iff {@code bundle} declares itself a log reader in
+   * its manifest
+   */
+
+  private static boolean isLogReader(
+    final Bundle bundle)
+  {
+    final String value = bundle.getHeaders("").get(LOG_READER_HEADER);
+    return value != null && Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * @return {@code true} iff {@code revision} declares the log service
+   * package or a log service as a capability
+   */
+
+  private static boolean isLogProvider(
+    final BundleRevision revision)
+  {
+    for (final BundleCapability capability :
+      revision.getDeclaredCapabilities(BundleRevision.PACKAGE_NAMESPACE)) {
+      final Object name =
+        capability.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE);
+      if (LOG_PACKAGE.equals(name)) {
+        return true;
+      }
+    }
+
+    for (final BundleCapability capability :
+      revision.getDeclaredCapabilities(SERVICE_NAMESPACE)) {
+      final Object classes =
+        capability.getAttributes().get(Constants.OBJECTCLASS);
+      if (classes instanceof Collection) {
+        final Collection<?> names = (Collection<?>) classes;
+        if (names.contains(LOG_SERVICE) || names.contains(LOG_READER_SERVICE)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isFragment(
+    final Bundle bundle)
+  {
+    final BundleRevision revision = bundle.adapt(BundleRevision.class);
+    return revision != null
+      && (revision.getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+  }
+
+  /**
+   * @return The bundles in {@code group} that {@code bundle} is wired to
+   */
+
+  private static Set<Bundle> dependencies(
+    final Bundle bundle,
+    final Collection<Bundle> group)
+  {
+    final Set<Bundle> result = new HashSet<>(8);
+    final BundleWiring wiring = bundle.adapt(BundleWiring.class);
+    if (wiring == null) {
+      return result;
+    }
+
+    for (final BundleWire wire : wiring.getRequiredWires(null)) {
+      final Bundle provider = wire.getProviderWiring().getBundle();
+      if (!Objects.equals(provider, bundle) && group.contains(provider)) {
+        result.add(provider);
+      }
+    }
+    return result;
+  }
+
+  private static void startLayers(
+    final List<Bundle> group,
+    final ExecutorService executor)
+    throws BundleException, InterruptedException
+  {
+    if (group.isEmpty()) {
+      return;
+    }
+
+    final Set<Bundle> members = new HashSet<>(group);
+    final Map<Bundle, Set<Bundle>> pending = new HashMap<>(group.size());
+    for (final Bundle bundle : group) {
+      pending.put(bundle, dependencies(bundle, members));
+    }
+
+    while (!pending.isEmpty()) {
+      final List<Bundle> layer = new ArrayList<>(pending.size());
+      for (final Bundle bundle : group) {
+        final Set<Bundle> deps = pending.get(bundle);
+        if (deps != null && deps.isEmpty()) {
+          layer.add(bundle);
+        }
+      }
+
+      /*
+       * If no bundle is ready, the remaining bundles depend on each other.
+       * Start them all together; the framework allows wiring cycles, and
+       * activators must not assume an order between them.
+       */
+
+      if (layer.isEmpty()) {
+        for (final Bundle bundle : group) {
+          if (pending.containsKey(bundle)) {
+            layer.add(bundle);
+          }
+        }
+      }
+
+      for (final Bundle bundle : layer) {
+        pending.remove(bundle);
+      }
+      for (final Set<Bundle> deps : pending.values()) {
+        deps.removeAll(layer);
+      }
+
+      startConcurrently(layer, executor);
+    }
+  }
+
+  private static void startConcurrently(
+    final List<Bundle> layer,
+    final ExecutorService executor)
+    throws BundleException, InterruptedException
+  {
+    if (layer.size() == 1) {
+      final Bundle bundle = layer.get(0);
+      LOG.debug("starting: {}", bundle);
+      bundle.start(Bundle.START_TRANSIENT);
+      return;
+    }
+
+    final List<Callable<Bundle>> tasks = new ArrayList<>(layer.size());
+    for (final Bundle bundle : layer) {
+      tasks.add(() -> {
+        LOG.debug("starting: {}", bundle);
+        bundle.start(Bundle.START_TRANSIENT);
+        return bundle;
+      });
+    }
+    await(executor.invokeAll(tasks));
+  }
+
+  private static <T> List<T> await(
+    final List<Future<T>> futures)
+    throws BundleException, InterruptedException
+  {
+    final List<T> results = new ArrayList<>(futures.size());
+    BundleException failure = null;
+
+    for (final Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        final BundleException ex;
+        if (cause instanceof BundleException) {
+          ex = (BundleException) cause;
+        } else {
+          ex = new BundleException(cause.getMessage(), cause);
+        }
+        if (failure == null) {
+          failure = ex;
+        } else {
+          failure.addSuppressed(ex);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+}
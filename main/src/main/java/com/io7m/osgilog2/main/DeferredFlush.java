@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import org.slf4j.Marker;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * <p>A marker that an appender or encoder adds to the
+ * {@code com.io7m.osgilog2.defer_flush} marker of a batch in place of
+ * flushing after an event. The log service bundle flushes every such
+ * reference once, when it has finished writing the batch.</p>
+ */
+
+final class DeferredFlush implements Marker, Flushable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final transient Flushable target;
+
+  /**
+   * Construct a reference.
+   *
+   * @param in_target The flush to perform at the end of each batch
+   */
+
+  DeferredFlush(
+    final Flushable in_target)
+  {
+    this.target = Objects.requireNonNull(in_target, "Target");
+  }
+
+  /**
+   * Defer flushing until the end of the batch to which the event belongs.
+   *
+   * @param event The event
+   *
+   * @return {@code true} if the event belongs to a batch and the flush was
+   * deferred, {@code false} if the caller must flush
+   */
+
+  boolean defer(
+    final ILoggingEvent event)
+  {
+    final Marker batch = DeferredFlush.batchOf(event.getMarker());
+    if (batch == null) {
+      return false;
+    }
+    batch.add(this);
+    return batch.contains(this);
+  }
+
+  private static Marker batchOf(
+    final Marker marker)
+  {
+    if (marker == null) {
+      return null;
+    }
+    if (DeferredFlushEncoder.DEFER_FLUSH.equals(marker.getName())) {
+      return marker;
+    }
+    if (marker.hasReferences()) {
+      final Iterator<Marker> iter = marker.iterator();
+      while (iter.hasNext()) {
+        final Marker reference = iter.next();
+        if (DeferredFlushEncoder.DEFER_FLUSH.equals(reference.getName())) {
+          return reference;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void flush()
+    throws IOException
+  {
+    this.target.flush();
+  }
+
+  @Override
+  public String getName()
+  {
+    return "com.io7m.osgilog2.deferred_flush";
+  }
+
+  @Override
+  public void add(
+    final Marker reference)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean remove(
+    final Marker reference)
+  {
+    return false;
+  }
+
+  @Override
+  @Deprecated
+  public boolean hasChildren()
+  {
+    return false;
+  }
+
+  @Override
+  public boolean hasReferences()
+  {
+    return false;
+  }
+
+  @Override
+  public Iterator<Marker> iterator()
+  {
+    return Collections.emptyIterator();
+  }
+
+  @Override
+  public boolean contains(
+    final Marker other)
+  {
+    return this == other;
+  }
+
+  @Override
+  public boolean contains(
+    final String name)
+  {
+    return this.getName().equals(name);
+  }
+}
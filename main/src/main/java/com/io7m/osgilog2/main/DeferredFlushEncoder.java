@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p>A pattern layout encoder that skips the per-event flush for events
+ * that belong to a batch, and flushes once when the batch has been
+ * written.</p>
+ *
+ * <p>The log service bundle attaches a marker named
+ * {@code com.io7m.osgilog2.defer_flush} to every bridged entry of a batch.
+ * With this encoder, an appender that would otherwise flush after every
+ * event registers with the marker instead, and is flushed once by the log
+ * service bundle at the end of the batch (see {@link DeferredFlush}).
+ * Events without the marker are treated exactly as by
+ * {@link PatternLayoutEncoder}.</p>
+ *
+ * <p>The deferred flush is made by the log service bundle's thread, not by
+ * the appender, so it cannot take the appender's lock. Instead, every use
+ * of the output stream made through this encoder (encoding an event,
+ * opening and closing the stream, and the deferred flush) holds the
+ * encoder's monitor, and the stream is forgotten when the appender closes
+ * the encoder, so a deferred flush never runs concurrently with a write
+ * and never reaches a stream that the appender has closed.</p>
+ */
+
+public final class DeferredFlushEncoder extends PatternLayoutEncoder
+{
+  /**
+   * The name of the marker that defers flushing.
+   */
+
+  public static final String DEFER_FLUSH = "com.io7m.osgilog2.defer_flush";
+
+  private final DeferredFlush deferred;
+
+  /**
+   * Construct an encoder.
+   */
+
+  public DeferredFlushEncoder()
+  {
+    this.deferred = new DeferredFlush(this::flushDeferred);
+  }
+
+  private synchronized void flushDeferred()
+    throws IOException
+  {
+    final OutputStream out = this.outputStream;
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public synchronized void init(
+    final OutputStream os)
+    throws IOException
+  {
+    super.init(os);
+  }
+
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    try {
+      super.close();
+    } finally {
+      this.outputStream = null;
+    }
+  }
+
+  @Override
+  public synchronized void doEncode(
+    final ILoggingEvent event)
+    throws IOException
+  {
+    final String text = this.layout.doLayout(event);
+    final Charset charset = this.getCharset();
+    if (charset == null) {
+      this.outputStream.write(text.getBytes());
+    } else {
+      this.outputStream.write(text.getBytes(charset));
+    }
+
+    if (this.isImmediateFlush() && !this.deferred.defer(event)) {
+      this.outputStream.flush();
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * <p>A fixed pool of direct buffers in front of a file channel.</p>
+ *
+ * <p>Bytes are written into the buffers in order. When the last buffer is
+ * full, every buffer is written to the channel with a single gathering
+ * write and the pool is reused from the start, so an event of any size can
+ * be encoded without allocating.</p>
+ */
+
+final class DirectBuffers
+{
+  /**
+   * Buffers smaller than this cannot hold the encoding of every character.
+   */
+
+  static final int BUFFER_SIZE_MINIMUM = 4;
+
+  private final FileChannel channel;
+  private final ByteBuffer[] buffers;
+  private int current;
+
+  /**
+   * Construct a pool.
+   *
+   * @param in_channel     The channel to which buffers are written
+   * @param in_buffer_size The size of each buffer in octets; at least
+   *                       {@link #BUFFER_SIZE_MINIMUM}
+   * @param in_count       The number of buffers
+   */
+
+  DirectBuffers(
+    final FileChannel in_channel,
+    final int in_buffer_size,
+    final int in_count)
+  {
+    this.channel = Objects.requireNonNull(in_channel, "Channel");
+    if (in_buffer_size < BUFFER_SIZE_MINIMUM) {
+      throw new IllegalArgumentException(
+        "Buffer size must be at least " + BUFFER_SIZE_MINIMUM
+          + " (got " + in_buffer_size + ")");
+    }
+    this.buffers = new ByteBuffer[in_count];
+    for (int index = 0; index < in_count; ++index) {
+      this.buffers[index] = ByteBuffer.allocateDirect(in_buffer_size);
+    }
+    this.current = 0;
+  }
+
+  /**
+   * Write one octet.
+   *
+   * @param b The octet
+   *
+   * @throws IOException On I/O errors while draining full buffers
+   */
+
+  void put(
+    final byte b)
+    throws IOException
+  {
+    ByteBuffer buffer = this.buffers[this.current];
+    if (!buffer.hasRemaining()) {
+      buffer = this.next();
+    }
+    buffer.put(b);
+  }
+
+  /**
+   * Write the given octets.
+   *
+   * @param bytes The octets
+   *
+   * @throws IOException On I/O errors while draining full buffers
+   */
+
+  void put(
+    final byte[] bytes)
+    throws IOException
+  {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ByteBuffer buffer = this.buffers[this.current];
+      if (!buffer.hasRemaining()) {
+        buffer = this.next();
+      }
+      final int count = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, count);
+      offset += count;
+    }
+  }
+
+  /**
+   * Write the given text as UTF-8 (see {@link EventText}). The encoding of
+   * a character is never split across buffers.
+   *
+   * @param text The text
+   *
+   * @throws IOException On I/O errors while draining full buffers
+   */
+
+  void putUTF8(
+    final CharSequence text)
+    throws IOException
+  {
+    final int length = text.length();
+    int index = EventText.putUTF8(this.buffers[this.current], text, 0);
+    while (index < length) {
+      index = EventText.putUTF8(this.next(), text, index);
+    }
+  }
+
+  /**
+   * Write the decimal digits of the given non-negative number, padded with
+   * spaces on the left to the given width.
+   *
+   * @param value The number
+   * @param width The minimum width
+   *
+   * @throws IOException On I/O errors while draining full buffers
+   */
+
+  void putPaddedDecimal(
+    final long value,
+    final int width)
+    throws IOException
+  {
+    int digits = 1;
+    for (long rest = value / 10L; rest > 0L; rest /= 10L) {
+      ++digits;
+    }
+    for (int index = digits; index < width; ++index) {
+      this.put((byte) ' ');
+    }
+
+    long divisor = 1L;
+    for (int index = 1; index < digits; ++index) {
+      divisor *= 10L;
+    }
+    for (long rest = value; divisor > 0L; divisor /= 10L) {
+      this.put((byte) ('0' + (rest / divisor)));
+      rest %= divisor;
+    }
+  }
+
+  private ByteBuffer next()
+    throws IOException
+  {
+    if (this.current + 1 == this.buffers.length) {
+      this.drain();
+    } else {
+      ++this.current;
+    }
+    return this.buffers[this.current];
+  }
+
+  /**
+   * Write every buffered octet to the channel.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void drain()
+    throws IOException
+  {
+    final int count = this.current + 1;
+    for (int index = 0; index < count; ++index) {
+      this.buffers[index].flip();
+    }
+
+    try {
+      while (this.buffers[this.current].hasRemaining()) {
+        this.channel.write(this.buffers, 0, count);
+      }
+    } finally {
+      for (int index = 0; index < count; ++index) {
+        this.buffers[index].clear();
+      }
+      this.current = 0;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>An encoder that writes events directly into {@link DirectBuffers}, in
+ * the format of the pattern {@code [%8r] %level %logger: %msg%n} used by
+ * the shipped logback configuration.</p>
+ *
+ * <p>Level tokens are encoded once. Numbers, logger names, and messages are
+ * encoded character by character into the buffers, so no intermediate
+ * strings or byte arrays are created for events without exceptions.
+ * Exceptions are rendered by {@link EventText} into a builder that is reused
+ * from one event to the next, so an encoder must not be shared between
+ * threads without synchronization.</p>
+ */
+
+public final class DirectEventEncoder
+{
+  private static final byte[] TRACE = token("TRACE");
+  private static final byte[] DEBUG = token("DEBUG");
+  private static final byte[] INFO = token("INFO");
+  private static final byte[] WARN = token("WARN");
+  private static final byte[] ERROR = token("ERROR");
+  private static final byte[] OFF = token("OFF");
+
+  private final StringBuilder throwable_text;
+
+  /**
+   * Construct an encoder.
+   */
+
+  public DirectEventEncoder()
+  {
+    this.throwable_text = new StringBuilder(1024);
+  }
+
+  private static byte[] token(
+    final String text)
+  {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] levelToken(
+    final Level level)
+  {
+    switch (level.levelInt) {
+      case Level.TRACE_INT:
+        return TRACE;
+      case Level.DEBUG_INT:
+        return DEBUG;
+      case Level.INFO_INT:
+        return INFO;
+      case Level.WARN_INT:
+        return WARN;
+      case Level.ERROR_INT:
+        return ERROR;
+      default:
+        return OFF;
+    }
+  }
+
+  /**
+   * Encode an event.
+   *
+   * @param event      The event
+   * @param birth_time The time at which the logger context was created
+   * @param out        The buffers
+   *
+   * @throws IOException On I/O errors while draining full buffers
+   */
+
+  void encode(
+    final ILoggingEvent event,
+    final long birth_time,
+    final DirectBuffers out)
+    throws IOException
+  {
+    out.put((byte) '[');
+    out.putPaddedDecimal(Math.max(0L, event.getTimeStamp() - birth_time), 8);
+    out.put((byte) ']');
+    out.put((byte) ' ');
+    out.put(levelToken(event.getLevel()));
+    out.put((byte) ' ');
+    out.putUTF8(event.getLoggerName());
+    out.put((byte) ':');
+    out.put((byte) ' ');
+
+    final String message = event.getFormattedMessage();
+    if (message != null) {
+      out.putUTF8(message);
+    }
+    out.put((byte) '\n');
+
+    final IThrowableProxy proxy = event.getThrowableProxy();
+    if (proxy != null) {
+      this.throwable_text.setLength(0);
+      EventText.appendThrowable(this.throwable_text, proxy);
+      out.putUTF8(this.throwable_text);
+    }
+  }
+}
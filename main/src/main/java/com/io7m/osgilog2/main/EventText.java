@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>The text encoding shared by the appenders that write events without
+ * going through a logback layout.</p>
+ *
+ * <p>Text is encoded as UTF-8 with unpaired surrogates written as
+ * {@code '?'}, and exceptions are rendered in the format that logback uses
+ * for {@code %ex}.</p>
+ */
+
+final class EventText
+{
+  private EventText()
+  {
+
+  }
+
+  /**
+   * @param text The text
+   *
+   * @return The number of octets that {@code text} occupies as UTF-8
+   */
+
+  static int utf8Length(
+    final CharSequence text)
+  {
+    final int length = text.length();
+    int octets = 0;
+    for (int index = 0; index < length; ++index) {
+      final char c = text.charAt(index);
+      if (c < 0x80) {
+        octets += 1;
+      } else if (c < 0x800) {
+        octets += 2;
+      } else if (isPair(text, index, length)) {
+        octets += 4;
+        ++index;
+      } else if (Character.isSurrogate(c)) {
+        octets += 1;
+      } else {
+        octets += 3;
+      }
+    }
+    return octets;
+  }
+
+  /**
+   * Write as much of the given text as fits in the buffer as UTF-8, without
+   * splitting the encoding of any character.
+   *
+   * @param buffer The output buffer
+   * @param text   The text
+   * @param start  The index of the first character to write
+   *
+   * @return The index of the first character that was not written, which
+   * is {@code text.length()} if the whole text was written
+   */
+
+  static int putUTF8(
+    final ByteBuffer buffer,
+    final CharSequence text,
+    final int start)
+  {
+    final int length = text.length();
+    int index = start;
+    while (index < length) {
+      final char c = text.charAt(index);
+      final int remaining = buffer.remaining();
+      if (c < 0x80) {
+        if (remaining < 1) {
+          break;
+        }
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        if (remaining < 2) {
+          break;
+        }
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if (isPair(text, index, length)) {
+        if (remaining < 4) {
+          break;
+        }
+        final int code = Character.toCodePoint(c, text.charAt(index + 1));
+        ++index;
+        buffer.put((byte) (0xf0 | (code >> 18)));
+        buffer.put((byte) (0x80 | ((code >> 12) & 0x3f)));
+        buffer.put((byte) (0x80 | ((code >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (code & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        if (remaining < 1) {
+          break;
+        }
+        buffer.put((byte) '?');
+      } else {
+        if (remaining < 3) {
+          break;
+        }
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+      ++index;
+    }
+    return index;
+  }
+
+  private static boolean isPair(
+    final CharSequence text,
+    final int index,
+    final int length)
+  {
+    return Character.isHighSurrogate(text.charAt(index))
+      && index + 1 < length
+      && Character.isLowSurrogate(text.charAt(index + 1));
+  }
+
+  /**
+   * Append an exception and its causes, one line per frame.
+   *
+   * @param out   The output
+   * @param first The outermost exception
+   */
+
+  static void appendThrowable(
+    final StringBuilder out,
+    final IThrowableProxy first)
+  {
+    for (IThrowableProxy proxy = first; proxy != null; proxy = proxy.getCause()) {
+      if (proxy != first) {
+        out.append("Caused by: ");
+      }
+      out.append(proxy.getClassName());
+      final String message = proxy.getMessage();
+      if (message != null) {
+        out.append(": ");
+        out.append(message);
+      }
+      out.append('\n');
+
+      final StackTraceElementProxy[] frames =
+        proxy.getStackTraceElementProxyArray();
+      final int common = proxy.getCommonFrames();
+      final int count = frames.length - common;
+      for (int index = 0; index < count; ++index) {
+        out.append("\tat ");
+        out.append(frames[index].getStackTraceElement());
+        out.append('\n');
+      }
+      if (common > 0) {
+        out.append("\t... ");
+        out.append(common);
+        out.append(" common frames omitted\n");
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggerContextListener;
+
+import java.util.Objects;
+
+/**
+ * A logback listener that pushes the effective level of the framework logger
+ * into the running framework whenever logback levels change, or logback is
+ * reconfigured.
+ */
+
+final class FelixLogLevelListener implements LoggerContextListener
+{
+  private final FelixLogger logger;
+
+  /**
+   * Construct a listener.
+   *
+   * @param in_logger The framework logger
+   */
+
+  FelixLogLevelListener(
+    final FelixLogger in_logger)
+  {
+    this.logger = Objects.requireNonNull(in_logger, "Logger");
+  }
+
+  @Override
+  public boolean isResetResistant()
+  {
+    return true;
+  }
+
+  @Override
+  public void onStart(
+    final LoggerContext context)
+  {
+    this.logger.synchronizeLevel();
+  }
+
+  @Override
+  public void onReset(
+    final LoggerContext context)
+  {
+    this.logger.synchronizeLevel();
+  }
+
+  @Override
+  public void onStop(
+    final LoggerContext context)
+  {
+    // Nothing
+  }
+
+  @Override
+  public void onLevelChange(
+    final Logger changed,
+    final Level level)
+  {
+    this.logger.synchronizeLevel();
+  }
+}
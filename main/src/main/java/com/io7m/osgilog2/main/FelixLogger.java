@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.osgilog2.main;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>An Apache Felix specific logger. This logger is used to capture messages
+ * from the actual framework itself.</p>
+ *
+ * <p>The framework's log level is kept equal to the effective level of the
+ * SLF4J logger, so that the framework does not construct messages that would
+ * only be discarded. Messages at disabled levels that still arrive are
+ * dropped before any arguments are computed.</p>
+ */
+
+final class FelixLogger extends org.apache.felix.framework.Logger
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(FelixLogger.class);
+  }
+
+  FelixLogger()
+  {
+
+  }
+
+  /**
+   * @return The Felix log level that corresponds to the effective level of
+   * the SLF4J logger
+   */
+
+  static int effectiveLevel()
+  {
+    if (LOG.isDebugEnabled()) {
+      return LOG_DEBUG;
+    }
+    if (LOG.isInfoEnabled()) {
+      return LOG_INFO;
+    }
+    if (LOG.isWarnEnabled()) {
+      return LOG_WARNING;
+    }
+    if (LOG.isErrorEnabled()) {
+      return LOG_ERROR;
+    }
+    return 0;
+  }
+
+  /**
+   * Set the framework log level to the current effective level of the SLF4J
+   * logger.
+   */
+
+  void synchronizeLevel()
+  {
+    this.setLogLevel(effectiveLevel());
+  }
+
+  private static boolean isEnabled(
+    final int level)
+  {
+    switch (level) {
+      case LOG_DEBUG:
+        return LOG.isDebugEnabled();
+      case LOG_ERROR:
+        return LOG.isErrorEnabled();
+      case LOG_INFO:
+        return LOG.isInfoEnabled();
+      case LOG_WARNING:
+        return LOG.isWarnEnabled();
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  protected void doLog(
+    final Bundle bundle,
+    final ServiceReference sr,
+    final int level,
+    final String msg,
+    final Throwable throwable)
+  {
+    if (!isEnabled(level)) {
+      return;
+    }
+
+    switch (level) {
+      case LOG_DEBUG: {
+        LOG.debug(
+          "[{}]: {}: ",
+          bundle.getSymbolicName(),
+          msg,
+          throwable);
+        break;
+      }
+      case LOG_ERROR: {
+        LOG.error(
+          "[{}]: {}: ",
+          bundle.getSymbolicName(),
+          msg,
+          throwable);
+        break;
+      }
+      case LOG_INFO: {
+        LOG.info("[{}]: {}: ", bundle.getSymbolicName(), msg, throwable);
+        break;
+      }
+      case LOG_WARNING: {
+        LOG.warn("[{}]: {}: ", bundle.getSymbolicName(), msg, throwable);
+        break;
+      }
+    }
+  }
+
+  @Override
+  protected void doLog(
+    final int level,
+    final String msg,
+    final Throwable throwable)
+  {
+    if (!isEnabled(level)) {
+      return;
+    }
+
+    switch (level) {
+      case LOG_DEBUG: {
+        LOG.debug("{}: ", msg, throwable);
+        break;
+      }
+      case LOG_ERROR: {
+        LOG.error("{}: ", msg, throwable);
+        break;
+      }
+      case LOG_INFO: {
+        LOG.info("{}: ", msg, throwable);
+        break;
+      }
+      case LOG_WARNING: {
+        LOG.warn("{}: ", msg, throwable);
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * <p>An appender that encodes events with a {@link DirectEventEncoder} into
+ * a pool of direct buffers and writes them to a file with gathering writes
+ * on a {@link FileChannel}.</p>
+ *
+ * <p>If {@code immediateFlush} is {@code true} (the default), the buffers are
+ * written after every event that does not carry the
+ * {@code com.io7m.osgilog2.defer_flush} marker. Events that carry it are
+ * written once, when the log service bundle flushes the appender at the end
+ * of the batch (see {@link DeferredFlush}). Otherwise, the buffers are written only when they are
+ * full and when the appender stops. The {@code sync} property controls
+ * whether written data is forced to the storage device: {@code NONE} leaves
+ * it to the operating system, {@code DATA} forces file content, and
+ * {@code ALL} forces file content and metadata.</p>
+ *
+ * <pre>
+ * &lt;appender name="FILE" class="com.io7m.osgilog2.main.FileChannelAppender"&gt;
+ *   &lt;file&gt;/tmp/osgilog2/log.txt&lt;/file&gt;
+ *   &lt;bufferSize&gt;65536&lt;/bufferSize&gt;
+ *   &lt;bufferCount&gt;4&lt;/bufferCount&gt;
+ *   &lt;sync&gt;NONE&lt;/sync&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+
+public final class FileChannelAppender extends AppenderBase<ILoggingEvent>
+{
+  private enum Sync
+  {
+    NONE,
+    DATA,
+    ALL
+  }
+
+  private final DirectEventEncoder encoder;
+  private final DeferredFlush deferred;
+  private String file;
+  private int buffer_size;
+  private int buffer_count;
+  private boolean immediate_flush;
+  private Sync sync;
+  private FileChannel channel;
+  private DirectBuffers buffers;
+  private long birth_time;
+
+  /**
+   * Construct an appender.
+   */
+
+  public FileChannelAppender()
+  {
+    this.encoder = new DirectEventEncoder();
+    this.deferred = new DeferredFlush(this::flushDeferred);
+    this.buffer_size = 64 * 1024;
+    this.buffer_count = 4;
+    this.immediate_flush = true;
+    this.sync = Sync.NONE;
+  }
+
+  /**
+   * @param in_file The file to which events are appended
+   */
+
+  public void setFile(
+    final String in_file)
+  {
+    this.file = in_file;
+  }
+
+  /**
+   * @param size The size of each direct buffer in octets
+   */
+
+  public void setBufferSize(
+    final int size)
+  {
+    this.buffer_size = size;
+  }
+
+  /**
+   * @param count The number of direct buffers
+   */
+
+  public void setBufferCount(
+    final int count)
+  {
+    this.buffer_count = count;
+  }
+
+  /**
+   * @param flush {@code true} if buffers should be written after each event
+   */
+
+  public void setImmediateFlush(
+    final boolean flush)
+  {
+    this.immediate_flush = flush;
+  }
+
+  /**
+   * @param in_sync One of {@code NONE}, {@code DATA}, or {@code ALL}
+   */
+
+  public void setSync(
+    final String in_sync)
+  {
+    this.sync = Sync.valueOf(in_sync.trim().toUpperCase(Locale.ROOT));
+  }
+
+  @Override
+  public void start()
+  {
+    if (this.file == null) {
+      this.addError("No file was specified for appender " + this.name);
+      return;
+    }
+    if (this.buffer_size < DirectBuffers.BUFFER_SIZE_MINIMUM
+      || this.buffer_count < 1) {
+      this.addError(
+        "Buffer size must be at least " + DirectBuffers.BUFFER_SIZE_MINIMUM
+          + " and buffer count must be positive");
+      return;
+    }
+
+    try {
+      final Path path = Paths.get(this.file).toAbsolutePath();
+      final Path parent = path.getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      this.channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    } catch (final IOException e) {
+      this.addError("Could not open " + this.file, e);
+      return;
+    }
+
+    this.buffers =
+      new DirectBuffers(this.channel, this.buffer_size, this.buffer_count);
+    this.birth_time = this.context.getBirthTime();
+    super.start();
+  }
+
+  @Override
+  public void stop()
+  {
+    if (!this.isStarted()) {
+      return;
+    }
+
+    synchronized (this) {
+      super.stop();
+      try {
+        this.write();
+      } catch (final IOException e) {
+        this.addError("Could not write to " + this.file, e);
+      }
+      try {
+        this.channel.close();
+      } catch (final IOException e) {
+        this.addError("Could not close " + this.file, e);
+      }
+      this.channel = null;
+      this.buffers = null;
+    }
+  }
+
+  @Override
+  protected void append(
+    final ILoggingEvent event)
+  {
+    try {
+      this.encoder.encode(event, this.birth_time, this.buffers);
+      if (this.immediate_flush && !this.deferred.defer(event)) {
+        this.write();
+      }
+    } catch (final IOException e) {
+      this.addError("Could not write to " + this.file, e);
+    }
+  }
+
+  private synchronized void flushDeferred()
+    throws IOException
+  {
+    if (this.isStarted()) {
+      this.write();
+    }
+  }
+
+  private void write()
+    throws IOException
+  {
+    this.buffers.drain();
+    switch (this.sync) {
+      case NONE:
+        break;
+      case DATA:
+        this.channel.force(false);
+        break;
+      case ALL:
+        this.channel.force(true);
+        break;
+    }
+  }
+}
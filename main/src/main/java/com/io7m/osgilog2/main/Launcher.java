@@ -0,0 +1,670 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.LoggerContext;
+import org.apache.felix.framework.CachingSecurityProvider;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Policy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An embeddable launcher that starts an OSGi container whose log
+ * messages go through the host program's logging configuration.</p>
+ *
+ * <p>A launcher can start, stop and restart its framework any number of
+ * times. The framework factory is looked up once per JVM, and the storage
+ * directories, the framework logger, its level listener and the threads
+ * used to install and start bundles are created once per launcher and
+ * reused by every start. With warm start enabled, restarts also reuse the
+ * bundle cache and only reinstall bundles whose jars have changed.</p>
+ *
+ * <p>Launchers are created with {@link #builder()} and must be closed when
+ * no longer needed.</p>
+ */
+
+public final class Launcher implements AutoCloseable
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(Launcher.class);
+  }
+
+  private static final String FELIX_LOG_JAR = "org.apache.felix.log.jar";
+  private static final long STOP_TIMEOUT_MS = 2000L;
+
+  private static FrameworkFactory factory;
+
+  private final Path storage;
+  private final Path library;
+  private final List<String> system_packages;
+  private final boolean security;
+  private final boolean security_cache;
+  private final boolean builtin_log;
+  private final boolean warm_start;
+  private final Path profile;
+  private final Map<String, String> properties;
+  private final org.apache.felix.framework.Logger logger;
+  private final FelixLogLevelListener level_listener;
+  private final ExecutorService executor;
+  private Framework framework;
+  private List<Bundle> bundles;
+  private Runnable policy_listener;
+  private boolean storage_created;
+  private boolean closed;
+
+  private Launcher(
+    final Builder builder)
+  {
+    this.storage = builder.storage;
+    this.library = builder.library;
+    this.system_packages =
+      Collections.unmodifiableList(new ArrayList<>(builder.system_packages));
+    this.security = builder.security;
+    this.security_cache = builder.security_cache;
+    this.builtin_log = builder.builtin_log;
+    this.warm_start = builder.warm_start;
+    this.profile = builder.profile;
+    this.properties =
+      Collections.unmodifiableMap(new HashMap<>(builder.properties));
+    this.bundles = Collections.emptyList();
+
+    /*
+     * The default framework logger follows the effective level of the
+     * framework SLF4J logger, including when logback is reconfigured at
+     * runtime.
+     */
+
+    if (builder.logger != null) {
+      this.logger = builder.logger;
+      this.level_listener = null;
+    } else {
+      final FelixLogger felix_logger = new FelixLogger();
+      felix_logger.synchronizeLevel();
+      this.logger = felix_logger;
+      this.level_listener = new FelixLogLevelListener(felix_logger);
+      final ILoggerFactory logger_factory = LoggerFactory.getILoggerFactory();
+      if (logger_factory instanceof LoggerContext) {
+        ((LoggerContext) logger_factory).addListener(this.level_listener);
+      }
+    }
+
+    final int threads = builder.launcher_threads;
+    final AtomicInteger count = new AtomicInteger(0);
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r);
+      t.setName("com.io7m.osgilog2.main.launcher-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * @return A new builder with the default configuration
+   */
+
+  public static Builder builder()
+  {
+    return new Builder();
+  }
+
+  private static synchronized FrameworkFactory frameworkFactory()
+  {
+    if (factory == null) {
+      final Iterator<FrameworkFactory> iterator =
+        ServiceLoader.load(FrameworkFactory.class).iterator();
+      if (!iterator.hasNext()) {
+        throw new IllegalStateException("No OSGi framework factory available");
+      }
+      factory = iterator.next();
+    }
+    return factory;
+  }
+
+  /**
+   * Start the framework, install every bundle in the library directory, and
+   * start the bundles.
+   *
+   * @return The running framework
+   *
+   * @throws Exception On errors
+   */
+
+  public synchronized Framework start()
+    throws Exception
+  {
+    if (this.closed) {
+      throw new IllegalStateException("Launcher is closed");
+    }
+    if (this.framework != null) {
+      throw new IllegalStateException("Framework is already running");
+    }
+
+    final StartupProfiler profiler =
+      this.profile != null ? new StartupProfiler() : null;
+
+    this.createStorage();
+
+    final Framework f = frameworkFactory().newFramework(this.configuration());
+    f.init();
+    if (profiler != null) {
+      profiler.mark("framework.initialized");
+      profiler.open(f.getBundleContext());
+    }
+    f.start();
+    this.framework = f;
+
+    LOG.debug("security manager: {}", System.getSecurityManager());
+
+    try {
+      this.bundles = this.launch(f, profiler);
+    } catch (final Exception e) {
+      this.stop();
+      throw e;
+    }
+
+    if (profiler != null) {
+      profiler.close();
+      profiler.logSummary(10);
+      profiler.write(this.profile);
+    }
+    return f;
+  }
+
+  private void createStorage()
+    throws IOException
+  {
+    if (!this.storage_created) {
+      Files.createDirectories(this.storage);
+      Files.createDirectories(this.library);
+      this.storage_created = true;
+    }
+  }
+
+  private Map<String, String> configuration()
+  {
+    final Map<String, Object> config = new HashMap<>(this.properties);
+    config.put(Constants.FRAMEWORK_STORAGE, this.storage.toString());
+
+    /*
+     * In warm start mode, the bundle cache is kept between runs and only
+     * bundles that have changed are installed or updated.
+     */
+
+    if (!this.warm_start) {
+      config.put(
+        Constants.FRAMEWORK_STORAGE_CLEAN,
+        Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+    }
+
+    /*
+     * The security manager installed by the first secure framework stays
+     * installed for the life of the JVM. The policy must already be in place
+     * when it is installed.
+     */
+
+    if (this.security) {
+      if (!(Policy.getPolicy() instanceof PermissivePolicy)) {
+        Policy.setPolicy(new PermissivePolicy());
+      }
+      config.put(Constants.FRAMEWORK_SECURITY, Constants.FRAMEWORK_SECURITY_OSGI);
+    }
+
+    config.put(
+      FelixConstants.LOG_LEVEL_PROP,
+      Integer.toString(this.logger.getLogLevel()));
+    config.put(FelixConstants.LOG_LOGGER_PROP, this.logger);
+
+    /*
+     * Expose the host's packages (by default, the SLF4J API) to the
+     * container, so that bundles that require them are resolved against
+     * the host's implementation.
+     */
+
+    if (!this.system_packages.isEmpty()) {
+      config.put(
+        Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA,
+        String.join(",", this.system_packages));
+    }
+
+    final Object cast = config;
+    @SuppressWarnings("unchecked")
+    final Map<String, String> config_strings = (Map<String, String>) cast;
+    return config_strings;
+  }
+
+  private List<Bundle> launch(
+    final Framework f,
+    final StartupProfiler profiler)
+    throws Exception
+  {
+    /*
+     * Install every bundle in the library directory in parallel, then
+     * resolve them together and start them in dependency order.
+     *
+     * The log service bundle can provide its own log service and log
+     * reader service, in which case the Felix log service is not needed.
+     */
+
+    if (this.builtin_log) {
+      LOG.debug("using the built-in log service");
+    }
+
+    final List<Path> files = BundleLauncher.scan(
+      this.library,
+      path -> !(this.builtin_log && FELIX_LOG_JAR.equals(
+        path.getFileName().toString())));
+
+    final List<Bundle> installed;
+    if (this.warm_start) {
+      LOG.debug("synchronizing {} bundles", Integer.valueOf(files.size()));
+      installed = WarmStart.synchronize(
+        f, this.storage, this.library, files, this.executor);
+    } else {
+      LOG.debug("installing {} bundles", Integer.valueOf(files.size()));
+      installed = BundleLauncher.install(
+        f.getBundleContext(), files, this.executor);
+      WarmStart.record(this.storage, files);
+    }
+    if (profiler != null) {
+      profiler.mark("launcher.installed");
+    }
+
+    /*
+     * Optionally cache the decisions of the security provider. The security
+     * extension sets the provider when it is installed, so this must happen
+     * after installation. Refreshing the policy discards the cache.
+     */
+
+    if (this.security && this.security_cache) {
+      final CachingSecurityProvider provider =
+        CachingSecurityProvider.install(f);
+      final Policy policy = Policy.getPolicy();
+      if (policy instanceof PermissivePolicy) {
+        this.policy_listener = provider::invalidate;
+        ((PermissivePolicy) policy).addRefreshListener(this.policy_listener);
+      }
+      LOG.debug("caching security decisions");
+    }
+
+    BundleLauncher.start(f, installed, this.executor);
+    if (profiler != null) {
+      profiler.mark("launcher.started");
+    }
+    return Collections.unmodifiableList(installed);
+  }
+
+  /**
+   * Stop the framework, if it is running, and wait for it to stop. If it
+   * does not stop in time, it is kept as the running framework, so that it
+   * cannot be replaced by a new framework on the same storage directory
+   * while it is still stopping, and this method may be called again.
+   *
+   * @throws TimeoutException If the framework did not stop in time
+   * @throws Exception        On errors
+   */
+
+  public synchronized void stop()
+    throws Exception
+  {
+    final Framework f = this.framework;
+    if (f == null) {
+      return;
+    }
+
+    f.stop();
+    final FrameworkEvent event = f.waitForStop(STOP_TIMEOUT_MS);
+    if (event.getType() == FrameworkEvent.WAIT_TIMEDOUT) {
+      throw new TimeoutException(
+        "Framework did not stop within " + STOP_TIMEOUT_MS + "ms");
+    }
+
+    this.framework = null;
+    this.bundles = Collections.emptyList();
+    if (this.policy_listener != null) {
+      final Policy policy = Policy.getPolicy();
+      if (policy instanceof PermissivePolicy) {
+        ((PermissivePolicy) policy).removeRefreshListener(this.policy_listener);
+      }
+      this.policy_listener = null;
+    }
+  }
+
+  /**
+   * Stop the framework, if it is running, and start it again.
+   *
+   * @return The running framework
+   *
+   * @throws Exception On errors
+   */
+
+  public synchronized Framework restart()
+    throws Exception
+  {
+    this.stop();
+    return this.start();
+  }
+
+  /**
+   * @return The running framework, or {@code null} if it is not running
+   */
+
+  public synchronized Framework framework()
+  {
+    return this.framework;
+  }
+
+  /**
+   * @return The bundles installed from the library directory by the last
+   * start, in the order of their jars, or an empty list if the framework is
+   * not running
+   */
+
+  public synchronized List<Bundle> bundles()
+  {
+    return this.bundles;
+  }
+
+  /**
+   * Stop the framework, if it is running, and release the resources shared
+   * between runs.
+   *
+   * @throws Exception On errors
+   */
+
+  @Override
+  public synchronized void close()
+    throws Exception
+  {
+    if (this.closed) {
+      return;
+    }
+
+    this.closed = true;
+    try {
+      this.stop();
+    } finally {
+      this.executor.shutdown();
+      if (this.level_listener != null) {
+        final ILoggerFactory logger_factory = LoggerFactory.getILoggerFactory();
+        if (logger_factory instanceof LoggerContext) {
+          ((LoggerContext) logger_factory).removeListener(this.level_listener);
+        }
+      }
+    }
+  }
+
+  /**
+   * A mutable builder for launchers.
+   */
+
+  public static final class Builder
+  {
+    private Path storage;
+    private Path library;
+    private final List<String> system_packages;
+    private boolean security;
+    private boolean security_cache;
+    private boolean builtin_log;
+    private boolean warm_start;
+    private Path profile;
+    private int launcher_threads;
+    private final Map<String, String> properties;
+    private org.apache.felix.framework.Logger logger;
+
+    private Builder()
+    {
+      final Path root = Paths.get("/tmp/osgilog2");
+      this.storage = root.resolve("cache");
+      this.library = root.resolve("lib");
+      this.system_packages = new ArrayList<>(4);
+      this.system_packages.add("org.slf4j; version=1.7.21");
+      this.system_packages.add("org.slf4j.*; version=1.7.21");
+      this.security = true;
+      this.launcher_threads = Runtime.getRuntime().availableProcessors();
+      this.properties = new HashMap<>(8);
+    }
+
+    /**
+     * Set the framework storage (bundle cache) directory. Defaults to
+     * {@code /tmp/osgilog2/cache}.
+     *
+     * @param path The directory
+     *
+     * @return this
+     */
+
+    public Builder setStorageDirectory(
+      final Path path)
+    {
+      this.storage = Objects.requireNonNull(path, "Path");
+      return this;
+    }
+
+    /**
+     * Set the directory from which bundles are installed. Defaults to
+     * {@code /tmp/osgilog2/lib}.
+     *
+     * @param path The directory
+     *
+     * @return this
+     */
+
+    public Builder setLibraryDirectory(
+      final Path path)
+    {
+      this.library = Objects.requireNonNull(path, "Path");
+      return this;
+    }
+
+    /**
+     * Remove every extra system package, including the default SLF4J
+     * packages.
+     *
+     * @return this
+     */
+
+    public Builder clearSystemPackages()
+    {
+      this.system_packages.clear();
+      return this;
+    }
+
+    /**
+     * Add an extra system package exported from the host to the container,
+     * in {@code Export-Package} syntax.
+     *
+     * @param text The package declaration
+     *
+     * @return this
+     */
+
+    public Builder addSystemPackage(
+      final String text)
+    {
+      this.system_packages.add(Objects.requireNonNull(text, "Text"));
+      return this;
+    }
+
+    /**
+     * Enable or disable OSGi security. Defaults to {@code true}. Note that
+     * the security manager installed by a secure framework cannot be
+     * removed for the life of the JVM.
+     *
+     * @param enabled {@code true} if security should be enabled
+     *
+     * @return this
+     */
+
+    public Builder setSecurity(
+      final boolean enabled)
+    {
+      this.security = enabled;
+      return this;
+    }
+
+    /**
+     * Enable or disable caching of security decisions. Defaults to
+     * {@code false}.
+     *
+     * @param enabled {@code true} if decisions should be cached
+     *
+     * @return this
+     *
+     * @see CachingSecurityProvider
+     */
+
+    public Builder setSecurityCache(
+      final boolean enabled)
+    {
+      this.security_cache = enabled;
+      return this;
+    }
+
+    /**
+     * Use the log service bundle's built-in log service instead of the
+     * Felix log service. Defaults to {@code false}.
+     *
+     * @param enabled {@code true} if the built-in log service should be used
+     *
+     * @return this
+     */
+
+    public Builder setBuiltinLog(
+      final boolean enabled)
+    {
+      this.builtin_log = enabled;
+      return this;
+    }
+
+    /**
+     * Keep the bundle cache between starts and reinstall only changed
+     * bundles. Defaults to {@code false}.
+     *
+     * @param enabled {@code true} if warm start should be used
+     *
+     * @return this
+     */
+
+    public Builder setWarmStart(
+      final boolean enabled)
+    {
+      this.warm_start = enabled;
+      return this;
+    }
+
+    /**
+     * Write a startup timeline to the given file on each start.
+     *
+     * @param path The file, or {@code null} to disable profiling
+     *
+     * @return this
+     */
+
+    public Builder setProfile(
+      final Path path)
+    {
+      this.profile = path;
+      return this;
+    }
+
+    /**
+     * Set the number of threads used to install and start bundles. Defaults
+     * to the number of available processors.
+     *
+     * @param threads The number of threads
+     *
+     * @return this
+     */
+
+    public Builder setLauncherThreads(
+      final int threads)
+    {
+      this.launcher_threads = Math.max(1, threads);
+      return this;
+    }
+
+    /**
+     * Set the framework logger. By default, a logger that writes to SLF4J
+     * and follows the level of its SLF4J logger is used.
+     *
+     * @param in_logger The logger
+     *
+     * @return this
+     */
+
+    public Builder setLogger(
+      final org.apache.felix.framework.Logger in_logger)
+    {
+      this.logger = Objects.requireNonNull(in_logger, "Logger");
+      return this;
+    }
+
+    /**
+     * Set an additional framework configuration property.
+     *
+     * @param name  The name
+     * @param value The value
+     *
+     * @return this
+     */
+
+    public Builder setProperty(
+      final String name,
+      final String value)
+    {
+      this.properties.put(
+        Objects.requireNonNull(name, "Name"),
+        Objects.requireNonNull(value, "Value"));
+      return this;
+    }
+
+    /**
+     * @return A new launcher
+     */
+
+    public Launcher build()
+    {
+      return new Launcher(this);
+    }
+  }
+}
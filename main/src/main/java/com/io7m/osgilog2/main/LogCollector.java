@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.Level;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A minimal collector for entries shipped by
+ * {@link SocketChannelAppender}, intended for testing.</p>
+ *
+ * <p>The collector listens on the given port on the loopback interface,
+ * decodes batches from any number of connections, and prints each entry to
+ * the standard output, or only counts entries if {@code --quiet} is given.
+ * A summary is printed to the standard error when each connection closes.
+ * The collector can be paused by suspending the process, to exercise the
+ * backlog and reconnection behaviour of the appender. The collector
+ * depends only on the Java platform (the level constants it uses are
+ * inlined by the compiler).</p>
+ *
+ * <pre>
+ * $ java -cp main.jar com.io7m.osgilog2.main.LogCollector 9514 [--quiet]
+ * </pre>
+ */
+
+public final class LogCollector
+{
+  private final PrintStream output;
+  private final boolean quiet;
+  private final AtomicLong total;
+
+  private LogCollector(
+    final PrintStream in_output,
+    final boolean in_quiet)
+  {
+    this.output = in_output;
+    this.quiet = in_quiet;
+    this.total = new AtomicLong();
+  }
+
+  /**
+   * The main program.
+   *
+   * @param args Command line arguments
+   *
+   * @throws IOException On I/O errors
+   */
+
+  public static void main(
+    final String[] args)
+    throws IOException
+  {
+    if (args.length < 1) {
+      System.err.println("usage: port [--quiet]");
+      System.exit(1);
+      return;
+    }
+
+    final int port = Integer.parseInt(args[0]);
+    final boolean quiet = args.length > 1 && "--quiet".equals(args[1]);
+    final LogCollector collector = new LogCollector(System.out, quiet);
+
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", port));
+      System.err.println("listening on " + server.getLocalAddress());
+
+      while (true) {
+        final SocketChannel client = server.accept();
+        final Thread thread = new Thread(() -> collector.receive(client));
+        thread.setName("com.io7m.osgilog2.main.collector");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+  }
+
+  private static String levelName(
+    final int level)
+  {
+    switch (level) {
+      case Level.TRACE_INT:
+        return "TRACE";
+      case Level.DEBUG_INT:
+        return "DEBUG";
+      case Level.INFO_INT:
+        return "INFO ";
+      case Level.WARN_INT:
+        return "WARN ";
+      case Level.ERROR_INT:
+        return "ERROR";
+      default:
+        return "L" + level;
+    }
+  }
+
+  private static void readFully(
+    final SocketChannel channel,
+    final ByteBuffer buffer)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  private void receive(
+    final SocketChannel channel)
+  {
+    long batches = 0L;
+    long entries = 0L;
+    String remote = "(unknown)";
+
+    try (SocketChannel c = channel) {
+      remote = String.valueOf(c.getRemoteAddress());
+
+      final ByteBuffer preamble =
+        ByteBuffer.allocate(LogShippingFormat.PREAMBLE_SIZE);
+      readFully(c, preamble);
+      if (preamble.getInt() != LogShippingFormat.MAGIC) {
+        throw new IOException("Bad magic number");
+      }
+      final int version = preamble.getInt();
+      if (version != LogShippingFormat.VERSION) {
+        throw new IOException("Unsupported version " + version);
+      }
+
+      final ByteBuffer header =
+        ByteBuffer.allocate(LogShippingFormat.BATCH_HEADER_SIZE);
+      ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+
+      while (true) {
+        header.clear();
+        try {
+          readFully(c, header);
+        } catch (final EOFException e) {
+          break;
+        }
+
+        final int length = header.getInt() - 4;
+        final int count = header.getInt();
+        if (length < 0 || length > LogShippingFormat.BATCH_SIZE_MAXIMUM) {
+          throw new IOException("Bad batch length " + length);
+        }
+        if (batch.capacity() < length) {
+          batch = ByteBuffer.allocate(length);
+        }
+        batch.clear();
+        batch.limit(length);
+        readFully(c, batch);
+
+        /*
+         * Only complete batches are decoded, so a batch that was cut short
+         * by a lost connection is discarded here and arrives again on the
+         * next connection.
+         */
+
+        for (int index = 0; index < count; ++index) {
+          this.decodeEntry(batch);
+        }
+        ++batches;
+        entries += (long) count;
+        this.total.addAndGet((long) count);
+      }
+    } catch (final IOException e) {
+      System.err.println(remote + ": " + e);
+    }
+
+    this.output.flush();
+    System.err.printf(
+      "%s: closed after %d batches, %d entries (%d entries in total)%n",
+      remote,
+      Long.valueOf(batches),
+      Long.valueOf(entries),
+      Long.valueOf(this.total.get()));
+  }
+
+  private void decodeEntry(
+    final ByteBuffer batch)
+  {
+    final int length = batch.getInt();
+    final int end = batch.position() + length;
+
+    if (!this.quiet) {
+      final long time = batch.getLong();
+      final int level = batch.getInt();
+      final String logger = LogShippingFormat.getString(batch);
+      final String thread = LogShippingFormat.getString(batch);
+      final String message = LogShippingFormat.getString(batch);
+      final String exception = LogShippingFormat.getString(batch);
+
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append(Instant.ofEpochMilli(time));
+      sb.append(' ');
+      sb.append(levelName(level));
+      sb.append(' ');
+      sb.append(logger);
+      sb.append(" [");
+      sb.append(thread);
+      sb.append("]: ");
+      sb.append(message);
+      synchronized (this.output) {
+        this.output.println(sb);
+        if (exception != null) {
+          this.output.print(exception);
+        }
+      }
+    }
+
+    batch.position(end);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Constants and helpers describing the log shipping wire format.</p>
+ *
+ * <p>A connection begins with a preamble of {@link #PREAMBLE_SIZE} octets:
+ * the magic number and the format version. The preamble is followed by
+ * any number of batches. A batch is an {@code int32} length giving the
+ * number of octets that follow, an {@code int32} count of entries, and the
+ * entries. An entry is an {@code int32} length giving the number of octets
+ * that follow, an {@code int64} time in milliseconds since the epoch, the
+ * {@code int32} logback level, and strings for the logger name, the thread
+ * name, the formatted message, and the rendered exception. A string is an
+ * {@code int32} length, or {@code -1} for a missing string, followed by that
+ * many octets of UTF-8. All integers are big-endian.</p>
+ *
+ * <p>If the connection is lost part of the way through a batch, the whole
+ * batch is sent again on the next connection, so a collector must discard a
+ * trailing incomplete batch when a connection closes.</p>
+ */
+
+final class LogShippingFormat
+{
+  /**
+   * The magic number that starts every connection.
+   */
+
+  static final int MAGIC = 0x4F4C5331;
+
+  /**
+   * The format version.
+   */
+
+  static final int VERSION = 1;
+
+  /**
+   * The size of the connection preamble.
+   */
+
+  static final int PREAMBLE_SIZE = 8;
+
+  /**
+   * The size of a batch header.
+   */
+
+  static final int BATCH_HEADER_SIZE = 8;
+
+  /**
+   * Collectors reject batches larger than this.
+   */
+
+  static final int BATCH_SIZE_MAXIMUM = 256 * 1024 * 1024;
+
+  private LogShippingFormat()
+  {
+
+  }
+
+  /**
+   * Write a string.
+   *
+   * @param buffer The output buffer
+   * @param text   The string, or {@code null}
+   *
+   * @throws BufferOverflowException If the buffer is too small
+   */
+
+  static void putString(
+    final ByteBuffer buffer,
+    final CharSequence text)
+  {
+    if (text == null) {
+      buffer.putInt(-1);
+      return;
+    }
+
+    final int length = EventText.utf8Length(text);
+    if (buffer.remaining() < 4 + length) {
+      throw new BufferOverflowException();
+    }
+    buffer.putInt(length);
+    EventText.putUTF8(buffer, text, 0);
+  }
+
+  /**
+   * Read a string.
+   *
+   * @param buffer The input buffer
+   *
+   * @return The string, or {@code null}
+   */
+
+  static String getString(
+    final ByteBuffer buffer)
+  {
+    final int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final String text = new String(
+      buffer.array(),
+      buffer.arrayOffset() + buffer.position(),
+      length,
+      StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return text;
+  }
+}
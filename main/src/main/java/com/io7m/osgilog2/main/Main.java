@@ -16,128 +16,80 @@
 
 package com.io7m.osgilog2.main;
 
-import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.CachingSecurityProvider;
 import org.osgi.framework.Bundle;
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.BundleException;
-import org.osgi.framework.Constants;
-import org.osgi.framework.ServiceReference;
-import org.osgi.framework.launch.Framework;
-import org.osgi.framework.launch.FrameworkFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Policy;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.ServiceLoader;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A command line program that starts up an OSGi container and configures
  * logging such that all log messages produced inside the container end up
  * going through the host program's logging configuration.
+ *
+ * @see Launcher
  */
 
 public final class Main
 {
-  private static final Logger LOG;
+  /**
+   * The property that enables the log service bundle's built-in log service.
+   * If it is {@code true}, the Felix log service is not installed.
+   */
 
-  static {
-    Policy.setPolicy(new PermissivePolicy());
+  public static final String BUILTIN_LOG =
+    "com.io7m.osgilog2.logservice.builtin";
 
-    LOG = LoggerFactory.getLogger(Main.class);
-  }
+  /**
+   * The number of threads used to install and start bundles. Defaults to
+   * the number of available processors.
+   */
 
-  private Main()
-  {
+  public static final String LAUNCHER_THREADS =
+    "com.io7m.osgilog2.main.launcher_threads";
 
-  }
+  /**
+   * The property that enables warm start mode. If it is {@code true}, the
+   * bundle cache is kept between runs.
+   */
+
+  public static final String WARM_START =
+    "com.io7m.osgilog2.main.warm_start";
 
   /**
-   * An Apache Felix specific logger. This logger is used to capture messages
-   * from the actual framework itself.
+   * The property that enables the startup profiler. If it is set, a timeline
+   * of the startup is written as JSON to the file it names, and the slowest
+   * bundle activators are logged.
    */
 
-  private static final class FelixLogger extends org.apache.felix.framework.Logger
-  {
-    private static final Logger LOG;
+  public static final String PROFILE =
+    "com.io7m.osgilog2.main.profile";
 
-    static {
-      LOG = LoggerFactory.getLogger(FelixLogger.class);
-    }
+  /**
+   * The property that enables the security decision cache. If it is
+   * {@code true}, the decisions of the Felix security provider are cached
+   * per protection domain and permission.
+   *
+   * @see CachingSecurityProvider
+   */
 
-    FelixLogger()
-    {
+  public static final String SECURITY_CACHE =
+    "com.io7m.osgilog2.main.security_cache";
 
-    }
+  private static final Logger LOG;
 
-    @Override
-    protected void doLog(
-      final Bundle bundle,
-      final ServiceReference sr,
-      final int level,
-      final String msg,
-      final Throwable throwable)
-    {
-      switch (level) {
-        case LOG_DEBUG: {
-          LOG.debug(
-            "[{}]: {}: ",
-            bundle.getSymbolicName(),
-            msg,
-            throwable);
-          break;
-        }
-        case LOG_ERROR: {
-          LOG.error(
-            "[{}]: {}: ",
-            bundle.getSymbolicName(),
-            msg,
-            throwable);
-          break;
-        }
-        case LOG_INFO: {
-          LOG.info("[{}]: {}: ", bundle.getSymbolicName(), msg, throwable);
-          break;
-        }
-        case LOG_WARNING: {
-          LOG.warn("[{}]: {}: ", bundle.getSymbolicName(), msg, throwable);
-          break;
-        }
-      }
-    }
+  static {
+    Policy.setPolicy(new PermissivePolicy());
+
+    LOG = LoggerFactory.getLogger(Main.class);
+  }
+
+  private Main()
+  {
 
-    @Override
-    protected void doLog(
-      final int level,
-      final String msg,
-      final Throwable throwable)
-    {
-      switch (level) {
-        case LOG_DEBUG: {
-          LOG.debug("{}: ", msg, throwable);
-          break;
-        }
-        case LOG_ERROR: {
-          LOG.error("{}: ", msg, throwable);
-          break;
-        }
-        case LOG_INFO: {
-          LOG.info("{}: ", msg, throwable);
-          break;
-        }
-        case LOG_WARNING: {
-          LOG.warn("{}: ", msg, throwable);
-          break;
-        }
-      }
-    }
   }
 
   /**
@@ -153,133 +105,68 @@ public final class Main
     throws Exception
   {
     /*
-     * The path to the temporary directory. This directory is expected
-     * to be populated with bundles that will be installed into the container.
+     * The path to the temporary directory. The library directory is
+     * expected to be populated with bundles that will be installed into the
+     * container.
      */
 
-    final Path root = Files.createDirectories(Paths.get("/tmp/osgilog2"));
-    final Path root_lib = Files.createDirectories(root.resolve("lib"));
-    final Path root_cache = Files.createDirectories(root.resolve("cache"));
+    final Path root = Paths.get("/tmp/osgilog2");
+    final Path root_lib = root.resolve("lib");
+    final Path root_cache = root.resolve("cache");
 
     LOG.debug("root:       {}", root);
     LOG.debug("root cache: {}", root_cache);
     LOG.debug("root lib:   {}", root_lib);
 
-    /*
-     * Get access to an OSGi framework factory and configure the required
-     * properties to enable logging. Note the use of an Apache Felix specific
-     * configuration value that passes in a Logger implementation.
-     */
-
-    final FrameworkFactory frameworkFactory =
-      ServiceLoader.load(FrameworkFactory.class).iterator().next();
-
-    final Map<String, Object> config = new HashMap<>();
-    config.put(Constants.FRAMEWORK_STORAGE, root_cache.toString());
-    config.put(Constants.FRAMEWORK_STORAGE_CLEAN, "onFirstInit");
-    config.put(Constants.FRAMEWORK_SECURITY, "osgi");
-    config.put(FelixConstants.LOG_LEVEL_PROP, "999");
-    config.put(FelixConstants.LOG_LOGGER_PROP, new FelixLogger());
-
-    /*
-     * Expose the host's SLF4J API to the container. This ensures that
-     * any time a package requires the SLF4J, the actual implementation will
-     * be resolved to the one on the host.
-     */
-
-    final StringBuilder sb = new StringBuilder(128);
-    sb.append("org.slf4j; version=1.7.21");
-    sb.append(",");
-    sb.append("org.slf4j.*; version=1.7.21");
-    config.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, sb.toString());
-
-    final Object cast = config;
-    @SuppressWarnings("unchecked")
-    final Map<String, String> config_strings = (Map<String, String>) cast;
-
-    /*
-     * Start the framework.
-     */
-
-    Main.LOG.debug("starting framework");
-
-    final Framework framework = frameworkFactory.newFramework(config_strings);
-    framework.start();
-
-    Main.LOG.debug("security manager: {}", System.getSecurityManager());
-
-    try {
-      final BundleContext c = framework.getBundleContext();
-
-      /*
-       * Install all of the bundles.
-       */
-
-      Main.LOG.debug("installing bundles");
-      final List<Bundle> bundles = new LinkedList<>();
-      bundles.add(
-        Main.install(c, root_lib, "org.apache.felix.framework.security"));
-      bundles.add(
-        Main.install(c, root_lib, "org.apache.felix.log"));
-      bundles.add(
-        Main.install(c, root_lib, "logservice"));
-      bundles.add(
-        Main.install(c, root_lib, "test-osgi-logging"));
-      bundles.add(
-        Main.install(c, root_lib, "test-logback"));
+    final Launcher.Builder builder =
+      Launcher.builder()
+        .setStorageDirectory(root_cache)
+        .setLibraryDirectory(root_lib)
+        .setBuiltinLog(Boolean.getBoolean(BUILTIN_LOG))
+        .setWarmStart(Boolean.getBoolean(WARM_START))
+        .setSecurityCache(Boolean.getBoolean(SECURITY_CACHE))
+        .setLauncherThreads(Integer.getInteger(
+          LAUNCHER_THREADS,
+          Runtime.getRuntime().availableProcessors()).intValue());
+
+    final String profile = System.getProperty(PROFILE);
+    if (profile != null) {
+      builder.setProfile(Paths.get(profile));
+    }
 
-      for (final Bundle bundle : bundles) {
-        Main.LOG.debug("starting: {}", bundle);
-        bundle.start();
-      }
+    try (Launcher launcher = builder.build()) {
+      Main.LOG.debug("starting framework");
 
-      for (final Bundle bundle : bundles) {
-        final int state = bundle.getState();
-        switch (state) {
-          case Bundle.UNINSTALLED: {
-            Main.LOG.debug("bundle {} is UNINSTALLED", bundle);
-            break;
-          }
-          case Bundle.INSTALLED: {
-            Main.LOG.debug("bundle {} is INSTALLED", bundle);
-            break;
-          }
-          case Bundle.RESOLVED: {
-            Main.LOG.debug("bundle {} is RESOLVED", bundle);
-            break;
-          }
-          case Bundle.STARTING: {
-            Main.LOG.debug("bundle {} is STARTING", bundle);
-            break;
-          }
-          case Bundle.STOPPING: {
-            Main.LOG.debug("bundle {} is STOPPING", bundle);
-            break;
-          }
-          case Bundle.ACTIVE: {
-            Main.LOG.debug("bundle {} is ACTIVE", bundle);
-            break;
-          }
+      try {
+        launcher.start();
+        for (final Bundle bundle : launcher.bundles()) {
+          Main.LOG.debug("bundle {} is {}", bundle, stateName(bundle.getState()));
         }
+      } finally {
+        Main.LOG.debug("shutting down");
       }
-
-    } finally {
-      Main.LOG.debug("shutting down");
-      framework.stop();
-      framework.waitForStop(
-        TimeUnit.MILLISECONDS.convert(2L, TimeUnit.SECONDS));
-      Main.LOG.debug("exiting");
     }
+    Main.LOG.debug("exiting");
   }
 
-  private static Bundle install(
-    final BundleContext c,
-    final Path lib,
-    final String pack)
-    throws BundleException
+  private static String stateName(
+    final int state)
   {
-    final String file = "file:" + lib + "/" + pack + ".jar";
-    Main.LOG.debug("installing {} ({})", pack, file);
-    return c.installBundle(file);
+    switch (state) {
+      case Bundle.UNINSTALLED:
+        return "UNINSTALLED";
+      case Bundle.INSTALLED:
+        return "INSTALLED";
+      case Bundle.RESOLVED:
+        return "RESOLVED";
+      case Bundle.STARTING:
+        return "STARTING";
+      case Bundle.STOPPING:
+        return "STOPPING";
+      case Bundle.ACTIVE:
+        return "ACTIVE";
+      default:
+        return Integer.toString(state);
+    }
   }
 }
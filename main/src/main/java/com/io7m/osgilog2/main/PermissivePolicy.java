@@ -24,6 +24,9 @@ import java.security.Permissions;
 import java.security.Policy;
 import java.security.ProtectionDomain;
 import java.security.Provider;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * <p>A Policy implementation that simply allows everything by default. The
@@ -35,11 +38,16 @@ import java.security.Provider;
  * parts of the JDK library may implicitly cause a default policy implementation
  * to be installed, and once that has happened, the default permissions do not
  * allow it to be changed.</p>
+ *
+ * <p>Listeners registered with {@link #addRefreshListener(Runnable)} are
+ * run whenever the policy is refreshed, so that anything caching security
+ * decisions can discard them.</p>
  */
 
 public final class PermissivePolicy extends Policy
 {
   private final Permissions permissions_default;
+  private final List<Runnable> refresh_listeners;
 
   /**
    * Construct a new policy.
@@ -51,6 +59,31 @@ public final class PermissivePolicy extends Policy
     q.add(new AllPermission());
     q.setReadOnly();
     this.permissions_default = q;
+    this.refresh_listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Add a listener that is run whenever the policy is refreshed.
+   *
+   * @param listener The listener
+   */
+
+  public void addRefreshListener(
+    final Runnable listener)
+  {
+    this.refresh_listeners.add(Objects.requireNonNull(listener, "Listener"));
+  }
+
+  /**
+   * Remove a listener added with {@link #addRefreshListener(Runnable)}.
+   *
+   * @param listener The listener
+   */
+
+  public void removeRefreshListener(
+    final Runnable listener)
+  {
+    this.refresh_listeners.remove(Objects.requireNonNull(listener, "Listener"));
   }
 
   @Override
@@ -62,7 +95,9 @@ public final class PermissivePolicy extends Policy
   @Override
   public void refresh()
   {
-    // Nothing
+    for (final Runnable listener : this.refresh_listeners) {
+      listener.run();
+    }
   }
 
   @Override
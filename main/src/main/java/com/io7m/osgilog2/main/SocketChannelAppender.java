@@ -0,0 +1,523 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.AppenderBase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An appender that ships events in batches to a collector over a
+ * non-blocking {@link SocketChannel}, in the format described by
+ * {@link LogShippingFormat}.</p>
+ *
+ * <p>Appending an event only encodes it into an in-memory backlog of
+ * {@code backlogSize} octets and never waits for the collector. A single
+ * I/O thread connects to the collector, and whenever the previous batch has
+ * been written, takes every entry in the backlog as the next batch, so
+ * batches grow with the rate of logging. If the collector is unavailable,
+ * the thread reconnects with exponential backoff between
+ * {@code reconnectDelayMinimum} and {@code reconnectDelayMaximum}
+ * milliseconds, and entries accumulate in the backlog until it is full,
+ * after which new entries are discarded and counted. On stopping, the
+ * thread spends up to {@code stopTimeout} milliseconds delivering the
+ * backlog; a {@code shutdownHook} should be configured so that the appender
+ * is stopped when the JVM exits. The number of discarded entries is
+ * reported as a status warning after each batch that follows them.</p>
+ *
+ * <pre>
+ * &lt;shutdownHook class="ch.qos.logback.core.hook.DelayingShutdownHook"/&gt;
+ * &lt;appender name="SHIP" class="com.io7m.osgilog2.main.SocketChannelAppender"&gt;
+ *   &lt;host&gt;localhost&lt;/host&gt;
+ *   &lt;port&gt;9514&lt;/port&gt;
+ *   &lt;backlogSize&gt;4194304&lt;/backlogSize&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+
+public final class SocketChannelAppender extends AppenderBase<ILoggingEvent>
+{
+  private final StringBuilder throwable_text;
+  private String host;
+  private int port;
+  private int backlog_size;
+  private long reconnect_min;
+  private long reconnect_max;
+  private long connect_timeout;
+  private long stop_timeout;
+
+  private ByteBuffer pending;
+  private int pending_count;
+  private long dropped;
+  private ByteBuffer sending;
+  private int sending_count;
+  private ByteBuffer preamble;
+  private ByteBuffer header;
+  private ByteBuffer[] gather;
+  private ByteBuffer discard;
+  private InetSocketAddress address;
+  private Selector selector;
+  private SocketChannel channel;
+  private SelectionKey key;
+  private Thread thread;
+  private volatile boolean running;
+  private volatile long drain_deadline;
+
+  /**
+   * Construct an appender.
+   */
+
+  public SocketChannelAppender()
+  {
+    this.throwable_text = new StringBuilder(1024);
+    this.host = "localhost";
+    this.port = 9514;
+    this.backlog_size = 4 * 1024 * 1024;
+    this.reconnect_min = 100L;
+    this.reconnect_max = 10000L;
+    this.connect_timeout = 5000L;
+    this.stop_timeout = 1000L;
+  }
+
+  /**
+   * @param in_host The collector host
+   */
+
+  public void setHost(
+    final String in_host)
+  {
+    this.host = in_host;
+  }
+
+  /**
+   * @param in_port The collector port
+   */
+
+  public void setPort(
+    final int in_port)
+  {
+    this.port = in_port;
+  }
+
+  /**
+   * @param size The size of the backlog in octets, at least 1024 and at
+   *             most the largest batch that a collector accepts (256 MiB)
+   */
+
+  public void setBacklogSize(
+    final int size)
+  {
+    this.backlog_size = size;
+  }
+
+  /**
+   * @param delay The delay in milliseconds before the first reconnection
+   */
+
+  public void setReconnectDelayMinimum(
+    final long delay)
+  {
+    this.reconnect_min = delay;
+  }
+
+  /**
+   * @param delay The largest delay in milliseconds between reconnections
+   */
+
+  public void setReconnectDelayMaximum(
+    final long delay)
+  {
+    this.reconnect_max = delay;
+  }
+
+  /**
+   * @param timeout The time in milliseconds allowed for each connection
+   *                attempt
+   */
+
+  public void setConnectTimeout(
+    final long timeout)
+  {
+    this.connect_timeout = timeout;
+  }
+
+  /**
+   * @param timeout The time in milliseconds allowed for delivering the
+   *                backlog when the appender stops
+   */
+
+  public void setStopTimeout(
+    final long timeout)
+  {
+    this.stop_timeout = timeout;
+  }
+
+  @Override
+  public void start()
+  {
+    if (this.host == null || this.port < 1 || this.port > 65535) {
+      this.addError("No valid collector address for appender " + this.name);
+      return;
+    }
+    if (this.backlog_size < 1024
+      || this.backlog_size > LogShippingFormat.BATCH_SIZE_MAXIMUM) {
+      this.addError(
+        "Backlog size must be in the range [1024, "
+          + LogShippingFormat.BATCH_SIZE_MAXIMUM + "]");
+      return;
+    }
+    if (this.reconnect_min < 1L || this.reconnect_max < this.reconnect_min) {
+      this.addError("Reconnection delays must be positive and ordered");
+      return;
+    }
+
+    try {
+      this.selector = Selector.open();
+    } catch (final IOException e) {
+      this.addError("Could not open a selector", e);
+      return;
+    }
+
+    this.address = new InetSocketAddress(this.host, this.port);
+    this.pending = ByteBuffer.allocate(this.backlog_size);
+    this.sending = ByteBuffer.allocate(this.backlog_size);
+    this.sending.flip();
+    this.preamble = ByteBuffer.allocate(LogShippingFormat.PREAMBLE_SIZE);
+    this.header = ByteBuffer.allocate(LogShippingFormat.BATCH_HEADER_SIZE);
+    this.header.flip();
+    this.gather = new ByteBuffer[]{this.preamble, this.header, this.sending};
+    this.discard = ByteBuffer.allocate(256);
+    this.pending_count = 0;
+    this.sending_count = 0;
+    this.dropped = 0L;
+    this.drain_deadline = 0L;
+    this.running = true;
+
+    this.thread = new Thread(this::run);
+    this.thread.setName("com.io7m.osgilog2.main.ship[" + this.name + "]");
+    this.thread.setDaemon(true);
+    this.thread.start();
+    super.start();
+  }
+
+  @Override
+  public void stop()
+  {
+    if (!this.isStarted()) {
+      return;
+    }
+
+    super.stop();
+    this.drain_deadline =
+      System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.stop_timeout);
+    this.running = false;
+    this.selector.wakeup();
+
+    try {
+      this.thread.join(this.stop_timeout + this.connect_timeout);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      final long lost = this.dropped + this.pending_count + this.sending_count;
+      if (lost > 0L) {
+        this.addWarn(lost + " entries were not delivered to " + this.address);
+      }
+    }
+  }
+
+  @Override
+  protected void append(
+    final ILoggingEvent event)
+  {
+    final ByteBuffer buffer = this.pending;
+    final int start = buffer.position();
+
+    try {
+      buffer.putInt(0);
+      buffer.putLong(event.getTimeStamp());
+      buffer.putInt(event.getLevel().levelInt);
+      LogShippingFormat.putString(buffer, event.getLoggerName());
+      LogShippingFormat.putString(buffer, event.getThreadName());
+      LogShippingFormat.putString(buffer, event.getFormattedMessage());
+
+      final IThrowableProxy proxy = event.getThrowableProxy();
+      if (proxy == null) {
+        LogShippingFormat.putString(buffer, null);
+      } else {
+        this.throwable_text.setLength(0);
+        EventText.appendThrowable(this.throwable_text, proxy);
+        LogShippingFormat.putString(buffer, this.throwable_text);
+      }
+    } catch (final BufferOverflowException e) {
+      buffer.position(start);
+      ++this.dropped;
+      return;
+    }
+
+    buffer.putInt(start, buffer.position() - start - 4);
+    ++this.pending_count;
+
+    /*
+     * The I/O thread only needs waking when the backlog becomes non-empty;
+     * after that, it takes the backlog itself when the current batch has
+     * been written.
+     */
+
+    if (start == 0) {
+      this.selector.wakeup();
+    }
+  }
+
+  private boolean isDraining()
+  {
+    if (this.channel == null || System.nanoTime() >= this.drain_deadline) {
+      return false;
+    }
+    synchronized (this) {
+      return this.sending_count > 0 || this.pending_count > 0;
+    }
+  }
+
+  private void run()
+  {
+    long delay = this.reconnect_min;
+    boolean reported = false;
+
+    while (this.running || this.isDraining()) {
+      if (this.channel == null) {
+        if (!this.running) {
+          break;
+        }
+
+        try {
+          this.connect();
+          delay = this.reconnect_min;
+          if (reported) {
+            this.addInfo("Reconnected to " + this.address);
+            reported = false;
+          }
+        } catch (final IOException e) {
+          this.disconnect();
+          if (!reported) {
+            this.addWarn("Could not connect to " + this.address
+              + ", retrying with backoff", e);
+            reported = true;
+          }
+
+          /*
+           * Wait for a random time between half the current delay and the
+           * current delay, so that many clients do not reconnect in step.
+           */
+
+          final long wait = ThreadLocalRandom.current()
+            .nextLong(delay / 2L, delay + 1L);
+          this.sleep(wait);
+          delay = Math.min(this.reconnect_max, delay * 2L);
+        }
+        continue;
+      }
+
+      try {
+        this.ship();
+      } catch (final IOException e) {
+        this.addWarn("Lost connection to " + this.address, e);
+        reported = true;
+        this.disconnect();
+      }
+    }
+
+    this.disconnect();
+    try {
+      this.selector.close();
+    } catch (final IOException e) {
+      this.addError("Could not close selector", e);
+    }
+  }
+
+  private void sleep(
+    final long time_ms)
+  {
+    final long deadline =
+      System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time_ms);
+
+    while (this.running) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0L) {
+        return;
+      }
+      try {
+        this.selector.select(Math.max(1L, remaining / 1_000_000L));
+        this.selector.selectedKeys().clear();
+      } catch (final IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void connect()
+    throws IOException
+  {
+    this.channel = SocketChannel.open();
+    this.channel.configureBlocking(false);
+    this.key = this.channel.register(this.selector, SelectionKey.OP_CONNECT);
+
+    if (!this.channel.connect(this.address)) {
+      final long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(this.connect_timeout);
+      while (!this.channel.finishConnect()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0L || !this.running) {
+          throw new IOException("Timed out connecting to " + this.address);
+        }
+        this.selector.select(Math.max(1L, remaining / 1_000_000L));
+        this.selector.selectedKeys().clear();
+      }
+    }
+
+    this.key.interestOps(SelectionKey.OP_READ);
+    this.preamble.clear();
+    this.preamble.putInt(LogShippingFormat.MAGIC);
+    this.preamble.putInt(LogShippingFormat.VERSION);
+    this.preamble.flip();
+
+    /*
+     * A batch that was partly written on a previous connection is sent
+     * again from the start.
+     */
+
+    this.header.rewind();
+    this.sending.rewind();
+  }
+
+  private void disconnect()
+  {
+    if (this.channel != null) {
+      try {
+        this.channel.close();
+      } catch (final IOException e) {
+        this.addWarn("Could not close connection", e);
+      }
+      this.channel = null;
+      this.key = null;
+    }
+  }
+
+  /**
+   * Write as much of the current batch as the socket accepts, taking the
+   * next batch from the backlog if there is no current batch, and wait for
+   * the socket or for new entries.
+   */
+
+  private void ship()
+    throws IOException
+  {
+    if (!this.sending.hasRemaining()) {
+      synchronized (this) {
+        if (this.pending_count > 0) {
+          final ByteBuffer batch = this.pending;
+          this.pending = this.sending;
+          this.pending.clear();
+          this.sending = batch;
+          this.sending.flip();
+          this.sending_count = this.pending_count;
+          this.pending_count = 0;
+          this.gather[2] = this.sending;
+        }
+      }
+
+      if (this.sending_count > 0) {
+        this.header.clear();
+        this.header.putInt(4 + this.sending.remaining());
+        this.header.putInt(this.sending_count);
+        this.header.flip();
+      }
+    }
+
+    if (this.header.hasRemaining() || this.sending.hasRemaining()
+      || this.preamble.hasRemaining()) {
+      this.channel.write(this.gather);
+    }
+
+    final boolean blocked = this.preamble.hasRemaining()
+      || this.header.hasRemaining()
+      || this.sending.hasRemaining();
+
+    if (!blocked) {
+      this.header.limit(0);
+      this.sending.limit(0);
+
+      final long discarded;
+      final boolean more;
+      synchronized (this) {
+        this.sending_count = 0;
+        discarded = this.dropped;
+        this.dropped = 0L;
+        more = this.pending_count > 0;
+      }
+      if (discarded > 0L) {
+        this.addWarn(
+          discarded + " entries were discarded because the backlog was full");
+      }
+      if (more) {
+        return;
+      }
+    }
+
+    if (!this.running) {
+      if (blocked) {
+        this.selectFor(SelectionKey.OP_WRITE);
+      }
+      return;
+    }
+
+    this.selectFor(blocked ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  /**
+   * Wait until the socket is ready for the given operation or the selector
+   * is woken. The collector never sends data, so readability means that the
+   * connection has been closed.
+   */
+
+  private void selectFor(
+    final int operations)
+    throws IOException
+  {
+    this.key.interestOps(operations | SelectionKey.OP_READ);
+    this.selector.select(this.running ? 0L : 10L);
+    this.selector.selectedKeys().clear();
+
+    if (this.key.isValid() && this.key.isReadable()) {
+      this.discard.clear();
+      if (this.channel.read(this.discard) < 0) {
+        throw new IOException("Connection closed by " + this.address);
+      }
+    }
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>A profiler that records a timeline of framework and bundle lifecycle
+ * events during startup.</p>
+ *
+ * <p>Every time is recorded with {@link System#nanoTime()} relative to the
+ * creation of the profiler. The bundle listener is synchronous, so the
+ * {@code STARTING} and {@code STARTED} events of a bundle are delivered on
+ * the thread that starts it, immediately before and after its activator
+ * runs; the difference between the two is the time spent in the
+ * activator.</p>
+ */
+
+final class StartupProfiler
+  implements FrameworkListener, SynchronousBundleListener, ServiceListener
+{
+  private static final Logger LOG;
+  private static final long NONE = -1L;
+
+  static {
+    LOG = LoggerFactory.getLogger(StartupProfiler.class);
+  }
+
+  private static final class Mark
+  {
+    private final String name;
+    private final long time;
+
+    Mark(
+      final String in_name,
+      final long in_time)
+    {
+      this.name = in_name;
+      this.time = in_time;
+    }
+  }
+
+  private static final class Registration
+  {
+    private final String[] classes;
+    private final long time;
+
+    Registration(
+      final String[] in_classes,
+      final long in_time)
+    {
+      this.classes = in_classes;
+      this.time = in_time;
+    }
+  }
+
+  private static final class BundleTimeline
+  {
+    private final long id;
+    private final String name;
+    private volatile long installed = NONE;
+    private volatile long resolved = NONE;
+    private volatile long starting = NONE;
+    private volatile long started = NONE;
+    private final ConcurrentLinkedQueue<Registration> services;
+
+    BundleTimeline(
+      final Bundle bundle)
+    {
+      this.id = bundle.getBundleId();
+      this.name = bundle.getSymbolicName();
+      this.services = new ConcurrentLinkedQueue<>();
+    }
+
+    long activator()
+    {
+      final long start = this.starting;
+      final long end = this.started;
+      if (start == NONE || end == NONE) {
+        return NONE;
+      }
+      return end - start;
+    }
+  }
+
+  private final long origin;
+  private final ConcurrentLinkedQueue<Mark> marks;
+  private final ConcurrentHashMap<Long, BundleTimeline> bundles;
+  private BundleContext context;
+
+  /**
+   * Construct a profiler. Times are measured from this point.
+   */
+
+  StartupProfiler()
+  {
+    this.origin = System.nanoTime();
+    this.marks = new ConcurrentLinkedQueue<>();
+    this.bundles = new ConcurrentHashMap<>(64);
+  }
+
+  private long now()
+  {
+    return System.nanoTime() - this.origin;
+  }
+
+  /**
+   * Record a named point in the launcher's own progress.
+   *
+   * @param name The name of the point
+   */
+
+  void mark(
+    final String name)
+  {
+    this.marks.add(new Mark(Objects.requireNonNull(name, "Name"), this.now()));
+  }
+
+  /**
+   * Start receiving events from the given framework.
+   *
+   * @param in_context The system bundle context
+   */
+
+  void open(
+    final BundleContext in_context)
+  {
+    this.context = Objects.requireNonNull(in_context, "Context");
+    this.context.addFrameworkListener(this);
+    this.context.addBundleListener(this);
+    this.context.addServiceListener(this);
+  }
+
+  /**
+   * Stop receiving events.
+   */
+
+  void close()
+  {
+    if (this.context != null) {
+      try {
+        this.context.removeServiceListener(this);
+        this.context.removeBundleListener(this);
+        this.context.removeFrameworkListener(this);
+      } catch (final IllegalStateException e) {
+        // The framework has already stopped
+      }
+      this.context = null;
+    }
+  }
+
+  private BundleTimeline timelineFor(
+    final Bundle bundle)
+  {
+    return this.bundles.computeIfAbsent(
+      Long.valueOf(bundle.getBundleId()), k -> new BundleTimeline(bundle));
+  }
+
+  @Override
+  public void frameworkEvent(
+    final FrameworkEvent event)
+  {
+    final String name;
+    switch (event.getType()) {
+      case FrameworkEvent.STARTED:
+        name = "framework.started";
+        break;
+      case FrameworkEvent.PACKAGES_REFRESHED:
+        name = "framework.packages_refreshed";
+        break;
+      case FrameworkEvent.STARTLEVEL_CHANGED:
+        name = "framework.startlevel_changed";
+        break;
+      case FrameworkEvent.ERROR:
+        name = "framework.error";
+        break;
+      case FrameworkEvent.WARNING:
+        name = "framework.warning";
+        break;
+      default:
+        return;
+    }
+    this.mark(name);
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    final long time = this.now();
+    final BundleTimeline timeline = this.timelineFor(event.getBundle());
+    switch (event.getType()) {
+      case BundleEvent.INSTALLED:
+        timeline.installed = time;
+        break;
+      case BundleEvent.RESOLVED:
+        timeline.resolved = time;
+        break;
+      case BundleEvent.STARTING:
+        timeline.starting = time;
+        break;
+      case BundleEvent.STARTED:
+        timeline.started = time;
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void serviceChanged(
+    final ServiceEvent event)
+  {
+    if (event.getType() != ServiceEvent.REGISTERED) {
+      return;
+    }
+
+    final long time = this.now();
+    final ServiceReference<?> reference = event.getServiceReference();
+    final Bundle owner = reference.getBundle();
+    if (owner == null) {
+      return;
+    }
+
+    final Object classes = reference.getProperty(Constants.OBJECTCLASS);
+    this.timelineFor(owner).services.add(new Registration(
+      classes instanceof String[] ? (String[]) classes : new String[0], time));
+  }
+
+  private List<BundleTimeline> sortedByActivator()
+  {
+    final List<BundleTimeline> timelines =
+      new ArrayList<>(this.bundles.values());
+    timelines.sort(
+      Comparator.comparingLong(BundleTimeline::activator).reversed());
+    return timelines;
+  }
+
+  /**
+   * Log the bundles with the slowest activators.
+   *
+   * @param count The maximum number of bundles to log
+   */
+
+  void logSummary(
+    final int count)
+  {
+    final List<BundleTimeline> timelines = this.sortedByActivator();
+    LOG.debug("slowest activators:");
+    for (int index = 0; index < Math.min(count, timelines.size()); ++index) {
+      final BundleTimeline t = timelines.get(index);
+      if (t.activator() == NONE) {
+        break;
+      }
+      LOG.debug(
+        "  {} [{}]: {} us",
+        t.name,
+        Long.valueOf(t.id),
+        Long.valueOf(t.activator() / 1000L));
+    }
+  }
+
+  /**
+   * Write the timeline as JSON. The file is replaced atomically.
+   *
+   * @param file The output file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void write(
+    final Path file)
+    throws IOException
+  {
+    final Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (final BufferedWriter w =
+           Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      this.writeJSON(w);
+    }
+    Files.move(
+      temp,
+      file,
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+    LOG.debug("wrote startup timeline to {}", file);
+  }
+
+  private void writeJSON(
+    final BufferedWriter w)
+    throws IOException
+  {
+    w.write("{\n  \"unit\": \"ns\",\n  \"marks\": [");
+    boolean first = true;
+    for (final Mark mark : this.marks) {
+      w.write(first ? "\n" : ",\n");
+      first = false;
+      w.write("    { \"name\": ");
+      writeString(w, mark.name);
+      w.write(", \"time\": ");
+      w.write(Long.toString(mark.time));
+      w.write(" }");
+    }
+    w.write("\n  ],\n  \"bundles\": [");
+
+    final List<BundleTimeline> timelines =
+      new ArrayList<>(this.bundles.values());
+    timelines.sort(Comparator.comparingLong(t -> t.id));
+
+    first = true;
+    for (final BundleTimeline t : timelines) {
+      w.write(first ? "\n" : ",\n");
+      first = false;
+      writeBundle(w, t);
+    }
+
+    w.write("\n  ],\n  \"slowest_activators\": [");
+    first = true;
+    for (final BundleTimeline t : this.sortedByActivator()) {
+      if (t.activator() == NONE) {
+        break;
+      }
+      w.write(first ? " " : ", ");
+      first = false;
+      w.write(Long.toString(t.id));
+    }
+    w.write(" ]\n}\n");
+  }
+
+  private static void writeBundle(
+    final BufferedWriter w,
+    final BundleTimeline t)
+    throws IOException
+  {
+    w.write("    {\n      \"id\": ");
+    w.write(Long.toString(t.id));
+    w.write(",\n      \"symbolic_name\": ");
+    writeString(w, t.name);
+    writeTime(w, "installed", t.installed);
+    writeTime(w, "resolved", t.resolved);
+    writeTime(w, "starting", t.starting);
+    writeTime(w, "started", t.started);
+    writeTime(w, "activator", t.activator());
+    w.write(",\n      \"services\": [");
+
+    boolean first = true;
+    for (final Registration r : t.services) {
+      w.write(first ? "\n" : ",\n");
+      first = false;
+      w.write("        { \"classes\": [");
+      for (int index = 0; index < r.classes.length; ++index) {
+        if (index > 0) {
+          w.write(", ");
+        }
+        writeString(w, r.classes[index]);
+      }
+      w.write("], \"time\": ");
+      w.write(Long.toString(r.time));
+      w.write(" }");
+    }
+    w.write(first ? "]\n    }" : "\n      ]\n    }");
+  }
+
+  private static void writeTime(
+    final BufferedWriter w,
+    final String name,
+    final long time)
+    throws IOException
+  {
+    w.write(",\n      \"");
+    w.write(name);
+    w.write("\": ");
+    w.write(time == NONE ? "null" : Long.toString(time));
+  }
+
+  private static void writeString(
+    final BufferedWriter w,
+    final String text)
+    throws IOException
+  {
+    if (text == null) {
+      w.write("null");
+      return;
+    }
+
+    w.write('"');
+    for (int index = 0; index < text.length(); ++index) {
+      final char c = text.charAt(index);
+      switch (c) {
+        case '"':
+          w.write("\\\"");
+          break;
+        case '\\':
+          w.write("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            w.write(String.format("\\u%04x", Integer.valueOf(c)));
+          } else {
+            w.write(c);
+          }
+          break;
+      }
+    }
+    w.write('"');
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.main;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Functions to bring the bundles in a persistent framework cache up to
+ * date with a directory of bundle jars.</p>
+ *
+ * <p>A fingerprint (size, last modification time and CRC32 checksum) of each
+ * installed jar is stored alongside the framework cache. A jar whose size and
+ * modification time match its fingerprint is assumed to be unchanged without
+ * being read. A jar whose checksum matches is unchanged even if it has been
+ * touched. Otherwise, the installed bundle is updated, or the jar is
+ * installed if no bundle has its location. Bundles whose jars have been
+ * removed from the directory are uninstalled. The framework is refreshed
+ * only if a bundle was updated or uninstalled.</p>
+ *
+ * <p>A cold start records the size and modification time of each jar without
+ * reading it, so the first warm start after a cold start does not update
+ * anything that has not been touched since.</p>
+ */
+
+final class WarmStart
+{
+  /**
+   * The name of the fingerprint file in the framework cache.
+   */
+
+  static final String FINGERPRINTS = "com.io7m.osgilog2.fingerprints";
+
+  private static final String CHECKSUM_UNKNOWN = "-";
+  private static final String FRAMEWORK_SYMBOLIC_NAME =
+    "org.apache.felix.framework";
+
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(WarmStart.class);
+  }
+
+  private enum Action
+  {
+    UNCHANGED,
+    INSTALLED,
+    UPDATED
+  }
+
+  private static final class Outcome
+  {
+    private final Bundle bundle;
+    private final Action action;
+    private final String location;
+    private final String fingerprint;
+
+    Outcome(
+      final Bundle in_bundle,
+      final Action in_action,
+      final String in_location,
+      final String in_fingerprint)
+    {
+      this.bundle = in_bundle;
+      this.action = in_action;
+      this.location = in_location;
+      this.fingerprint = in_fingerprint;
+    }
+  }
+
+  private WarmStart()
+  {
+
+  }
+
+  /**
+   * Install, update and uninstall bundles so that the installed bundles
+   * match the given jars.
+   *
+   * @param framework The framework
+   * @param cache     The framework cache directory
+   * @param lib       The directory that contains the jars
+   * @param files     The jars
+   * @param executor  The executor on which to examine and install jars
+   *
+   * @return The bundles, in the order of the given jars
+   *
+   * @throws IOException          On I/O errors
+   * @throws BundleException      If a bundle cannot be installed or updated
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  static List<Bundle> synchronize(
+    final Framework framework,
+    final Path cache,
+    final Path lib,
+    final List<Path> files,
+    final ExecutorService executor)
+    throws IOException, BundleException, InterruptedException
+  {
+    final BundleContext context = framework.getBundleContext();
+    final Path fingerprints_file = cache.resolve(FINGERPRINTS);
+    final Properties fingerprints = load(fingerprints_file);
+
+    final List<Callable<Outcome>> tasks = new ArrayList<>(files.size());
+    for (final Path file : files) {
+      tasks.add(() -> examine(context, fingerprints, file));
+    }
+    final List<Outcome> outcomes = await(executor.invokeAll(tasks));
+
+    final Properties updated_fingerprints = new Properties();
+    final Set<String> locations = new HashSet<>(files.size());
+    final List<Bundle> bundles = new ArrayList<>(files.size());
+    final List<Bundle> refresh = new ArrayList<>(8);
+    int changed = 0;
+
+    for (final Outcome outcome : outcomes) {
+      locations.add(outcome.location);
+      updated_fingerprints.setProperty(outcome.location, outcome.fingerprint);
+      bundles.add(outcome.bundle);
+      if (outcome.action != Action.UNCHANGED) {
+        ++changed;
+      }
+      if (outcome.action == Action.UPDATED) {
+
+        /*
+         * Refreshing a framework extension restarts the framework, so the
+         * new content of an extension only takes effect on the next run.
+         */
+
+        if (isFrameworkExtension(outcome.bundle)) {
+          LOG.warn("framework extension {} was updated; restart to apply",
+                   outcome.bundle);
+        } else {
+          refresh.add(outcome.bundle);
+        }
+      }
+    }
+
+    /*
+     * Uninstall bundles that were installed from the library directory but
+     * whose jars are no longer present.
+     */
+
+    final String lib_location = lib.toUri().toString();
+    for (final Bundle bundle : context.getBundles()) {
+      final String location = bundle.getLocation();
+      if (location.startsWith(lib_location) && !locations.contains(location)) {
+        LOG.debug("uninstalling removed bundle {}", bundle);
+        bundle.uninstall();
+        refresh.add(bundle);
+        ++changed;
+      }
+    }
+
+    if (refresh.isEmpty()) {
+      LOG.debug("no bundles were updated or removed; skipping refresh");
+    } else {
+      refresh(framework, refresh);
+    }
+
+    LOG.debug("{} of {} bundles changed",
+              Integer.valueOf(changed), Integer.valueOf(files.size()));
+    save(fingerprints_file, updated_fingerprints);
+    return bundles;
+  }
+
+  /**
+   * Record fingerprints for bundles that were installed from scratch, so
+   * that a later warm start recognizes them. The jars are not read; their
+   * checksums are computed on the first warm start that finds them touched.
+   *
+   * @param cache The framework cache directory
+   * @param files The jars
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void record(
+    final Path cache,
+    final List<Path> files)
+    throws IOException
+  {
+    final Properties fingerprints = new Properties();
+    for (final Path file : files) {
+      final BasicFileAttributes attributes =
+        Files.readAttributes(file, BasicFileAttributes.class);
+      fingerprints.setProperty(
+        file.toUri().toString(),
+        fingerprint(
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis(),
+          CHECKSUM_UNKNOWN));
+    }
+    save(cache.resolve(FINGERPRINTS), fingerprints);
+  }
+
+  private static boolean isFrameworkExtension(
+    final Bundle bundle)
+  {
+    final String host = bundle.getHeaders().get(Constants.FRAGMENT_HOST);
+    return host != null && (
+      host.startsWith(Constants.SYSTEM_BUNDLE_SYMBOLICNAME)
+        || host.startsWith(FRAMEWORK_SYMBOLIC_NAME));
+  }
+
+  private static Outcome examine(
+    final BundleContext context,
+    final Properties fingerprints,
+    final Path file)
+    throws IOException, BundleException
+  {
+    final String location = file.toUri().toString();
+    final BasicFileAttributes attributes =
+      Files.readAttributes(file, BasicFileAttributes.class);
+    final long size = attributes.size();
+    final long time = attributes.lastModifiedTime().toMillis();
+    final Bundle installed = context.getBundle(location);
+    final String stored = fingerprints.getProperty(location);
+
+    if (installed != null && stored != null) {
+      final String[] parts = stored.split(":");
+      if (parts.length == 3) {
+        if (parts[0].equals(Long.toString(size))
+          && parts[1].equals(Long.toString(time))) {
+          return new Outcome(installed, Action.UNCHANGED, location, stored);
+        }
+
+        final String checksum = checksum(file);
+        if (parts[2].equals(checksum)) {
+          LOG.debug("{} was touched but has not changed", location);
+          return new Outcome(
+            installed,
+            Action.UNCHANGED,
+            location,
+            fingerprint(size, time, checksum));
+        }
+      }
+    }
+
+    final String fingerprint = fingerprint(size, time, checksum(file));
+    if (installed == null) {
+      LOG.debug("installing {}", location);
+      return new Outcome(
+        context.installBundle(location),
+        Action.INSTALLED,
+        location,
+        fingerprint);
+    }
+
+    LOG.debug("updating {}", location);
+    try (InputStream stream = Files.newInputStream(file)) {
+      installed.update(stream);
+    }
+    return new Outcome(installed, Action.UPDATED, location, fingerprint);
+  }
+
+  private static String fingerprint(
+    final long size,
+    final long time,
+    final String checksum)
+  {
+    return size + ":" + time + ":" + checksum;
+  }
+
+  private static String checksum(
+    final Path file)
+    throws IOException
+  {
+    final CRC32 crc = new CRC32();
+    final byte[] buffer = new byte[65536];
+    try (InputStream stream = Files.newInputStream(file)) {
+      while (true) {
+        final int r = stream.read(buffer);
+        if (r == -1) {
+          break;
+        }
+        crc.update(buffer, 0, r);
+      }
+    }
+    return Long.toHexString(crc.getValue());
+  }
+
+  private static void refresh(
+    final Framework framework,
+    final List<Bundle> bundles)
+    throws InterruptedException
+  {
+    LOG.debug("refreshing {} bundles", Integer.valueOf(bundles.size()));
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    framework.adapt(FrameworkWiring.class).refreshBundles(
+      bundles, event -> {
+        if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED
+          || event.getType() == FrameworkEvent.ERROR) {
+          latch.countDown();
+        }
+      });
+    latch.await();
+  }
+
+  private static Properties load(
+    final Path file)
+    throws IOException
+  {
+    final Properties p = new Properties();
+    if (Files.isRegularFile(file)) {
+      try (InputStream stream = Files.newInputStream(file)) {
+        p.load(stream);
+      }
+    }
+    return p;
+  }
+
+  private static void save(
+    final Path file,
+    final Properties p)
+    throws IOException
+  {
+    final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream stream = Files.newOutputStream(temporary)) {
+      p.store(stream, "Bundle fingerprints: size:mtime:crc32");
+    }
+    Files.move(
+      temporary,
+      file,
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static <T> List<T> await(
+    final List<Future<T>> futures)
+    throws IOException, BundleException, InterruptedException
+  {
+    final List<T> results = new ArrayList<>(futures.size());
+    for (final Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof BundleException) {
+          throw (BundleException) cause;
+        }
+        throw new BundleException(cause.getMessage(), cause);
+      }
+    }
+    return Collections.unmodifiableList(results);
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.apache.felix.framework;
+
+import org.apache.felix.framework.ext.SecurityProvider;
+import org.apache.felix.framework.security.condpermadmin.ConditionalPermissionAdminImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServicePermission;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.service.condpermadmin.ConditionalPermissionAdmin;
+import org.osgi.service.permissionadmin.PermissionAdmin;
+
+import java.security.Permission;
+import java.security.ProtectionDomain;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A security provider that caches the decisions of the Felix security
+ * provider per protection domain and permission.</p>
+ *
+ * <p>The Felix security provider evaluates the local permissions of a bundle
+ * and the conditional permission table on every check. A bundle's local
+ * permissions only change when the bundle is updated, so decisions are
+ * cached until any bundle is updated, unresolved, or uninstalled, the
+ * framework is refreshed, or {@link #invalidate()} is called. The launcher
+ * calls {@link #invalidate()} when the policy is refreshed.</p>
+ *
+ * <p>Neither the permission admin service nor the conditional permission
+ * admin service announces changes, and conditional rows may carry mutable or
+ * postponed conditions whose outcome must not be remembered. Nothing is
+ * cached while the permission admin service holds any location-specific or
+ * default permissions, or the conditional permission table has any rows:
+ * every check is passed to the Felix provider, and the cache is discarded
+ * whenever either service is seen to become empty or non-empty.</p>
+ *
+ * <p>Service permissions are never cached. A service permission that names
+ * a service reference is equal to another for the same reference, but its
+ * outcome depends on the current properties of the service.</p>
+ *
+ * <p>The class is declared in the Felix package because the framework's
+ * security provider accessors are not public.</p>
+ */
+
+public final class CachingSecurityProvider
+  implements SecurityProvider, SynchronousBundleListener, FrameworkListener
+{
+  /**
+   * The maximum number of decisions cached per protection domain. The least
+   * recently used decision is discarded when a new one would exceed the
+   * limit, so that permissions constructed per call cannot grow the cache
+   * without bound.
+   */
+
+  private static final int DOMAIN_LIMIT = 256;
+
+  private static final class Decisions
+    extends LinkedHashMap<Permission, Boolean>
+  {
+    private static final long serialVersionUID = 1L;
+
+    Decisions()
+    {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(
+      final Map.Entry<Permission, Boolean> eldest)
+    {
+      return this.size() > DOMAIN_LIMIT;
+    }
+  }
+
+  private static final class DomainDecisions
+  {
+    private final Decisions direct;
+    private final Decisions indirect;
+
+    DomainDecisions()
+    {
+      this.direct = new Decisions();
+      this.indirect = new Decisions();
+    }
+  }
+
+  private final SecurityProvider delegate;
+  private final ConditionalPermissionAdmin conditional;
+  private final PermissionAdmin admin;
+  private final ConcurrentHashMap<ProtectionDomain, DomainDecisions> domains;
+  private final AtomicLong generation;
+  private volatile boolean managed;
+
+  private CachingSecurityProvider(
+    final SecurityProvider in_delegate,
+    final ConditionalPermissionAdmin in_conditional,
+    final PermissionAdmin in_admin)
+  {
+    this.delegate = Objects.requireNonNull(in_delegate, "Delegate");
+    this.conditional = in_conditional;
+    this.admin = in_admin;
+    this.domains = new ConcurrentHashMap<>(64);
+    this.generation = new AtomicLong(0L);
+    this.managed = this.hasManagedPermissions();
+  }
+
+  /**
+   * Wrap the security provider of the given framework with a caching
+   * provider. The framework must have been started with security enabled,
+   * so that the security extension has installed its provider.
+   *
+   * @param framework The framework
+   *
+   * @return The installed provider
+   */
+
+  public static CachingSecurityProvider install(
+    final Framework framework)
+  {
+    Objects.requireNonNull(framework, "Framework");
+    if (!(framework instanceof Felix)) {
+      throw new IllegalArgumentException(
+        "Framework is not a Felix instance: " + framework.getClass());
+    }
+
+    final Felix felix = (Felix) framework;
+    final SecurityProvider current = felix.getSecurityProvider();
+    if (current == null) {
+      throw new IllegalStateException(
+        "The framework does not have a security provider");
+    }
+    if (current instanceof CachingSecurityProvider) {
+      return (CachingSecurityProvider) current;
+    }
+
+    final BundleContext context = felix.getBundleContext();
+    final ServiceReference<ConditionalPermissionAdmin> reference =
+      context.getServiceReference(ConditionalPermissionAdmin.class);
+    final ConditionalPermissionAdmin conditional =
+      reference == null ? null : context.getService(reference);
+    final ServiceReference<PermissionAdmin> admin_reference =
+      context.getServiceReference(PermissionAdmin.class);
+    final PermissionAdmin admin =
+      admin_reference == null ? null : context.getService(admin_reference);
+
+    final CachingSecurityProvider provider =
+      new CachingSecurityProvider(current, conditional, admin);
+    context.addBundleListener(provider);
+    context.addFrameworkListener(provider);
+    felix.setSecurityProvider(provider);
+    return provider;
+  }
+
+  /**
+   * Discard every cached decision. Decisions that are being computed
+   * concurrently are not cached.
+   */
+
+  public void invalidate()
+  {
+    this.generation.incrementAndGet();
+    this.domains.clear();
+  }
+
+  private boolean hasConditionalRows()
+  {
+    final ConditionalPermissionAdmin admin = this.conditional;
+    if (admin == null) {
+      return false;
+    }
+    if (admin instanceof ConditionalPermissionAdminImpl) {
+      return !((ConditionalPermissionAdminImpl) admin).isEmpty();
+    }
+    return admin.getConditionalPermissionInfos().hasMoreElements();
+  }
+
+  private boolean hasAdminPermissions()
+  {
+    final PermissionAdmin pa = this.admin;
+    if (pa == null) {
+      return false;
+    }
+    return pa.getLocations() != null || pa.getDefaultPermissions() != null;
+  }
+
+  private boolean hasManagedPermissions()
+  {
+    return this.hasAdminPermissions() || this.hasConditionalRows();
+  }
+
+  /**
+   * @return {@code true} if decisions may currently be cached
+   */
+
+  private boolean isCacheable()
+  {
+    final boolean now = this.hasManagedPermissions();
+    if (now != this.managed) {
+      this.managed = now;
+      this.invalidate();
+    }
+    return !now;
+  }
+
+  @Override
+  public boolean hasBundlePermission(
+    final ProtectionDomain domain,
+    final Permission permission,
+    final boolean direct)
+  {
+    final long current = this.generation.get();
+    if (permission instanceof ServicePermission || !this.isCacheable()) {
+      return this.delegate.hasBundlePermission(domain, permission, direct);
+    }
+
+    DomainDecisions decisions = this.domains.get(domain);
+    if (decisions == null) {
+      decisions = new DomainDecisions();
+      final DomainDecisions existing =
+        this.domains.putIfAbsent(domain, decisions);
+      if (existing != null) {
+        decisions = existing;
+      }
+    }
+
+    final Decisions cache = direct ? decisions.direct : decisions.indirect;
+
+    /*
+     * The delegate may itself perform permission checks, so the decision is
+     * computed without holding the lock on the cache. It is only cached if
+     * nothing was invalidated, and no managed permissions appeared, while
+     * it was being computed.
+     */
+
+    final Boolean cached;
+    synchronized (cache) {
+      cached = cache.get(permission);
+    }
+    if (cached != null) {
+      return cached.booleanValue();
+    }
+
+    final boolean result =
+      this.delegate.hasBundlePermission(domain, permission, direct);
+    if (this.isCacheable() && this.generation.get() == current) {
+      synchronized (cache) {
+        cache.put(permission, Boolean.valueOf(result));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Object getSignerMatcher(
+    final Bundle bundle,
+    final int signers_type)
+  {
+    return this.delegate.getSignerMatcher(bundle, signers_type);
+  }
+
+  @Override
+  public void checkBundle(
+    final Bundle bundle)
+    throws Exception
+  {
+    this.delegate.checkBundle(bundle);
+  }
+
+  @Override
+  public void bundleChanged(
+    final BundleEvent event)
+  {
+    switch (event.getType()) {
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNRESOLVED:
+      case BundleEvent.UNINSTALLED:
+        this.invalidate();
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void frameworkEvent(
+    final FrameworkEvent event)
+  {
+    if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+      this.invalidate();
+    }
+  }
+}
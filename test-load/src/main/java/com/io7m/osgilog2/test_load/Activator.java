@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.test_load;
+
+import com.io7m.osgilog2.logservice.FormattingLogger;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogReaderService;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bundle activator that runs a log reader churn test and a load generator,
+ * if either is configured, and reports the results. The runs happen
+ * synchronously in {@link #start(BundleContext)}, so that they complete
+ * before the launcher moves on to shutting the framework down.
+ */
+
+public final class Activator implements BundleActivator
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(Activator.class);
+  }
+
+  private static final long SERVICE_TIMEOUT_MS = 5000L;
+  private static final String BUILTIN_LOG =
+    "com.io7m.osgilog2.logservice.builtin";
+
+  @Override
+  public void start(final BundleContext context)
+    throws Exception
+  {
+    final LoadConfiguration config = LoadConfiguration.fromContext(context);
+    if (config.churnThreads() > 0) {
+      new ReaderChurn(config, context).run();
+    }
+
+    if (config.producers() == 0) {
+      LOG.debug(
+        "load generation disabled (set {} to enable it)",
+        LoadConfiguration.PRODUCERS);
+      return;
+    }
+
+    final ServiceTracker<LogService, LogService> tracker =
+      new ServiceTracker<>(context, LogService.class, null);
+    final ServiceTracker<FormattingLogger, FormattingLogger> formatting =
+      new ServiceTracker<>(context, FormattingLogger.class, null);
+
+    tracker.open();
+    formatting.open();
+    try {
+      final LogService service = tracker.waitForService(SERVICE_TIMEOUT_MS);
+      if (service == null) {
+        LOG.error("no log service appeared; not generating load");
+        return;
+      }
+
+      /*
+       * Only the built-in log service passes the formatting logger's
+       * arguments through to the bridge, so log service probes can only be
+       * timed in logback when it is enabled.
+       */
+
+      FormattingLogger formatting_logger = null;
+      if (Boolean.parseBoolean(context.getProperty(BUILTIN_LOG))) {
+        formatting_logger = formatting.waitForService(SERVICE_TIMEOUT_MS);
+      }
+
+      final LoadGenerator generator =
+        new LoadGenerator(config, service, formatting_logger);
+      final ServiceTracker<LogReaderService, LogReaderService> readers =
+        generator.isListening() ? attach(context, generator) : null;
+      try {
+        generator.run();
+      } finally {
+        if (readers != null) {
+          readers.close();
+        }
+      }
+      generator.report();
+    } finally {
+      formatting.close();
+      tracker.close();
+    }
+  }
+
+  /**
+   * Attach the generator to every log reader service until the returned
+   * tracker is closed. Closing the tracker removes the generator and
+   * releases each reader.
+   */
+
+  private static ServiceTracker<LogReaderService, LogReaderService> attach(
+    final BundleContext context,
+    final LoadGenerator generator)
+  {
+    final ServiceTracker<LogReaderService, LogReaderService> readers =
+      new ServiceTracker<LogReaderService, LogReaderService>(
+        context, LogReaderService.class, null)
+      {
+        @Override
+        public LogReaderService addingService(
+          final ServiceReference<LogReaderService> reference)
+        {
+          final LogReaderService reader = super.addingService(reference);
+          if (reader != null) {
+            reader.addLogListener(generator);
+          }
+          return reader;
+        }
+
+        @Override
+        public void removedService(
+          final ServiceReference<LogReaderService> reference,
+          final LogReaderService reader)
+        {
+          reader.removeLogListener(generator);
+          super.removedService(reference, reader);
+        }
+      };
+
+    readers.open();
+    return readers;
+  }
+
+  @Override
+  public void stop(final BundleContext context)
+    throws Exception
+  {
+
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.test_load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A concurrent latency histogram with logarithmic buckets.</p>
+ *
+ * <p>Values below {@code 8} have their own buckets; above that, each power
+ * of two is divided into eight buckets, so reported percentiles are within
+ * 12.5% of the recorded values.</p>
+ */
+
+final class LatencyHistogram
+{
+  private static final int SUB_BUCKETS = 8;
+  private static final int SUB_BITS = 3;
+  private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong max;
+
+  /**
+   * Construct an empty histogram.
+   */
+
+  LatencyHistogram()
+  {
+    this.counts = new AtomicLongArray(BUCKETS);
+    this.max = new AtomicLong(0L);
+  }
+
+  private static int bucketOf(
+    final long value)
+  {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0L, value);
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBoundOf(
+    final int bucket)
+  {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    final int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1L;
+  }
+
+  /**
+   * Record a value.
+   *
+   * @param value The value
+   */
+
+  void record(
+    final long value)
+  {
+    this.counts.incrementAndGet(bucketOf(value));
+
+    long current = this.max.get();
+    while (value > current) {
+      if (this.max.compareAndSet(current, value)) {
+        break;
+      }
+      current = this.max.get();
+    }
+  }
+
+  /**
+   * @return The number of recorded values
+   */
+
+  long count()
+  {
+    long total = 0L;
+    for (int index = 0; index < BUCKETS; ++index) {
+      total += this.counts.get(index);
+    }
+    return total;
+  }
+
+  /**
+   * @return The largest recorded value
+   */
+
+  long max()
+  {
+    return this.max.get();
+  }
+
+  /**
+   * @param fraction A fraction in {@code [0, 1]}
+   *
+   * @return An upper bound on the value below which the given fraction of
+   * recorded values fall, or {@code 0} if nothing has been recorded
+   */
+
+  long percentile(
+    final double fraction)
+  {
+    final long total = this.count();
+    if (total == 0L) {
+      return 0L;
+    }
+
+    final long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+    long seen = 0L;
+    for (int index = 0; index < BUCKETS; ++index) {
+      seen += this.counts.get(index);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(index), this.max());
+      }
+    }
+    return this.max();
+  }
+}
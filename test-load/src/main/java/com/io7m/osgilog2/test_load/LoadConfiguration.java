@@ -0,0 +1,321 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.test_load;
+
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The configuration of a load run, read from framework properties.
+ */
+
+final class LoadConfiguration
+{
+  /**
+   * The prefix used for all configuration properties.
+   */
+
+  static final String PREFIX = "com.io7m.osgilog2.test_load.";
+
+  /**
+   * The number of producer threads. Zero disables load generation.
+   */
+
+  static final String PRODUCERS = PREFIX + "producers";
+
+  /**
+   * The target number of entries per second across all producers. Zero
+   * means as fast as possible.
+   */
+
+  static final String RATE = PREFIX + "rate";
+
+  /**
+   * The duration of the run in milliseconds.
+   */
+
+  static final String DURATION = PREFIX + "duration";
+
+  /**
+   * The relative weight of {@code ERROR} entries.
+   */
+
+  static final String MIX_ERROR = PREFIX + "mix.error";
+
+  /**
+   * The relative weight of {@code WARNING} entries.
+   */
+
+  static final String MIX_WARN = PREFIX + "mix.warn";
+
+  /**
+   * The relative weight of {@code INFO} entries.
+   */
+
+  static final String MIX_INFO = PREFIX + "mix.info";
+
+  /**
+   * The relative weight of {@code DEBUG} entries.
+   */
+
+  static final String MIX_DEBUG = PREFIX + "mix.debug";
+
+  /**
+   * The percentage of entries that carry an exception.
+   */
+
+  static final String EXCEPTIONS = PREFIX + "exceptions";
+
+  /**
+   * The percentage of entries logged directly to SLF4J rather than through
+   * the OSGi log service.
+   */
+
+  static final String SLF4J = PREFIX + "slf4j";
+
+  /**
+   * One in this many entries of each producer is a latency probe.
+   */
+
+  static final String PROBE = PREFIX + "probe";
+
+  /**
+   * The number of threads that register and unregister log reader services.
+   * Zero disables the churn test.
+   */
+
+  static final String CHURN_THREADS = PREFIX + "churn.threads";
+
+  /**
+   * The number of log reader services registered by each churn thread.
+   */
+
+  static final String CHURN_READERS = PREFIX + "churn.readers";
+
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LoadConfiguration.class);
+  }
+
+  private final int producers;
+  private final int rate;
+  private final long duration;
+  private final int mix_error;
+  private final int mix_warn;
+  private final int mix_info;
+  private final int mix_debug;
+  private final int exceptions;
+  private final int slf4j;
+  private final int probe;
+  private final int churn_threads;
+  private final int churn_readers;
+
+  private LoadConfiguration(
+    final BundleContext context)
+  {
+    this.producers =
+      Math.max(0, getInt(context, PRODUCERS, 0));
+    this.rate =
+      Math.max(0, getInt(context, RATE, 10000));
+    this.duration =
+      Math.max(1L, getLong(context, DURATION, 10000L));
+    this.mix_error =
+      Math.max(0, getInt(context, MIX_ERROR, 1));
+    this.mix_warn =
+      Math.max(0, getInt(context, MIX_WARN, 4));
+    this.mix_info =
+      Math.max(0, getInt(context, MIX_INFO, 25));
+    this.mix_debug =
+      Math.max(0, getInt(context, MIX_DEBUG, 70));
+    this.exceptions =
+      clampPercent(getInt(context, EXCEPTIONS, 1));
+    this.slf4j =
+      clampPercent(getInt(context, SLF4J, 50));
+    this.probe =
+      Math.max(1, getInt(context, PROBE, 100));
+    this.churn_threads =
+      Math.max(0, getInt(context, CHURN_THREADS, 0));
+    this.churn_readers =
+      Math.max(1, getInt(context, CHURN_READERS, 1000));
+  }
+
+  /**
+   * Read a configuration from the given bundle context.
+   *
+   * @param context The bundle context
+   *
+   * @return A configuration
+   */
+
+  static LoadConfiguration fromContext(
+    final BundleContext context)
+  {
+    return new LoadConfiguration(context);
+  }
+
+  private static int clampPercent(
+    final int value)
+  {
+    return Math.max(0, Math.min(100, value));
+  }
+
+  private static int getInt(
+    final BundleContext context,
+    final String name,
+    final int default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+
+    try {
+      return Integer.parseInt(text.trim());
+    } catch (final NumberFormatException e) {
+      LOG.warn("{}: unparseable integer {}, using {}", name, text, default_value);
+      return default_value;
+    }
+  }
+
+  private static long getLong(
+    final BundleContext context,
+    final String name,
+    final long default_value)
+  {
+    final String text = context.getProperty(name);
+    if (text == null) {
+      return default_value;
+    }
+
+    try {
+      return Long.parseLong(text.trim());
+    } catch (final NumberFormatException e) {
+      LOG.warn("{}: unparseable integer {}, using {}", name, text, default_value);
+      return default_value;
+    }
+  }
+
+  /**
+   * @return The number of producer threads
+   */
+
+  int producers()
+  {
+    return this.producers;
+  }
+
+  /**
+   * @return The target rate in entries per second, or zero for unlimited
+   */
+
+  int rate()
+  {
+    return this.rate;
+  }
+
+  /**
+   * @return The duration of the run in milliseconds
+   */
+
+  long duration()
+  {
+    return this.duration;
+  }
+
+  /**
+   * @return The relative weight of {@code ERROR} entries
+   */
+
+  int mixError()
+  {
+    return this.mix_error;
+  }
+
+  /**
+   * @return The relative weight of {@code WARNING} entries
+   */
+
+  int mixWarn()
+  {
+    return this.mix_warn;
+  }
+
+  /**
+   * @return The relative weight of {@code INFO} entries
+   */
+
+  int mixInfo()
+  {
+    return this.mix_info;
+  }
+
+  /**
+   * @return The relative weight of {@code DEBUG} entries
+   */
+
+  int mixDebug()
+  {
+    return this.mix_debug;
+  }
+
+  /**
+   * @return The percentage of entries that carry an exception
+   */
+
+  int exceptions()
+  {
+    return this.exceptions;
+  }
+
+  /**
+   * @return The percentage of entries logged directly to SLF4J
+   */
+
+  int slf4j()
+  {
+    return this.slf4j;
+  }
+
+  /**
+   * @return The probe interval
+   */
+
+  int probe()
+  {
+    return this.probe;
+  }
+
+  /**
+   * @return The number of churn threads
+   */
+
+  int churnThreads()
+  {
+    return this.churn_threads;
+  }
+
+  /**
+   * @return The number of readers registered by each churn thread
+   */
+
+  int churnReaders()
+  {
+    return this.churn_readers;
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.test_load;
+
+import com.io7m.osgilog2.logservice.FormattingLogger;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A load generator that runs a number of producer threads at a target
+ * rate, logging a configurable mix of levels and exceptions through both the
+ * OSGi log service and SLF4J.</p>
+ *
+ * <p>One in every <i>probe</i> entries of each producer is a latency probe.
+ * A probe passes an argument that records the time at which its message is
+ * first formatted, which, for an entry that reaches logback with its
+ * arguments intact, happens in the encoder of the first appender:</p>
+ *
+ * <ul>
+ *   <li>A probe on the SLF4J path is logged to SLF4J directly. This is the
+ *   end-to-end latency of the SLF4J path.</li>
+ *   <li>A probe on the log service path is logged through the formatting
+ *   logger, whose template and arguments the built-in log service hands to
+ *   the bridge, and the bridge to SLF4J, unchanged. This is the end-to-end
+ *   latency from the log service through the bridge to logback. If the
+ *   journal, the archive or entry suppression is enabled, the message is
+ *   formatted earlier, and the probe records that time instead.</li>
+ * </ul>
+ *
+ * <p>Other log services format messages before they are delivered, so
+ * logback's encoding of them cannot be observed. Without a formatting
+ * logger, log service probes carry their send time in their message and
+ * are timed when a log reader delivers them to this generator's own
+ * listener. That is the latency of delivery to log listeners, not
+ * end-to-end latency, and is reported as such.</p>
+ *
+ * <p>Probes take the level drawn from the mix, so probes at disabled
+ * levels are never observed; they are reported as unobserved.</p>
+ */
+
+final class LoadGenerator implements LogListener
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(LoadGenerator.class);
+  }
+
+  private static final String PROBE_PREFIX = "load-probe ";
+  private static final long PACE_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+  private static final long DRAIN_TIMEOUT_MS = 2000L;
+
+  private final LoadConfiguration config;
+  private final LogService service;
+  private final FormattingLogger formatting;
+  private final Logger slf4j;
+  private final int threshold_error;
+  private final int threshold_warn;
+  private final int threshold_info;
+  private final int mix_total;
+  private final LatencyHistogram osgi_latency;
+  private final LatencyHistogram slf4j_latency;
+  private final LongAdder osgi_entries;
+  private final LongAdder slf4j_entries;
+  private final LongAdder exception_entries;
+  private final LongAdder osgi_probes;
+  private final LongAdder slf4j_probes;
+  private long elapsed_nanos;
+
+  /**
+   * A probe passed as an argument to SLF4J or the formatting logger.
+   * Logback calls {@link #toString()} when the message is first formatted.
+   */
+
+  private static final class Probe
+  {
+    private final long start;
+    private final LatencyHistogram histogram;
+    private boolean recorded;
+
+    Probe(
+      final long in_start,
+      final LatencyHistogram in_histogram)
+    {
+      this.start = in_start;
+      this.histogram = in_histogram;
+    }
+
+    @Override
+    public String toString()
+    {
+      if (!this.recorded) {
+        this.recorded = true;
+        this.histogram.record(System.nanoTime() - this.start);
+      }
+      return Long.toString(this.start);
+    }
+  }
+
+  /**
+   * Construct a generator.
+   *
+   * @param in_config     The configuration
+   * @param in_service    The log service
+   * @param in_formatting The formatting logger through which log service
+   *                      probes are logged, or {@code null} if they must be
+   *                      timed by a log listener
+   */
+
+  LoadGenerator(
+    final LoadConfiguration in_config,
+    final LogService in_service,
+    final FormattingLogger in_formatting)
+  {
+    this.config = Objects.requireNonNull(in_config, "Config");
+    this.service = Objects.requireNonNull(in_service, "Service");
+    this.formatting = in_formatting;
+    this.slf4j = LoggerFactory.getLogger("com.io7m.osgilog2.test_load.slf4j");
+
+    this.threshold_error = in_config.mixError();
+    this.threshold_warn = this.threshold_error + in_config.mixWarn();
+    this.threshold_info = this.threshold_warn + in_config.mixInfo();
+    this.mix_total = this.threshold_info + in_config.mixDebug();
+
+    this.osgi_latency = new LatencyHistogram();
+    this.slf4j_latency = new LatencyHistogram();
+    this.osgi_entries = new LongAdder();
+    this.slf4j_entries = new LongAdder();
+    this.exception_entries = new LongAdder();
+    this.osgi_probes = new LongAdder();
+    this.slf4j_probes = new LongAdder();
+  }
+
+  /**
+   * Run the producers for the configured duration, and then wait briefly
+   * for outstanding probes to arrive.
+   *
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  void run()
+    throws InterruptedException
+  {
+    final int count = this.config.producers();
+    LOG.info(
+      "load: {} producers, target {} entries/s, {} ms",
+      Integer.valueOf(count),
+      this.config.rate() == 0 ? "unlimited" : Integer.valueOf(this.config.rate()),
+      Long.valueOf(this.config.duration()));
+
+    final Thread[] threads = new Thread[count];
+    for (int index = 0; index < count; ++index) {
+      final int producer = index;
+      threads[index] = new Thread(() -> this.produce(producer));
+      threads[index].setName("com.io7m.osgilog2.test_load." + index);
+    }
+
+    final long start = System.nanoTime();
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    try {
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+    } finally {
+      for (final Thread thread : threads) {
+        thread.interrupt();
+      }
+    }
+    this.elapsed_nanos = System.nanoTime() - start;
+
+    final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+    while (System.currentTimeMillis() < deadline && this.unobserved() > 0L) {
+      Thread.sleep(10L);
+    }
+  }
+
+  private long unobserved()
+  {
+    return this.osgi_probes.sum() - this.osgi_latency.count()
+      + this.slf4j_probes.sum() - this.slf4j_latency.count();
+  }
+
+  private void produce(
+    final int producer)
+  {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int rate = this.config.rate();
+    final double per_nano =
+      (double) rate / (double) this.config.producers() / 1.0e9;
+    final long start = System.nanoTime();
+    final long end =
+      start + TimeUnit.MILLISECONDS.toNanos(this.config.duration());
+
+    long sent = 0L;
+    while (!Thread.currentThread().isInterrupted()) {
+      final long now = System.nanoTime();
+      if (now >= end) {
+        break;
+      }
+
+      /*
+       * Producers emit entries until they have caught up with the schedule,
+       * and then sleep briefly; parking per entry would be limited by the
+       * timer resolution at high rates.
+       */
+
+      if (rate > 0 && sent >= (long) ((double) (now - start) * per_nano)) {
+        LockSupport.parkNanos(PACE_NANOS);
+        continue;
+      }
+
+      this.emit(producer, sent, random);
+      ++sent;
+    }
+  }
+
+  private int chooseLevel(
+    final ThreadLocalRandom random)
+  {
+    if (this.mix_total == 0) {
+      return LogService.LOG_INFO;
+    }
+
+    final int choice = random.nextInt(this.mix_total);
+    if (choice < this.threshold_error) {
+      return LogService.LOG_ERROR;
+    }
+    if (choice < this.threshold_warn) {
+      return LogService.LOG_WARNING;
+    }
+    if (choice < this.threshold_info) {
+      return LogService.LOG_INFO;
+    }
+    return LogService.LOG_DEBUG;
+  }
+
+  private void emit(
+    final int producer,
+    final long sequence,
+    final ThreadLocalRandom random)
+  {
+    final int level = this.chooseLevel(random);
+    final boolean probe = sequence % (long) this.config.probe() == 0L;
+
+    final Throwable ex;
+    if (random.nextInt(100) < this.config.exceptions()) {
+      ex = new IllegalStateException("load exception " + sequence);
+      this.exception_entries.increment();
+    } else {
+      ex = null;
+    }
+
+    if (random.nextInt(100) < this.config.slf4j()) {
+      this.slf4j_entries.increment();
+      if (probe) {
+        this.slf4j_probes.increment();
+        this.logSLF4J(
+          level,
+          "load-probe {}",
+          new Probe(System.nanoTime(), this.slf4j_latency),
+          ex);
+      } else {
+        this.logSLF4J(level, "load {}", Long.valueOf(sequence), ex);
+      }
+      return;
+    }
+
+    this.osgi_entries.increment();
+    if (probe && this.formatting != null) {
+      this.osgi_probes.increment();
+      this.logFormatting(
+        level,
+        new Probe(System.nanoTime(), this.osgi_latency),
+        ex);
+      return;
+    }
+
+    final String message;
+    if (probe) {
+      this.osgi_probes.increment();
+      message = PROBE_PREFIX + System.nanoTime();
+    } else {
+      message = "load " + producer + " " + sequence;
+    }
+
+    if (ex != null) {
+      this.service.log(level, message, ex);
+    } else {
+      this.service.log(level, message);
+    }
+  }
+
+  private void logSLF4J(
+    final int level,
+    final String format,
+    final Object argument,
+    final Throwable ex)
+  {
+    switch (level) {
+      case LogService.LOG_ERROR: {
+        if (ex != null) {
+          this.slf4j.error(format, argument, ex);
+        } else {
+          this.slf4j.error(format, argument);
+        }
+        break;
+      }
+      case LogService.LOG_WARNING: {
+        if (ex != null) {
+          this.slf4j.warn(format, argument, ex);
+        } else {
+          this.slf4j.warn(format, argument);
+        }
+        break;
+      }
+      case LogService.LOG_INFO: {
+        if (ex != null) {
+          this.slf4j.info(format, argument, ex);
+        } else {
+          this.slf4j.info(format, argument);
+        }
+        break;
+      }
+      default: {
+        if (ex != null) {
+          this.slf4j.debug(format, argument, ex);
+        } else {
+          this.slf4j.debug(format, argument);
+        }
+        break;
+      }
+    }
+  }
+
+  private void logFormatting(
+    final int level,
+    final Probe probe,
+    final Throwable ex)
+  {
+    final String format = "load-probe {}";
+    switch (level) {
+      case LogService.LOG_ERROR: {
+        if (ex != null) {
+          this.formatting.error(format, probe, ex);
+        } else {
+          this.formatting.error(format, probe);
+        }
+        break;
+      }
+      case LogService.LOG_WARNING: {
+        if (ex != null) {
+          this.formatting.warn(format, probe, ex);
+        } else {
+          this.formatting.warn(format, probe);
+        }
+        break;
+      }
+      case LogService.LOG_INFO: {
+        if (ex != null) {
+          this.formatting.info(format, probe, ex);
+        } else {
+          this.formatting.info(format, probe);
+        }
+        break;
+      }
+      default: {
+        if (ex != null) {
+          this.formatting.debug(format, probe, ex);
+        } else {
+          this.formatting.debug(format, probe);
+        }
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} iff log service probes must be timed by attaching
+   * this generator to the log readers
+   */
+
+  boolean isListening()
+  {
+    return this.formatting == null;
+  }
+
+  @Override
+  public void logged(
+    final LogEntry entry)
+  {
+    final String message = entry.getMessage();
+    if (message == null || !message.startsWith(PROBE_PREFIX)) {
+      return;
+    }
+
+    try {
+      final long sent =
+        Long.parseLong(message.substring(PROBE_PREFIX.length()));
+      this.osgi_latency.record(System.nanoTime() - sent);
+    } catch (final NumberFormatException e) {
+      // Not one of ours
+    }
+  }
+
+  /**
+   * Log the achieved throughput and the latency percentiles of the last
+   * run.
+   */
+
+  void report()
+  {
+    final long osgi = this.osgi_entries.sum();
+    final long direct = this.slf4j_entries.sum();
+    final long total = osgi + direct;
+    final double seconds = (double) this.elapsed_nanos / 1.0e9;
+
+    LOG.info(
+      "load: {} entries in {} ms ({} entries/s): {} via LogService, {} via SLF4J, {} with exceptions",
+      Long.valueOf(total),
+      Long.valueOf(TimeUnit.NANOSECONDS.toMillis(this.elapsed_nanos)),
+      Long.valueOf(seconds > 0.0 ? Math.round((double) total / seconds) : 0L),
+      Long.valueOf(osgi),
+      Long.valueOf(direct),
+      Long.valueOf(this.exception_entries.sum()));
+
+    reportLatency(
+      this.formatting != null
+        ? "LogService to encoder (end-to-end)"
+        : "LogService delivery to listeners (not end-to-end)",
+      this.osgi_latency,
+      this.osgi_probes.sum());
+    reportLatency(
+      "SLF4J to encoder (end-to-end)",
+      this.slf4j_latency,
+      this.slf4j_probes.sum());
+  }
+
+  private static void reportLatency(
+    final String path,
+    final LatencyHistogram histogram,
+    final long probes)
+  {
+    final long observed = histogram.count();
+    LOG.info(
+      "load: {} latency (us): p50 {} p90 {} p99 {} p99.9 {} max {} ({} probes, {} unobserved)",
+      path,
+      micros(histogram.percentile(0.50)),
+      micros(histogram.percentile(0.90)),
+      micros(histogram.percentile(0.99)),
+      micros(histogram.percentile(0.999)),
+      micros(histogram.max()),
+      Long.valueOf(observed),
+      Long.valueOf(Math.max(0L, probes - observed)));
+  }
+
+  private static String micros(
+    final long nanos)
+  {
+    return String.format(Locale.ROOT, "%.1f", Double.valueOf(nanos / 1000.0));
+  }
+}
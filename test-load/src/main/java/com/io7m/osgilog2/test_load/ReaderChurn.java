@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.osgilog2.test_load;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+import org.osgi.service.log.LogReaderService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A stress test that registers and unregisters log reader services from
+ * a number of threads at once, and checks that every bundle that used them
+ * released them.</p>
+ *
+ * <p>Each reader is registered as a {@link ServiceFactory}, so every
+ * {@code getService} and {@code ungetService} made by any bundle is
+ * counted, as is every log listener added to and removed from each
+ * reader. Each thread keeps a few of its registrations alive at once,
+ * unregistering them in a random order, and modifies some of them while
+ * they are registered.</p>
+ *
+ * <p>The framework forcibly releases any service that a bundle still holds
+ * once the {@code UNREGISTERING} event has been delivered, so balanced get
+ * and unget counts prove nothing on their own. A bundle that releases a
+ * reader correctly does so from its service listener while the event is
+ * being delivered; a release made during unregistration but outside any
+ * service listener was made by the framework on behalf of a bundle that
+ * leaked the reference. When every thread has finished, no reader may have
+ * been released that way, no listener may remain attached, and no listener
+ * may have been attached to the same reader twice.</p>
+ */
+
+final class ReaderChurn
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(ReaderChurn.class);
+  }
+
+  private static final int LIVE_MAXIMUM = 8;
+
+  private final LoadConfiguration config;
+  private final BundleContext context;
+  private final List<CountingFactory> factories;
+
+  /**
+   * Construct a stress test.
+   *
+   * @param in_config  The configuration
+   * @param in_context The bundle context used to register readers
+   */
+
+  ReaderChurn(
+    final LoadConfiguration in_config,
+    final BundleContext in_context)
+  {
+    this.config = Objects.requireNonNull(in_config, "Config");
+    this.context = Objects.requireNonNull(in_context, "Context");
+    this.factories = Collections.synchronizedList(new ArrayList<>(1024));
+  }
+
+  /**
+   * @return {@code true} if the current thread is delivering a service event
+   */
+
+  private static boolean insideServiceListener()
+  {
+    for (final StackTraceElement element : new Throwable().getStackTrace()) {
+      if ("serviceChanged".equals(element.getMethodName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Attachment
+  {
+    private int adds;
+    private int removes;
+  }
+
+  private static final class CountingReader implements LogReaderService
+  {
+    private final Map<LogListener, Attachment> listeners;
+
+    CountingReader()
+    {
+      this.listeners = new IdentityHashMap<>(4);
+    }
+
+    @Override
+    public void addLogListener(
+      final LogListener listener)
+    {
+      synchronized (this.listeners) {
+        ++this.listeners.computeIfAbsent(listener, k -> new Attachment())
+          .adds;
+      }
+    }
+
+    @Override
+    public void removeLogListener(
+      final LogListener listener)
+    {
+      synchronized (this.listeners) {
+        ++this.listeners.computeIfAbsent(listener, k -> new Attachment())
+          .removes;
+      }
+    }
+
+    @Override
+    public Enumeration<LogEntry> getLog()
+    {
+      return Collections.emptyEnumeration();
+    }
+  }
+
+  private static final class CountingFactory
+    implements ServiceFactory<LogReaderService>
+  {
+    private final AtomicInteger gets;
+    private final AtomicInteger ungets;
+    private final AtomicInteger reclaimed;
+    private final List<CountingReader> readers;
+    private volatile boolean unregistering;
+
+    CountingFactory()
+    {
+      this.gets = new AtomicInteger();
+      this.ungets = new AtomicInteger();
+      this.reclaimed = new AtomicInteger();
+      this.readers = Collections.synchronizedList(new ArrayList<>(2));
+    }
+
+    void unregister(
+      final ServiceRegistration<LogReaderService> registration)
+    {
+      this.unregistering = true;
+      registration.unregister();
+    }
+
+    @Override
+    public LogReaderService getService(
+      final Bundle bundle,
+      final ServiceRegistration<LogReaderService> registration)
+    {
+      this.gets.incrementAndGet();
+      final CountingReader reader = new CountingReader();
+      this.readers.add(reader);
+      return reader;
+    }
+
+    @Override
+    public void ungetService(
+      final Bundle bundle,
+      final ServiceRegistration<LogReaderService> registration,
+      final LogReaderService service)
+    {
+      this.ungets.incrementAndGet();
+      if (this.unregistering && !insideServiceListener()) {
+        LOG.debug("churn: {} did not release {}", bundle, registration);
+        this.reclaimed.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Run the configured number of threads until each has registered and
+   * unregistered the configured number of readers.
+   *
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  void run()
+    throws InterruptedException
+  {
+    final int count = this.config.churnThreads();
+    LOG.info(
+      "churn: {} threads, {} readers per thread",
+      Integer.valueOf(count),
+      Integer.valueOf(this.config.churnReaders()));
+
+    final Thread[] threads = new Thread[count];
+    for (int index = 0; index < count; ++index) {
+      threads[index] = new Thread(this::churn);
+      threads[index].setName("com.io7m.osgilog2.test_load.churn." + index);
+    }
+
+    final long start = System.nanoTime();
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    this.report(System.nanoTime() - start);
+  }
+
+  private void churn()
+  {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final ArrayDeque<Live> live = new ArrayDeque<>(LIVE_MAXIMUM);
+
+    try {
+      for (int index = 0; index < this.config.churnReaders(); ++index) {
+        final CountingFactory factory = new CountingFactory();
+        this.factories.add(factory);
+
+        final ServiceRegistration<LogReaderService> registration =
+          this.context.registerService(LogReaderService.class, factory, null);
+
+        if (random.nextInt(4) == 0) {
+          final Hashtable<String, Object> properties = new Hashtable<>(1);
+          properties.put(
+            LoadConfiguration.PREFIX + "churn", Integer.valueOf(index));
+          registration.setProperties(properties);
+        }
+
+        final Live entry = new Live(factory, registration);
+        if (random.nextBoolean()) {
+          live.addFirst(entry);
+        } else {
+          live.addLast(entry);
+        }
+        while (live.size() > random.nextInt(LIVE_MAXIMUM)) {
+          live.removeFirst().unregister();
+        }
+      }
+    } finally {
+      while (!live.isEmpty()) {
+        live.removeFirst().unregister();
+      }
+    }
+  }
+
+  private static final class Live
+  {
+    private final CountingFactory factory;
+    private final ServiceRegistration<LogReaderService> registration;
+
+    Live(
+      final CountingFactory in_factory,
+      final ServiceRegistration<LogReaderService> in_registration)
+    {
+      this.factory = in_factory;
+      this.registration = in_registration;
+    }
+
+    void unregister()
+    {
+      this.factory.unregister(this.registration);
+    }
+  }
+
+  private void report(
+    final long elapsed_nanos)
+  {
+    int attached = 0;
+    int unbalanced_gets = 0;
+    int reclaimed = 0;
+    int unbalanced_listeners = 0;
+    int attached_twice = 0;
+
+    synchronized (this.factories) {
+      for (final CountingFactory factory : this.factories) {
+        if (factory.gets.get() != factory.ungets.get()) {
+          ++unbalanced_gets;
+        }
+        reclaimed += factory.reclaimed.get();
+
+        boolean factory_attached = false;
+        synchronized (factory.readers) {
+          for (final CountingReader reader : factory.readers) {
+            synchronized (reader.listeners) {
+              for (final Attachment attachment : reader.listeners.values()) {
+                if (attachment.adds != attachment.removes) {
+                  ++unbalanced_listeners;
+                }
+                if (attachment.adds > 1) {
+                  ++attached_twice;
+                }
+                factory_attached = factory_attached || attachment.adds > 0;
+              }
+            }
+          }
+        }
+        if (factory_attached) {
+          ++attached;
+        }
+      }
+    }
+
+    LOG.info(
+      "churn: {} readers in {} ms, {} attached",
+      Integer.valueOf(this.factories.size()),
+      Long.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsed_nanos)),
+      Integer.valueOf(attached));
+
+    final int failures =
+      unbalanced_gets + reclaimed + unbalanced_listeners + attached_twice;
+    if (failures > 0) {
+      LOG.error(
+        "churn: {} readers not released, {} readers reclaimed by the "
+          + "framework, {} listeners left attached, "
+          + "{} listeners attached twice",
+        Integer.valueOf(unbalanced_gets),
+        Integer.valueOf(reclaimed),
+        Integer.valueOf(unbalanced_listeners),
+        Integer.valueOf(attached_twice));
+      throw new IllegalStateException("Log reader services were leaked");
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.io7m.osgilog2.test_osgi_log;
 
+import com.io7m.osgilog2.logservice.FormattingLogger;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
@@ -23,9 +24,9 @@ import org.osgi.util.tracker.ServiceTracker;
 
 /**
  * A simple bundle activator that writes a message to any available OSGi log
- * service. The purpose of this is to test that logged messages ultimately end
- * up going through the host's logging configuration, rather than one inside the
- * OSGi container.
+ * service, and another to the formatting logger. The purpose of this is to
+ * test that logged messages ultimately end up going through the host's logging
+ * configuration, rather than one inside the OSGi container.
  */
 
 public final class Activator implements BundleActivator
@@ -49,6 +50,23 @@ public final class Activator implements BundleActivator
     } finally {
       tracker.close();
     }
+
+    final ServiceTracker<FormattingLogger, FormattingLogger> loggers =
+      new ServiceTracker<>(context, FormattingLogger.class, null);
+
+    loggers.open();
+    try {
+      final FormattingLogger logger = loggers.getService();
+      if (logger != null) {
+        logger.error(
+          "FORMATTING LOGGER HELLO FROM {}!",
+          context.getBundle().getSymbolicName());
+      } else {
+        System.out.println("test-osgi-logging: stdout: logger is null");
+      }
+    } finally {
+      loggers.close();
+    }
   }
 
   @Override